@@ -0,0 +1,87 @@
+package io.github.dankoller.antifraud.benchmark;
+
+import io.github.dankoller.antifraud.util.CardValidator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares card number validation: the former two passes (Luhn with Character.getNumericValue, then conversion into
+ * the card key) against the fused single pass and its batch variant. Each operation handles a batch of card numbers,
+ * nine out of ten valid, so the scores are per batch.
+ * <p>
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CardValidatorBenchmark {
+
+    private static final int BATCH = 1024;
+
+    private String[] cardNumbers;
+    private long[] keys;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        cardNumbers = new String[BATCH];
+        keys = new long[BATCH];
+
+        for (int i = 0; i < BATCH; i++) {
+            StringBuilder number = new StringBuilder();
+            for (int digit = 0; digit < 15; digit++) number.append(random.nextInt(10));
+            // Append the check digit, except for every tenth number
+            for (int check = 0; check < 10; check++) {
+                if (CardValidator.toValidKey(number.toString() + check) != CardValidator.INVALID) {
+                    number.append(i % 10 == 0 ? (check + 1) % 10 : check);
+                    break;
+                }
+            }
+            cardNumbers[i] = number.toString();
+        }
+    }
+
+    @Benchmark
+    public void twoPasses(Blackhole blackhole) {
+        for (String cardNumber : cardNumbers) {
+            blackhole.consume(legacyIsNonValid(cardNumber) ? CardValidator.INVALID : CardValidator.toKey(cardNumber));
+        }
+    }
+
+    @Benchmark
+    public void fused(Blackhole blackhole) {
+        for (String cardNumber : cardNumbers) {
+            blackhole.consume(CardValidator.toValidKey(cardNumber));
+        }
+    }
+
+    @Benchmark
+    public int fusedBatch() {
+        return CardValidator.toValidKeys(cardNumbers, BATCH, keys);
+    }
+
+    // Validation before the fused validator, kept as the baseline
+    private static boolean legacyIsNonValid(String cardNumber) {
+        if (cardNumber == null) return true;
+        if (cardNumber.length() != 16) return true;
+
+        int sum = 0;
+
+        for (int i = cardNumber.length(); i > 0; i--) {
+            int num = Character.getNumericValue(cardNumber.charAt(i - 1));
+
+            if (i % 2 == 1) num *= 2;
+            if (num > 9) num -= 9;
+
+            sum += num;
+        }
+
+        return sum % 10 != 0;
+    }
+}
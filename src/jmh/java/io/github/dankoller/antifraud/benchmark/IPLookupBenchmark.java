@@ -0,0 +1,100 @@
+package io.github.dankoller.antifraud.benchmark;
+
+import io.github.dankoller.antifraud.store.IPRadixTree;
+import io.github.dankoller.antifraud.store.SuspiciousIPStore;
+import io.github.dankoller.antifraud.util.IPAddressValidator;
+import io.github.dankoller.antifraud.util.IPKey;
+import io.github.dankoller.antifraud.util.IPNetwork;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares suspicious IP lookups: the IPv4-only sorted array of the threat-intel feeds against the suspicious IP
+ * store (hash set for single addresses, radix tree for networks) and a radix tree holding every entry, for IPv4 and
+ * IPv6 addresses. Every lookup includes parsing the address text, like scoring.
+ * <p>
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IPLookupBenchmark {
+
+    private static final int LOOKUPS = 1024;
+
+    @Param({"10000", "1000000"})
+    private int entries;
+
+    private long[] sortedIPv4;
+    private IPRadixTree tree;
+    private SuspiciousIPStore store;
+    private String[] ipv4Lookups;
+    private String[] ipv6Lookups;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        sortedIPv4 = new long[entries];
+        tree = new IPRadixTree();
+        store = new SuspiciousIPStore();
+
+        for (int i = 0; i < entries; i++) {
+            long ipv4 = random.nextInt() & 0xFFFFFFFFL;
+            sortedIPv4[i] = ipv4;
+            add(new IPNetwork(IPKey.ofIPv4(ipv4), 128));
+
+            // Mostly single IPv6 addresses, some networks
+            int length = i % 16 == 0 ? 48 + random.nextInt(80) : 128;
+            IPKey ipv6 = new IPKey(0x2001_0db8_0000_0000L | random.nextInt(1 << 16), random.nextLong());
+            add(new IPNetwork(ipv6.mask(length), length));
+        }
+        Arrays.sort(sortedIPv4);
+
+        // Half of the lookups hit
+        ipv4Lookups = new String[LOOKUPS];
+        ipv6Lookups = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            long ipv4 = i % 2 == 0 ? sortedIPv4[random.nextInt(entries)] : random.nextInt() & 0xFFFFFFFFL;
+            ipv4Lookups[i] = IPKey.ofIPv4(ipv4).toString();
+            ipv6Lookups[i] = new IPKey(0x2001_0db8_0000_0000L | random.nextInt(1 << 16), random.nextLong()).toString();
+        }
+    }
+
+    private void add(IPNetwork network) {
+        tree.add(network);
+        store.add(network.toString());
+    }
+
+    @Benchmark
+    public boolean ipv4SortedArray() {
+        long key = IPAddressValidator.toKey(ipv4Lookups[next++ & (LOOKUPS - 1)]);
+        return Arrays.binarySearch(sortedIPv4, key) >= 0;
+    }
+
+    @Benchmark
+    public boolean ipv4RadixTree() {
+        return tree.contains(IPKey.parse(ipv4Lookups[next++ & (LOOKUPS - 1)]));
+    }
+
+    @Benchmark
+    public boolean ipv6RadixTree() {
+        return tree.contains(IPKey.parse(ipv6Lookups[next++ & (LOOKUPS - 1)]));
+    }
+
+    @Benchmark
+    public boolean ipv4Store() {
+        return store.contains(ipv4Lookups[next++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public boolean ipv6Store() {
+        return store.contains(ipv6Lookups[next++ & (LOOKUPS - 1)]);
+    }
+}
@@ -0,0 +1,362 @@
+package io.github.dankoller.antifraud.loadtest;
+
+import io.github.dankoller.antifraud.AntiFraudApplication;
+import io.github.dankoller.antifraud.workload.CardNumbers;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HTTP load test of the whole stack (security filter, Jackson, services, JPA). Boots the application on an in-memory
+ * H2 database and a random port, creates a merchant and a support user, and lets concurrent clients send a weighted
+ * mix of transactions, feedback and history reads. Reports throughput and latency percentiles per operation and
+ * exits with status 1 if the results are worse than the baseline file.
+ * <p>
+ * The baseline only means something on the machine it was recorded on, so it holds the number of processors and a
+ * run on another machine fails until the baseline is recorded there with {@code -Dloadtest.record-baseline=true}.
+ * <p>
+ * Run with {@code ./gradlew loadTest}, settings see {@link LoadTestConfig}. All requests are derived from the seed,
+ * only their interleaving depends on the scheduling.
+ */
+public class LoadTest {
+
+    static final String PASSWORD = "loadtest-password";
+
+    private static final String ADMIN = "loadtest-admin";
+    private static final String MERCHANT = "loadtest-merchant";
+    private static final String SUPPORT = "loadtest-support";
+
+    private static final String[] REGIONS = {"EAP", "ECA", "HIC", "LAC", "MENA", "SA", "SSA"};
+    private static final String[] FEEDBACK = {"ALLOWED", "MANUAL_PROCESSING", "PROHIBITED"};
+    private static final LocalDateTime START_DATE = LocalDateTime.of(2023, 1, 1, 0, 0);
+
+    // Feedback on a processed transaction (409) or with its own result (422) is an expected answer
+    private static final Map<Operation, Set<Integer>> EXPECTED_STATUS = Map.of(
+            Operation.TRANSACTION, Set.of(200),
+            Operation.FEEDBACK, Set.of(200, 409, 422),
+            Operation.HISTORY, Set.of(200, 404)
+    );
+
+    private static final Pattern TRANSACTION_ID = Pattern.compile("\"transactionId\"\\s*:\\s*(\\d+)");
+    private static final int MAX_FEEDBACK_CANDIDATES = 10_000;
+    private static final int CARD_BINS = 100;
+
+    // Headroom of a recorded baseline over the measured results, for the noise between two runs
+    private static final double THROUGHPUT_HEADROOM = 0.8;
+    private static final double LATENCY_HEADROOM = 1.5;
+    private static final double MAX_ERROR_RATE = 0.001;
+    // Fewer requests don't give a stable 99th percentile, their latency isn't recorded
+    private static final long MIN_RECORDED_REQUESTS = 100;
+
+    private static final String[] APPLICATION_ARGS = {
+            "--server.port=0",
+            "--spring.config.on-not-found=ignore",
+            "--spring.datasource.url=jdbc:h2:mem:loadtest;MODE=MySQL;NON_KEYWORDS=USER",
+            "--spring.datasource.driverClassName=org.h2.Driver",
+            "--spring.datasource.username=sa",
+            "--spring.datasource.password=",
+            "--spring.jpa.hibernate.ddl-auto=create",
+            "--antifraud.card-store.directory=",
+            "--antifraud.state.directory=",
+            "--antifraud.feed.directory=",
+            "--antifraud.archive.directory=",
+            "--logging.level.root=WARN"
+    };
+
+    private final LoadTestConfig config;
+    private final LoadTestClient client;
+    private final String[] cardNumbers;
+    private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private final Queue<Long> feedbackCandidates = new ConcurrentLinkedQueue<>();
+    private final AtomicLong transactionSequence = new AtomicLong();
+    private volatile boolean stopped;
+
+    LoadTest(LoadTestConfig config, int port) {
+        this.config = config;
+        this.client = new LoadTestClient(port);
+        this.cardNumbers = CardNumbers.generate(config.cards(), CARD_BINS, new Random(config.seed()));
+
+        for (Operation operation : Operation.values()) {
+            // Latencies in microseconds, from 1 us to 1 minute with 3 significant digits
+            recorders.put(operation, new Recorder(1, TimeUnit.MINUTES.toMicros(1), 3));
+            errors.put(operation, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestConfig config = LoadTestConfig.fromSystemProperties();
+        System.out.println("Load test: " + config);
+
+        int exitCode;
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(AntiFraudApplication.class)
+                .run(APPLICATION_ARGS)) {
+            Integer port = context.getEnvironment().getProperty("local.server.port", Integer.class);
+            if (port == null) throw new IllegalStateException("Application has no web server");
+
+            LoadTest loadTest = new LoadTest(config, port);
+            loadTest.createUsers();
+            Map<Operation, Result> results = loadTest.run();
+            print(results, config.durationSeconds());
+            if (config.baseline() != null && config.recordBaseline()) {
+                recordBaseline(results, config);
+                exitCode = 0;
+            } else {
+                exitCode = config.baseline() == null || checkBaseline(results, config) ? 0 : 1;
+            }
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Creates the admin (first user), a merchant and a support user and unlocks them.
+     */
+    private void createUsers() throws IOException, InterruptedException {
+        for (String username : List.of(ADMIN, MERCHANT, SUPPORT)) {
+            client.sendOrFail("POST", "/api/auth/user", null, "{\"name\":\"" + username + "\",\"username\":\""
+                    + username + "\",\"password\":\"" + PASSWORD + "\"}");
+        }
+        client.sendOrFail("PUT", "/api/auth/role", ADMIN, "{\"username\":\"" + SUPPORT + "\",\"role\":\"SUPPORT\"}");
+        for (String username : List.of(MERCHANT, SUPPORT)) {
+            client.sendOrFail("PUT", "/api/auth/access", ADMIN,
+                    "{\"username\":\"" + username + "\",\"operation\":\"UNLOCK\"}");
+        }
+    }
+
+    /**
+     * Runs the warmup and the measurement.
+     *
+     * @return The results per operation
+     */
+    private Map<Operation, Result> run() throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < config.concurrency(); i++) {
+            Random random = new Random(config.seed() * 31 + i);
+            Thread worker = new Thread(() -> work(random), "load-test-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(config.warmupSeconds()));
+        // Drop everything recorded during the warmup
+        for (Operation operation : Operation.values()) {
+            recorders.get(operation).getIntervalHistogram();
+            errors.get(operation).reset();
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(config.durationSeconds()));
+        Map<Operation, Result> results = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            results.put(operation, new Result(recorders.get(operation).getIntervalHistogram(),
+                    errors.get(operation).sum()));
+        }
+
+        stopped = true;
+        for (Thread worker : workers) worker.join();
+        return results;
+    }
+
+    private void work(Random random) {
+        int totalWeight = config.mix().values().stream().mapToInt(Integer::intValue).sum();
+
+        while (!stopped) {
+            Operation operation = pick(random, totalWeight);
+            Long transactionId = null;
+            if (operation == Operation.FEEDBACK) {
+                transactionId = feedbackCandidates.poll();
+                // Nothing to give feedback on yet, read a history instead
+                if (transactionId == null) operation = Operation.HISTORY;
+            }
+
+            long start = System.nanoTime();
+            int status;
+            try {
+                status = send(operation, transactionId, random);
+            } catch (IOException | RuntimeException e) {
+                status = -1;
+            } catch (InterruptedException e) {
+                return;
+            }
+            recorders.get(operation).recordValue(Math.max(1, (System.nanoTime() - start) / 1000));
+            if (!EXPECTED_STATUS.get(operation).contains(status)) errors.get(operation).increment();
+        }
+    }
+
+    private Operation pick(Random random, int totalWeight) {
+        int value = random.nextInt(totalWeight);
+        for (Map.Entry<Operation, Integer> entry : config.mix().entrySet()) {
+            value -= entry.getValue();
+            if (value < 0) return entry.getKey();
+        }
+        throw new AssertionError();
+    }
+
+    private int send(Operation operation, Long transactionId, Random random) throws IOException,
+            InterruptedException {
+        String cardNumber = cardNumbers[random.nextInt(cardNumbers.length)];
+
+        switch (operation) {
+            case TRANSACTION -> {
+                // Every transaction one second after the previous one, so the time windows fill up like in production
+                LocalDateTime date = START_DATE.plusSeconds(transactionSequence.incrementAndGet());
+                String body = "{\"amount\":" + (1 + random.nextInt(2000))
+                        + ",\"ip\":\"10." + random.nextInt(4) + "." + random.nextInt(256) + "." + random.nextInt(256)
+                        + "\",\"number\":\"" + cardNumber
+                        + "\",\"region\":\"" + REGIONS[random.nextInt(REGIONS.length)]
+                        + "\",\"date\":\"" + date + "\"}";
+                return client.send("POST", "/api/antifraud/transaction", MERCHANT, body).statusCode();
+            }
+            case FEEDBACK -> {
+                String body = "{\"transactionId\":\"" + transactionId
+                        + "\",\"feedback\":\"" + FEEDBACK[random.nextInt(FEEDBACK.length)] + "\"}";
+                return client.send("PUT", "/api/antifraud/transaction", SUPPORT, body).statusCode();
+            }
+            case HISTORY -> {
+                HttpResponse<String> response = client.send("GET", "/api/antifraud/history/" + cardNumber, SUPPORT,
+                        null);
+                Matcher matcher = TRANSACTION_ID.matcher(response.body());
+                if (matcher.find() && feedbackCandidates.size() < MAX_FEEDBACK_CANDIDATES) {
+                    feedbackCandidates.offer(Long.parseLong(matcher.group(1)));
+                }
+                return response.statusCode();
+            }
+            default -> throw new AssertionError(operation);
+        }
+    }
+
+    private static void print(Map<Operation, Result> results, int seconds) {
+        System.out.printf("%n%-12s %9s %9s %9s %9s %9s %9s %9s %7s%n",
+                "operation", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+
+        Histogram total = new Histogram(1, TimeUnit.MINUTES.toMicros(1), 3);
+        long totalErrors = 0;
+        for (Map.Entry<Operation, Result> entry : results.entrySet()) {
+            print(entry.getKey().name().toLowerCase(), entry.getValue().histogram(), entry.getValue().errors(),
+                    seconds);
+            total.add(entry.getValue().histogram());
+            totalErrors += entry.getValue().errors();
+        }
+        print("total", total, totalErrors, seconds);
+    }
+
+    private static void print(String name, Histogram histogram, long errors, int seconds) {
+        System.out.printf("%-12s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %7d%n", name, histogram.getTotalCount(),
+                (double) histogram.getTotalCount() / seconds,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0, errors);
+    }
+
+    /**
+     * Writes the results of this run with some headroom to the baseline file, together with the machine they were
+     * measured on.
+     */
+    private static void recordBaseline(Map<Operation, Result> results, LoadTestConfig config) throws IOException {
+        Histogram total = new Histogram(1, TimeUnit.MINUTES.toMicros(1), 3);
+        results.values().forEach(result -> total.add(result.histogram()));
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        List<String> lines = new ArrayList<>();
+        lines.add("# Baseline of ./gradlew loadTest with the default settings, written by");
+        lines.add("# -Dloadtest.record-baseline=true on " + processors + " processors, " + System.getProperty("os.name")
+                + " " + System.getProperty("os.arch") + ", Java " + System.getProperty("java.version") + ".");
+        lines.add("# A run fails if the throughput is lower, a 99th percentile latency or the error rate higher than");
+        lines.add("# given here, or if the machine has another number of processors: record it again on the machine");
+        lines.add("# that runs the load test.");
+        lines.add("processors=" + processors);
+        lines.add(String.format(Locale.ROOT, "total.min-throughput=%.1f",
+                THROUGHPUT_HEADROOM * total.getTotalCount() / config.durationSeconds()));
+        for (Map.Entry<Operation, Result> entry : results.entrySet()) {
+            Histogram histogram = entry.getValue().histogram();
+            if (histogram.getTotalCount() < MIN_RECORDED_REQUESTS) continue;
+            lines.add(entry.getKey().name().toLowerCase() + ".max-p99-ms="
+                    + (long) Math.ceil(LATENCY_HEADROOM * histogram.getValueAtPercentile(99) / 1000.0));
+        }
+        lines.add("max-error-rate=" + MAX_ERROR_RATE);
+
+        Files.write(config.baseline(), lines);
+        System.out.println("\nRecorded baseline " + config.baseline());
+    }
+
+    /**
+     * Compares the results with the baseline file. Keys are "processors" (of the machine it was recorded on),
+     * "total.min-throughput" (requests per second), "&lt;operation&gt;.max-p99-ms" and "max-error-rate" (errors per
+     * request).
+     *
+     * @return True if all results are within the baseline
+     */
+    private static boolean checkBaseline(Map<Operation, Result> results, LoadTestConfig config) throws IOException {
+        Properties baseline = new Properties();
+        try (Reader reader = Files.newBufferedReader(config.baseline())) {
+            baseline.load(reader);
+        }
+
+        List<String> failures = new ArrayList<>();
+        String processors = baseline.getProperty("processors");
+        int available = Runtime.getRuntime().availableProcessors();
+        if (processors != null && Integer.parseInt(processors) != available) {
+            failures.add("recorded on " + processors + " processors, this machine has " + available
+                    + ": record the baseline here with -Dloadtest.record-baseline=true");
+        }
+
+        long requests = 0;
+        long errors = 0;
+
+        for (Map.Entry<Operation, Result> entry : results.entrySet()) {
+            Histogram histogram = entry.getValue().histogram();
+            requests += histogram.getTotalCount();
+            errors += entry.getValue().errors();
+
+            String maxP99 = baseline.getProperty(entry.getKey().name().toLowerCase() + ".max-p99-ms");
+            double p99 = histogram.getValueAtPercentile(99) / 1000.0;
+            if (maxP99 != null && histogram.getTotalCount() > 0 && p99 > Double.parseDouble(maxP99)) {
+                failures.add(entry.getKey().name().toLowerCase() + " p99 " + p99 + " ms > " + maxP99 + " ms");
+            }
+        }
+
+        double throughput = (double) requests / config.durationSeconds();
+        String minThroughput = baseline.getProperty("total.min-throughput");
+        if (minThroughput != null && throughput < Double.parseDouble(minThroughput)) {
+            failures.add("throughput " + throughput + " req/s < " + minThroughput + " req/s");
+        }
+
+        double errorRate = requests == 0 ? 1 : (double) errors / requests;
+        String maxErrorRate = baseline.getProperty("max-error-rate", "0");
+        if (errorRate > Double.parseDouble(maxErrorRate)) {
+            failures.add("error rate " + errorRate + " > " + maxErrorRate);
+        }
+
+        if (failures.isEmpty()) {
+            System.out.println("\nWithin baseline " + config.baseline());
+        } else {
+            System.out.println("\nBelow baseline " + config.baseline() + ":");
+            failures.forEach(failure -> System.out.println("  " + failure));
+        }
+        return failures.isEmpty();
+    }
+
+    private record Result(Histogram histogram, long errors) {
+    }
+}
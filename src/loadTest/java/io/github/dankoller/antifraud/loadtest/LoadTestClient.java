@@ -0,0 +1,70 @@
+package io.github.dankoller.antifraud.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+
+/**
+ * Minimal HTTP client for the endpoints used by the load test, sending JSON with basic authentication.
+ */
+class LoadTestClient {
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    private final String baseUrl;
+
+    LoadTestClient(int port) {
+        this.baseUrl = "http://localhost:" + port;
+    }
+
+    /**
+     * Sends a request.
+     *
+     * @param method   HTTP method
+     * @param path     Path of the endpoint
+     * @param username User for basic authentication, null for anonymous requests
+     * @param body     JSON body, null for requests without a body
+     * @return The response
+     * @throws IOException          if the request fails
+     * @throws InterruptedException if interrupted while waiting for the response
+     */
+    HttpResponse<String> send(String method, String path, String username, String body)
+            throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(Duration.ofSeconds(30))
+                .method(method, body == null
+                        ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8));
+
+        if (body != null) request.header("Content-Type", "application/json");
+        if (username != null) request.header("Authorization", basicAuth(username));
+
+        return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Sends a request and fails unless it succeeds, for the setup of the test.
+     */
+    void sendOrFail(String method, String path, String username, String body)
+            throws IOException, InterruptedException {
+        HttpResponse<String> response = send(method, path, username, body);
+        if (response.statusCode() / 100 != 2) {
+            throw new IllegalStateException(method + " " + path + " failed with " + response.statusCode() + ": "
+                    + response.body());
+        }
+    }
+
+    // All load test users share the same password
+    private static String basicAuth(String username) {
+        String credentials = username + ":" + LoadTest.PASSWORD;
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,59 @@
+package io.github.dankoller.antifraud.loadtest;
+
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Settings of a load test run, read from system properties (e.g. {@code ./gradlew loadTest
+ * -Dloadtest.concurrency=32}). The defaults are the settings the baseline was measured with.
+ *
+ * @param concurrency     Number of concurrent clients
+ * @param warmupSeconds   Seconds of load before measuring, so the JIT compiler and the caches settle
+ * @param durationSeconds Seconds of measured load
+ * @param mix             Relative weight of each operation
+ * @param cards           Number of distinct card numbers used by the transactions
+ * @param seed            Seed of all random choices, so two runs send the same requests
+ * @param baseline        File with the minimum throughput and maximum latencies, null to skip the check
+ * @param recordBaseline  True to write the results of this run to the baseline file instead of checking them
+ */
+public record LoadTestConfig(int concurrency, int warmupSeconds, int durationSeconds, Map<Operation, Integer> mix,
+                             int cards, long seed, Path baseline, boolean recordBaseline) {
+
+    public static LoadTestConfig fromSystemProperties() {
+        String baseline = System.getProperty("loadtest.baseline", "src/loadTest/resources/baseline.properties");
+
+        return new LoadTestConfig(
+                Integer.getInteger("loadtest.concurrency", 16),
+                Integer.getInteger("loadtest.warmup-seconds", 10),
+                Integer.getInteger("loadtest.duration-seconds", 30),
+                parseMix(System.getProperty("loadtest.mix", "transaction:80,feedback:5,history:15")),
+                Integer.getInteger("loadtest.cards", 1_000),
+                Long.getLong("loadtest.seed", 42),
+                baseline.isBlank() ? null : Path.of(baseline),
+                Boolean.getBoolean("loadtest.record-baseline")
+        );
+    }
+
+    /**
+     * Parses an operation mix like "transaction:80,feedback:5,history:15".
+     *
+     * @param mix The mix
+     * @return The weight of each operation, operations not listed have weight 0
+     */
+    static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) throw new IllegalArgumentException("Invalid mix entry: " + entry);
+            weights.put(Operation.valueOf(parts[0].trim().toUpperCase()), Integer.parseInt(parts[1].trim()));
+        }
+        return weights;
+    }
+
+    @Override
+    public String toString() {
+        return "concurrency=" + concurrency + " warmup=" + warmupSeconds + "s duration=" + durationSeconds
+                + "s mix=" + mix + " cards=" + cards + " seed=" + seed;
+    }
+}
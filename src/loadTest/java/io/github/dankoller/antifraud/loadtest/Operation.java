@@ -0,0 +1,11 @@
+package io.github.dankoller.antifraud.loadtest;
+
+// Requests sent by the load test
+public enum Operation {
+    // POST /api/antifraud/transaction as merchant
+    TRANSACTION,
+    // PUT /api/antifraud/transaction as support, for a transaction seen in a history read
+    FEEDBACK,
+    // GET /api/antifraud/history/{number} as support
+    HISTORY
+}
@@ -0,0 +1,75 @@
+package io.github.dankoller.antifraud.workload;
+
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates distinct 16-digit card numbers that pass the Luhn check: a BIN (Visa or Mastercard range), nine account
+ * digits and the check digit.
+ */
+public final class CardNumbers {
+
+    private static final long ACCOUNTS = 1_000_000_000L;
+
+    private CardNumbers() {
+    }
+
+    /**
+     * Generates card numbers spread over the given number of random BINs. The account digits of card i are a
+     * permutation of i, so the numbers are distinct as long as there are fewer than 10^9 of them.
+     *
+     * @param count  Number of card numbers
+     * @param bins   Number of distinct BINs
+     * @param random Source of the BINs and account digits
+     * @return The card numbers
+     */
+    public static String[] generate(int count, int bins, Random random) {
+        int[] binValues = randomBins(bins, random);
+        // Random but distinct account numbers: multiplying with 3^18 (no common factor with 10^9) permutes them
+        long offset = (long) (random.nextDouble() * ACCOUNTS);
+
+        String[] numbers = new String[count];
+        char[] digits = new char[16];
+        for (int i = 0; i < count; i++) {
+            long account = (i * 387_420_489L + offset) % ACCOUNTS;
+            write(binValues[i % bins], 6, digits, 0);
+            write(account, 9, digits, 6);
+            digits[15] = (char) ('0' + checkDigit(digits));
+            numbers[i] = new String(digits);
+        }
+        return numbers;
+    }
+
+    private static int[] randomBins(int bins, Random random) {
+        if (bins <= 0 || bins > 300_000) throw new IllegalArgumentException("bins must be between 1 and 300000");
+
+        Set<Integer> values = new LinkedHashSet<>();
+        while (values.size() < bins) {
+            // Visa 400000-499999 or Mastercard 510000-559999
+            values.add(random.nextBoolean() ? 400_000 + random.nextInt(100_000) : 510_000 + random.nextInt(50_000));
+        }
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static void write(long value, int length, char[] digits, int offset) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            digits[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Returns the Luhn check digit for the first 15 digits.
+     */
+    private static int checkDigit(char[] digits) {
+        int sum = 0;
+        for (int i = 0; i < 15; i++) {
+            int value = digits[i] - '0';
+            // Counted from the check digit every second digit is doubled, for 16 digits these are the even positions
+            if (i % 2 == 0) value = value * 2 > 9 ? value * 2 - 9 : value * 2;
+            sum += value;
+        }
+        return (10 - sum % 10) % 10;
+    }
+}
@@ -0,0 +1,63 @@
+package io.github.dankoller.antifraud.workload;
+
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates a synthetic workload (see {@link WorkloadGenerator}) into NDJSON files or the database, e.g. to test the
+ * history and the correlation heuristics with 100 million transactions.
+ * <p>
+ * Run with {@code ./gradlew generateWorkload}, settings see {@link WorkloadConfig}.
+ */
+public class GenerateWorkload {
+
+    private static final long PROGRESS_INTERVAL = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        WorkloadConfig config = WorkloadConfig.fromSystemProperties();
+        System.out.println("Workload: " + config);
+
+        WorkloadGenerator generator = new WorkloadGenerator(config);
+        List<String> cards = generator.cards();
+        List<String> stolenCards = generator.stolenCards();
+        List<String> suspiciousIps = generator.suspiciousIps();
+        Map<TransactionResult, Long> results = new EnumMap<>(TransactionResult.class);
+        long feedback = 0;
+
+        long start = System.nanoTime();
+        // Every stolen card and suspicious IP address also gets a row in the blocklist change log
+        long rows = config.transactions() + cards.size() + stolenCards.size() + 2L * suspiciousIps.size();
+        try (WorkloadSink sink = config.isJdbc()
+                ? new JdbcSink(config, rows)
+                : new NdjsonSink(Path.of(config.output()))) {
+            sink.writeCards(cards, new HashSet<>(stolenCards));
+            sink.writeSuspiciousIps(suspiciousIps);
+
+            while (generator.hasNext()) {
+                GeneratedTransaction transaction = generator.next();
+                sink.write(transaction);
+                results.merge(transaction.result(), 1L, Long::sum);
+                if (transaction.feedback() != null) feedback++;
+
+                if (generator.generated() % PROGRESS_INTERVAL == 0) {
+                    System.out.printf("%,d transactions, %,.0f per second%n", generator.generated(),
+                            generator.generated() / seconds(start));
+                }
+            }
+        }
+
+        System.out.printf("Generated %,d transactions in %.1f s: %s, %,d with feedback, %,d stolen cards, "
+                        + "%,d suspicious IP addresses%n", generator.generated(), seconds(start), results, feedback,
+                stolenCards.size(), suspiciousIps.size());
+    }
+
+    private static double seconds(long start) {
+        return (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+}
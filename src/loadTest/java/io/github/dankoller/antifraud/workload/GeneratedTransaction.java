@@ -0,0 +1,13 @@
+package io.github.dankoller.antifraud.workload;
+
+import io.github.dankoller.antifraud.entity.Region;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+
+import java.time.LocalDateTime;
+
+/**
+ * A generated transaction with its result and an optional feedback (null if none).
+ */
+public record GeneratedTransaction(long amount, String number, String ip, Region region, LocalDateTime date,
+                                   TransactionResult result, TransactionResult feedback) {
+}
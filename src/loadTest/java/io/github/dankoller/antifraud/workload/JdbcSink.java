@@ -0,0 +1,161 @@
+package io.github.dankoller.antifraud.workload;
+
+import io.github.dankoller.antifraud.entity.Card;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Inserts a workload into the tables of the application with JDBC batches, one commit per batch: a card row for every
+ * card (the stolen ones locked), the suspicious IP addresses, their entries in the blocklist change log and the
+ * transactions. The schema must exist (start the application once), and the ids are reserved from hibernate_sequence
+ * up front. On its next start the application moves its pooled id generators past them.
+ * <p>
+ * The application keeps the cards and the blocklists in memory and doesn't see rows inserted behind its back. Stop it
+ * and clear its card store and state directories ({@code antifraud.card-store.directory} and
+ * {@code antifraud.state.directory}) before loading, so the next start rebuilds them from the tables. With MySQL add
+ * rewriteBatchedStatements=true to the URL, so a batch is sent as one multi-row insert.
+ */
+class JdbcSink implements WorkloadSink {
+
+    private static final String INSERT_TRANSACTION = "insert into transaction "
+            + "(id, amount, date, feedback, ip, number, region, result) values (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_CARD = "insert into card "
+            + "(id, number, is_locked, allowed_limit, manual_limit) values (?, ?, ?, ?, ?)";
+    private static final String INSERT_IP = "insert into ipaddress (id, ip, expires_at) values (?, ?, null)";
+    private static final String INSERT_BLOCKLIST_CHANGE = "insert into blocklist_change "
+            + "(id, blocklist, entry, removed) values (?, ?, ?, false)";
+
+    private final Connection connection;
+    private final PreparedStatement insertTransaction;
+    private final int batchSize;
+    private long nextId;
+    private int pending;
+
+    /**
+     * @param config The workload, its output is the JDBC URL
+     * @param rows   Number of rows that will be inserted, their ids are reserved
+     */
+    JdbcSink(WorkloadConfig config, long rows) throws SQLException {
+        this.connection = DriverManager.getConnection(config.output(), config.username(), config.password());
+        this.batchSize = config.batchSize();
+        connection.setAutoCommit(false);
+        this.nextId = reserveIds(rows);
+        this.insertTransaction = connection.prepareStatement(INSERT_TRANSACTION);
+    }
+
+    /**
+     * Reserves a range of ids in the id table of Hibernate (the next id is stored, see TableStructure).
+     *
+     * @return The first reserved id
+     */
+    private long reserveIds(long count) throws SQLException {
+        long first;
+        try (PreparedStatement select = connection.prepareStatement(
+                "select next_val from hibernate_sequence for update"); ResultSet resultSet = select.executeQuery()) {
+            if (!resultSet.next()) throw new SQLException("hibernate_sequence is empty, start the application once");
+            first = resultSet.getLong(1);
+        }
+        try (PreparedStatement update = connection.prepareStatement("update hibernate_sequence set next_val = ?")) {
+            update.setLong(1, first + count);
+            update.executeUpdate();
+        }
+        connection.commit();
+        return first;
+    }
+
+    @Override
+    public void writeCards(List<String> numbers, Set<String> stolen) throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(INSERT_CARD)) {
+            int count = 0;
+            for (String number : numbers) {
+                insert.setLong(1, nextId++);
+                insert.setString(2, number);
+                insert.setBoolean(3, stolen.contains(number));
+                insert.setInt(4, Card.DEFAULT_ALLOWED_LIMIT);
+                insert.setInt(5, Card.DEFAULT_MANUAL_LIMIT);
+                insert.addBatch();
+                if (++count % batchSize == 0) commit(insert);
+            }
+            commit(insert);
+        }
+        writeBlocklistChanges("CARD", numbers.stream().filter(stolen::contains).toList());
+    }
+
+    @Override
+    public void writeSuspiciousIps(List<String> ips) throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(INSERT_IP)) {
+            int count = 0;
+            for (String ip : ips) {
+                insert.setLong(1, nextId++);
+                insert.setString(2, ip);
+                insert.addBatch();
+                if (++count % batchSize == 0) commit(insert);
+            }
+            commit(insert);
+        }
+        writeBlocklistChanges("IP", ips);
+    }
+
+    /**
+     * Helper method to append added entries to the blocklist change log, so the delta sync returns them.
+     */
+    private void writeBlocklistChanges(String blocklist, List<String> entries) throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(INSERT_BLOCKLIST_CHANGE)) {
+            int count = 0;
+            for (String entry : entries) {
+                insert.setLong(1, nextId++);
+                insert.setString(2, blocklist);
+                insert.setString(3, entry);
+                insert.addBatch();
+                if (++count % batchSize == 0) commit(insert);
+            }
+            commit(insert);
+        }
+    }
+
+    private void commit(PreparedStatement insert) throws SQLException {
+        insert.executeBatch();
+        connection.commit();
+    }
+
+    @Override
+    public void write(GeneratedTransaction transaction) throws SQLException {
+        insertTransaction.setLong(1, nextId++);
+        insertTransaction.setLong(2, transaction.amount());
+        insertTransaction.setTimestamp(3, Timestamp.valueOf(transaction.date()));
+        // The feedback column has no @Enumerated, Hibernate stores the ordinal
+        if (transaction.feedback() == null) {
+            insertTransaction.setNull(4, Types.INTEGER);
+        } else {
+            insertTransaction.setInt(4, transaction.feedback().ordinal());
+        }
+        insertTransaction.setString(5, transaction.ip());
+        insertTransaction.setString(6, transaction.number());
+        insertTransaction.setString(7, transaction.region().name());
+        insertTransaction.setString(8, transaction.result().name());
+        insertTransaction.addBatch();
+
+        if (++pending == batchSize) flush();
+    }
+
+    private void flush() throws SQLException {
+        insertTransaction.executeBatch();
+        connection.commit();
+        pending = 0;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try (connection; insertTransaction) {
+            if (pending > 0) flush();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package io.github.dankoller.antifraud.workload;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes a workload to a directory: the transactions to transactions.ndjson (one JSON object per line, the fields of
+ * POST /api/antifraud/transaction plus "result" and "feedback"), and the stolen cards and suspicious IP addresses to
+ * stolen-cards.csv and suspicious-ips.csv, ready for the bulk import endpoints.
+ */
+class NdjsonSink implements WorkloadSink {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path directory;
+    private final BufferedWriter transactions;
+    private final StringBuilder line = new StringBuilder(256);
+
+    NdjsonSink(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.transactions = new BufferedWriter(Files.newBufferedWriter(directory.resolve("transactions.ndjson"),
+                StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    @Override
+    public void writeCards(List<String> numbers, Set<String> stolen) throws IOException {
+        // The other cards are created by the application when their first transaction is posted
+        Files.write(directory.resolve("stolen-cards.csv"), stolen, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void writeSuspiciousIps(List<String> ips) throws IOException {
+        Files.write(directory.resolve("suspicious-ips.csv"), ips, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void write(GeneratedTransaction transaction) throws IOException {
+        // All values are digits, dots, letters and underscores, nothing to escape
+        line.setLength(0);
+        line.append("{\"amount\":").append(transaction.amount())
+                .append(",\"ip\":\"").append(transaction.ip())
+                .append("\",\"number\":\"").append(transaction.number())
+                .append("\",\"region\":\"").append(transaction.region())
+                .append("\",\"date\":\"").append(transaction.date())
+                .append("\",\"result\":\"").append(transaction.result())
+                .append("\",\"feedback\":\"").append(transaction.feedback() == null ? "" : transaction.feedback())
+                .append("\"}\n");
+        transactions.append(line);
+    }
+
+    @Override
+    public void close() throws IOException {
+        transactions.close();
+    }
+}
@@ -0,0 +1,70 @@
+package io.github.dankoller.antifraud.workload;
+
+import java.time.LocalDateTime;
+
+/**
+ * Settings of a generated workload, read from system properties (e.g. {@code ./gradlew generateWorkload
+ * -Dworkload.transactions=100000000}). The same settings and seed always generate the same data.
+ *
+ * @param transactions       Number of transactions
+ * @param cards              Number of distinct card numbers
+ * @param bins               Number of distinct BINs (first six digits) the card numbers are spread over
+ * @param cardSkew           Exponent of the Zipf distribution of transactions per card, 0 for uniform
+ * @param ips                Number of distinct IP addresses, shared by all cards
+ * @param ipReuse            Probability that a transaction comes from the usual IP address of its card
+ * @param regionSwitch       Probability that a transaction comes from another region than the usual one of its card
+ * @param stolenCardRate     Fraction of the cards that are stolen
+ * @param suspiciousIpRate   Fraction of the IP addresses that are suspicious
+ * @param feedbackRate       Fraction of the transactions with a feedback that differs from their result
+ * @param transactionsPerDay Transactions per day, the dates are spread evenly from the start date
+ * @param start              Date of the first transaction
+ * @param seed               Seed of all random choices
+ * @param output             Directory for NDJSON files, or a JDBC URL ("jdbc:...") to insert into the database
+ * @param username           Database user for a JDBC output
+ * @param password           Database password for a JDBC output
+ * @param batchSize          Rows per JDBC batch and commit
+ */
+public record WorkloadConfig(long transactions, int cards, int bins, double cardSkew, int ips, double ipReuse,
+                             double regionSwitch, double stolenCardRate, double suspiciousIpRate,
+                             double feedbackRate, long transactionsPerDay, LocalDateTime start, long seed,
+                             String output, String username, String password, int batchSize) {
+
+    public static WorkloadConfig fromSystemProperties() {
+        return new WorkloadConfig(
+                Long.getLong("workload.transactions", 1_000_000),
+                Integer.getInteger("workload.cards", 100_000),
+                Integer.getInteger("workload.bins", 500),
+                doubleProperty("workload.card-skew", 0.8),
+                Integer.getInteger("workload.ips", 50_000),
+                doubleProperty("workload.ip-reuse", 0.8),
+                doubleProperty("workload.region-switch", 0.05),
+                doubleProperty("workload.stolen-card-rate", 0.001),
+                doubleProperty("workload.suspicious-ip-rate", 0.001),
+                doubleProperty("workload.feedback-rate", 0.02),
+                Long.getLong("workload.transactions-per-day", 1_000_000),
+                LocalDateTime.parse(System.getProperty("workload.start", "2023-01-01T00:00:00")),
+                Long.getLong("workload.seed", 42),
+                System.getProperty("workload.output", "build/workload"),
+                System.getProperty("workload.username", ""),
+                System.getProperty("workload.password", ""),
+                Integer.getInteger("workload.batch-size", 10_000)
+        );
+    }
+
+    public boolean isJdbc() {
+        return output.startsWith("jdbc:");
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    @Override
+    public String toString() {
+        return "transactions=" + transactions + " cards=" + cards + " bins=" + bins + " card-skew=" + cardSkew
+                + " ips=" + ips + " ip-reuse=" + ipReuse + " region-switch=" + regionSwitch
+                + " stolen-card-rate=" + stolenCardRate + " suspicious-ip-rate=" + suspiciousIpRate
+                + " feedback-rate=" + feedbackRate + " seed=" + seed + " output=" + output;
+    }
+}
@@ -0,0 +1,162 @@
+package io.github.dankoller.antifraud.workload;
+
+import io.github.dankoller.antifraud.entity.Card;
+import io.github.dankoller.antifraud.entity.Region;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates a reproducible stream of transactions that looks like production traffic: a few cards make most of the
+ * transactions (Zipf distribution), every card has a usual region, IP address and spending level it mostly sticks to,
+ * and IP addresses are shared between cards. Some cards are stolen and some IP addresses suspicious, their
+ * transactions are prohibited. The other results follow the default limits of a card, and a part of the transactions
+ * has a feedback that corrects the result.
+ * <p>
+ * Properties of a card or IP address are derived from a hash of its index, so they need no memory besides the card
+ * numbers and IP addresses themselves.
+ */
+public class WorkloadGenerator {
+
+    private static final Region[] REGIONS = Region.values();
+    private static final TransactionResult[] RESULTS = TransactionResult.values();
+
+    private final WorkloadConfig config;
+    private final Random random;
+    private final String[] cardNumbers;
+    private final String[] ips;
+    private final ZipfDistribution cardDistribution;
+    private long generated;
+
+    public WorkloadGenerator(WorkloadConfig config) {
+        this.config = config;
+        this.random = new Random(config.seed());
+        this.cardNumbers = CardNumbers.generate(config.cards(), config.bins(), random);
+        this.ips = randomIps(config.ips(), random);
+        this.cardDistribution = new ZipfDistribution(config.cards(), config.cardSkew());
+    }
+
+    /**
+     * @return The number of transactions generated so far
+     */
+    public long generated() {
+        return generated;
+    }
+
+    /**
+     * @return True if more transactions are to be generated
+     */
+    public boolean hasNext() {
+        return generated < config.transactions();
+    }
+
+    /**
+     * Generates the next transaction, its date is after the one of the previous transaction.
+     *
+     * @return The transaction
+     */
+    public GeneratedTransaction next() {
+        int card = cardDistribution.sample(random);
+
+        String ip = ips[random.nextDouble() < config.ipReuse()
+                ? (int) Math.floorMod(hash(card, 1), (long) ips.length)
+                : random.nextInt(ips.length)];
+        Region region = REGIONS[random.nextDouble() < config.regionSwitch()
+                ? random.nextInt(REGIONS.length)
+                : (int) Math.floorMod(hash(card, 2), (long) REGIONS.length)];
+
+        // Spending level of the card between 20 and 400, the amounts scatter log-normally around it
+        double level = Math.exp(3 + 3 * uniform(card, 3));
+        long amount = Math.max(1, Math.round(level * Math.exp(0.75 * random.nextGaussian())));
+
+        TransactionResult result;
+        if (isStolen(card) || isSuspicious(ip)) {
+            result = TransactionResult.PROHIBITED;
+        } else if (amount <= Card.DEFAULT_ALLOWED_LIMIT) {
+            result = TransactionResult.ALLOWED;
+        } else if (amount <= Card.DEFAULT_MANUAL_LIMIT) {
+            result = TransactionResult.MANUAL_PROCESSING;
+        } else {
+            result = TransactionResult.PROHIBITED;
+        }
+
+        TransactionResult feedback = null;
+        if (random.nextDouble() < config.feedbackRate()) {
+            // One of the two other results
+            feedback = RESULTS[(result.ordinal() + 1 + random.nextInt(RESULTS.length - 1)) % RESULTS.length];
+        }
+
+        LocalDateTime date = config.start().plusSeconds(generated * 86_400 / config.transactionsPerDay());
+        generated++;
+        return new GeneratedTransaction(amount, cardNumbers[card], ip, region, date, result, feedback);
+    }
+
+    /**
+     * @return The numbers of all cards
+     */
+    public List<String> cards() {
+        return List.of(cardNumbers);
+    }
+
+    /**
+     * @return The numbers of the stolen cards
+     */
+    public List<String> stolenCards() {
+        List<String> stolen = new ArrayList<>();
+        for (int card = 0; card < cardNumbers.length; card++) {
+            if (isStolen(card)) stolen.add(cardNumbers[card]);
+        }
+        return stolen;
+    }
+
+    /**
+     * @return The suspicious IP addresses
+     */
+    public List<String> suspiciousIps() {
+        List<String> suspicious = new ArrayList<>();
+        for (String ip : ips) {
+            if (isSuspicious(ip)) suspicious.add(ip);
+        }
+        return suspicious;
+    }
+
+    private boolean isStolen(int card) {
+        return uniform(card, 4) < config.stolenCardRate();
+    }
+
+    private boolean isSuspicious(String ip) {
+        return uniform(ip.hashCode(), 5) < config.suspiciousIpRate();
+    }
+
+    /**
+     * Returns a uniformly distributed value in [0, 1) for a property of a card or IP address.
+     */
+    private double uniform(long index, int property) {
+        return (hash(index, property) >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * SplitMix64 finalizer of the index, the property and the seed.
+     */
+    private long hash(long index, int property) {
+        long z = index * 0x9E3779B97F4A7C15L + property * 0xBF58476D1CE4E5B9L + config.seed();
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static String[] randomIps(int count, Random random) {
+        Set<String> ips = new LinkedHashSet<>();
+        while (ips.size() < count) {
+            // Public unicast range, no 0.x.x.x and no multicast
+            ips.add((1 + random.nextInt(223)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "."
+                    + random.nextInt(256));
+        }
+        return ips.toArray(String[]::new);
+    }
+}
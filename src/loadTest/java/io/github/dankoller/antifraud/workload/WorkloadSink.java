@@ -0,0 +1,28 @@
+package io.github.dankoller.antifraud.workload;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Destination of a generated workload.
+ */
+interface WorkloadSink extends AutoCloseable {
+
+    /**
+     * @param numbers All card numbers of the workload
+     * @param stolen  The stolen ones among them
+     */
+    void writeCards(List<String> numbers, Set<String> stolen) throws IOException, SQLException;
+
+    void writeSuspiciousIps(List<String> ips) throws IOException, SQLException;
+
+    void write(GeneratedTransaction transaction) throws IOException, SQLException;
+
+    /**
+     * Writes everything still buffered and releases the destination.
+     */
+    @Override
+    void close() throws IOException, SQLException;
+}
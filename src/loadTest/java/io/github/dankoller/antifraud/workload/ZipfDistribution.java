@@ -0,0 +1,39 @@
+package io.github.dankoller.antifraud.workload;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Zipf distribution over the ranks 0 to n - 1: rank k is drawn with a probability proportional to 1 / (k + 1)^s, so a
+ * few ranks (cards) get most of the samples (transactions). Samples with a binary search in the cumulative
+ * distribution, 8 bytes per rank.
+ */
+class ZipfDistribution {
+
+    private final double[] cumulative;
+
+    ZipfDistribution(int n, double exponent) {
+        if (n <= 0) throw new IllegalArgumentException("n must be positive");
+
+        double[] weights = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            weights[k] = Math.pow(k + 1, -exponent);
+            sum += weights[k];
+        }
+
+        cumulative = new double[n];
+        double running = 0;
+        for (int k = 0; k < n; k++) {
+            running += weights[k];
+            cumulative[k] = running / sum;
+        }
+        // Rounding must not leave a gap at the end
+        cumulative[n - 1] = 1;
+    }
+
+    int sample(Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return index >= 0 ? index : -index - 1;
+    }
+}
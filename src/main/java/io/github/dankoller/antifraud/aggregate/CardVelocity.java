@@ -0,0 +1,62 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transaction count and amount of a single card over every {@link VelocityWindow}.
+ * <p>
+ * The three windows have 216 buckets of 12 bytes, so an active card takes about 2.9 KB including the object headers
+ * and its map entry, e.g. 290 MB for 100,000 cards that had a transaction in the last day. Cards are evicted once their day
+ * window is empty, see {@link VelocityTracker#evictIdleCards()}.
+ */
+public class CardVelocity {
+
+    private final TimeBucketWindow[] windows = new TimeBucketWindow[VelocityWindow.values().length];
+
+    public CardVelocity() {
+        for (VelocityWindow window : VelocityWindow.values()) {
+            windows[window.ordinal()] = new TimeBucketWindow(window.bucketSeconds, window.bucketCount);
+        }
+    }
+
+    /**
+     * Adds a transaction to all windows of the card.
+     *
+     * @param epochSecond The time of the transaction in seconds
+     * @param amount      The amount of the transaction
+     */
+    public synchronized void add(long epochSecond, long amount) {
+        for (TimeBucketWindow window : windows) {
+            window.add(epochSecond, amount);
+        }
+    }
+
+    public synchronized long getCount(VelocityWindow window) {
+        return windows[window.ordinal()].getCount();
+    }
+
+    public synchronized long getAmount(VelocityWindow window) {
+        return windows[window.ordinal()].getAmount();
+    }
+
+    /**
+     * Checks if even the longest window of the card is empty at the given point in time.
+     *
+     * @param epochSecond The point in time to check
+     * @return True if the card has no transactions in any window anymore, false otherwise
+     */
+    public synchronized boolean isExpired(long epochSecond) {
+        TimeBucketWindow longest = windows[windows.length - 1];
+        return longest.getHeadEpochSecond() + longest.getSpanSeconds() <= epochSecond;
+    }
+
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        for (TimeBucketWindow window : windows) window.writeTo(out);
+    }
+
+    public synchronized void readFrom(ByteBuffer in) {
+        for (TimeBucketWindow window : windows) window.readFrom(in);
+    }
+}
@@ -0,0 +1,185 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import io.github.dankoller.antifraud.entity.Region;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * The regions and IP addresses a card was used from in one hour, the decoded form of a
+ * {@link io.github.dankoller.antifraud.entity.CardHourRollup}. Every region and IP address keeps the first and the
+ * last second of the hour it was seen in, so the rollups of the current and the previous hour give the exact distinct
+ * counts of the trailing hour of a transaction (to the second), whatever the order the transactions came in.
+ * <p>
+ * The IP addresses are a small sketch of at most {@link #MAX_IPS} 64-bit hashes. On a full sketch, a new address
+ * replaces the one that was seen last the longest ago. With the transactions in date order, the replaced addresses
+ * were all seen before every kept one: if a kept address is outside the trailing hour, so are the replaced ones, and
+ * otherwise the hour has at least {@link #MAX_IPS} addresses. Counts below {@link #MAX_IPS} are exact, higher ones are
+ * capped.
+ * <p>
+ * Serialized form: the first and last second of every region in the mask (in the order of {@link Region}), the
+ * number of IP addresses and the hash, first and last second of each.
+ */
+public final class CorrelationRollup {
+
+    public static final int MAX_IPS = 8;
+    public static final int SECONDS = 3600;
+
+    private static final Region[] REGIONS = Region.values();
+
+    private final long bucket;
+    private int regionMask;
+    private final short[] regionFirst = new short[REGIONS.length];
+    private final short[] regionLast = new short[REGIONS.length];
+    private int ipCount;
+    private final long[] ipHashes = new long[MAX_IPS];
+    private final short[] ipFirst = new short[MAX_IPS];
+    private final short[] ipLast = new short[MAX_IPS];
+
+    /**
+     * Creates an empty rollup.
+     *
+     * @param bucket The hour, see {@link #bucketOf(long)}
+     */
+    public CorrelationRollup(long bucket) {
+        this.bucket = bucket;
+    }
+
+    /**
+     * @param epochSecond Seconds since the epoch
+     * @return Hours since the epoch
+     */
+    public static long bucketOf(long epochSecond) {
+        return Math.floorDiv(epochSecond, SECONDS);
+    }
+
+    public long getBucket() {
+        return bucket;
+    }
+
+    public int getRegionMask() {
+        return regionMask;
+    }
+
+    /**
+     * Adds a transaction of the hour.
+     *
+     * @param region      The region, ignored if null
+     * @param ipHash      The hash of the IP address, see {@link Hashing#hash64(CharSequence)}
+     * @param epochSecond The date of the transaction in seconds since the epoch
+     */
+    public void add(Region region, long ipHash, long epochSecond) {
+        long second = epochSecond - bucket * SECONDS;
+        if (second < 0 || second >= SECONDS) throw new IllegalArgumentException("Date outside of the hour");
+        short offset = (short) second;
+
+        if (region != null) {
+            int index = region.ordinal();
+            if ((regionMask & 1 << index) == 0) {
+                regionMask |= 1 << index;
+                regionFirst[index] = offset;
+                regionLast[index] = offset;
+            } else {
+                regionFirst[index] = (short) Math.min(regionFirst[index], offset);
+                regionLast[index] = (short) Math.max(regionLast[index], offset);
+            }
+        }
+
+        int index = indexOf(ipHash);
+        if (index < 0) {
+            index = ipCount < MAX_IPS ? ipCount++ : seenLastLongestAgo();
+            ipHashes[index] = ipHash;
+            ipFirst[index] = offset;
+            ipLast[index] = offset;
+        } else {
+            ipFirst[index] = (short) Math.min(ipFirst[index], offset);
+            ipLast[index] = (short) Math.max(ipLast[index], offset);
+        }
+    }
+
+    /**
+     * Returns the regions seen in a range of the hour.
+     *
+     * @param fromSecond Start of the range in seconds since the epoch (inclusive)
+     * @param toSecond   End of the range in seconds since the epoch (inclusive)
+     * @return The regions as bit mask over the ordinals of {@link Region}
+     */
+    public int regionsBetween(long fromSecond, long toSecond) {
+        int mask = 0;
+        for (int i = 0; i < REGIONS.length; i++) {
+            if ((regionMask & 1 << i) != 0 && overlaps(regionFirst[i], regionLast[i], fromSecond, toSecond)) {
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Adds the hashes of the IP addresses seen in a range of the hour to a set.
+     *
+     * @param fromSecond Start of the range in seconds since the epoch (inclusive)
+     * @param toSecond   End of the range in seconds since the epoch (inclusive)
+     * @param ipHashes   The set of hashes
+     */
+    public void addIpsBetween(long fromSecond, long toSecond, Set<Long> ipHashes) {
+        for (int i = 0; i < ipCount; i++) {
+            if (overlaps(ipFirst[i], ipLast[i], fromSecond, toSecond)) ipHashes.add(this.ipHashes[i]);
+        }
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.bitCount(regionMask) * 4 + 1 + ipCount * 12);
+        for (int i = 0; i < REGIONS.length; i++) {
+            if ((regionMask & 1 << i) == 0) continue;
+            buffer.putShort(regionFirst[i]).putShort(regionLast[i]);
+        }
+        buffer.put((byte) ipCount);
+        for (int i = 0; i < ipCount; i++) {
+            buffer.putLong(ipHashes[i]).putShort(ipFirst[i]).putShort(ipLast[i]);
+        }
+        return buffer.array();
+    }
+
+    public static CorrelationRollup fromBytes(long bucket, int regionMask, byte[] data) {
+        CorrelationRollup rollup = new CorrelationRollup(bucket);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        rollup.regionMask = regionMask;
+        for (int i = 0; i < REGIONS.length; i++) {
+            if ((regionMask & 1 << i) == 0) continue;
+            rollup.regionFirst[i] = buffer.getShort();
+            rollup.regionLast[i] = buffer.getShort();
+        }
+        rollup.ipCount = buffer.get();
+        for (int i = 0; i < rollup.ipCount; i++) {
+            rollup.ipHashes[i] = buffer.getLong();
+            rollup.ipFirst[i] = buffer.getShort();
+            rollup.ipLast[i] = buffer.getShort();
+        }
+        return rollup;
+    }
+
+    private int indexOf(long ipHash) {
+        for (int i = 0; i < ipCount; i++) {
+            if (ipHashes[i] == ipHash) return i;
+        }
+        return -1;
+    }
+
+    private int seenLastLongestAgo() {
+        int oldest = 0;
+        for (int i = 1; i < ipCount; i++) {
+            if (ipLast[i] < ipLast[oldest]) oldest = i;
+        }
+        return oldest;
+    }
+
+    /**
+     * Helper method to check if a value seen from the first to the last second of the hour can have been seen in a
+     * range. Exact for the ranges of the correlation, which either start before or end after the hour.
+     */
+    private boolean overlaps(short first, short last, long fromSecond, long toSecond) {
+        long start = bucket * SECONDS;
+        return start + last >= fromSecond && start + first <= toSecond;
+    }
+}
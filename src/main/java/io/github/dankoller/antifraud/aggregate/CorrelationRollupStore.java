@@ -0,0 +1,146 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import io.github.dankoller.antifraud.entity.CardHourRollup;
+import io.github.dankoller.antifraud.entity.Region;
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.persistence.CardHourRollupRepository;
+import io.github.dankoller.antifraud.persistence.TransactionRepository;
+import io.github.dankoller.antifraud.util.CardValidator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hourly rollups of the regions and IP addresses of every card in the database (see {@link CorrelationRollup}), so
+ * the correlation of a transaction with the trailing hour reads at most two small rows and needs no memory per card,
+ * however many transactions the card had in that hour. Every scored transaction updates the rollup of its hour with
+ * one upsert.
+ * <p>
+ * The read and the upsert of a card are serialized by a lock stripe, so concurrent transactions of the same card
+ * don't overwrite each other's update (this holds for a single instance, like the in-memory stores). Rollups older
+ * than the retention are purged, counted from the newest one since transaction dates come from the clients.
+ */
+@Slf4j
+@Component
+@SuppressWarnings("unused")
+public class CorrelationRollupStore {
+
+    private static final int LOCK_STRIPES = 256;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    @Autowired
+    private CardHourRollupRepository cardHourRollupRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Value("${antifraud.rollup.retention-hours:48}")
+    private long retentionHours;
+
+    /**
+     * Distinct regions and IP addresses of a card in the trailing hour of a transaction.
+     *
+     * @param otherRegions Regions other than the one of the transaction
+     * @param otherIps     IP addresses other than the one of the transaction
+     * @param rows         Rollups read
+     */
+    public record Correlation(long otherRegions, long otherIps, int rows) {
+    }
+
+    public CorrelationRollupStore() {
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new Object();
+    }
+
+    /**
+     * Builds the rollups of the last two hours from the transaction table if there are none yet, e.g. on the first
+     * start after an upgrade, so the correlation doesn't miss the transactions scored before.
+     */
+    @PostConstruct
+    public void initialize() {
+        if (cardHourRollupRepository.count() > 0) return;
+
+        LocalDateTime latest = transactionRepository.findMaxDate();
+        if (latest == null) return;
+
+        long latestBucket = CorrelationRollup.bucketOf(latest.toEpochSecond(ZoneOffset.UTC));
+        LocalDateTime from = LocalDateTime.ofEpochSecond((latestBucket - 1) * CorrelationRollup.SECONDS, 0,
+                ZoneOffset.UTC);
+
+        Map<CardHourRollup.Key, CorrelationRollup> rollups = new HashMap<>();
+        for (Transaction transaction : transactionRepository.findAllByDateGreaterThanEqual(from)) {
+            long cardKey = CardValidator.toKey(transaction.getNumber());
+            long second = transaction.getDate().toEpochSecond(ZoneOffset.UTC);
+            long bucket = CorrelationRollup.bucketOf(second);
+            rollups.computeIfAbsent(new CardHourRollup.Key(cardKey, bucket), key -> new CorrelationRollup(bucket))
+                    .add(transaction.getRegion(), Hashing.hash64(transaction.getIp()), second);
+        }
+
+        rollups.forEach((key, rollup) -> cardHourRollupRepository.upsert(key.getCardKey(), key.getBucket(),
+                rollup.getRegionMask(), rollup.toBytes()));
+        log.info("Built {} correlation rollups from the transactions since {}", rollups.size(), from);
+    }
+
+    /**
+     * Counts the other regions and IP addresses of the card in the hour before a transaction and adds the
+     * transaction to the rollup of its hour.
+     *
+     * @param cardKey The key of the card number, see {@link CardValidator#toKey(String)}
+     * @param region  The region of the transaction
+     * @param ip      The canonical IP address of the transaction
+     * @param date    The date of the transaction
+     * @return The distinct counts, without the transaction itself
+     */
+    public Correlation record(long cardKey, Region region, String ip, LocalDateTime date) {
+        long second = date.toEpochSecond(ZoneOffset.UTC);
+        long bucket = CorrelationRollup.bucketOf(second);
+        long ipHash = Hashing.hash64(ip);
+
+        synchronized (locks[(int) (Hashing.mix64(cardKey) & (LOCK_STRIPES - 1))]) {
+            List<CardHourRollup> rows =
+                    cardHourRollupRepository.findAllByCardKeyAndBucketBetween(cardKey, bucket - 1, bucket);
+
+            int regions = 0;
+            Set<Long> ipHashes = new HashSet<>();
+            CorrelationRollup current = new CorrelationRollup(bucket);
+            for (CardHourRollup row : rows) {
+                CorrelationRollup rollup =
+                        CorrelationRollup.fromBytes(row.getBucket(), row.getRegionMask(), row.getSketch());
+                regions |= rollup.regionsBetween(second - CorrelationRollup.SECONDS, second);
+                rollup.addIpsBetween(second - CorrelationRollup.SECONDS, second, ipHashes);
+                if (row.getBucket() == bucket) current = rollup;
+            }
+
+            if (region != null) regions &= ~(1 << region.ordinal());
+            ipHashes.remove(ipHash);
+
+            current.add(region, ipHash, second);
+            cardHourRollupRepository.upsert(cardKey, bucket, current.getRegionMask(), current.toBytes());
+
+            return new Correlation(Integer.bitCount(regions), ipHashes.size(), rows.size());
+        }
+    }
+
+    /**
+     * Deletes the rollups that are older than the retention, counted from the newest one.
+     */
+    @Scheduled(fixedDelayString = "${antifraud.rollup.purge-interval-ms:3600000}")
+    public void purge() {
+        Long newest = cardHourRollupRepository.findMaxBucket();
+        if (newest == null) return;
+
+        int purged = cardHourRollupRepository.deleteAllByBucketBefore(newest - retentionHours);
+        if (purged > 0) log.info("Purged {} correlation rollups", purged);
+    }
+}
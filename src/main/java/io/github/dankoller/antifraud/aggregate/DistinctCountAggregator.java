@@ -0,0 +1,101 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts distinct values per key (e.g. distinct IPs per card) over a sliding window with one
+ * {@link SlidingHyperLogLog} per key. The number of keys is capped and the least recently used key is evicted when
+ * the cap is reached, so the total memory is bounded by maxKeys times the size of one sketch.
+ */
+public class DistinctCountAggregator {
+
+    private final int precision;
+    private final long bucketSeconds;
+    private final int bucketCount;
+    private final int maxKeys;
+    private final LinkedHashMap<Long, SlidingHyperLogLog> sketches;
+
+    private long evictions;
+
+    public DistinctCountAggregator(int precision, long bucketSeconds, int bucketCount, int maxKeys) {
+        this.precision = precision;
+        this.bucketSeconds = bucketSeconds;
+        this.bucketCount = bucketCount;
+        this.maxKeys = maxKeys;
+        // Access order turns the map into an LRU list
+        this.sketches = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, SlidingHyperLogLog> eldest) {
+                if (size() > DistinctCountAggregator.this.maxKeys) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Adds a value to the sketch of a key and returns the new distinct count of that key.
+     *
+     * @param key         The key to count values for, a card key or the hash of an IP address
+     * @param epochSecond The time of the value in seconds
+     * @param valueHash   The well-mixed 64-bit hash of the value to be counted, see {@link Hashing}
+     * @return The estimated number of distinct values of the key in the window
+     */
+    public synchronized long addAndEstimate(long key, long epochSecond, long valueHash) {
+        SlidingHyperLogLog sketch = sketches.computeIfAbsent(key,
+                k -> new SlidingHyperLogLog(precision, bucketSeconds, bucketCount));
+        sketch.add(epochSecond, valueHash);
+        return sketch.estimate();
+    }
+
+    /**
+     * Drops every key whose window ended before the given point in time.
+     *
+     * @param epochSecond The current point in time
+     */
+    public synchronized void evictExpired(long epochSecond) {
+        sketches.values().removeIf(sketch -> sketch.getExpiryEpochSecond() <= epochSecond);
+    }
+
+    public synchronized int size() {
+        return sketches.size();
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getSizeInBytes() {
+        return sketches.values().stream().mapToLong(SlidingHyperLogLog::getSizeInBytes).sum();
+    }
+
+    /**
+     * Writes all sketches, least recently used first, so restoring them keeps the LRU order.
+     *
+     * @param out The stream to write to
+     * @throws IOException if the stream can't be written
+     */
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(sketches.size());
+        for (Map.Entry<Long, SlidingHyperLogLog> entry : sketches.entrySet()) {
+            out.writeLong(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    public synchronized void readFrom(ByteBuffer in) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            long key = in.getLong();
+            SlidingHyperLogLog sketch = new SlidingHyperLogLog(precision, bucketSeconds, bucketCount);
+            sketch.readFrom(in);
+            sketches.put(key, sketch);
+        }
+    }
+}
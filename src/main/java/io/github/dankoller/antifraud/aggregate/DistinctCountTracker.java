@@ -0,0 +1,142 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.snapshot.SnapshotParticipant;
+import io.github.dankoller.antifraud.util.CardValidator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-window distinct counts for the correlation heuristics: distinct IPs per card over the last 24 hours and
+ * 7 days, and distinct cards per IP over the last 24 hours (card testing). Backed by HyperLogLog sketches, so the
+ * transactions of the window never have to be loaded or stored.
+ */
+@Component
+public class DistinctCountTracker implements SnapshotParticipant {
+
+    private static final long HOUR = Duration.ofHours(1).toSeconds();
+
+    private final DistinctCountAggregator cardIpsDay;
+    private final DistinctCountAggregator cardIpsWeek;
+    private final DistinctCountAggregator ipCardsDay;
+
+    private final long maxCardIpsDay;
+    private final long maxCardIpsWeek;
+    private final long maxIpCardsDay;
+
+    private final AtomicLong latestEpochSecond = new AtomicLong(Long.MIN_VALUE);
+
+    public DistinctCountTracker(@Value("${antifraud.distinct.precision:8}") int precision,
+                                @Value("${antifraud.distinct.max-keys:20000}") int maxKeys,
+                                @Value("${antifraud.distinct.card-ips.day.max:10}") long maxCardIpsDay,
+                                @Value("${antifraud.distinct.card-ips.week.max:25}") long maxCardIpsWeek,
+                                @Value("${antifraud.distinct.ip-cards.day.max:20}") long maxIpCardsDay) {
+        // 24 hours as 6 buckets of 4 hours and 7 days as 7 buckets of one day
+        this.cardIpsDay = new DistinctCountAggregator(precision, 4 * HOUR, 6, maxKeys);
+        this.cardIpsWeek = new DistinctCountAggregator(precision, 24 * HOUR, 7, maxKeys);
+        this.ipCardsDay = new DistinctCountAggregator(precision, 4 * HOUR, 6, maxKeys);
+        this.maxCardIpsDay = maxCardIpsDay;
+        this.maxCardIpsWeek = maxCardIpsWeek;
+        this.maxIpCardsDay = maxIpCardsDay;
+    }
+
+    /**
+     * Adds a transaction to all sketches and returns the resulting distinct counts.
+     *
+     * @param cardKey The key of the card number, see {@link CardValidator#toKey(String)}
+     * @param ip      The IP address of the transaction
+     * @param date    The date of the transaction
+     * @return The distinct counts including the given transaction
+     */
+    public DistinctCounts record(long cardKey, String ip, LocalDateTime date) {
+        long epochSecond = date.toEpochSecond(ZoneOffset.UTC);
+        latestEpochSecond.accumulateAndGet(epochSecond, Math::max);
+
+        // The IP address is hashed once and used as key and as value
+        long ipHash = Hashing.hash64(ip);
+        return new DistinctCounts(
+                cardIpsDay.addAndEstimate(cardKey, epochSecond, ipHash),
+                cardIpsWeek.addAndEstimate(cardKey, epochSecond, ipHash),
+                ipCardsDay.addAndEstimate(ipHash, epochSecond, Hashing.mix64(cardKey))
+        );
+    }
+
+    public long getMaxCardIpsDay() {
+        return maxCardIpsDay;
+    }
+
+    public long getMaxCardIpsWeek() {
+        return maxCardIpsWeek;
+    }
+
+    public long getMaxIpCardsDay() {
+        return maxIpCardsDay;
+    }
+
+    /**
+     * Drops the sketches of keys that haven't been seen for a whole window. Cold keys that are still inside their
+     * window are evicted by the LRU cap of the aggregators instead.
+     */
+    @Scheduled(fixedDelayString = "${antifraud.distinct.eviction-interval-ms:900000}")
+    public void evictExpired() {
+        long now = latestEpochSecond.get();
+        cardIpsDay.evictExpired(now);
+        cardIpsWeek.evictExpired(now);
+        ipCardsDay.evictExpired(now);
+    }
+
+    /**
+     * Approximate memory used by all sketches.
+     *
+     * @return Size in bytes
+     */
+    public long getSizeInBytes() {
+        return cardIpsDay.getSizeInBytes() + cardIpsWeek.getSizeInBytes() + ipCardsDay.getSizeInBytes();
+    }
+
+    @Override
+    public String getSnapshotSection() {
+        return "distinct-counts-v2";
+    }
+
+    @Override
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeLong(latestEpochSecond.get());
+        cardIpsDay.writeTo(out);
+        cardIpsWeek.writeTo(out);
+        ipCardsDay.writeTo(out);
+    }
+
+    @Override
+    public void restoreSnapshot(ByteBuffer section) {
+        latestEpochSecond.set(section.getLong());
+        cardIpsDay.readFrom(section);
+        cardIpsWeek.readFrom(section);
+        ipCardsDay.readFrom(section);
+    }
+
+    @Override
+    public void replay(Transaction transaction) {
+        long cardKey = CardValidator.toKey(transaction.getNumber());
+        if (cardKey >= 0) record(cardKey, transaction.getIp(), transaction.getDate());
+    }
+
+    /**
+     * Distinct counts of a single transaction.
+     *
+     * @param cardIpsDay  Distinct IPs of the card in the last 24 hours
+     * @param cardIpsWeek Distinct IPs of the card in the last 7 days
+     * @param ipCardsDay  Distinct cards of the IP in the last 24 hours
+     */
+    public record DistinctCounts(long cardIpsDay, long cardIpsWeek, long ipCardsDay) {
+    }
+}
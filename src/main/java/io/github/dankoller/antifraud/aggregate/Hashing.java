@@ -0,0 +1,41 @@
+package io.github.dankoller.antifraud.aggregate;
+
+/**
+ * Cheap 64-bit hashing for the sketches. {@link String#hashCode()} only has 32 bits and clusters badly for similar
+ * strings like IP addresses, which would skew the estimates.
+ */
+public final class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * Hashes a string with FNV-1a and a final avalanche step (the finalizer of MurmurHash3).
+     *
+     * @param value The string to be hashed
+     * @return A well-mixed 64-bit hash
+     */
+    public static long hash64(CharSequence value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix64(hash);
+    }
+
+    /**
+     * Spreads the bits of a 64-bit value so every input bit affects every output bit.
+     *
+     * @param value The value to be mixed
+     * @return The mixed value
+     */
+    public static long mix64(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
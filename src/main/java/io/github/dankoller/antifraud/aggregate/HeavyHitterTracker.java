@@ -0,0 +1,55 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import io.github.dankoller.antifraud.aggregate.SlidingTopK.HeavyHitter;
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.util.List;
+
+/**
+ * Tracks the IP addresses and cards that produce the most PROHIBITED or MANUAL_PROCESSING verdicts. Unlike the
+ * velocity windows this runs on the wall clock, since it answers what is happening right now.
+ */
+@Component
+public class HeavyHitterTracker {
+
+    private final SlidingTopK ips;
+    private final SlidingTopK cards;
+    private final Clock clock;
+
+    public HeavyHitterTracker(@Value("${antifraud.top.slot-seconds:300}") long slotSeconds,
+                              @Value("${antifraud.top.slot-count:288}") int slotCount,
+                              @Value("${antifraud.top.capacity:100}") int capacity) {
+        this.ips = new SlidingTopK(slotSeconds, slotCount, capacity);
+        this.cards = new SlidingTopK(slotSeconds, slotCount, capacity);
+        this.clock = Clock.systemUTC();
+    }
+
+    /**
+     * Counts the IP address and card of a scored transaction if the verdict wasn't ALLOWED.
+     *
+     * @param transaction The scored transaction
+     */
+    public void record(Transaction transaction) {
+        if (transaction.getResult().equals(TransactionResult.ALLOWED.name())) return;
+
+        long now = clock.instant().getEpochSecond();
+        ips.add(transaction.getIp(), now);
+        cards.add(transaction.getNumber(), now);
+    }
+
+    public List<HeavyHitter> getTopIps(long windowSeconds, int limit) {
+        return ips.top(clock.instant().getEpochSecond(), windowSeconds, limit);
+    }
+
+    public List<HeavyHitter> getTopCards(long windowSeconds, int limit) {
+        return cards.top(clock.instant().getEpochSecond(), windowSeconds, limit);
+    }
+
+    public long getMaxWindowSeconds() {
+        return ips.getWindowSeconds();
+    }
+}
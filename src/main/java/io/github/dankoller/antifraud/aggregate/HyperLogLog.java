@@ -0,0 +1,91 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import java.util.Arrays;
+
+/**
+ * A HyperLogLog sketch that estimates the number of distinct values with a fixed amount of memory (one byte per
+ * register). With a precision of p there are 2^p registers and the standard error is about 1.04 / sqrt(2^p).
+ * Not thread-safe, callers synchronize externally.
+ */
+public class HyperLogLog {
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) throw new IllegalArgumentException("Precision must be in [4, 16]");
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Adds a hashed value to the sketch.
+     *
+     * @param hash A well-mixed 64-bit hash of the value, see {@link Hashing}
+     */
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // Guard bit, so the rank can never exceed 64 - precision + 1
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+        if (rank > registers[index]) registers[index] = rank;
+    }
+
+    /**
+     * Merges another sketch of the same precision into the given register array by taking the maximum per register.
+     *
+     * @param target The register array to merge into
+     */
+    public void mergeInto(byte[] target) {
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] > target[i]) target[i] = registers[i];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(registers, (byte) 0);
+    }
+
+    public byte[] getRegisters() {
+        return registers;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Estimates the number of distinct values of this sketch.
+     *
+     * @return The estimated cardinality
+     */
+    public long estimate() {
+        return estimate(registers);
+    }
+
+    /**
+     * Estimates the number of distinct values from a register array, using linear counting for small cardinalities
+     * where the raw estimate is biased.
+     *
+     * @param registers The registers of one or more merged sketches
+     * @return The estimated cardinality
+     */
+    public static long estimate(byte[] registers) {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) zeros++;
+        }
+
+        double alpha = m >= 128 ? 0.7213 / (1 + 1.079 / m) : m == 64 ? 0.709 : m == 32 ? 0.697 : 0.673;
+        double estimate = alpha * m * m / sum;
+
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+
+        return Math.round(estimate);
+    }
+}
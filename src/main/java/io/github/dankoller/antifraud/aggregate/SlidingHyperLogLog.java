@@ -0,0 +1,111 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Distinct count over a sliding time window, made of a ring of {@link HyperLogLog} sketches that each cover one
+ * bucket of the window. Expired buckets are cleared and reused, so the memory of a key never grows beyond
+ * bucketCount sketches. Sketches are only allocated for buckets that actually received values.
+ * Not thread-safe, callers synchronize externally.
+ */
+public class SlidingHyperLogLog {
+
+    private final int precision;
+    private final long bucketSeconds;
+    private final HyperLogLog[] buckets;
+    private final long[] bucketIds;
+    private final byte[] merged;
+
+    private long headBucket = Long.MIN_VALUE;
+
+    public SlidingHyperLogLog(int precision, long bucketSeconds, int bucketCount) {
+        this.precision = precision;
+        this.bucketSeconds = bucketSeconds;
+        this.buckets = new HyperLogLog[bucketCount];
+        this.bucketIds = new long[bucketCount];
+        this.merged = new byte[1 << precision];
+        Arrays.fill(bucketIds, Long.MIN_VALUE);
+    }
+
+    /**
+     * Adds a hashed value at the given point in time. Values older than the window are ignored.
+     *
+     * @param epochSecond The time of the value in seconds
+     * @param hash        A well-mixed 64-bit hash of the value
+     */
+    public void add(long epochSecond, long hash) {
+        long bucket = Math.floorDiv(epochSecond, bucketSeconds);
+        if (bucket > headBucket) headBucket = bucket;
+        if (bucket <= headBucket - buckets.length) return;
+
+        int index = (int) Math.floorMod(bucket, (long) buckets.length);
+        if (buckets[index] == null) {
+            buckets[index] = new HyperLogLog(precision);
+        } else if (bucketIds[index] != bucket) {
+            // The slot still holds an expired bucket from an earlier lap of the ring
+            buckets[index].clear();
+        }
+        bucketIds[index] = bucket;
+        buckets[index].add(hash);
+    }
+
+    /**
+     * Estimates the number of distinct values in the window that ends with the newest bucket.
+     *
+     * @return The estimated cardinality
+     */
+    public long estimate() {
+        Arrays.fill(merged, (byte) 0);
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] != null && bucketIds[i] > headBucket - buckets.length) {
+                buckets[i].mergeInto(merged);
+            }
+        }
+        return HyperLogLog.estimate(merged);
+    }
+
+    /**
+     * Returns the end of the window in seconds, after which the sketch no longer holds any value.
+     *
+     * @return End of the window in epoch seconds
+     */
+    public long getExpiryEpochSecond() {
+        return headBucket == Long.MIN_VALUE ? Long.MIN_VALUE : (headBucket + 1 + buckets.length) * bucketSeconds;
+    }
+
+    /**
+     * Approximate heap size of this sketch, used to report the memory of an aggregator.
+     *
+     * @return Size in bytes
+     */
+    public long getSizeInBytes() {
+        long size = merged.length + bucketIds.length * 8L;
+        for (HyperLogLog bucket : buckets) {
+            if (bucket != null) size += 1L << precision;
+        }
+        return size;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(headBucket);
+        for (int i = 0; i < buckets.length; i++) {
+            out.writeLong(bucketIds[i]);
+            out.writeBoolean(buckets[i] != null);
+            if (buckets[i] != null) out.write(buckets[i].getRegisters());
+        }
+    }
+
+    public void readFrom(ByteBuffer in) {
+        headBucket = in.getLong();
+        for (int i = 0; i < buckets.length; i++) {
+            bucketIds[i] = in.getLong();
+            if (in.get() != 0) {
+                buckets[i] = new HyperLogLog(precision);
+                in.get(buckets[i].getRegisters());
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Heavy hitters over a sliding time window. The window is a ring of {@link SpaceSaving} summaries, one per time
+ * slot, which are merged when the top keys are queried. Memory is fixed at slotCount * capacity counters and
+ * recording a key only touches the summary of the current slot.
+ */
+public class SlidingTopK {
+
+    private final long slotSeconds;
+    private final SpaceSaving[] slots;
+    private final long[] slotIds;
+
+    public SlidingTopK(long slotSeconds, int slotCount, int capacity) {
+        this.slotSeconds = slotSeconds;
+        this.slots = new SpaceSaving[slotCount];
+        this.slotIds = new long[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new SpaceSaving(capacity);
+        }
+        Arrays.fill(slotIds, Long.MIN_VALUE);
+    }
+
+    /**
+     * Counts one occurrence of a key at the given point in time.
+     *
+     * @param key         The key to be counted
+     * @param epochSecond The current time in seconds
+     */
+    public synchronized void add(String key, long epochSecond) {
+        long slot = Math.floorDiv(epochSecond, slotSeconds);
+        int index = (int) Math.floorMod(slot, (long) slots.length);
+
+        if (slotIds[index] != slot) {
+            if (slotIds[index] > slot) return; // Older than the window
+            slots[index].clear();
+            slotIds[index] = slot;
+        }
+        slots[index].add(key);
+    }
+
+    /**
+     * Returns the most frequent keys of the slots that overlap the given window, ending at the given time.
+     *
+     * @param epochSecond   The current time in seconds
+     * @param windowSeconds The length of the window, rounded up to whole slots
+     * @param limit         The maximum number of keys to be returned
+     * @return Keys ordered by descending count
+     */
+    public synchronized List<HeavyHitter> top(long epochSecond, long windowSeconds, int limit) {
+        long currentSlot = Math.floorDiv(epochSecond, slotSeconds);
+        long slotsInWindow = Math.min(slots.length, Math.max(1, (windowSeconds + slotSeconds - 1) / slotSeconds));
+
+        Map<String, long[]> merged = new HashMap<>();
+        for (int i = 0; i < slots.length; i++) {
+            if (slotIds[i] > currentSlot - slotsInWindow && slotIds[i] <= currentSlot) {
+                slots[i].forEach((key, countAndError) -> merged.merge(key, countAndError, (a, b) -> new long[]{
+                        a[0] + b[0], a[1] + b[1]
+                }));
+            }
+        }
+
+        List<HeavyHitter> result = new ArrayList<>(merged.size());
+        merged.forEach((key, countAndError) -> result.add(new HeavyHitter(key, countAndError[0], countAndError[1])));
+        result.sort(Comparator.comparingLong(HeavyHitter::count).reversed().thenComparing(HeavyHitter::key));
+
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    public long getWindowSeconds() {
+        return slotSeconds * slots.length;
+    }
+
+    /**
+     * A key with its (over-)estimated count.
+     *
+     * @param key   The IP address or card number
+     * @param count The estimated number of occurrences
+     * @param error The maximum overestimation of the count
+     */
+    public record HeavyHitter(String key, long count, long error) {
+    }
+}
@@ -0,0 +1,105 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Space-Saving summary that tracks the most frequent keys of a stream with a fixed number of counters. When all
+ * counters are taken, a new key replaces the key with the smallest count and inherits that count as its error, so
+ * every reported count overestimates the true count by at most its error. The counters are kept in an indexed
+ * min-heap, which makes every update O(log capacity). Not thread-safe, callers synchronize externally.
+ */
+public class SpaceSaving {
+
+    private final Counter[] heap;
+    private final Map<String, Counter> counters;
+    private int size;
+
+    public SpaceSaving(int capacity) {
+        this.heap = new Counter[capacity];
+        this.counters = new HashMap<>(capacity * 2);
+    }
+
+    /**
+     * Counts one occurrence of a key.
+     *
+     * @param key The key to be counted
+     */
+    public void add(String key) {
+        Counter counter = counters.get(key);
+
+        if (counter == null) {
+            if (size < heap.length) {
+                counter = new Counter(key, 0, 0);
+                counter.index = size;
+                heap[size++] = counter;
+            } else {
+                // Take over the counter with the smallest count
+                counter = heap[0];
+                counters.remove(counter.key);
+                counter.key = key;
+                counter.error = counter.count;
+            }
+            counters.put(key, counter);
+        }
+
+        counter.count++;
+        siftDown(counter.index);
+    }
+
+    /**
+     * Passes every tracked key with its count and error to the given consumer.
+     *
+     * @param consumer Receives the key and a {count, error} pair
+     */
+    public void forEach(BiConsumer<String, long[]> consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept(heap[i].key, new long[]{heap[i].count, heap[i].error});
+        }
+    }
+
+    /**
+     * The smallest tracked count. Keys that aren't tracked occurred at most this often.
+     *
+     * @return The minimum count, 0 while there are free counters
+     */
+    public long getMinCount() {
+        return size < heap.length ? 0 : heap[0].count;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) heap[i] = null;
+        counters.clear();
+        size = 0;
+    }
+
+    private void siftDown(int index) {
+        Counter counter = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) break;
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) child++;
+            if (heap[child].count >= counter.count) break;
+
+            heap[index] = heap[child];
+            heap[index].index = index;
+            index = child;
+        }
+        heap[index] = counter;
+        counter.index = index;
+    }
+
+    private static class Counter {
+        private String key;
+        private long count;
+        private long error;
+        private int index;
+
+        private Counter(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+    }
+}
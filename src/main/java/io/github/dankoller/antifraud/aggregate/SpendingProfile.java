@@ -0,0 +1,183 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import io.github.dankoller.antifraud.entity.Region;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Running spending profile of a single card: count, mean and variance of the amounts (Welford's online algorithm),
+ * how often the card was used in each region and the few IP addresses it is used from most. Everything is updated
+ * incrementally in O(1) and the whole profile serializes to a fixed {@link #SIZE} bytes.
+ */
+public class SpendingProfile {
+
+    private static final int TYPICAL_IPS = 4;
+
+    public static final int SIZE = 8 + 8 + 8 + Region.values().length * 4 + TYPICAL_IPS * (8 + 4);
+
+    private long count;
+    private double mean;
+    private double m2;
+    private final int[] regionCounts = new int[Region.values().length];
+    private final long[] ipHashes = new long[TYPICAL_IPS];
+    private final int[] ipCounts = new int[TYPICAL_IPS];
+
+    // Database id of the persisted profile, null until it was flushed once
+    private Long id;
+    private boolean dirty;
+
+    /**
+     * Adds a scored transaction to the profile.
+     *
+     * @param amount The amount of the transaction
+     * @param region The region of the transaction
+     * @param ip     The IP address of the transaction
+     */
+    public synchronized void update(long amount, Region region, String ip) {
+        count++;
+        double delta = amount - mean;
+        mean += delta / count;
+        m2 += delta * (amount - mean);
+
+        if (region != null) regionCounts[region.ordinal()]++;
+        if (ip != null) addIp(Hashing.hash64(ip));
+
+        dirty = true;
+    }
+
+    /**
+     * Helper method to count an IP address in the small table of typical IPs. A new IP replaces the least used one,
+     * like a Space-Saving summary with only a few counters.
+     *
+     * @param hash Hash of the IP address
+     */
+    private void addIp(long hash) {
+        int min = 0;
+        for (int i = 0; i < TYPICAL_IPS; i++) {
+            if (ipCounts[i] > 0 && ipHashes[i] == hash) {
+                ipCounts[i]++;
+                return;
+            }
+            if (ipCounts[i] < ipCounts[min]) min = i;
+        }
+        ipHashes[min] = hash;
+        ipCounts[min]++;
+    }
+
+    /**
+     * Computes how many standard deviations the given amount lies above the mean of the card.
+     *
+     * @param amount      The amount to be checked
+     * @param minStdDev   Lower bound for the standard deviation, so cards with very uniform amounts don't flag
+     *                    every small deviation
+     * @return The z-score of the amount
+     */
+    public synchronized double zScore(long amount, double minStdDev) {
+        double stdDev = count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+        return (amount - mean) / Math.max(stdDev, minStdDev);
+    }
+
+    /**
+     * Checks if the card was already used in the given region.
+     *
+     * @param region The region to be checked
+     * @return True if the region is part of the profile
+     */
+    public synchronized boolean isTypicalRegion(Region region) {
+        return region != null && regionCounts[region.ordinal()] > 0;
+    }
+
+    /**
+     * Checks if the IP address is one of the IPs the card is used from most.
+     *
+     * @param ip The IP address to be checked
+     * @return True if the IP address is part of the profile
+     */
+    public synchronized boolean isTypicalIp(String ip) {
+        long hash = Hashing.hash64(ip);
+        for (int i = 0; i < TYPICAL_IPS; i++) {
+            if (ipCounts[i] > 0 && ipHashes[i] == hash) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the regions the card was used in, most frequent first.
+     *
+     * @return List of regions
+     */
+    public synchronized List<Region> getTypicalRegions() {
+        List<Region> regions = new ArrayList<>();
+        for (Region region : Region.values()) {
+            if (regionCounts[region.ordinal()] > 0) regions.add(region);
+        }
+        regions.sort(Comparator.comparingInt((Region region) -> regionCounts[region.ordinal()]).reversed());
+        return regions;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMean() {
+        return mean;
+    }
+
+    public synchronized double getStdDev() {
+        return count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+    }
+
+    public synchronized Long getId() {
+        return id;
+    }
+
+    public synchronized void setId(Long id) {
+        this.id = id;
+    }
+
+    /**
+     * Returns the serialized profile if it changed since the last call and marks it as clean.
+     *
+     * @return The serialized profile, or null if nothing changed
+     */
+    public synchronized byte[] takeIfDirty() {
+        if (!dirty) return null;
+        dirty = false;
+        return toBytes();
+    }
+
+    public synchronized void markDirty() {
+        dirty = true;
+    }
+
+    public synchronized byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.putLong(count).putDouble(mean).putDouble(m2);
+        for (int regionCount : regionCounts) buffer.putInt(regionCount);
+        for (int i = 0; i < TYPICAL_IPS; i++) buffer.putLong(ipHashes[i]).putInt(ipCounts[i]);
+        return buffer.array();
+    }
+
+    /**
+     * Restores a profile from its serialized form.
+     *
+     * @param data The bytes written by {@link #toBytes()}
+     * @return The restored profile
+     */
+    public static SpendingProfile fromBytes(byte[] data) {
+        SpendingProfile profile = new SpendingProfile();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        profile.count = buffer.getLong();
+        profile.mean = buffer.getDouble();
+        profile.m2 = buffer.getDouble();
+        for (int i = 0; i < profile.regionCounts.length; i++) profile.regionCounts[i] = buffer.getInt();
+        for (int i = 0; i < TYPICAL_IPS; i++) {
+            profile.ipHashes[i] = buffer.getLong();
+            profile.ipCounts[i] = buffer.getInt();
+        }
+        return profile;
+    }
+}
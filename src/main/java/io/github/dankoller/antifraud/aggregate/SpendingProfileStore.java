@@ -0,0 +1,221 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import io.github.dankoller.antifraud.entity.CardProfile;
+import io.github.dankoller.antifraud.entity.Region;
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.persistence.CardProfileRepository;
+import io.github.dankoller.antifraud.snapshot.SnapshotParticipant;
+import io.github.dankoller.antifraud.util.CardValidator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory store of all card spending profiles. Profiles are loaded once at startup and written back periodically
+ * (and on shutdown), so reading or updating a profile on the scoring path never touches the database.
+ * <p>
+ * When the state snapshot is restored, profiles are not copied to the heap up front. They stay in the mapped snapshot
+ * section (fixed-size records sorted by card) and a profile is only materialized the first time its card is scored.
+ */
+@Slf4j
+@Component
+@SuppressWarnings("unused")
+public class SpendingProfileStore implements SnapshotParticipant {
+
+    // Card key, database id and the serialized profile
+    private static final int RECORD_SIZE = 8 + 8 + SpendingProfile.SIZE;
+
+    private static final long NO_ID = 0;
+
+    private final Map<Long, SpendingProfile> profiles = new ConcurrentHashMap<>();
+
+    // Records of the restored snapshot that are not materialized yet (read-only)
+    private volatile ByteBuffer snapshotRecords;
+
+    @Autowired
+    private CardProfileRepository cardProfileRepository;
+
+    /**
+     * Loads all persisted profiles into memory.
+     */
+    @Override
+    public void restoreFromDatabase() {
+        for (CardProfile cardProfile : cardProfileRepository.findAll()) {
+            SpendingProfile profile = SpendingProfile.fromBytes(cardProfile.getData());
+            profile.setId(cardProfile.getId());
+            long cardKey = CardValidator.toKey(cardProfile.getNumber());
+            if (cardKey >= 0) profiles.put(cardKey, profile);
+        }
+        log.info("Loaded {} card spending profiles", profiles.size());
+    }
+
+    /**
+     * Returns the profile of a card.
+     *
+     * @param cardKey The key of the card number, see {@link CardValidator#toKey(String)}
+     * @return The profile, or null if the card has no scored transactions yet
+     */
+    public SpendingProfile get(long cardKey) {
+        SpendingProfile profile = profiles.get(cardKey);
+        if (profile != null || snapshotRecords == null) return profile;
+
+        SpendingProfile restored = findInSnapshot(cardKey);
+        return restored == null ? null : profiles.computeIfAbsent(cardKey, key -> restored);
+    }
+
+    /**
+     * Adds a scored transaction to the profile of its card, creating the profile if needed.
+     *
+     * @param cardKey The key of the card number, see {@link CardValidator#toKey(String)}
+     * @param amount  The amount of the transaction
+     * @param region  The region of the transaction
+     * @param ip      The IP address of the transaction
+     */
+    public void update(long cardKey, long amount, Region region, String ip) {
+        profiles.computeIfAbsent(cardKey, key -> {
+            SpendingProfile restored = snapshotRecords == null ? null : findInSnapshot(key);
+            return restored == null ? new SpendingProfile() : restored;
+        }).update(amount, region, ip);
+    }
+
+    /**
+     * Writes every profile that changed since the last flush to the database.
+     */
+    @Scheduled(fixedDelayString = "${antifraud.profile.flush-interval-ms:60000}")
+    @PreDestroy
+    public synchronized void flush() {
+        List<CardProfile> changed = new ArrayList<>();
+        List<SpendingProfile> changedProfiles = new ArrayList<>();
+
+        profiles.forEach((cardKey, profile) -> {
+            byte[] data = profile.takeIfDirty();
+            if (data == null) return;
+
+            CardProfile cardProfile = new CardProfile(CardValidator.fromKey(cardKey), data);
+            cardProfile.setId(profile.getId());
+            changed.add(cardProfile);
+            changedProfiles.add(profile);
+        });
+
+        if (changed.isEmpty()) return;
+
+        try {
+            List<CardProfile> saved = cardProfileRepository.saveAll(changed);
+            for (int i = 0; i < saved.size(); i++) {
+                changedProfiles.get(i).setId(saved.get(i).getId());
+            }
+        } catch (RuntimeException e) {
+            // Keep the changes for the next attempt
+            changedProfiles.forEach(SpendingProfile::markDirty);
+            log.warn("Failed to persist {} card spending profiles", changed.size(), e);
+        }
+    }
+
+    public int size() {
+        return profiles.size();
+    }
+
+    @Override
+    public String getSnapshotSection() {
+        return "spending-profiles";
+    }
+
+    /**
+     * Writes all profiles sorted by card key, merging the materialized ones with the records of the restored snapshot
+     * that were never touched.
+     *
+     * @param out The stream of the section
+     * @throws IOException if the section can't be written
+     */
+    @Override
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+        List<Map.Entry<Long, SpendingProfile>> materialized = new ArrayList<>(profiles.entrySet());
+        materialized.sort(Map.Entry.comparingByKey(Comparator.naturalOrder()));
+
+        ByteBuffer records = snapshotRecords == null ? ByteBuffer.allocate(0) : snapshotRecords.duplicate();
+        int recordCount = records.capacity() / RECORD_SIZE;
+        byte[] data = new byte[SpendingProfile.SIZE];
+
+        // The count isn't known before merging, so the section ends with a sentinel key instead
+        int next = 0;
+        for (Map.Entry<Long, SpendingProfile> entry : materialized) {
+            for (; next < recordCount && keyAt(records, next) < entry.getKey(); next++) {
+                copyRecord(records, next, out, data);
+            }
+            if (next < recordCount && keyAt(records, next) == entry.getKey()) next++;
+
+            SpendingProfile profile = entry.getValue();
+            Long id = profile.getId();
+            out.writeLong(entry.getKey());
+            out.writeLong(id == null ? NO_ID : id);
+            out.write(profile.toBytes());
+        }
+        for (; next < recordCount; next++) copyRecord(records, next, out, data);
+        out.writeLong(-1);
+    }
+
+    @Override
+    public void restoreSnapshot(ByteBuffer section) {
+        // Every record is followed by another one or the 8 byte sentinel
+        ByteBuffer records = section.slice();
+        records.limit(section.remaining() - 8);
+        snapshotRecords = records.slice().asReadOnlyBuffer();
+        log.info("Mapped {} card spending profiles from the state snapshot", records.limit() / RECORD_SIZE);
+    }
+
+    @Override
+    public void replay(Transaction transaction) {
+        long cardKey = CardValidator.toKey(transaction.getNumber());
+        if (cardKey >= 0) update(cardKey, transaction.getAmount(), transaction.getRegion(), transaction.getIp());
+    }
+
+    private SpendingProfile findInSnapshot(long key) {
+        ByteBuffer records = snapshotRecords;
+        if (records == null) return null;
+
+        int low = 0;
+        int high = records.capacity() / RECORD_SIZE - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = keyAt(records, mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                int offset = mid * RECORD_SIZE;
+                byte[] data = new byte[SpendingProfile.SIZE];
+                records.get(offset + 16, data);
+                SpendingProfile profile = SpendingProfile.fromBytes(data);
+                long id = records.getLong(offset + 8);
+                if (id != NO_ID) profile.setId(id);
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    private static long keyAt(ByteBuffer records, int index) {
+        return records.getLong(index * RECORD_SIZE);
+    }
+
+    private static void copyRecord(ByteBuffer records, int index, DataOutputStream out, byte[] data)
+            throws IOException {
+        int offset = index * RECORD_SIZE;
+        out.writeLong(records.getLong(offset));
+        out.writeLong(records.getLong(offset + 8));
+        records.get(offset + 16, data);
+        out.write(data);
+    }
+}
@@ -0,0 +1,117 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A sliding window over a fixed ring of time buckets. Each bucket holds the number of events and the summed amount
+ * that fell into it, and the window keeps running totals so reading it is O(1). Advancing the window only touches the
+ * buckets that expired since the last event. Not thread-safe, callers synchronize externally.
+ * <p>
+ * A bucket takes 12 bytes: its count is an int, a bucket never sees 2^31 events, only the amounts and the totals need
+ * longs.
+ */
+public class TimeBucketWindow {
+
+    private final long bucketSeconds;
+    private final int[] counts;
+    private final long[] amounts;
+
+    private long headBucket = Long.MIN_VALUE;
+    private long totalCount;
+    private long totalAmount;
+
+    public TimeBucketWindow(long bucketSeconds, int bucketCount) {
+        this.bucketSeconds = bucketSeconds;
+        this.counts = new int[bucketCount];
+        this.amounts = new long[bucketCount];
+    }
+
+    /**
+     * Adds an event to the window. Events older than the window are ignored, newer events move the window forward.
+     *
+     * @param epochSecond The time of the event in seconds
+     * @param amount      The amount of the event
+     */
+    public void add(long epochSecond, long amount) {
+        long bucket = Math.floorDiv(epochSecond, bucketSeconds);
+
+        if (bucket > headBucket) {
+            advanceTo(bucket);
+        } else if (bucket <= headBucket - counts.length) {
+            return;
+        }
+
+        int index = (int) Math.floorMod(bucket, (long) counts.length);
+        counts[index]++;
+        amounts[index] += amount;
+        totalCount++;
+        totalAmount += amount;
+    }
+
+    /**
+     * Helper method to move the head of the window and clear every bucket that dropped out of it.
+     *
+     * @param bucket The new head bucket
+     */
+    private void advanceTo(long bucket) {
+        if (headBucket == Long.MIN_VALUE || bucket - headBucket >= counts.length) {
+            Arrays.fill(counts, 0);
+            Arrays.fill(amounts, 0);
+            totalCount = 0;
+            totalAmount = 0;
+        } else {
+            for (long b = headBucket + 1; b <= bucket; b++) {
+                int index = (int) Math.floorMod(b, (long) counts.length);
+                totalCount -= counts[index];
+                totalAmount -= amounts[index];
+                counts[index] = 0;
+                amounts[index] = 0;
+            }
+        }
+        headBucket = bucket;
+    }
+
+    public long getCount() {
+        return totalCount;
+    }
+
+    public long getAmount() {
+        return totalAmount;
+    }
+
+    /**
+     * Returns the end of the newest bucket in seconds, i.e. the point in time after which the window is empty again.
+     *
+     * @return End of the window in epoch seconds
+     */
+    public long getHeadEpochSecond() {
+        return headBucket == Long.MIN_VALUE ? Long.MIN_VALUE : (headBucket + 1) * bucketSeconds;
+    }
+
+    public long getSpanSeconds() {
+        return bucketSeconds * counts.length;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(headBucket);
+        out.writeLong(totalCount);
+        out.writeLong(totalAmount);
+        for (int i = 0; i < counts.length; i++) {
+            out.writeInt(counts[i]);
+            out.writeLong(amounts[i]);
+        }
+    }
+
+    public void readFrom(ByteBuffer in) {
+        headBucket = in.getLong();
+        totalCount = in.getLong();
+        totalAmount = in.getLong();
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = in.getInt();
+            amounts[i] = in.getLong();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package io.github.dankoller.antifraud.aggregate;
+
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.snapshot.SnapshotParticipant;
+import io.github.dankoller.antifraud.util.CardValidator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps incrementally maintained transaction counts and amounts per card, so the velocity heuristics never have to
+ * query the transaction history. The windows are driven by the transaction date, not by the wall clock.
+ */
+@Component
+public class VelocityTracker implements SnapshotParticipant {
+
+    private final Map<Long, CardVelocity> velocities = new ConcurrentHashMap<>();
+
+    // Newest transaction time seen so far, used to expire idle cards
+    private final AtomicLong latestEpochSecond = new AtomicLong(Long.MIN_VALUE);
+
+    private final long[] maxCounts = new long[VelocityWindow.values().length];
+    private final long[] maxAmounts = new long[VelocityWindow.values().length];
+
+    public VelocityTracker(@Value("${antifraud.velocity.minute.max-count:10}") long minuteMaxCount,
+                           @Value("${antifraud.velocity.minute.max-amount:10000}") long minuteMaxAmount,
+                           @Value("${antifraud.velocity.hour.max-count:60}") long hourMaxCount,
+                           @Value("${antifraud.velocity.hour.max-amount:50000}") long hourMaxAmount,
+                           @Value("${antifraud.velocity.day.max-count:300}") long dayMaxCount,
+                           @Value("${antifraud.velocity.day.max-amount:200000}") long dayMaxAmount) {
+        maxCounts[VelocityWindow.MINUTE.ordinal()] = minuteMaxCount;
+        maxAmounts[VelocityWindow.MINUTE.ordinal()] = minuteMaxAmount;
+        maxCounts[VelocityWindow.HOUR.ordinal()] = hourMaxCount;
+        maxAmounts[VelocityWindow.HOUR.ordinal()] = hourMaxAmount;
+        maxCounts[VelocityWindow.DAY.ordinal()] = dayMaxCount;
+        maxAmounts[VelocityWindow.DAY.ordinal()] = dayMaxAmount;
+    }
+
+    /**
+     * Adds a transaction to the windows of its card.
+     *
+     * @param cardKey The key of the card number, see {@link CardValidator#toKey(String)}
+     * @param date    The date of the transaction
+     * @param amount  The amount of the transaction
+     * @return The updated velocity of the card, including the given transaction
+     */
+    public CardVelocity record(long cardKey, LocalDateTime date, long amount) {
+        long epochSecond = date.toEpochSecond(ZoneOffset.UTC);
+        latestEpochSecond.accumulateAndGet(epochSecond, Math::max);
+
+        // Update inside compute() so a concurrent eviction can't drop the transaction
+        return velocities.compute(cardKey, (key, velocity) -> {
+            if (velocity == null) velocity = new CardVelocity();
+            velocity.add(epochSecond, amount);
+            return velocity;
+        });
+    }
+
+    /**
+     * Maximum number of transactions per card in the given window before the velocity heuristic triggers.
+     * A value of zero or less disables the check.
+     *
+     * @param window The window to return the threshold for
+     * @return The configured threshold
+     */
+    public long getMaxCount(VelocityWindow window) {
+        return maxCounts[window.ordinal()];
+    }
+
+    /**
+     * Maximum summed amount per card in the given window before the velocity heuristic triggers.
+     * A value of zero or less disables the check.
+     *
+     * @param window The window to return the threshold for
+     * @return The configured threshold
+     */
+    public long getMaxAmount(VelocityWindow window) {
+        return maxAmounts[window.ordinal()];
+    }
+
+    /**
+     * Removes cards that have no transactions left in any window, so the map doesn't grow with every card ever seen.
+     */
+    @Scheduled(fixedDelayString = "${antifraud.velocity.eviction-interval-ms:900000}")
+    public void evictIdleCards() {
+        long now = latestEpochSecond.get();
+        for (Long cardKey : velocities.keySet()) {
+            velocities.computeIfPresent(cardKey, (key, velocity) -> velocity.isExpired(now) ? null : velocity);
+        }
+    }
+
+    public int size() {
+        return velocities.size();
+    }
+
+    @Override
+    public String getSnapshotSection() {
+        return "velocity-v3";
+    }
+
+    @Override
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+        List<Map.Entry<Long, CardVelocity>> entries = new ArrayList<>(velocities.entrySet());
+
+        out.writeLong(latestEpochSecond.get());
+        out.writeInt(entries.size());
+        for (Map.Entry<Long, CardVelocity> entry : entries) {
+            out.writeLong(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    @Override
+    public void restoreSnapshot(ByteBuffer section) {
+        latestEpochSecond.set(section.getLong());
+        int count = section.getInt();
+        for (int i = 0; i < count; i++) {
+            long cardKey = section.getLong();
+            CardVelocity velocity = new CardVelocity();
+            velocity.readFrom(section);
+            velocities.put(cardKey, velocity);
+        }
+    }
+
+    @Override
+    public void replay(Transaction transaction) {
+        long cardKey = CardValidator.toKey(transaction.getNumber());
+        if (cardKey >= 0) record(cardKey, transaction.getDate(), transaction.getAmount());
+    }
+}
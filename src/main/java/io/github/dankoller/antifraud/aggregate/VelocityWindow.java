@@ -0,0 +1,19 @@
+package io.github.dankoller.antifraud.aggregate;
+
+/**
+ * The time windows the velocity heuristics look at. Each window is split into a fixed number of buckets, so the
+ * resolution gets coarser the longer the window is.
+ */
+public enum VelocityWindow {
+    MINUTE(1, 60),
+    HOUR(60, 60),
+    DAY(15 * 60, 96);
+
+    public final long bucketSeconds;
+    public final int bucketCount;
+
+    VelocityWindow(long bucketSeconds, int bucketCount) {
+        this.bucketSeconds = bucketSeconds;
+        this.bucketCount = bucketCount;
+    }
+}
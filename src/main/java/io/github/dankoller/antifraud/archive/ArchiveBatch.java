@@ -0,0 +1,113 @@
+package io.github.dankoller.antifraud.archive;
+
+import io.github.dankoller.antifraud.entity.Region;
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import io.github.dankoller.antifraud.util.CardValidator;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Decoded transactions of an {@link ArchiveSegment}, one array per column. Regions, results, feedback and IP addresses
+ * stay dictionary-encoded until a row is read, so a scan that only looks at the amounts or card keys never creates
+ * an object per row.
+ */
+public final class ArchiveBatch {
+
+    private final int size;
+    private final long[] ids;
+    private final long[] cardKeys;
+    private final long[] dates;
+    private final int[] nanos;
+    private final long[] amounts;
+    private final byte[] regions;
+    private final Region[] regionDictionary;
+    private final int[] ips;
+    private final String[] ipDictionary;
+    private final byte[] results;
+    private final TransactionResult[] resultDictionary;
+    private final byte[] feedback;
+    private final TransactionResult[] feedbackDictionary;
+
+    ArchiveBatch(int size, long[] ids, long[] cardKeys, long[] dates, int[] nanos, long[] amounts, byte[] regions,
+                 Region[] regionDictionary, int[] ips, String[] ipDictionary, byte[] results,
+                 TransactionResult[] resultDictionary, byte[] feedback, TransactionResult[] feedbackDictionary) {
+        this.size = size;
+        this.ids = ids;
+        this.cardKeys = cardKeys;
+        this.dates = dates;
+        this.nanos = nanos;
+        this.amounts = amounts;
+        this.regions = regions;
+        this.regionDictionary = regionDictionary;
+        this.ips = ips;
+        this.ipDictionary = ipDictionary;
+        this.results = results;
+        this.resultDictionary = resultDictionary;
+        this.feedback = feedback;
+        this.feedbackDictionary = feedbackDictionary;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long id(int row) {
+        return ids[row];
+    }
+
+    public long cardKey(int row) {
+        return cardKeys[row];
+    }
+
+    public String number(int row) {
+        return CardValidator.fromKey(cardKeys[row]);
+    }
+
+    public LocalDateTime date(int row) {
+        return LocalDateTime.ofEpochSecond(dates[row], nanos[row], ZoneOffset.UTC);
+    }
+
+    public long amount(int row) {
+        return amounts[row];
+    }
+
+    public Region region(int row) {
+        return regionDictionary[Byte.toUnsignedInt(regions[row])];
+    }
+
+    public String ip(int row) {
+        return ipDictionary[ips[row]];
+    }
+
+    public TransactionResult result(int row) {
+        return resultDictionary[Byte.toUnsignedInt(results[row])];
+    }
+
+    /**
+     * @return The feedback, or null if the transaction has none
+     */
+    public TransactionResult feedback(int row) {
+        return feedbackDictionary[Byte.toUnsignedInt(feedback[row])];
+    }
+
+    /**
+     * Creates a detached transaction entity for a row, to be returned by the history endpoints. It must not be saved.
+     *
+     * @param row The row
+     * @return The transaction
+     */
+    public Transaction toTransaction(int row) {
+        Transaction transaction = new Transaction();
+        transaction.setId(id(row));
+        transaction.setAmount(amount(row));
+        transaction.setNumber(number(row));
+        transaction.setIp(ip(row));
+        transaction.setRegion(region(row));
+        transaction.setDate(date(row));
+        transaction.setResult(result(row));
+        transaction.setFeedback(feedback(row));
+        return transaction;
+    }
+}
@@ -0,0 +1,518 @@
+package io.github.dankoller.antifraud.archive;
+
+import io.github.dankoller.antifraud.aggregate.Hashing;
+import io.github.dankoller.antifraud.entity.Region;
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import io.github.dankoller.antifraud.snapshot.SnapshotIO;
+import io.github.dankoller.antifraud.util.CardValidator;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A file of archived transactions, ordered by id and stored column by column. Every column is deflated on its own, so
+ * a lookup only inflates the columns it needs: the card column first and the others only if the card occurs.
+ * <ul>
+ *     <li>ids and dates (epoch seconds, UTC) as deltas to the previous row, the dates zig-zag encoded</li>
+ *     <li>card numbers as packed 7-byte card keys, see {@link CardValidator#toKey(String)}</li>
+ *     <li>regions, results and feedback as one byte per row, an index into a dictionary stored in the header (0 is
+ *     null), so reordering the enums doesn't break old segments</li>
+ *     <li>IP addresses as index into a dictionary column of the distinct addresses of the segment</li>
+ * </ul>
+ * The header also holds the id and date range and a Bloom filter of the card keys, so lookups skip most segments
+ * without inflating anything.
+ * <p>
+ * Format: magic(8) version(4) rows(4) minId(8) maxId(8) minDate(8) maxDate(8) createdAt(8)
+ * { dictionarySize(1) { name }* }*3 bloomWords(4) { word(8) }* { rawLength(4) compressedLength(4) bytes }*
+ */
+public final class ArchiveSegment {
+
+    private static final long MAGIC = 0x414E_5449_4152_4348L; // "ANTIARCH"
+    private static final int VERSION = 1;
+
+    // Columns in file order
+    private static final int ID = 0;
+    private static final int CARD = 1;
+    private static final int DATE = 2;
+    private static final int NANOS = 3;
+    private static final int AMOUNT = 4;
+    private static final int REGION = 5;
+    private static final int IP_DICTIONARY = 6;
+    private static final int IP = 7;
+    private static final int RESULT = 8;
+    private static final int FEEDBACK = 9;
+    private static final int COLUMNS = 10;
+
+    private static final int CARD_KEY_BYTES = 7;
+    private static final int BLOOM_BITS_PER_CARD = 10;
+    private static final int BLOOM_PROBES = 5;
+
+    private final Path file;
+    private final int rows;
+    private final long minId;
+    private final long maxId;
+    private final long minDate;
+    private final long maxDate;
+    private final Region[] regions;
+    private final TransactionResult[] results;
+    private final TransactionResult[] feedback;
+    private final long[] bloom;
+    private final ByteBuffer[] columns;
+    private final int[] rawLengths;
+
+    private ArchiveSegment(Path file, int rows, long minId, long maxId, long minDate, long maxDate, Region[] regions,
+                           TransactionResult[] results, TransactionResult[] feedback, long[] bloom,
+                           ByteBuffer[] columns, int[] rawLengths) {
+        this.file = file;
+        this.rows = rows;
+        this.minId = minId;
+        this.maxId = maxId;
+        this.minDate = minDate;
+        this.maxDate = maxDate;
+        this.regions = regions;
+        this.results = results;
+        this.feedback = feedback;
+        this.bloom = bloom;
+        this.columns = columns;
+        this.rawLengths = rawLengths;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public long getMinId() {
+        return minId;
+    }
+
+    public long getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * Checks if the segment may contain transactions in a date range.
+     *
+     * @param from First date (inclusive), null for no lower bound
+     * @param to   Last date (exclusive), null for no upper bound
+     * @return False if no transaction of the segment is in the range
+     */
+    public boolean overlaps(LocalDateTime from, LocalDateTime to) {
+        return (from == null || maxDate >= toEpochSecond(from)) && (to == null || minDate <= toEpochSecond(to));
+    }
+
+    /**
+     * Checks the Bloom filter of the card keys.
+     *
+     * @param cardKey The key of a card number
+     * @return False if the segment has no transaction of the card, true if it may have one
+     */
+    public boolean mightContainCard(long cardKey) {
+        long hash = Hashing.mix64(cardKey);
+        long step = hash >>> 32 | 1;
+        long mask = bloom.length * 64L - 1;
+        for (int i = 0; i < BLOOM_PROBES; i++) {
+            long bit = (hash + i * step) & mask;
+            if ((bloom[(int) (bit >>> 6)] & 1L << bit) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the transactions of a card.
+     *
+     * @param cardKey The key of the card number
+     * @return The transactions of the card, ordered by id
+     */
+    public ArchiveBatch decodeCard(long cardKey) {
+        if (!mightContainCard(cardKey)) return decode(new int[0], 0);
+
+        long[] cardKeys = decodeCardKeys();
+        int[] selected = new int[rows];
+        int count = 0;
+        for (int row = 0; row < rows; row++) {
+            // Always write, only advance for matching rows
+            selected[count] = row;
+            count += cardKeys[row] == cardKey ? 1 : 0;
+        }
+        return decode(selected, count);
+    }
+
+    /**
+     * Decodes the transactions in a date range.
+     *
+     * @param from First date (inclusive), null for no lower bound
+     * @param to   Last date (exclusive), null for no upper bound
+     * @return The transactions in the range, ordered by id
+     */
+    public ArchiveBatch decode(LocalDateTime from, LocalDateTime to) {
+        if (!overlaps(from, to)) return decode(new int[0], 0);
+        if (from == null && to == null) return decode(IntStream.range(0, rows).toArray(), rows);
+
+        long[] dates = decodeDeltas(DATE, true);
+        int[] nanos = decodeInts(NANOS);
+        int[] selected = new int[rows];
+        int count = 0;
+        for (int row = 0; row < rows; row++) {
+            selected[count] = row;
+            boolean inRange = (from == null || compare(dates[row], nanos[row], from) >= 0)
+                    && (to == null || compare(dates[row], nanos[row], to) < 0);
+            count += inRange ? 1 : 0;
+        }
+        return decode(selected, count);
+    }
+
+    /**
+     * Decodes the given rows of all columns.
+     */
+    private ArchiveBatch decode(int[] selected, int count) {
+        if (count == 0) {
+            return new ArchiveBatch(0, new long[0], new long[0], new long[0], new int[0], new long[0], new byte[0],
+                    regions, new int[0], new String[0], new byte[0], results, new byte[0], feedback);
+        }
+
+        return new ArchiveBatch(count,
+                gather(decodeDeltas(ID, false), selected, count),
+                gather(decodeCardKeys(), selected, count),
+                gather(decodeDeltas(DATE, true), selected, count),
+                gather(decodeInts(NANOS), selected, count),
+                gather(decodeLongs(AMOUNT), selected, count),
+                gather(inflate(REGION), selected, count), regions,
+                gather(decodeInts(IP), selected, count), decodeStrings(IP_DICTIONARY),
+                gather(inflate(RESULT), selected, count), results,
+                gather(inflate(FEEDBACK), selected, count), feedback);
+    }
+
+    private long[] decodeCardKeys() {
+        ByteBuffer column = ByteBuffer.wrap(inflate(CARD));
+        long[] cardKeys = new long[rows];
+        for (int row = 0; row < rows; row++) {
+            cardKeys[row] = (long) column.getInt() << 24 | (column.getShort() & 0xFFFFL) << 8 | column.get() & 0xFFL;
+        }
+        return cardKeys;
+    }
+
+    private long[] decodeDeltas(int column, boolean signed) {
+        ByteBuffer in = ByteBuffer.wrap(inflate(column));
+        long[] values = new long[rows];
+        long previous = 0;
+        for (int row = 0; row < rows; row++) {
+            long delta = readVarLong(in);
+            previous += signed ? delta >>> 1 ^ -(delta & 1) : delta;
+            values[row] = previous;
+        }
+        return values;
+    }
+
+    private long[] decodeLongs(int column) {
+        ByteBuffer in = ByteBuffer.wrap(inflate(column));
+        long[] values = new long[rows];
+        for (int row = 0; row < rows; row++) values[row] = readVarLong(in);
+        return values;
+    }
+
+    private int[] decodeInts(int column) {
+        ByteBuffer in = ByteBuffer.wrap(inflate(column));
+        int[] values = new int[rows];
+        for (int row = 0; row < rows; row++) values[row] = (int) readVarLong(in);
+        return values;
+    }
+
+    private String[] decodeStrings(int column) {
+        ByteBuffer in = ByteBuffer.wrap(inflate(column));
+        String[] values = new String[(int) readVarLong(in)];
+        for (int i = 0; i < values.length; i++) {
+            byte[] bytes = new byte[(int) readVarLong(in)];
+            in.get(bytes);
+            values[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return values;
+    }
+
+    private byte[] inflate(int column) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(columns[column].duplicate());
+            byte[] raw = new byte[rawLengths[column]];
+            int length = 0;
+            while (length < raw.length && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, length, raw.length - length);
+                if (inflated == 0 && inflater.needsInput()) break;
+                length += inflated;
+            }
+            if (length != raw.length) throw new IllegalStateException("Truncated column " + column + " in " + file);
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt column " + column + " in " + file, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long[] gather(long[] values, int[] selected, int count) {
+        long[] gathered = new long[count];
+        for (int i = 0; i < count; i++) gathered[i] = values[selected[i]];
+        return gathered;
+    }
+
+    private static int[] gather(int[] values, int[] selected, int count) {
+        int[] gathered = new int[count];
+        for (int i = 0; i < count; i++) gathered[i] = values[selected[i]];
+        return gathered;
+    }
+
+    private static byte[] gather(byte[] values, int[] selected, int count) {
+        byte[] gathered = new byte[count];
+        for (int i = 0; i < count; i++) gathered[i] = values[selected[i]];
+        return gathered;
+    }
+
+    /**
+     * Maps a segment file into memory. The columns are inflated on every decode, nothing is cached.
+     *
+     * @param file The segment file
+     * @return The segment
+     * @throws IOException if the file can't be read or has an unknown format
+     */
+    public static ArchiveSegment read(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+
+        try {
+            if (buffer.getLong() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unknown archive segment format: " + file);
+            }
+            int rows = buffer.getInt();
+            long minId = buffer.getLong();
+            long maxId = buffer.getLong();
+            long minDate = buffer.getLong();
+            long maxDate = buffer.getLong();
+            buffer.getLong(); // createdAt
+
+            Region[] regions = readDictionary(buffer, Region.class);
+            TransactionResult[] results = readDictionary(buffer, TransactionResult.class);
+            TransactionResult[] feedback = readDictionary(buffer, TransactionResult.class);
+
+            long[] bloom = new long[buffer.getInt()];
+            for (int i = 0; i < bloom.length; i++) bloom[i] = buffer.getLong();
+
+            ByteBuffer[] columns = new ByteBuffer[COLUMNS];
+            int[] rawLengths = new int[COLUMNS];
+            for (int column = 0; column < COLUMNS; column++) {
+                rawLengths[column] = buffer.getInt();
+                int length = buffer.getInt();
+                ByteBuffer bytes = buffer.slice();
+                bytes.limit(length);
+                columns[column] = bytes.asReadOnlyBuffer();
+                buffer.position(buffer.position() + length);
+            }
+
+            return new ArchiveSegment(file, rows, minId, maxId, minDate, maxDate, regions, results, feedback, bloom,
+                    columns, rawLengths);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt archive segment: " + file, e);
+        }
+    }
+
+    /**
+     * Writes a segment. The file is written to a temporary file first and moved into place atomically, so a crash
+     * never leaves a partial segment.
+     *
+     * @param file         The segment file
+     * @param transactions The transactions, ordered by id
+     * @return The written segment
+     * @throws IOException if the file can't be written
+     */
+    public static ArchiveSegment write(Path file, List<Transaction> transactions) throws IOException {
+        int rows = transactions.size();
+        ByteArrayOutputStream[] columns = new ByteArrayOutputStream[COLUMNS];
+        for (int column = 0; column < COLUMNS; column++) columns[column] = new ByteArrayOutputStream();
+
+        long[] bloom = new long[bloomWords(rows)];
+        Map<String, Integer> ips = new HashMap<>();
+        List<String> ipDictionary = new ArrayList<>();
+        long minId = Long.MAX_VALUE;
+        long maxId = Long.MIN_VALUE;
+        long minDate = Long.MAX_VALUE;
+        long maxDate = Long.MIN_VALUE;
+        long previousId = 0;
+        long previousDate = 0;
+
+        for (Transaction transaction : transactions) {
+            long id = transaction.getId();
+            long cardKey = CardValidator.toKey(transaction.getNumber());
+            long date = toEpochSecond(transaction.getDate());
+
+            writeVarLong(columns[ID], id - previousId);
+            for (int shift = (CARD_KEY_BYTES - 1) * 8; shift >= 0; shift -= 8) {
+                columns[CARD].write((int) (cardKey >>> shift));
+            }
+            long delta = date - previousDate;
+            writeVarLong(columns[DATE], delta << 1 ^ delta >> 63);
+            writeVarLong(columns[NANOS], transaction.getDate().getNano());
+            writeVarLong(columns[AMOUNT], transaction.getAmount());
+            columns[REGION].write(transaction.getRegion() == null ? 0 : transaction.getRegion().ordinal() + 1);
+            writeVarLong(columns[IP], ips.computeIfAbsent(transaction.getIp(), ip -> {
+                ipDictionary.add(ip);
+                return ipDictionary.size() - 1;
+            }));
+            columns[RESULT].write(TransactionResult.valueOf(transaction.getResult()).ordinal() + 1);
+            String feedback = transaction.getFeedback();
+            columns[FEEDBACK].write(feedback.isEmpty() ? 0 : TransactionResult.valueOf(feedback).ordinal() + 1);
+
+            addToBloom(bloom, cardKey);
+            minId = Math.min(minId, id);
+            maxId = Math.max(maxId, id);
+            minDate = Math.min(minDate, date);
+            maxDate = Math.max(maxDate, date);
+            previousId = id;
+            previousDate = date;
+        }
+
+        writeVarLong(columns[IP_DICTIONARY], ipDictionary.size());
+        for (String ip : ipDictionary) {
+            byte[] bytes = ip.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(columns[IP_DICTIONARY], bytes.length);
+            columns[IP_DICTIONARY].write(bytes);
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        // The stream is only flushed, closing the channel closes it as well
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rows);
+            out.writeLong(minId);
+            out.writeLong(maxId);
+            out.writeLong(minDate);
+            out.writeLong(maxDate);
+            out.writeLong(System.currentTimeMillis());
+
+            writeDictionary(out, Region.values());
+            writeDictionary(out, TransactionResult.values());
+            writeDictionary(out, TransactionResult.values());
+
+            out.writeInt(bloom.length);
+            for (long word : bloom) out.writeLong(word);
+
+            for (ByteArrayOutputStream column : columns) {
+                byte[] raw = column.toByteArray();
+                byte[] compressed = deflate(raw);
+                out.writeInt(raw.length);
+                out.writeInt(compressed.length);
+                out.write(compressed);
+            }
+
+            out.flush();
+            channel.force(true);
+        }
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return read(file);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buffer = new byte[1 << 16];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeDictionary(DataOutputStream out, Enum<?>[] values) throws IOException {
+        out.writeByte(values.length);
+        for (Enum<?> value : values) SnapshotIO.writeString(out, value.name());
+    }
+
+    /**
+     * Reads a dictionary. Index 0 of the returned array stands for null, the names follow from index 1.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Enum<E>> E[] readDictionary(ByteBuffer in, Class<E> type) {
+        int size = Byte.toUnsignedInt(in.get());
+        E[] values = (E[]) Array.newInstance(type, size + 1);
+        for (int i = 1; i <= size; i++) values[i] = Enum.valueOf(type, SnapshotIO.readString(in));
+        return values;
+    }
+
+    private static int bloomWords(int rows) {
+        long bits = Math.max(64, (long) rows * BLOOM_BITS_PER_CARD);
+        // A power of two, so a probe is masked instead of divided
+        return (int) (Long.highestOneBit(bits - 1) << 1 >>> 6);
+    }
+
+    private static void addToBloom(long[] bloom, long cardKey) {
+        long hash = Hashing.mix64(cardKey);
+        long step = hash >>> 32 | 1;
+        long mask = bloom.length * 64L - 1;
+        for (int i = 0; i < BLOOM_PROBES; i++) {
+            long bit = (hash + i * step) & mask;
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private static int compare(long epochSecond, int nanos, LocalDateTime date) {
+        int seconds = Long.compare(epochSecond, toEpochSecond(date));
+        return seconds != 0 ? seconds : Integer.compare(nanos, date.getNano());
+    }
+
+    static long toEpochSecond(LocalDateTime date) {
+        return date.toEpochSecond(ZoneOffset.UTC);
+    }
+}
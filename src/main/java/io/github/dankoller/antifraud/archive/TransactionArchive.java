@@ -0,0 +1,367 @@
+package io.github.dankoller.antifraud.archive;
+
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.persistence.TransactionRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Moves the transactions older than the retention period from the transaction table into {@link ArchiveSegment}
+ * files, so the table and every query on it stay small while the history remains readable. The history endpoints and
+ * the backtest read the archive before the table, see {@link #read(Supplier)}.
+ * <p>
+ * A segment is written as pending file first, then its rows are deleted in one database transaction and the file is
+ * renamed. A pending segment found on startup is kept if its rows are gone from the table and dropped otherwise, so a
+ * crash neither loses nor duplicates a transaction. Archived transactions can't receive feedback anymore. Without a
+ * configured directory nothing is archived.
+ */
+@Slf4j
+@Component
+@SuppressWarnings("unused")
+public class TransactionArchive {
+
+    private static final String SEGMENT_PREFIX = "transactions-";
+    private static final String SEGMENT_SUFFIX = ".arc";
+    private static final String PENDING_SUFFIX = ".pending";
+    private static final long WRITE_LOCK_POLL_MS = 50;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${antifraud.archive.directory:}")
+    private String directory;
+
+    @Value("${antifraud.archive.retention-days:365}")
+    private int retentionDays;
+
+    @Value("${antifraud.archive.segment-size:50000}")
+    private int segmentSize;
+
+    @Value("${antifraud.archive.delete-batch-size:1000}")
+    private int deleteBatchSize;
+
+    @Value("${antifraud.partitions.enabled:false}")
+    private boolean partitioned;
+
+    // Readers hold the read lock while they read the archive and the table, moving a segment holds the write lock
+    // while it deletes the rows and publishes the segment, so a reader sees every transaction exactly once
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Oldest first, replaced as a whole when a segment is added
+    private volatile List<ArchiveSegment> segments = List.of();
+    private long nextSegment;
+
+    /**
+     * Maps all segments into memory and finishes or drops a segment whose move was interrupted.
+     *
+     * @throws IOException if the archive directory or a segment can't be read
+     */
+    @PostConstruct
+    public void load() throws IOException {
+        if (directory.isBlank()) return;
+
+        List<Path> files;
+        try (Stream<Path> list = Files.list(Files.createDirectories(Path.of(directory)))) {
+            files = list.sorted().collect(Collectors.toList());
+        }
+
+        List<ArchiveSegment> loaded = new ArrayList<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (!name.startsWith(SEGMENT_PREFIX)) continue;
+
+            if (name.endsWith(SEGMENT_SUFFIX + PENDING_SUFFIX)) {
+                ArchiveSegment segment = recover(ArchiveSegment.read(file));
+                if (segment != null) loaded.add(segment);
+            } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                loaded.add(ArchiveSegment.read(file));
+            } else {
+                continue;
+            }
+            long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.indexOf('.')));
+            nextSegment = Math.max(nextSegment, sequence + 1);
+        }
+
+        segments = List.copyOf(loaded);
+        log.info("Loaded {} archived transactions in {} segments",
+                loaded.stream().mapToLong(ArchiveSegment::getRows).sum(), loaded.size());
+    }
+
+    @Scheduled(fixedDelayString = "${antifraud.archive.interval-ms:3600000}",
+            initialDelayString = "${antifraud.archive.interval-ms:3600000}")
+    public void archiveExpired() {
+        // Whole months are archived when their partitions are dropped, see TransactionPartitions
+        if (directory.isBlank() || partitioned) return;
+
+        try {
+            archive(LocalDateTime.now().minusDays(retentionDays));
+        } catch (IOException | RuntimeException e) {
+            // Try again on the next run
+            log.warn("Failed to archive transactions, retrying later", e);
+        }
+    }
+
+    /**
+     * Moves all transactions dated before the cutoff into the archive, one segment at a time. The rows of a segment
+     * are deleted in one database transaction.
+     *
+     * @param cutoff The date of the oldest transaction to be kept in the table
+     * @return The number of archived transactions
+     * @throws IOException if a segment can't be written
+     */
+    public synchronized long archive(LocalDateTime cutoff) throws IOException {
+        if (directory.isBlank()) return 0;
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        long archived = 0;
+        long after = 0;
+        List<Transaction> transactions;
+
+        while (!(transactions = findSegment(cutoff, after)).isEmpty()) {
+            ArchiveSegment segment = writePending(transactions);
+            List<Long> ids = transactions.stream().map(Transaction::getId).collect(Collectors.toList());
+
+            move(List.of(segment), () -> transactionTemplate.executeWithoutResult(status -> {
+                for (int from = 0; from < ids.size(); from += deleteBatchSize) {
+                    transactionRepository.deleteAllByIdInBatch(
+                            ids.subList(from, Math.min(ids.size(), from + deleteBatchSize)));
+                }
+            }));
+            archived += transactions.size();
+            after = ids.get(ids.size() - 1);
+        }
+
+        if (archived > 0) log.info("Archived {} transactions dated before {}", archived, cutoff);
+        return archived;
+    }
+
+    /**
+     * Moves all transactions dated before the cutoff into the archive and removes them from the table in one step,
+     * e.g. by dropping their partitions. Without a configured directory they are only removed. So are transactions
+     * dated before the cutoff that are stored while the segments are written, the cutoff should be long past.
+     *
+     * @param cutoff The date of the oldest transaction to be kept in the table
+     * @param remove Removes all transactions dated before the cutoff from the table
+     * @return The number of archived transactions
+     * @throws IOException if a segment can't be written, nothing is removed then
+     */
+    public synchronized long archive(LocalDateTime cutoff, Runnable remove) throws IOException {
+        if (directory.isBlank()) {
+            remove.run();
+            return 0;
+        }
+
+        List<ArchiveSegment> pending = new ArrayList<>();
+        long archived = 0;
+        long after = 0;
+        List<Transaction> transactions;
+
+        try {
+            while (!(transactions = findSegment(cutoff, after)).isEmpty()) {
+                pending.add(writePending(transactions));
+                archived += transactions.size();
+                after = transactions.get(transactions.size() - 1).getId();
+            }
+        } catch (IOException | RuntimeException e) {
+            // The rows are still in the table, a pending segment left behind would be finished once they are removed
+            for (ArchiveSegment segment : pending) Files.deleteIfExists(segment.getFile());
+            throw e;
+        }
+
+        move(pending, remove);
+        if (archived > 0) log.info("Archived {} transactions dated before {}", archived, cutoff);
+        return archived;
+    }
+
+    private List<Transaction> findSegment(LocalDateTime cutoff, long after) {
+        return transactionRepository.findAllByDateBeforeAndIdGreaterThanOrderByIdAsc(
+                cutoff, after, PageRequest.of(0, segmentSize));
+    }
+
+    private ArchiveSegment writePending(List<Transaction> transactions) throws IOException {
+        Path pending = Path.of(directory).resolve(
+                String.format("%s%08d%s%s", SEGMENT_PREFIX, nextSegment, SEGMENT_SUFFIX, PENDING_SUFFIX));
+        ArchiveSegment segment = ArchiveSegment.write(pending, transactions);
+        // A pending segment that can't be finished is left for the next start, its name isn't used again
+        nextSegment++;
+        return segment;
+    }
+
+    /**
+     * Helper method to remove the rows of pending segments from the table and publish the segments, while no reader
+     * is active.
+     */
+    private void move(List<ArchiveSegment> pending, Runnable remove) throws IOException {
+        lockForWriting();
+        try {
+            remove.run();
+            for (ArchiveSegment segment : pending) publish(finish(segment));
+        } catch (RuntimeException e) {
+            // The commit may have succeeded even though it failed, the table decides
+            for (ArchiveSegment segment : pending) publish(recover(segment));
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Runs a reader of the archive and the transaction table, while no segment is being moved.
+     *
+     * @param reader The reader
+     * @return The result of the reader
+     */
+    public <T> T read(Supplier<T> reader) {
+        lock.readLock().lock();
+        try {
+            return reader.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the archived transactions of a card. Segments outside the date range or whose Bloom filter rules out
+     * the card are skipped.
+     *
+     * @param cardKey The key of the card number
+     * @param from    First date (inclusive), null for no lower bound
+     * @param to      Last date (exclusive), null for no upper bound
+     * @return The transactions, ordered by segment and id
+     */
+    public List<Transaction> findAllByCardKey(long cardKey, LocalDateTime from, LocalDateTime to) {
+        List<Transaction> transactions = new ArrayList<>();
+        for (ArchiveSegment segment : segments) {
+            if (!segment.overlaps(from, to)) continue;
+
+            ArchiveBatch batch = segment.decodeCard(cardKey);
+            for (int row = 0; row < batch.size(); row++) {
+                LocalDateTime date = batch.date(row);
+                if ((from == null || !date.isBefore(from)) && (to == null || date.isBefore(to))) {
+                    transactions.add(batch.toTransaction(row));
+                }
+            }
+        }
+        return transactions;
+    }
+
+    /**
+     * Returns all archived transactions.
+     *
+     * @return The transactions, ordered by segment and id
+     */
+    public List<Transaction> findAll() {
+        List<Transaction> transactions = new ArrayList<>();
+        scan(null, null, batch -> {
+            for (int row = 0; row < batch.size(); row++) transactions.add(batch.toTransaction(row));
+        });
+        return transactions;
+    }
+
+    /**
+     * Decodes the archived transactions in a date range, one batch per segment. Segments outside the range are
+     * skipped without inflating them.
+     *
+     * @param from     First date (inclusive), null for no lower bound
+     * @param to       Last date (exclusive), null for no upper bound
+     * @param consumer Receives the non-empty batches, oldest segment first
+     */
+    public void scan(LocalDateTime from, LocalDateTime to, Consumer<ArchiveBatch> consumer) {
+        for (ArchiveSegment segment : segments) {
+            if (!segment.overlaps(from, to)) continue;
+
+            ArchiveBatch batch = segment.decode(from, to);
+            if (batch.size() > 0) consumer.accept(batch);
+        }
+    }
+
+    public long size() {
+        return segments.stream().mapToLong(ArchiveSegment::getRows).sum();
+    }
+
+    /**
+     * Helper method to rename a pending segment whose rows were deleted.
+     */
+    private ArchiveSegment finish(ArchiveSegment segment) throws IOException {
+        String name = segment.getFile().getFileName().toString();
+        Path file = segment.getFile().resolveSibling(name.substring(0, name.length() - PENDING_SUFFIX.length()));
+        Files.move(segment.getFile(), file, StandardCopyOption.ATOMIC_MOVE);
+        return ArchiveSegment.read(file);
+    }
+
+    /**
+     * Helper method to finish a pending segment if none of its rows is left in the table, or to drop it otherwise.
+     * The rows are deleted in one database transaction, so either all or none of them are left.
+     *
+     * @return The finished segment, or null if it was dropped
+     */
+    private ArchiveSegment recover(ArchiveSegment segment) {
+        try {
+            ArchiveBatch batch = segment.decode(null, null);
+            List<Long> ids = new ArrayList<>(batch.size());
+            for (int row = 0; row < batch.size(); row++) ids.add(batch.id(row));
+
+            for (int from = 0; from < ids.size(); from += deleteBatchSize) {
+                List<Long> batchIds = ids.subList(from, Math.min(ids.size(), from + deleteBatchSize));
+                if (transactionRepository.countByIdIn(batchIds) > 0) {
+                    Files.delete(segment.getFile());
+                    log.warn("Dropped the unfinished archive segment {}, its transactions are still in the table",
+                            segment.getFile());
+                    return null;
+                }
+            }
+            return finish(segment);
+        } catch (IOException | RuntimeException e) {
+            // Decided on the next start
+            log.error("Failed to recover the archive segment {}", segment.getFile(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Helper method to take the write lock without queueing for it. A queued writer blocks new readers, so a long
+     * backtest would hold up every history request until it is done.
+     */
+    private void lockForWriting() {
+        while (!lock.writeLock().tryLock()) {
+            try {
+                Thread.sleep(WRITE_LOCK_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the archive readers", e);
+            }
+        }
+    }
+
+    private void publish(ArchiveSegment segment) {
+        if (segment == null) return;
+
+        List<ArchiveSegment> updated = new ArrayList<>(segments);
+        updated.add(segment);
+        segments = List.copyOf(updated);
+    }
+}
@@ -58,6 +58,8 @@ public class WebSecurityConfigurerImpl extends WebSecurityConfigurerAdapter {
                 // Api endpoints
                 .mvcMatchers("/api/auth/login").permitAll()
                 .mvcMatchers("/api/auth/user", "/actuator/shutdown").permitAll()
+                .mvcMatchers("/actuator/jfr", "/actuator/jfr/**", "/actuator/sqlstats", "/actuator/partitions")
+                .hasRole("ADMINISTRATOR")
                 .mvcMatchers(HttpMethod.POST, "/api/antifraud/transaction").hasRole("MERCHANT")
                 .mvcMatchers("/api/auth/list").hasAnyRole("SUPPORT", "ADMINISTRATOR")
                 .mvcMatchers("/api/auth/**").hasRole("ADMINISTRATOR")
@@ -0,0 +1,133 @@
+package io.github.dankoller.antifraud.backtest;
+
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import io.github.dankoller.antifraud.response.BacktestResponse;
+import io.github.dankoller.antifraud.response.BacktestResponse.ChangedVerdict;
+import io.github.dankoller.antifraud.response.BacktestResponse.VerdictSummary;
+import io.github.dankoller.antifraud.util.LimitPolicy;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Counts of a backtest. Every partition of the cards fills its own report, the reports are merged at the end. Keeps
+ * the changed verdicts with the lowest transaction ids as samples, so the samples don't depend on the scheduling.
+ */
+class BacktestReport {
+
+    private static final int RESULTS = TransactionResult.values().length;
+
+    private final int maxSamples;
+    private long transactions;
+    private long withFeedback;
+    private long replayMatchesRecorded;
+    private final long[] current = new long[RESULTS];
+    private final long[] candidate = new long[RESULTS];
+    private final long[] currentErrors = new long[2];
+    private final long[] candidateErrors = new long[2];
+    private final long[][] changes = new long[RESULTS][RESULTS];
+    // Highest id first, so the head is dropped when a lower one comes in
+    private final PriorityQueue<ChangedVerdict> samples =
+            new PriorityQueue<>(Comparator.comparingLong(ChangedVerdict::transactionId).reversed());
+
+    BacktestReport(int maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * Adds the verdicts of one transaction.
+     */
+    void add(HistoricalTransaction transaction, TransactionResult before, TransactionResult after) {
+        transactions++;
+        if (before == transaction.result()) replayMatchesRecorded++;
+        current[before.ordinal()]++;
+        candidate[after.ordinal()]++;
+
+        if (transaction.feedback() != null) {
+            withFeedback++;
+            countError(currentErrors, before, transaction.feedback());
+            countError(candidateErrors, after, transaction.feedback());
+        }
+
+        if (before != after) {
+            changes[before.ordinal()][after.ordinal()]++;
+            addSample(new ChangedVerdict(transaction.id(), transaction.number(), transaction.date(),
+                    transaction.amount(), name(transaction.result()), before.name(), after.name(),
+                    name(transaction.feedback())));
+        }
+    }
+
+    void merge(BacktestReport other) {
+        transactions += other.transactions;
+        withFeedback += other.withFeedback;
+        replayMatchesRecorded += other.replayMatchesRecorded;
+        for (int i = 0; i < RESULTS; i++) {
+            current[i] += other.current[i];
+            candidate[i] += other.candidate[i];
+            for (int j = 0; j < RESULTS; j++) changes[i][j] += other.changes[i][j];
+        }
+        for (int i = 0; i < 2; i++) {
+            currentErrors[i] += other.currentErrors[i];
+            candidateErrors[i] += other.candidateErrors[i];
+        }
+        other.samples.forEach(this::addSample);
+    }
+
+    BacktestResponse toResponse(LimitPolicy currentPolicy, LimitPolicy candidatePolicy, long elapsedMillis) {
+        Map<String, Long> changed = new TreeMap<>();
+        for (TransactionResult before : TransactionResult.values()) {
+            for (TransactionResult after : TransactionResult.values()) {
+                long count = changes[before.ordinal()][after.ordinal()];
+                if (count > 0) changed.put(before.name() + " -> " + after.name(), count);
+            }
+        }
+
+        List<ChangedVerdict> sorted = new ArrayList<>(samples);
+        sorted.sort(Comparator.comparingLong(ChangedVerdict::transactionId));
+
+        return new BacktestResponse(currentPolicy, candidatePolicy, transactions, withFeedback,
+                replayMatchesRecorded, summary(current, currentErrors), summary(candidate, candidateErrors), changed,
+                sorted, elapsedMillis);
+    }
+
+    private void addSample(ChangedVerdict sample) {
+        if (samples.size() < maxSamples) {
+            samples.add(sample);
+        } else if (maxSamples > 0 && sample.transactionId() < samples.peek().transactionId()) {
+            samples.poll();
+            samples.add(sample);
+        }
+    }
+
+    /**
+     * Counts a false positive (index 0) if the verdict is stricter than the feedback, a false negative (index 1) if
+     * it is more lenient.
+     */
+    private static void countError(long[] errors, TransactionResult verdict, TransactionResult feedback) {
+        int difference = severity(verdict) - severity(feedback);
+        if (difference > 0) errors[0]++;
+        if (difference < 0) errors[1]++;
+    }
+
+    private static int severity(TransactionResult result) {
+        return switch (result) {
+            case ALLOWED -> 0;
+            case MANUAL_PROCESSING -> 1;
+            case PROHIBITED -> 2;
+        };
+    }
+
+    private static VerdictSummary summary(long[] verdicts, long[] errors) {
+        return new VerdictSummary(verdicts[TransactionResult.ALLOWED.ordinal()],
+                verdicts[TransactionResult.MANUAL_PROCESSING.ordinal()],
+                verdicts[TransactionResult.PROHIBITED.ordinal()], errors[0], errors[1]);
+    }
+
+    private static String name(TransactionResult result) {
+        return result == null ? "" : result.name();
+    }
+}
@@ -0,0 +1,240 @@
+package io.github.dankoller.antifraud.backtest;
+
+import io.github.dankoller.antifraud.archive.TransactionArchive;
+import io.github.dankoller.antifraud.entity.Region;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import io.github.dankoller.antifraud.response.BacktestResponse;
+import io.github.dankoller.antifraud.util.LimitPolicy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Replays the stored transactions with the current {@link LimitPolicy} and a candidate policy and reports how the
+ * verdicts change, before the candidate goes live. The history, archived transactions first, is streamed in the order
+ * it was scored (by id, so the database doesn't sort) and the cards are split into partitions by their hash. The
+ * batches of a partition are replayed one after the other on a fork/join pool, the partitions in parallel. At most two
+ * batches per thread are in flight and cards without a transaction in the last hour and with default limits are
+ * dropped, so the memory stays bounded. Runs in a read-only transaction and only keeps its state in memory, the
+ * tables and the live scoring state are not touched.
+ */
+@Slf4j
+@Service
+@SuppressWarnings("unused")
+public class BacktestService {
+
+    // Read with the same fetch size as the card state store, so MySQL streams the rows instead of buffering them all
+    private static final int FETCH_SIZE = 10_000;
+
+    // Partitions per thread, so a partition with busy cards doesn't hold up the others
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    // Idle cards are dropped after this many batches of a partition
+    private static final int EXPIRY_INTERVAL = 64;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private TransactionArchive transactionArchive;
+
+    @Value("${antifraud.backtest.parallelism:0}")
+    private int parallelism;
+
+    @Value("${antifraud.backtest.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${antifraud.backtest.max-samples:100}")
+    private int maxSamples;
+
+    /**
+     * Runs a backtest of the transactions in a date range.
+     *
+     * @param candidate The policy to compare with the current one
+     * @param from      First date (inclusive), null for the start of the history
+     * @param to        Last date (exclusive), null for the end of the history
+     * @return The comparison of the verdicts
+     */
+    public BacktestResponse run(LimitPolicy candidate, LocalDateTime from, LocalDateTime to) {
+        if (from != null && to != null && !from.isBefore(to)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid date range");
+        }
+
+        long start = System.nanoTime();
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Semaphore inFlight = new Semaphore(threads * 2);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        Partition[] partitions = new Partition[threads * PARTITIONS_PER_THREAD];
+        for (int i = 0; i < partitions.length; i++) partitions[i] = new Partition(candidate);
+
+        try {
+            TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+            transactionTemplate.setReadOnly(true);
+            transactionArchive.read(() -> {
+                transactionTemplate.executeWithoutResult(status -> stream(from, to, transaction -> {
+                    Partition partition = partitions[Math.floorMod(transaction.number().hashCode(), partitions.length)];
+                    if (partition.add(transaction)) partition.submit(pool, inFlight, failure);
+                }));
+                return null;
+            });
+
+            for (Partition partition : partitions) partition.submit(pool, inFlight, failure);
+            for (Partition partition : partitions) partition.tail.join();
+            if (failure.get() != null) throw failure.get();
+        } finally {
+            pool.shutdown();
+        }
+
+        BacktestReport total = new BacktestReport(maxSamples);
+        for (Partition partition : partitions) total.merge(partition.report);
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        BacktestResponse response = total.toResponse(LimitPolicy.CURRENT, candidate, elapsedMillis);
+        log.info("Backtest of {} transactions took {} ms", response.getTransactions(), elapsedMillis);
+        return response;
+    }
+
+    /**
+     * Helper method to stream the archived transactions, then the ones in the table. The archive only holds
+     * transactions older than the ones in the table, so this keeps the scoring order of every card.
+     */
+    private void stream(LocalDateTime from, LocalDateTime to, Consumer<HistoricalTransaction> consumer) {
+        transactionArchive.scan(from, to, batch -> {
+            for (int row = 0; row < batch.size(); row++) {
+                consumer.accept(new HistoricalTransaction(batch.id(row), batch.number(row), batch.date(row),
+                        batch.amount(row), batch.region(row), batch.ip(row), batch.result(row), batch.feedback(row)));
+            }
+        });
+
+        List<Object> arguments = new ArrayList<>();
+        StringBuilder sql = new StringBuilder(
+                "select id, number, date, amount, region, ip, result, feedback from transaction where 1 = 1");
+        if (from != null) {
+            sql.append(" and date >= ?");
+            arguments.add(Timestamp.valueOf(from));
+        }
+        if (to != null) {
+            sql.append(" and date < ?");
+            arguments.add(Timestamp.valueOf(to));
+        }
+        sql.append(" order by id");
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.setFetchSize(FETCH_SIZE);
+        jdbcTemplate.query(sql.toString(), rs -> {
+            consumer.accept(toHistoricalTransaction(rs));
+        }, arguments.toArray());
+    }
+
+    private static HistoricalTransaction toHistoricalTransaction(ResultSet rs) throws SQLException {
+        String region = rs.getString("region");
+        String result = rs.getString("result");
+        // The feedback is stored as ordinal, see Transaction
+        int feedback = rs.getInt("feedback");
+        boolean hasFeedback = !rs.wasNull();
+
+        return new HistoricalTransaction(
+                rs.getLong("id"),
+                rs.getString("number"),
+                rs.getTimestamp("date").toLocalDateTime(),
+                rs.getLong("amount"),
+                region == null ? null : Region.valueOf(region),
+                rs.getString("ip"),
+                result == null ? TransactionResult.ALLOWED : TransactionResult.valueOf(result),
+                hasFeedback ? TransactionResult.values()[feedback] : null
+        );
+    }
+
+    private record CardReplays(CardReplay current, CardReplay candidate) {
+    }
+
+    /**
+     * The cards with the same hash. Its batches are chained, so only one of them runs at a time and the replay state
+     * needs no locking.
+     */
+    private class Partition {
+
+        private final LimitPolicy candidate;
+        private final Map<String, CardReplays> cards = new HashMap<>();
+        private final BacktestReport report = new BacktestReport(maxSamples);
+        private List<HistoricalTransaction> batch = new ArrayList<>();
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        private long batches;
+
+        Partition(LimitPolicy candidate) {
+            this.candidate = candidate;
+        }
+
+        /**
+         * @return True if the batch is full
+         */
+        boolean add(HistoricalTransaction transaction) {
+            batch.add(transaction);
+            return batch.size() >= batchSize;
+        }
+
+        void submit(Executor pool, Semaphore inFlight, AtomicReference<RuntimeException> failure) {
+            if (batch.isEmpty()) return;
+
+            inFlight.acquireUninterruptibly();
+            if (failure.get() != null) {
+                inFlight.release();
+                throw failure.get();
+            }
+
+            List<HistoricalTransaction> submitted = batch;
+            batch = new ArrayList<>();
+            tail = tail.thenRunAsync(() -> {
+                try {
+                    if (failure.get() == null) replay(submitted);
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    inFlight.release();
+                }
+            }, pool);
+        }
+
+        private void replay(List<HistoricalTransaction> transactions) {
+            for (HistoricalTransaction transaction : transactions) {
+                CardReplays replays = cards.computeIfAbsent(transaction.number(), number ->
+                        new CardReplays(new CardReplay(LimitPolicy.CURRENT), new CardReplay(candidate)));
+                report.add(transaction, replays.current().score(transaction), replays.candidate().score(transaction));
+            }
+
+            if (++batches % EXPIRY_INTERVAL == 0) {
+                LocalDateTime now = transactions.get(transactions.size() - 1).date();
+                // Both replays must forget their old transactions, so no short-circuit
+                cards.values().removeIf(replays -> replays.current().expire(now) & replays.candidate().expire(now));
+            }
+        }
+    }
+}
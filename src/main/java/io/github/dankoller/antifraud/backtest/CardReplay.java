@@ -0,0 +1,96 @@
+package io.github.dankoller.antifraud.backtest;
+
+import io.github.dankoller.antifraud.entity.Region;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import io.github.dankoller.antifraud.store.CardState;
+import io.github.dankoller.antifraud.util.LimitPolicy;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replays the transactions of one card through the heuristics that depend on a {@link LimitPolicy}: the correlation
+ * with the transactions of the last hour and the limits of the card, which start at the defaults of the policy and
+ * move with every feedback. The feedback is applied right after its transaction, when it was given isn't stored.
+ * <p>
+ * Heuristics that depend on state outside the card's history (stolen cards, suspicious IPs, BIN rules, velocity,
+ * spending profiles and distinct counts) are not replayed.
+ */
+final class CardReplay {
+
+    private final LimitPolicy policy;
+    private long state;
+
+    // Transactions of the last hour with the number of times each region and IP address occurs among them, so a busy
+    // card costs the same per transaction as a quiet one
+    private final Deque<HistoricalTransaction> lastHour = new ArrayDeque<>();
+    private final Map<Region, Integer> regions = new HashMap<>();
+    private final Map<String, Integer> ips = new HashMap<>();
+
+    CardReplay(LimitPolicy policy) {
+        this.policy = policy;
+        this.state = CardState.pack(policy.allowedLimit(), policy.manualLimit(), false);
+    }
+
+    /**
+     * Scores the next transaction of the card and applies its feedback.
+     *
+     * @param transaction The transaction, not older than the previous one
+     * @return The verdict
+     */
+    TransactionResult score(HistoricalTransaction transaction) {
+        expire(transaction.date());
+
+        TransactionResult verdict = TransactionResult.ALLOWED;
+        verdict = correlate(verdict, policy.correlationResult(
+                regions.size() - (regions.containsKey(transaction.region()) ? 1 : 0)));
+        verdict = correlate(verdict, policy.correlationResult(
+                ips.size() - (ips.containsKey(transaction.ip()) ? 1 : 0)));
+
+        // Same order as the live amount check: manual processing never overrides a prohibition
+        if (transaction.amount() > CardState.allowedLimit(state)
+                && transaction.amount() <= CardState.manualLimit(state)
+                && verdict != TransactionResult.PROHIBITED) {
+            verdict = TransactionResult.MANUAL_PROCESSING;
+        }
+        if (transaction.amount() > CardState.manualLimit(state)) {
+            verdict = TransactionResult.PROHIBITED;
+        }
+
+        lastHour.addLast(transaction);
+        regions.merge(transaction.region(), 1, Integer::sum);
+        ips.merge(transaction.ip(), 1, Integer::sum);
+
+        // Feedback equal to the verdict is rejected by the service and leaves the limits alone
+        if (transaction.feedback() != null && transaction.feedback() != verdict) {
+            state = policy.adjustLimits(state, verdict, transaction.feedback(), transaction.amount());
+        }
+        return verdict;
+    }
+
+    /**
+     * Forgets the transactions that are more than an hour older than the given date.
+     *
+     * @param now The date of the latest transaction
+     * @return True if the card has no transaction in the last hour and the default limits, so it can be dropped
+     */
+    boolean expire(LocalDateTime now) {
+        LocalDateTime hourAgo = now.minusHours(1);
+        while (!lastHour.isEmpty() && lastHour.peekFirst().date().isBefore(hourAgo)) {
+            HistoricalTransaction expired = lastHour.pollFirst();
+            regions.computeIfPresent(expired.region(), (region, count) -> count == 1 ? null : count - 1);
+            ips.computeIfPresent(expired.ip(), (ip, count) -> count == 1 ? null : count - 1);
+        }
+        return lastHour.isEmpty()
+                && CardState.allowedLimit(state) == policy.allowedLimit()
+                && CardState.manualLimit(state) == policy.manualLimit();
+    }
+
+    private static TransactionResult correlate(TransactionResult verdict, TransactionResult correlation) {
+        if (correlation == null || verdict == TransactionResult.PROHIBITED) return verdict;
+        return correlation;
+    }
+}
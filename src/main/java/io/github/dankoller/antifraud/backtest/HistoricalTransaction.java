@@ -0,0 +1,13 @@
+package io.github.dankoller.antifraud.backtest;
+
+import io.github.dankoller.antifraud.entity.Region;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+
+import java.time.LocalDateTime;
+
+/**
+ * A stored transaction as read by a backtest, with its recorded verdict and feedback (null if none).
+ */
+record HistoricalTransaction(long id, String number, LocalDateTime date, long amount, Region region, String ip,
+                             TransactionResult result, TransactionResult feedback) {
+}
@@ -0,0 +1,49 @@
+package io.github.dankoller.antifraud.controller;
+
+import io.github.dankoller.antifraud.backtest.BacktestService;
+import io.github.dankoller.antifraud.request.BacktestRequest;
+import io.github.dankoller.antifraud.util.LimitPolicy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * This is the controller for backtests of limit and correlation changes.
+ * It receives requests for certain operations and passes them to the service layer.
+ * The results of the operations are returned to the client.
+ * 'Unused fields' warnings are suppressed because the fields are automatically filled at runtime.
+ */
+
+@RestController
+@RequestMapping("/api/antifraud")
+@SuppressWarnings("unused")
+public class BacktestController {
+
+    @Autowired
+    private BacktestService backtestService;
+
+    /**
+     * Replay the stored transactions with a candidate policy and compare the verdicts with the current policy.
+     *
+     * @param request The candidate policy and the date range
+     * @return BacktestResponse with the changed verdicts and the error estimates of both policies
+     */
+    @PostMapping(value = "/backtest", consumes = "application/json")
+    public ResponseEntity<?> runBacktest(@RequestBody BacktestRequest request) {
+        LimitPolicy candidate = request.toPolicy(LimitPolicy.CURRENT);
+
+        if (candidate.allowedLimit() > candidate.manualLimit()
+                || candidate.correlationManualCount() < 1
+                || candidate.correlationManualCount() > candidate.correlationProhibitedCount()
+                || !(candidate.feedbackWeight() >= 0 && candidate.feedbackWeight() <= 1)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid policy");
+        }
+
+        return new ResponseEntity<>(backtestService.run(candidate, request.getFrom(), request.getTo()), HttpStatus.OK);
+    }
+}
@@ -0,0 +1,71 @@
+package io.github.dankoller.antifraud.controller;
+
+import io.github.dankoller.antifraud.limits.LimitHistoryService;
+import io.github.dankoller.antifraud.request.LimitReplayRequest;
+import io.github.dankoller.antifraud.util.LimitPolicy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * This is the controller for the limits of the cards and their history.
+ * It receives requests for certain operations and passes them to the service layer.
+ * The results of the operations are returned to the client.
+ * 'Unused fields' warnings are suppressed because the fields are automatically filled at runtime.
+ */
+
+@RestController
+@RequestMapping("/api/antifraud")
+@SuppressWarnings("unused")
+public class LimitController {
+
+    @Autowired
+    private LimitHistoryService limitHistoryService;
+
+    /**
+     * Get the current limits of a card.
+     *
+     * @param number The card number
+     * @return CardLimitsResponse with the limits and the number of adjustments
+     */
+    @GetMapping("/limits/{number}")
+    public ResponseEntity<?> getLimits(@PathVariable String number) {
+        return new ResponseEntity<>(limitHistoryService.getLimits(number), HttpStatus.OK);
+    }
+
+    /**
+     * Get the adjustments of the limits of a card, oldest first.
+     *
+     * @param number The card number
+     * @return List of LimitAdjustment objects
+     */
+    @GetMapping("/limits/{number}/history")
+    public ResponseEntity<?> getLimitHistory(@PathVariable String number) {
+        return new ResponseEntity<>(limitHistoryService.getHistory(number), HttpStatus.OK);
+    }
+
+    /**
+     * Replay the limit history of all cards with another limit formula and compare the limits with the current ones.
+     *
+     * @param request The default limits and the feedback weight to replay with
+     * @return LimitReplayResponse with the cards whose limits would change
+     */
+    @PostMapping(value = "/limits/replay", consumes = "application/json")
+    public ResponseEntity<?> replayLimits(@RequestBody LimitReplayRequest request) {
+        LimitPolicy policy = request.toPolicy(LimitPolicy.CURRENT);
+
+        if (policy.allowedLimit() > policy.manualLimit()
+                || !(policy.feedbackWeight() >= 0 && policy.feedbackWeight() <= 1)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid policy");
+        }
+
+        return new ResponseEntity<>(limitHistoryService.replay(policy), HttpStatus.OK);
+    }
+}
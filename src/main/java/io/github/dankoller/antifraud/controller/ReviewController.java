@@ -0,0 +1,96 @@
+package io.github.dankoller.antifraud.controller;
+
+import io.github.dankoller.antifraud.review.ReviewItem;
+import io.github.dankoller.antifraud.review.ReviewQueue;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.security.Principal;
+
+/**
+ * This is the controller for the queue of transactions waiting for a manual review.
+ * It receives requests for certain operations and passes them to the service layer.
+ * The results of the operations are returned to the client.
+ * 'Unused fields' warnings are suppressed because the fields are automatically filled at runtime.
+ */
+
+@RestController
+@RequestMapping("/api/antifraud")
+@SuppressWarnings("unused")
+public class ReviewController {
+
+    private static final int MAX_LIMIT = 1000;
+
+    @Autowired
+    private ReviewQueue reviewQueue;
+
+    /**
+     * Get the transactions waiting for a review, highest priority first.
+     *
+     * @param limit The maximum number of transactions
+     * @return List of ReviewItem objects
+     */
+    @GetMapping("/review")
+    public ResponseEntity<?> getReviewQueue(@RequestParam(defaultValue = "100") int limit) {
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid limit");
+        }
+        return new ResponseEntity<>(reviewQueue.getItems(limit), HttpStatus.OK);
+    }
+
+    /**
+     * Subscribe to the changes of the review queue as Server-Sent Events.
+     *
+     * @return SseEmitter sending added, claimed, released and removed events
+     */
+    @GetMapping(value = "/review/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamReviewQueue() {
+        return reviewQueue.subscribe();
+    }
+
+    /**
+     * Claim the transaction with the highest priority that isn't claimed by another reviewer.
+     *
+     * @return The claimed ReviewItem
+     */
+    @PostMapping("/review/claim")
+    public ResponseEntity<?> claimNext(Principal principal) {
+        ReviewItem item = reviewQueue.claimNext(principal.getName());
+        return new ResponseEntity<>(item, HttpStatus.OK);
+    }
+
+    /**
+     * Claim a transaction, or extend the own claim.
+     *
+     * @param transactionId The id of the transaction
+     * @return The claimed ReviewItem
+     */
+    @PostMapping("/review/{transactionId}/claim")
+    public ResponseEntity<?> claim(@PathVariable long transactionId, Principal principal) {
+        ReviewItem item = reviewQueue.claim(transactionId, principal.getName());
+        return new ResponseEntity<>(item, HttpStatus.OK);
+    }
+
+    /**
+     * Release the own claim on a transaction.
+     *
+     * @param transactionId The id of the transaction
+     * @return The released ReviewItem
+     */
+    @DeleteMapping("/review/{transactionId}/claim")
+    public ResponseEntity<?> release(@PathVariable long transactionId, Principal principal) {
+        ReviewItem item = reviewQueue.release(transactionId, principal.getName());
+        return new ResponseEntity<>(item, HttpStatus.OK);
+    }
+}
@@ -0,0 +1,64 @@
+package io.github.dankoller.antifraud.controller;
+
+import io.github.dankoller.antifraud.service.StatisticsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * This is the controller for the live statistics endpoints.
+ * It receives requests for certain operations and passes them to the service layer.
+ * The results of the operations are returned to the client.
+ * 'Unused fields' warnings are suppressed because the fields are automatically filled at runtime.
+ */
+
+@RestController
+@RequestMapping("/api/antifraud")
+@SuppressWarnings("unused")
+public class StatisticsController {
+
+    @Autowired
+    private StatisticsService statisticsService;
+
+    /**
+     * Get the IP addresses with the most PROHIBITED or MANUAL_PROCESSING verdicts.
+     *
+     * @param window The sliding window in minutes
+     * @param limit  The maximum number of entries
+     * @return List of HeavyHitterResponse objects
+     */
+    @GetMapping("/top/ip")
+    public ResponseEntity<?> getTopIps(@RequestParam(defaultValue = "60") long window,
+                                       @RequestParam(defaultValue = "10") int limit) {
+        return new ResponseEntity<>(statisticsService.getTopIps(window, limit), HttpStatus.OK);
+    }
+
+    /**
+     * Get the cards with the most PROHIBITED or MANUAL_PROCESSING verdicts.
+     *
+     * @param window The sliding window in minutes
+     * @param limit  The maximum number of entries
+     * @return List of HeavyHitterResponse objects
+     */
+    @GetMapping("/top/card")
+    public ResponseEntity<?> getTopCards(@RequestParam(defaultValue = "60") long window,
+                                         @RequestParam(defaultValue = "10") int limit) {
+        return new ResponseEntity<>(statisticsService.getTopCards(window, limit), HttpStatus.OK);
+    }
+
+    /**
+     * Get the spending profile of a card.
+     *
+     * @param number The card number
+     * @return ProfileResponse containing the statistics of the card
+     */
+    @GetMapping("/profile/{number}")
+    public ResponseEntity<?> getProfile(@PathVariable String number) {
+        return new ResponseEntity<>(statisticsService.getProfile(number), HttpStatus.OK);
+    }
+}
@@ -1,13 +1,18 @@
 package io.github.dankoller.antifraud.controller;
 
 import io.github.dankoller.antifraud.entity.transaction.Transaction;
-import io.github.dankoller.antifraud.persistence.TransactionRepository;
+import io.github.dankoller.antifraud.request.FeedbackRequest;
+import io.github.dankoller.antifraud.response.BulkFeedbackResponse;
 import io.github.dankoller.antifraud.service.TransactionService;
+import io.github.dankoller.antifraud.timing.RequestTimings;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 
@@ -26,18 +31,22 @@ public class TransactionController {
     @Autowired
     private TransactionService transactionService;
 
-    @Autowired
-    private TransactionRepository transactionRepository;
-
     /**
-     * Get a list of all transactions.
+     * Score a new transaction. If server timing is enabled, the response contains a Server-Timing header with the
+     * time spent on each step.
      *
-     * @return List of Transaction objects
+     * @return ResponseEntity containing the result and info of the transaction
      */
     @PostMapping(value = "/transaction", consumes = "application/json")
     public ResponseEntity<?> validateTransaction(@RequestBody Transaction transaction) {
         Map<String, String> response = transactionService.processTransaction(transaction);
-        return new ResponseEntity<>(response, HttpStatus.OK);
+
+        RequestTimings timings = RequestTimings.current();
+        if (timings == null) return new ResponseEntity<>(response, HttpStatus.OK);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Server-Timing", timings.toServerTiming());
+        return new ResponseEntity<>(response, headers, HttpStatus.OK);
     }
 
     /**
@@ -54,6 +63,18 @@ public class TransactionController {
         return new ResponseEntity<>(transaction, HttpStatus.OK);
     }
 
+    /**
+     * An authenticated support user can provide feedback on many transactions at once. Invalid items are rejected
+     * one by one, the response contains the status of every item.
+     *
+     * @return ResponseEntity containing the status of every item
+     */
+    @PutMapping(value = "/transaction/bulk", consumes = "application/json")
+    public ResponseEntity<?> provideFeedbackInBulk(@RequestBody List<FeedbackRequest> feedback) {
+        BulkFeedbackResponse response = transactionService.updateTransactions(feedback);
+        return new ResponseEntity<>(response, HttpStatus.OK);
+    }
+
     /**
      * Get a list of all transactions.
      *
@@ -61,17 +82,20 @@ public class TransactionController {
      */
     @GetMapping("/history")
     public ResponseEntity<?> getHistory() {
-        return new ResponseEntity<>(transactionRepository.findAll(), HttpStatus.OK);
+        return new ResponseEntity<>(transactionService.getAllTransactions(), HttpStatus.OK);
     }
 
     /**
-     * Get a list of all transactions for a specific card number.
+     * Get a list of all transactions for a specific card number, optionally in a date range.
      *
      * @return List of Transaction objects for that card number
      */
     @GetMapping("/history/{number}")
-    public ResponseEntity<?> getHistoryForCardNumber(@PathVariable String number) {
-        List<Transaction> transactions = transactionService.getTransactionHistory(number);
+    public ResponseEntity<?> getHistoryForCardNumber(
+            @PathVariable String number,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        List<Transaction> transactions = transactionService.getTransactionHistory(number, from, to);
         return new ResponseEntity<>(transactions, HttpStatus.OK);
     }
 }
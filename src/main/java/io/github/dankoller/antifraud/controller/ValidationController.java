@@ -1,14 +1,23 @@
 package io.github.dankoller.antifraud.controller;
 
+import io.github.dankoller.antifraud.entity.BinRule;
+import io.github.dankoller.antifraud.entity.BlocklistType;
 import io.github.dankoller.antifraud.entity.Card;
 import io.github.dankoller.antifraud.entity.IPAddress;
+import io.github.dankoller.antifraud.service.BinRuleService;
+import io.github.dankoller.antifraud.service.BlocklistService;
+import io.github.dankoller.antifraud.service.BulkImportService;
 import io.github.dankoller.antifraud.service.ValidationService;
+import io.github.dankoller.antifraud.util.BulkRecordReader;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
+import java.io.IOException;
 import java.util.Map;
 
 /**
@@ -26,28 +35,64 @@ public class ValidationController {
     @Autowired
     private ValidationService validationService;
 
+    @Autowired
+    private BulkImportService bulkImportService;
+
+    @Autowired
+    private BlocklistService blocklistService;
+
+    @Autowired
+    private BinRuleService binRuleService;
+
     /**
-     * Save suspicious IP addresses to prevent them from being used in future transactions.
+     * Save suspicious IP addresses (IPv4 or IPv6, optionally as a network in CIDR notation) to prevent them from being
+     * used in future transactions.
      *
-     * @param ipAsJson JSON string containing the IP address
+     * @param ipAsJson JSON string containing the IP address and optionally a TTL in seconds
      * @return ResponseEntity containing the IP address
      */
     @PostMapping("/suspicious-ip")
     public ResponseEntity<?> saveSuspiciousIP(@Valid @RequestBody Map<String, String> ipAsJson) {
         String ip = ipAsJson.get("ip");
-        IPAddress ipAddress = validationService.saveSuspiciousIP(ip);
+        IPAddress ipAddress = validationService.saveSuspiciousIP(ip, ipAsJson.get("ttl"));
 
         return new ResponseEntity<>(ipAddress, HttpStatus.OK);
     }
 
     /**
-     * Return a list of all currently suspicious (and therefore blocked) IP addresses.
+     * Save a large number of suspicious IP addresses at once. The request body is streamed, either as CSV with the IP
+     * address in the first column or as NDJSON (Content-Type application/x-ndjson) with one {"ip": ...} per line.
+     *
+     * @param request The request containing the upload
+     * @return ResponseEntity containing the number of inserted, duplicate and invalid IP addresses
+     * @throws IOException if the upload can't be read
+     */
+    @PostMapping("/suspicious-ip/bulk")
+    public ResponseEntity<?> importSuspiciousIPs(HttpServletRequest request) throws IOException {
+        BulkRecordReader.Format format = BulkRecordReader.Format.fromContentType(request.getContentType());
+
+        return new ResponseEntity<>(bulkImportService.importSuspiciousIPs(request.getInputStream(), format),
+                HttpStatus.OK);
+    }
+
+    /**
+     * Return a list of all currently suspicious (and therefore blocked) IP addresses, or only the changes since a
+     * blocklist version. Responds with 304 if the ETag in If-None-Match is still current.
      *
-     * @return List of blocked IPAddress objects
+     * @param since   Optional blocklist version the client already has
+     * @param request The request containing the conditional headers
+     * @return List of blocked IPAddress objects, or the added and removed IP addresses since the version
      */
     @GetMapping("/suspicious-ip")
-    public ResponseEntity<?> getSuspiciousIPs() {
-        return new ResponseEntity<>(validationService.getSuspiciousIPs(), HttpStatus.OK);
+    public ResponseEntity<?> getSuspiciousIPs(@RequestParam(required = false) Long since, WebRequest request) {
+        String eTag = blocklistService.getETag(BlocklistType.IP);
+        if (request.checkNotModified(eTag)) return null;
+
+        Object body = since == null
+                ? validationService.getSuspiciousIPs()
+                : blocklistService.getDelta(BlocklistType.IP, since);
+
+        return ResponseEntity.ok().eTag(eTag).body(body);
     }
 
     /**
@@ -63,6 +108,20 @@ public class ValidationController {
         return new ResponseEntity<>(Map.of("status", status), HttpStatus.OK);
     }
 
+    /**
+     * Remove a banned IP network (CIDR notation) from the list of suspicious IP addresses.
+     *
+     * @param ip           The address of the network to be unbanned
+     * @param prefixLength The prefix length of the network
+     * @return ResponseEntity containing the network
+     */
+    @DeleteMapping("/suspicious-ip/{ip}/{prefixLength}")
+    public ResponseEntity<?> removeSuspiciousNetwork(@PathVariable String ip, @PathVariable String prefixLength) {
+        String status = validationService.deleteSuspiciousIP(ip + "/" + prefixLength);
+
+        return new ResponseEntity<>(Map.of("status", status), HttpStatus.OK);
+    }
+
     /**
      * Save suspicious cards to prevent them from being used in future transactions.
      *
@@ -78,13 +137,39 @@ public class ValidationController {
     }
 
     /**
-     * Return a list of all currently banned cards.
+     * Save a large number of stolen cards at once. The request body is streamed, either as CSV with the card number in
+     * the first column or as NDJSON (Content-Type application/x-ndjson) with one {"number": ...} per line.
      *
-     * @return List of banned Card objects
+     * @param request The request containing the upload
+     * @return ResponseEntity containing the number of inserted, duplicate and invalid cards
+     * @throws IOException if the upload can't be read
+     */
+    @PostMapping("/stolencard/bulk")
+    public ResponseEntity<?> importStolenCards(HttpServletRequest request) throws IOException {
+        BulkRecordReader.Format format = BulkRecordReader.Format.fromContentType(request.getContentType());
+
+        return new ResponseEntity<>(bulkImportService.importStolenCards(request.getInputStream(), format),
+                HttpStatus.OK);
+    }
+
+    /**
+     * Return a list of all currently banned cards, or only the changes since a blocklist version. Responds with 304 if
+     * the ETag in If-None-Match is still current.
+     *
+     * @param since   Optional blocklist version the client already has
+     * @param request The request containing the conditional headers
+     * @return List of banned Card objects, or the added and removed card numbers since the version
      */
     @GetMapping("/stolencard")
-    public ResponseEntity<?> getStolenCards() {
-        return new ResponseEntity<>(validationService.getStolenCards(), HttpStatus.OK);
+    public ResponseEntity<?> getStolenCards(@RequestParam(required = false) Long since, WebRequest request) {
+        String eTag = blocklistService.getETag(BlocklistType.CARD);
+        if (request.checkNotModified(eTag)) return null;
+
+        Object body = since == null
+                ? validationService.getStolenCards()
+                : blocklistService.getDelta(BlocklistType.CARD, since);
+
+        return ResponseEntity.ok().eTag(eTag).body(body);
     }
 
     /**
@@ -99,4 +184,41 @@ public class ValidationController {
 
         return new ResponseEntity<>(Map.of("status", status), HttpStatus.OK);
     }
+
+    /**
+     * Save a rule for a whole issuer range, so transactions of all cards starting with the BIN are prohibited or
+     * sent to manual processing.
+     *
+     * @param ruleAsJson JSON string containing the BIN and the result
+     * @return ResponseEntity containing the BIN rule
+     */
+    @PostMapping("/bin-rule")
+    public ResponseEntity<?> saveBinRule(@Valid @RequestBody Map<String, String> ruleAsJson) {
+        BinRule rule = binRuleService.saveBinRule(ruleAsJson.get("bin"), ruleAsJson.get("result"));
+
+        return new ResponseEntity<>(rule, HttpStatus.OK);
+    }
+
+    /**
+     * Return a list of all BIN rules.
+     *
+     * @return List of BinRule objects
+     */
+    @GetMapping("/bin-rule")
+    public ResponseEntity<?> getBinRules() {
+        return new ResponseEntity<>(binRuleService.getBinRules(), HttpStatus.OK);
+    }
+
+    /**
+     * Remove the rule of an issuer range.
+     *
+     * @param bin The BIN of the rule to be removed
+     * @return ResponseEntity containing the BIN
+     */
+    @DeleteMapping("/bin-rule/{bin}")
+    public ResponseEntity<?> removeBinRule(@PathVariable String bin) {
+        String status = binRuleService.deleteBinRule(bin);
+
+        return new ResponseEntity<>(Map.of("status", status), HttpStatus.OK);
+    }
 }
@@ -0,0 +1,37 @@
+package io.github.dankoller.antifraud.entity;
+
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.*;
+
+@Entity
+@NoArgsConstructor
+@Getter
+@Setter
+public class BinRule {
+
+    public static final int MIN_LENGTH = 6;
+    public static final int MAX_LENGTH = 8;
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    @Column
+    private Long id;
+
+    // Issuer range as a card number prefix of 6 to 8 digits
+    @Column(unique = true)
+    private String bin;
+
+    // PROHIBITED or MANUAL_PROCESSING for all cards of the range
+    @Column
+    @Enumerated(EnumType.STRING)
+    private TransactionResult result;
+
+    public BinRule(String bin, TransactionResult result) {
+        this.bin = bin;
+        this.result = result;
+    }
+}
@@ -0,0 +1,42 @@
+package io.github.dankoller.antifraud.entity;
+
+import io.github.dankoller.antifraud.persistence.IdGenerators;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.*;
+
+/**
+ * A single addition to or removal from a blocklist. The id doubles as the blocklist version: it only ever grows, so
+ * the changes since a version are a range scan over the primary key.
+ */
+@Entity
+@Table(indexes = @Index(columnList = "blocklist, id"))
+@NoArgsConstructor
+@Getter
+@Setter
+public class BlocklistChange {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = IdGenerators.BLOCKLIST_CHANGE)
+    @TableGenerator(name = IdGenerators.BLOCKLIST_CHANGE, table = IdGenerators.TABLE, pkColumnName = IdGenerators.NAME_COLUMN,
+            valueColumnName = IdGenerators.VALUE_COLUMN, pkColumnValue = IdGenerators.BLOCKLIST_CHANGE,
+            allocationSize = IdGenerators.ALLOCATION_SIZE)
+    @Column
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    private BlocklistType blocklist;
+
+    @Column
+    private String entry;
+
+    private boolean removed;
+
+    public BlocklistChange(BlocklistType blocklist, String entry, boolean removed) {
+        this.blocklist = blocklist;
+        this.entry = entry;
+        this.removed = removed;
+    }
+}
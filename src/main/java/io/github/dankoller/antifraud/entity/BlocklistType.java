@@ -0,0 +1,6 @@
+package io.github.dankoller.antifraud.entity;
+
+// The blocklists that edge gateways can synchronize incrementally
+public enum BlocklistType {
+    CARD, IP
+}
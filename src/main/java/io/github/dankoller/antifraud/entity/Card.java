@@ -1,6 +1,7 @@
 package io.github.dankoller.antifraud.entity;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import io.github.dankoller.antifraud.persistence.IdGenerators;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -13,8 +14,14 @@ import javax.persistence.*;
 @Setter
 public class Card {
 
+    public static final int DEFAULT_ALLOWED_LIMIT = 200;
+    public static final int DEFAULT_MANUAL_LIMIT = 1500;
+
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = IdGenerators.CARD)
+    @TableGenerator(name = IdGenerators.CARD, table = IdGenerators.TABLE, pkColumnName = IdGenerators.NAME_COLUMN,
+            valueColumnName = IdGenerators.VALUE_COLUMN, pkColumnValue = IdGenerators.CARD,
+            allocationSize = IdGenerators.ALLOCATION_SIZE)
     @Column
     private Long id;
 
@@ -25,10 +32,10 @@ public class Card {
     private boolean isLocked;
 
     @JsonIgnore
-    private int allowedLimit = 200;
+    private int allowedLimit = DEFAULT_ALLOWED_LIMIT;
 
     @JsonIgnore
-    private int manualLimit = 1500;
+    private int manualLimit = DEFAULT_MANUAL_LIMIT;
 
     public Card(String number, boolean isLocked) {
         this.number = number;
@@ -0,0 +1,48 @@
+package io.github.dankoller.antifraud.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * Persisted rollup of the transactions of a card in one hour: the regions as a bit mask over {@link Region} and a
+ * small sketch of the distinct IP addresses, with the first and last second each was seen in. The correlation only
+ * reads the rollups of the current and the previous hour instead of the transactions themselves, see
+ * {@link io.github.dankoller.antifraud.aggregate.CorrelationRollup} for the encoding.
+ */
+@Entity
+@IdClass(CardHourRollup.Key.class)
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+public class CardHourRollup {
+
+    @Id
+    private Long cardKey;
+
+    // Hours since the epoch
+    @Id
+    private Long bucket;
+
+    private int regionMask;
+
+    @Column(length = 128)
+    private byte[] sketch;
+
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Getter
+    @EqualsAndHashCode
+    public static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private Long cardKey;
+        private Long bucket;
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.dankoller.antifraud.entity;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.*;
+
+/**
+ * The limits of a card after all of its {@link LimitAdjustment}s up to an id, written periodically. The current
+ * limits are the snapshot plus the adjustments after it, so loading them never reads the whole history.
+ */
+@Entity
+@NoArgsConstructor
+@Getter
+@Setter
+public class CardLimitSnapshot {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    @Column
+    private Long id;
+
+    @Column(unique = true)
+    private Long cardKey;
+
+    private Long lastAdjustmentId;
+
+    // Number of adjustments up to the last one
+    private long adjustments;
+
+    private int allowedLimit;
+    private int manualLimit;
+
+    public CardLimitSnapshot(long cardKey) {
+        this.cardKey = cardKey;
+    }
+
+    /**
+     * Moves the snapshot past an adjustment of the card.
+     *
+     * @param adjustment The next adjustment, after {@link #getLastAdjustmentId()}
+     */
+    public void apply(LimitAdjustment adjustment) {
+        lastAdjustmentId = adjustment.getId();
+        adjustments++;
+        allowedLimit = adjustment.getAllowedLimit();
+        manualLimit = adjustment.getManualLimit();
+    }
+}
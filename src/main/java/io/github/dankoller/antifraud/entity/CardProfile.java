@@ -0,0 +1,34 @@
+package io.github.dankoller.antifraud.entity;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.*;
+
+/**
+ * Persisted form of a card's spending profile. The statistics are stored as one compact binary column, since they
+ * are only ever read back as a whole at startup.
+ */
+@Entity
+@NoArgsConstructor
+@Getter
+@Setter
+public class CardProfile {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    @Column
+    private Long id;
+
+    @Column(unique = true)
+    private String number;
+
+    @Column(length = 128)
+    private byte[] data;
+
+    public CardProfile(String number, byte[] data) {
+        this.number = number;
+        this.data = data;
+    }
+}
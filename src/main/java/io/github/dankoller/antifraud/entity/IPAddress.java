@@ -1,11 +1,13 @@
 package io.github.dankoller.antifraud.entity;
 
+import io.github.dankoller.antifraud.persistence.IdGenerators;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
 import javax.persistence.*;
 import javax.validation.constraints.NotEmpty;
+import java.time.LocalDateTime;
 
 @Entity
 @NoArgsConstructor
@@ -14,7 +16,10 @@ import javax.validation.constraints.NotEmpty;
 public class IPAddress {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = IdGenerators.IP_ADDRESS)
+    @TableGenerator(name = IdGenerators.IP_ADDRESS, table = IdGenerators.TABLE, pkColumnName = IdGenerators.NAME_COLUMN,
+            valueColumnName = IdGenerators.VALUE_COLUMN, pkColumnValue = IdGenerators.IP_ADDRESS,
+            allocationSize = IdGenerators.ALLOCATION_SIZE)
     @Column
     private Long id;
 
@@ -22,8 +27,21 @@ public class IPAddress {
     @NotEmpty
     private String ip;
 
+    // Optional end of the block, null means the IP address stays suspicious until it is removed
+    @Column
+    private LocalDateTime expiresAt;
+
     public IPAddress(String ip) {
         this.ip = ip;
     }
 
+    public IPAddress(String ip, LocalDateTime expiresAt) {
+        this.ip = ip;
+        this.expiresAt = expiresAt;
+    }
+
+    public boolean isExpired(LocalDateTime now) {
+        return expiresAt != null && !expiresAt.isAfter(now);
+    }
+
 }
@@ -0,0 +1,63 @@
+package io.github.dankoller.antifraud.entity;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * An adjustment of the limits of a card by feedback, appended to the limit history and never changed. It keeps the
+ * inputs of the limit formula (verdict, feedback and amount), so the history can be replayed with another formula,
+ * and the limits before and after, so it also shows how the card got to its limits. The id only ever grows, so the
+ * adjustments of a card after a {@link CardLimitSnapshot} are a range scan over the index.
+ */
+@Entity
+@Table(indexes = @Index(columnList = "cardKey, id"))
+@NoArgsConstructor
+@Getter
+@Setter
+public class LimitAdjustment {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    @Column
+    private Long id;
+
+    @JsonIgnore
+    private Long cardKey;
+
+    private Long transactionId;
+    private Long amount;
+
+    @Enumerated(EnumType.STRING)
+    private TransactionResult result;
+
+    @Enumerated(EnumType.STRING)
+    private TransactionResult feedback;
+
+    private int allowedLimitBefore;
+    private int manualLimitBefore;
+    private int allowedLimit;
+    private int manualLimit;
+
+    private LocalDateTime createdAt;
+
+    public LimitAdjustment(long cardKey, long transactionId, long amount, TransactionResult result,
+                           TransactionResult feedback, int allowedLimitBefore, int manualLimitBefore,
+                           int allowedLimit, int manualLimit, LocalDateTime createdAt) {
+        this.cardKey = cardKey;
+        this.transactionId = transactionId;
+        this.amount = amount;
+        this.result = result;
+        this.feedback = feedback;
+        this.allowedLimitBefore = allowedLimitBefore;
+        this.manualLimitBefore = manualLimitBefore;
+        this.allowedLimit = allowedLimit;
+        this.manualLimit = manualLimit;
+        this.createdAt = createdAt;
+    }
+}
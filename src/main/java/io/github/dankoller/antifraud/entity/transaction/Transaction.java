@@ -10,7 +10,9 @@ import lombok.Setter;
 import javax.persistence.*;
 import java.time.LocalDateTime;
 
+// The history queries look up the transactions of a card in a date range, the retention by date only
 @Entity
+@Table(indexes = {@Index(columnList = "number, date"), @Index(columnList = "date")})
 @NoArgsConstructor
 @Getter
 @Setter
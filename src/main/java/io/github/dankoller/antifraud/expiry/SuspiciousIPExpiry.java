@@ -0,0 +1,147 @@
+package io.github.dankoller.antifraud.expiry;
+
+import io.github.dankoller.antifraud.entity.BlocklistType;
+import io.github.dankoller.antifraud.entity.IPAddress;
+import io.github.dankoller.antifraud.persistence.SuspiciousIPRepository;
+import io.github.dankoller.antifraud.service.BlocklistService;
+import io.github.dankoller.antifraud.store.SuspiciousIPStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Removes suspicious IP addresses once their expiry time has passed. Every expiring IP address has one timer in a
+ * {@link TimerWheel} with a resolution of one second, so scheduling, cancelling and firing cost O(1) per IP address
+ * regardless of how many are pending. Expired addresses are deleted from the database in batches, one select and one
+ * delete statement per batch.
+ */
+@Slf4j
+@Component
+@SuppressWarnings("unused")
+public class SuspiciousIPExpiry {
+
+    @Autowired
+    private SuspiciousIPRepository suspiciousIPRepository;
+
+    @Autowired
+    private BlocklistService blocklistService;
+
+    @Autowired
+    private SuspiciousIPStore suspiciousIPStore;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${antifraud.suspicious-ip.purge-batch-size:1000}")
+    private int batchSize;
+
+    private final TimerWheel<String> wheel = new TimerWheel<>(toTick(LocalDateTime.now()));
+    private final Map<String, TimerWheel.Timer<String>> timers = new HashMap<>();
+
+    /**
+     * Schedules the expiry of all stored IP addresses that have an expiry time. Addresses that expired while the
+     * application was down are purged on the first run.
+     */
+    @PostConstruct
+    public void load() {
+        List<IPAddress> expiring = suspiciousIPRepository.findAllByExpiresAtIsNotNull();
+        expiring.forEach(ipAddress -> schedule(ipAddress.getIp(), ipAddress.getExpiresAt()));
+        log.info("Scheduled the expiry of {} suspicious IPs", expiring.size());
+    }
+
+    /**
+     * Schedules the expiry of an IP address, replacing an earlier expiry of the same address.
+     *
+     * @param ip        The IP address
+     * @param expiresAt The expiry time, or null to keep the address until it is removed
+     */
+    public synchronized void schedule(String ip, LocalDateTime expiresAt) {
+        cancel(ip);
+        if (expiresAt != null) timers.put(ip, wheel.schedule(ip, toTick(expiresAt)));
+    }
+
+    /**
+     * Cancels the expiry of an IP address, e.g. because it was removed by hand.
+     *
+     * @param ip The IP address
+     */
+    public synchronized void cancel(String ip) {
+        TimerWheel.Timer<String> timer = timers.remove(ip);
+        if (timer != null) wheel.cancel(timer);
+    }
+
+    @Scheduled(fixedDelayString = "${antifraud.suspicious-ip.purge-interval-ms:1000}")
+    public void purgeExpired() {
+        purgeExpired(LocalDateTime.now());
+    }
+
+    /**
+     * Fires all timers up to the given time and deletes the expired IP addresses in batches.
+     *
+     * @param now The current time
+     * @return The number of deleted IP addresses
+     */
+    public int purgeExpired(LocalDateTime now) {
+        List<String> expired = new ArrayList<>();
+        synchronized (this) {
+            wheel.advanceTo(toTick(now), ip -> {
+                timers.remove(ip);
+                expired.add(ip);
+                // Scoring stops matching the address right away, even before the row is deleted
+                suspiciousIPStore.remove(ip);
+            });
+        }
+        if (expired.isEmpty()) return 0;
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        int deleted = 0;
+
+        for (int from = 0; from < expired.size(); from += batchSize) {
+            List<String> batch = expired.subList(from, Math.min(expired.size(), from + batchSize));
+            try {
+                // Only rows that are still expired, an address may have been added again in the meantime
+                List<String> purged = transactionTemplate.execute(status -> {
+                    List<IPAddress> rows = suspiciousIPRepository.findAllByIpIn(batch).stream()
+                            .filter(ipAddress -> ipAddress.isExpired(now))
+                            .collect(Collectors.toList());
+                    suspiciousIPRepository.deleteAllInBatch(rows);
+                    return rows.stream().map(IPAddress::getIp).collect(Collectors.toList());
+                });
+                if (purged == null) continue;
+
+                deleted += purged.size();
+                blocklistService.recordRemoved(BlocklistType.IP, purged);
+            } catch (RuntimeException e) {
+                // Try again on the next run
+                synchronized (this) {
+                    batch.forEach(ip -> timers.computeIfAbsent(ip, key -> wheel.schedule(key, 0)));
+                }
+                log.warn("Failed to purge {} expired suspicious IPs, retrying later", batch.size(), e);
+            }
+        }
+
+        log.info("Purged {} expired suspicious IPs", deleted);
+        return deleted;
+    }
+
+    public synchronized int size() {
+        return wheel.size();
+    }
+
+    private static long toTick(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC);
+    }
+}
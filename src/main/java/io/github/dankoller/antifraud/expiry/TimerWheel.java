@@ -0,0 +1,173 @@
+package io.github.dankoller.antifraud.expiry;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timer wheel with a resolution of one tick. Every level has 64 slots and each slot of a level spans
+ * all 64 slots of the level below, so four levels cover 64^4 ticks (about 194 days at one tick per second). Timers
+ * further in the future wait in an overflow list.
+ * <p>
+ * Scheduling and cancelling a timer is O(1): every slot is an intrusive doubly linked list. A timer moves down one
+ * level whenever the wheel enters the slot it waits in, so it is touched at most once per level before it fires.
+ * Not thread-safe, callers synchronize.
+ *
+ * @param <T> The payload of the timers
+ */
+public class TimerWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    /**
+     * A scheduled timer, returned so it can be cancelled.
+     */
+    public static final class Timer<T> {
+
+        private final T payload;
+        private final long deadline;
+        private Timer<T> prev;
+        private Timer<T> next;
+        private Timer<T>[] slots;
+        private int slot;
+
+        private Timer(T payload, long deadline) {
+            this.payload = payload;
+            this.deadline = deadline;
+        }
+
+        public T getPayload() {
+            return payload;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    // Heads of the slot lists per level, the overflow list is the single slot of the last row
+    private final Timer<T>[][] wheels;
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long currentTick) {
+        this.wheels = (Timer<T>[][]) new Timer<?>[LEVELS + 1][];
+        for (int level = 0; level < LEVELS; level++) wheels[level] = (Timer<T>[]) new Timer<?>[SLOTS];
+        wheels[LEVELS] = (Timer<T>[]) new Timer<?>[1];
+        this.currentTick = currentTick;
+    }
+
+    /**
+     * Schedules a timer. Deadlines that have passed already fire on the next tick.
+     *
+     * @param payload  The payload handed to the consumer when the timer fires
+     * @param deadline The tick at which the timer fires
+     * @return The timer
+     */
+    public Timer<T> schedule(T payload, long deadline) {
+        Timer<T> timer = new Timer<>(payload, Math.max(deadline, currentTick + 1));
+        insert(timer);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Cancels a timer that hasn't fired yet.
+     *
+     * @param timer The timer to cancel
+     * @return True if the timer was cancelled, false if it already fired or was cancelled
+     */
+    public boolean cancel(Timer<T> timer) {
+        if (timer.slots == null) return false;
+
+        unlink(timer);
+        size--;
+        return true;
+    }
+
+    /**
+     * Advances the wheel tick by tick and fires every timer whose deadline is reached.
+     *
+     * @param tick    The new current tick
+     * @param expired Receives the payload of every fired timer
+     */
+    public void advanceTo(long tick, Consumer<T> expired) {
+        while (currentTick < tick) {
+            currentTick++;
+
+            // Move the timers of the slots the wheel enters down, highest level first
+            if ((currentTick & ((1L << SLOT_BITS * LEVELS) - 1)) == 0) cascade(wheels[LEVELS], 0);
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << SLOT_BITS * level) - 1)) != 0) continue;
+                cascade(wheels[level], (int) (currentTick >>> SLOT_BITS * level) & (SLOTS - 1));
+            }
+
+            Timer<T>[] slots = wheels[0];
+            int slot = (int) currentTick & (SLOTS - 1);
+            Timer<T> timer;
+            while ((timer = slots[slot]) != null) {
+                unlink(timer);
+                size--;
+                expired.accept(timer.payload);
+            }
+        }
+    }
+
+    public long getCurrentTick() {
+        return currentTick;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Helper method to re-insert all timers of a slot, which puts them on a lower level.
+     */
+    private void cascade(Timer<T>[] slots, int slot) {
+        Timer<T> timer = slots[slot];
+        slots[slot] = null;
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            insert(timer);
+            timer = next;
+        }
+    }
+
+    /**
+     * Helper method to put a timer on the lowest level whose current slot range contains the deadline.
+     */
+    private void insert(Timer<T> timer) {
+        int level = 0;
+        while (level < LEVELS
+                && timer.deadline >>> SLOT_BITS * (level + 1) != currentTick >>> SLOT_BITS * (level + 1)) {
+            level++;
+        }
+
+        Timer<T>[] slots = wheels[level];
+        int slot = level == LEVELS ? 0 : (int) (timer.deadline >>> SLOT_BITS * level) & (SLOTS - 1);
+
+        timer.slots = slots;
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null) timer.next.prev = timer;
+        slots[slot] = timer;
+    }
+
+    private void unlink(Timer<T> timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            timer.slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) timer.next.prev = timer.prev;
+
+        timer.slots = null;
+        timer.prev = null;
+        timer.next = null;
+    }
+}
@@ -0,0 +1,108 @@
+package io.github.dankoller.antifraud.feed;
+
+import java.util.Arrays;
+
+/**
+ * Immutable trie over decimal digits, used to look up card number prefixes (BINs). Every node is a row of ten child
+ * indices in one flat array, so a lookup walks at most one array slot per digit and allocates nothing.
+ */
+public final class DigitTrie {
+
+    // Value of nodes that don't terminate a prefix
+    public static final int NONE = -1;
+
+    private static final DigitTrie EMPTY = new Builder().build();
+
+    private final int[] children;
+    private final int[] values;
+    private final int size;
+
+    private DigitTrie(int[] children, int[] values, int size) {
+        this.children = children;
+        this.values = values;
+        this.size = size;
+    }
+
+    public static DigitTrie empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Returns the value of the longest prefix of the digits that is contained in the trie.
+     *
+     * @param digits The digits to match, e.g. a card number
+     * @return The value of the longest matching prefix, or {@link #NONE}
+     */
+    public int longestMatch(CharSequence digits) {
+        int node = 0;
+        int match = values[0];
+
+        for (int i = 0; i < digits.length(); i++) {
+            int digit = digits.charAt(i) - '0';
+            if (digit < 0 || digit > 9) break;
+
+            node = children[node * 10 + digit];
+            if (node == 0) break;
+            if (values[node] != NONE) match = values[node];
+        }
+        return match;
+    }
+
+    // Number of prefixes in the trie
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Collects prefixes and builds the trie. A prefix added twice keeps the last value.
+     */
+    public static final class Builder {
+
+        private int[] children = new int[10 * 64];
+        private int[] values = new int[64];
+        private int nodes = 1;
+        private int size;
+
+        public Builder() {
+            values[0] = NONE;
+        }
+
+        /**
+         * Adds a prefix.
+         *
+         * @param digits The prefix, only decimal digits
+         * @param value  The value returned for card numbers starting with the prefix, not negative
+         * @return This builder
+         */
+        public Builder add(CharSequence digits, int value) {
+            if (value < 0) throw new IllegalArgumentException("Negative value " + value);
+
+            int node = 0;
+            for (int i = 0; i < digits.length(); i++) {
+                int digit = digits.charAt(i) - '0';
+                if (digit < 0 || digit > 9) throw new IllegalArgumentException("Not a digit prefix: " + digits);
+
+                int slot = node * 10 + digit;
+                if (children[slot] == 0) children[slot] = newNode();
+                node = children[slot];
+            }
+
+            if (values[node] == NONE) size++;
+            values[node] = value;
+            return this;
+        }
+
+        private int newNode() {
+            if (nodes == values.length) {
+                values = Arrays.copyOf(values, nodes * 2);
+                children = Arrays.copyOf(children, nodes * 2 * 10);
+            }
+            values[nodes] = NONE;
+            return nodes++;
+        }
+
+        public DigitTrie build() {
+            return new DigitTrie(Arrays.copyOf(children, nodes * 10), Arrays.copyOf(values, nodes), size);
+        }
+    }
+}
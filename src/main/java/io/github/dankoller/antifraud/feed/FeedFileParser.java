@@ -0,0 +1,131 @@
+package io.github.dankoller.antifraud.feed;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Parses threat-intel feed files. Every line holds one IPv4 address or one BIN (6 to 11 digits), blank lines and
+ * lines starting with '#' are ignored and anything after the first ',' or whitespace is skipped. Files are
+ * memory-mapped and parsed byte by byte, so parsing allocates nothing per line.
+ */
+public class FeedFileParser {
+
+    private static final int MIN_BIN_LENGTH = 6;
+    private static final int MAX_BIN_LENGTH = 11;
+
+    private long[] ips = new long[1024];
+    private int ipCount;
+    private final DigitTrie.Builder bins = new DigitTrie.Builder();
+    private final StringBuilder digits = new StringBuilder(MAX_BIN_LENGTH);
+    private long invalidLines;
+
+    /**
+     * Adds all entries of a feed file.
+     *
+     * @param file The feed file
+     * @throws IOException if the file can't be read or is too large to be mapped
+     */
+    public void parse(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Feed file too large: " + file);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int limit = buffer.limit();
+        int start = 0;
+        while (start < limit) {
+            int end = start;
+            while (end < limit && buffer.get(end) != '\n') end++;
+            parseLine(buffer, start, end);
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Helper method to parse the bytes of one line.
+     */
+    private void parseLine(MappedByteBuffer buffer, int start, int end) {
+        while (start < end && isSeparator(buffer.get(start))) start++;
+        int stop = start;
+        while (stop < end && !isSeparator(buffer.get(stop)) && buffer.get(stop) != ',') stop++;
+        if (start == stop || buffer.get(start) == '#') return;
+
+        long ip = parseIp(buffer, start, stop);
+        if (ip >= 0) {
+            if (ipCount == ips.length) ips = Arrays.copyOf(ips, ipCount * 2);
+            ips[ipCount++] = ip;
+            return;
+        }
+
+        if (stop - start >= MIN_BIN_LENGTH && stop - start <= MAX_BIN_LENGTH) {
+            digits.setLength(0);
+            for (int i = start; i < stop; i++) {
+                byte b = buffer.get(i);
+                if (b < '0' || b > '9') break;
+                digits.append((char) b);
+            }
+            if (digits.length() == stop - start) {
+                bins.add(digits, 0);
+                return;
+            }
+        }
+
+        invalidLines++;
+    }
+
+    /**
+     * Helper method to parse an IPv4 address, see {@link io.github.dankoller.antifraud.util.IPAddressValidator#toKey}.
+     *
+     * @return The address as an unsigned 32-bit value, or -1 if the bytes are no IPv4 address
+     */
+    private static long parseIp(MappedByteBuffer buffer, int start, int stop) {
+        long key = 0;
+        int octet = -1;
+        int octets = 0;
+        for (int i = start; i <= stop; i++) {
+            byte b = i < stop ? buffer.get(i) : (byte) '.';
+            if (b == '.') {
+                if (octet < 0 || ++octets > 4) return -1;
+                key = key << 8 | octet;
+                octet = -1;
+            } else if (b >= '0' && b <= '9') {
+                if (octet == 0) return -1;
+                octet = (octet < 0 ? 0 : octet * 10) + (b - '0');
+                if (octet > 255) return -1;
+            } else {
+                return -1;
+            }
+        }
+        return octets == 4 ? key : -1;
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    public long getInvalidLines() {
+        return invalidLines;
+    }
+
+    /**
+     * Builds the lookup structure of all parsed files.
+     *
+     * @return The new feed
+     */
+    public ThreatIntelFeed build() {
+        long[] sorted = Arrays.copyOf(ips, ipCount);
+        Arrays.sort(sorted);
+
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) sorted[distinct++] = sorted[i];
+        }
+
+        return new ThreatIntelFeed(Arrays.copyOf(sorted, distinct), bins.build(), System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.dankoller.antifraud.feed;
+
+import io.github.dankoller.antifraud.util.IPAddressValidator;
+
+import java.util.Arrays;
+
+/**
+ * Immutable lookup structure of all loaded threat-intel feeds: the bad IP addresses as a sorted array of numeric keys
+ * and the bad BINs as a {@link DigitTrie}. A new instance is built for every reload and swapped in as a whole, so
+ * readers never see a partially loaded feed.
+ */
+public final class ThreatIntelFeed {
+
+    public static final ThreatIntelFeed EMPTY = new ThreatIntelFeed(new long[0], DigitTrie.empty(), 0);
+
+    private final long[] ips;
+    private final DigitTrie bins;
+    private final long loadedAt;
+
+    /**
+     * Creates a feed from the collected entries.
+     *
+     * @param ips      IP address keys, sorted and without duplicates
+     * @param bins     The bad BINs
+     * @param loadedAt Time of the reload in epoch milliseconds
+     */
+    public ThreatIntelFeed(long[] ips, DigitTrie bins, long loadedAt) {
+        this.ips = ips;
+        this.bins = bins;
+        this.loadedAt = loadedAt;
+    }
+
+    public boolean containsIp(String ip) {
+        long key = IPAddressValidator.toKey(ip);
+        return key >= 0 && Arrays.binarySearch(ips, key) >= 0;
+    }
+
+    public boolean containsBin(String cardNumber) {
+        return bins.longestMatch(cardNumber) != DigitTrie.NONE;
+    }
+
+    public int getIpCount() {
+        return ips.length;
+    }
+
+    public int getBinCount() {
+        return bins.size();
+    }
+
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+}
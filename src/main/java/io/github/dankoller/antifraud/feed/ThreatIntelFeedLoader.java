@@ -0,0 +1,126 @@
+package io.github.dankoller.antifraud.feed;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the threat-intel feed files of a directory and reloads them whenever a file is added, changed or removed.
+ * Parsing happens on a background thread, the result replaces the current {@link ThreatIntelFeed} in one volatile
+ * write, so scoring always reads a complete feed and never waits for a reload.
+ * <p>
+ * Files whose name starts with '.' or ends with '.tmp' are ignored, so feeds can be written next to the target and
+ * moved into place. Without a configured directory no feeds are loaded.
+ */
+@Slf4j
+@Component
+@SuppressWarnings("unused")
+public class ThreatIntelFeedLoader {
+
+    @Value("${antifraud.feed.directory:}")
+    private String directory;
+
+    // Time to wait for further changes after an event, so a file that is still being written is read only once
+    @Value("${antifraud.feed.debounce-ms:500}")
+    private long debounceMillis;
+
+    private volatile ThreatIntelFeed feed = ThreatIntelFeed.EMPTY;
+
+    private WatchService watchService;
+
+    /**
+     * Loads the feeds and starts watching the directory.
+     *
+     * @throws IOException if the directory can't be created or watched
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        if (directory.isBlank()) return;
+
+        Path path = Files.createDirectories(Path.of(directory));
+        reload();
+
+        watchService = FileSystems.getDefault().newWatchService();
+        path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread thread = new Thread(this::watch, "threat-intel-feed-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Helper method that waits for changes in the directory and reloads all feeds after each burst of events.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                do {
+                    key.pollEvents();
+                    key.reset();
+                } while ((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null);
+
+                reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Parses all feed files of the directory and swaps in the new feed. A file that can't be read is skipped, the
+     * other files are still loaded.
+     */
+    public synchronized void reload() {
+        if (directory.isBlank()) return;
+
+        long start = System.nanoTime();
+        FeedFileParser parser = new FeedFileParser();
+        int files = 0;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Path.of(directory))) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(".") || name.endsWith(".tmp") || !Files.isRegularFile(file)) continue;
+
+                try {
+                    parser.parse(file);
+                    files++;
+                } catch (IOException e) {
+                    log.warn("Skipping unreadable threat-intel feed {}", file, e);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to list threat-intel feeds in {}, keeping the current feed", directory, e);
+            return;
+        }
+
+        feed = parser.build();
+        log.info("Loaded {} IPs and {} BINs from {} threat-intel feeds in {} ms ({} invalid lines)",
+                feed.getIpCount(), feed.getBinCount(), files,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), parser.getInvalidLines());
+    }
+
+    public ThreatIntelFeed getFeed() {
+        return feed;
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (watchService != null) watchService.close();
+    }
+}
@@ -0,0 +1,61 @@
+package io.github.dankoller.antifraud.jfr;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Helpers for the custom Java Flight Recorder events of the fraud engine. All events follow the usual pattern, so a
+ * disabled event is reduced to a check by the JIT compiler and costs nothing:
+ * <pre>{@code
+ * ScoringEvent event = new ScoringEvent();
+ * event.begin();
+ * ...
+ * if (event.shouldCommit()) {
+ *     event.cardKeyHash = FraudEvents.cardKeyHash(cardKey);
+ *     event.commit();
+ * }
+ * }</pre>
+ */
+public final class FraudEvents {
+
+    public static final String CATEGORY = "Anti-Fraud";
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    // Random per process, so recordings never contain card numbers but events of the same card can still be matched.
+    // The card number space is small, a hash without a secret key could be reversed by trying all numbers.
+    private static final SecretKeySpec KEY = new SecretKeySpec(randomKey(), ALGORITHM);
+
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(KEY);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 not available", e);
+        }
+    });
+
+    private FraudEvents() {
+    }
+
+    /**
+     * Hashes a card key for an event with HMAC-SHA256 under the key of the process, truncated to 64 bits.
+     *
+     * @param cardKey The card key, see {@link io.github.dankoller.antifraud.util.CardValidator#toKey(String)}
+     * @return The hash of the card key
+     */
+    public static long cardKeyHash(long cardKey) {
+        byte[] digest = MAC.get().doFinal(ByteBuffer.allocate(Long.BYTES).putLong(cardKey).array());
+        return ByteBuffer.wrap(digest).getLong();
+    }
+
+    private static byte[] randomKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+}
@@ -0,0 +1,26 @@
+package io.github.dankoller.antifraud.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("io.github.dankoller.antifraud.Heuristic")
+@Label("Heuristic")
+@Category(FraudEvents.CATEGORY)
+@Description("One heuristic of the transaction validator, with the verdict and reasons after it ran")
+public class HeuristicEvent extends Event {
+
+    @Label("Heuristic")
+    public String heuristic;
+
+    @Label("Card Key Hash")
+    public long cardKeyHash;
+
+    @Label("Verdict")
+    public String result;
+
+    @Label("Reasons")
+    public String reasons;
+}
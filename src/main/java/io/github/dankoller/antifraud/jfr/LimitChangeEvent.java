@@ -0,0 +1,35 @@
+package io.github.dankoller.antifraud.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("io.github.dankoller.antifraud.LimitChange")
+@Label("Limit Change")
+@Category(FraudEvents.CATEGORY)
+@Description("Change of the limits of a card after feedback on one of its transactions")
+public class LimitChangeEvent extends Event {
+
+    @Label("Card Key Hash")
+    public long cardKeyHash;
+
+    @Label("Verdict")
+    public String result;
+
+    @Label("Feedback")
+    public String feedback;
+
+    @Label("Allowed Limit Before")
+    public int allowedLimitBefore;
+
+    @Label("Allowed Limit After")
+    public int allowedLimitAfter;
+
+    @Label("Manual Limit Before")
+    public int manualLimitBefore;
+
+    @Label("Manual Limit After")
+    public int manualLimitAfter;
+}
@@ -0,0 +1,23 @@
+package io.github.dankoller.antifraud.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("io.github.dankoller.antifraud.RepositoryCall")
+@Label("Repository Call")
+@Category(FraudEvents.CATEGORY)
+@Description("Database access on the scoring path")
+public class RepositoryCallEvent extends Event {
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Card Key Hash")
+    public long cardKeyHash;
+
+    @Label("Rows")
+    public int rows;
+}
@@ -0,0 +1,26 @@
+package io.github.dankoller.antifraud.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("io.github.dankoller.antifraud.Scoring")
+@Label("Scoring Request")
+@Category(FraudEvents.CATEGORY)
+@Description("Scoring of a transaction, from the card upsert to the persisted verdict")
+public class ScoringEvent extends Event {
+
+    @Label("Card Key Hash")
+    public long cardKeyHash;
+
+    @Label("Amount")
+    public long amount;
+
+    @Label("Verdict")
+    public String result;
+
+    @Label("Reasons")
+    public String reasons;
+}
@@ -0,0 +1,282 @@
+package io.github.dankoller.antifraud.limits;
+
+import io.github.dankoller.antifraud.entity.CardLimitSnapshot;
+import io.github.dankoller.antifraud.entity.LimitAdjustment;
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import io.github.dankoller.antifraud.persistence.CardLimitSnapshotRepository;
+import io.github.dankoller.antifraud.persistence.LimitAdjustmentRepository;
+import io.github.dankoller.antifraud.response.CardLimitsResponse;
+import io.github.dankoller.antifraud.response.LimitReplayResponse;
+import io.github.dankoller.antifraud.response.LimitReplayResponse.ChangedLimits;
+import io.github.dankoller.antifraud.store.CardState;
+import io.github.dankoller.antifraud.store.CardStateStore;
+import io.github.dankoller.antifraud.store.OffHeapLongLongMap;
+import io.github.dankoller.antifraud.util.CardValidator;
+import io.github.dankoller.antifraud.util.LimitPolicy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.sql.DataSource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Append-only history of the limit adjustments of every card. {@link #record} appends an adjustment before the new
+ * limits go live, a periodic job folds the adjustments into one {@link CardLimitSnapshot} per card, and the current
+ * limits of a card are its snapshot plus the few adjustments after it.
+ * <p>
+ * The history keeps the inputs of the limit formula, so it can be replayed with another {@link LimitPolicy}. The
+ * cards are independent, so the replay splits them into partitions by their key and reads each partition on its own
+ * connection in parallel.
+ */
+@Slf4j
+@Service
+@SuppressWarnings("unused")
+public class LimitHistoryService {
+
+    // Read with the same fetch size as the card state store, so MySQL streams the rows instead of buffering them all
+    private static final int FETCH_SIZE = 10_000;
+
+    // Adjustments are only snapshotted once their insert has surely committed, a later commit with a lower id would
+    // otherwise be skipped
+    private static final long SNAPSHOT_LAG_SECONDS = 60;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private LimitAdjustmentRepository limitAdjustmentRepository;
+
+    @Autowired
+    private CardLimitSnapshotRepository cardLimitSnapshotRepository;
+
+    @Autowired
+    private CardStateStore cardStateStore;
+
+    @Value("${antifraud.limits.replay-parallelism:4}")
+    private int parallelism;
+
+    @Value("${antifraud.limits.max-samples:100}")
+    private int maxSamples;
+
+    /**
+     * Appends an adjustment of the limits of a card by feedback to the history.
+     *
+     * @param cardKey     The key of the card number
+     * @param transaction The transaction that received the feedback
+     * @param feedback    The feedback
+     * @param before      The state of the card before, see {@link CardState}
+     * @param after       The state of the card after
+     */
+    public void record(long cardKey, Transaction transaction, TransactionResult feedback, long before, long after) {
+        limitAdjustmentRepository.save(adjustment(cardKey, transaction, feedback, before, after));
+    }
+
+    /**
+     * Appends adjustments to the history in batched inserts.
+     *
+     * @param adjustments The adjustments, see {@link #adjustment}
+     */
+    public void recordAll(List<LimitAdjustment> adjustments) {
+        limitAdjustmentRepository.saveAll(adjustments);
+    }
+
+    /**
+     * Creates the adjustment of the limits of a card by feedback, to be recorded with {@link #recordAll(List)}.
+     */
+    public static LimitAdjustment adjustment(long cardKey, Transaction transaction, TransactionResult feedback,
+                                             long before, long after) {
+        return new LimitAdjustment(cardKey, transaction.getId(), transaction.getAmount(),
+                TransactionResult.valueOf(transaction.getResult()), feedback, CardState.allowedLimit(before),
+                CardState.manualLimit(before), CardState.allowedLimit(after), CardState.manualLimit(after),
+                LocalDateTime.now());
+    }
+
+    /**
+     * Returns the current limits of a card from its snapshot and the adjustments after it.
+     *
+     * @param cardNumber The card number
+     * @return The limits and the number of adjustments
+     */
+    public CardLimitsResponse getLimits(String cardNumber) {
+        long cardKey = toKey(cardNumber);
+        CardLimitSnapshot snapshot = cardLimitSnapshotRepository.findByCardKey(cardKey)
+                .orElseGet(() -> new CardLimitSnapshot(cardKey));
+        List<LimitAdjustment> tail = limitAdjustmentRepository.findAllByCardKeyAndIdGreaterThanOrderByIdAsc(cardKey,
+                snapshot.getLastAdjustmentId() == null ? 0 : snapshot.getLastAdjustmentId());
+        tail.forEach(snapshot::apply);
+
+        if (snapshot.getLastAdjustmentId() == null) {
+            // Never adjusted, the limits are the ones the card was created with
+            long state = cardStateStore.get(cardKey);
+            if (state == OffHeapLongLongMap.MISSING) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Card not found");
+            }
+            return new CardLimitsResponse(cardNumber, CardState.allowedLimit(state), CardState.manualLimit(state), 0,
+                    0);
+        }
+
+        return new CardLimitsResponse(cardNumber, snapshot.getAllowedLimit(), snapshot.getManualLimit(),
+                snapshot.getAdjustments(), tail.size());
+    }
+
+    /**
+     * Returns all adjustments of the limits of a card, oldest first.
+     *
+     * @param cardNumber The card number
+     * @return The adjustments
+     */
+    public List<LimitAdjustment> getHistory(String cardNumber) {
+        return limitAdjustmentRepository.findAllByCardKeyOrderByIdAsc(toKey(cardNumber));
+    }
+
+    @Scheduled(fixedDelayString = "${antifraud.limits.snapshot-interval-ms:60000}")
+    public void snapshot() {
+        try {
+            snapshot(LocalDateTime.now());
+        } catch (RuntimeException e) {
+            // Try again on the next run
+            log.warn("Failed to snapshot the limit history, retrying later", e);
+        }
+    }
+
+    /**
+     * Folds the adjustments since the last run into the snapshots of their cards, one page at a time. The snapshots
+     * of a page are saved in one transaction, so the highest adjustment id of all snapshots is where the next run
+     * continues.
+     *
+     * @param now The current time
+     * @return The number of adjustments folded into the snapshots
+     */
+    public synchronized long snapshot(LocalDateTime now) {
+        Long last = cardLimitSnapshotRepository.findMaxLastAdjustmentId();
+        long watermark = last == null ? 0 : last;
+        LocalDateTime settled = now.minusSeconds(SNAPSHOT_LAG_SECONDS);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        long folded = 0;
+
+        while (true) {
+            long after = watermark;
+            List<LimitAdjustment> page = transactionTemplate.execute(status -> {
+                List<LimitAdjustment> adjustments =
+                        limitAdjustmentRepository.findTop1000ByIdGreaterThanAndCreatedAtBeforeOrderByIdAsc(after,
+                                settled);
+                if (adjustments.isEmpty()) return adjustments;
+
+                List<Long> cardKeys = adjustments.stream().map(LimitAdjustment::getCardKey).distinct().toList();
+                Map<Long, CardLimitSnapshot> snapshots = cardLimitSnapshotRepository.findAllByCardKeyIn(cardKeys)
+                        .stream()
+                        .collect(Collectors.toMap(CardLimitSnapshot::getCardKey, Function.identity()));
+
+                for (LimitAdjustment adjustment : adjustments) {
+                    snapshots.computeIfAbsent(adjustment.getCardKey(), CardLimitSnapshot::new).apply(adjustment);
+                }
+                cardLimitSnapshotRepository.saveAll(snapshots.values());
+                return adjustments;
+            });
+
+            if (page == null || page.isEmpty()) break;
+            watermark = page.get(page.size() - 1).getId();
+            folded += page.size();
+        }
+
+        if (folded > 0) log.info("Folded {} limit adjustments into the snapshots", folded);
+        return folded;
+    }
+
+    /**
+     * Replays the whole limit history with another policy and compares the resulting limits with the current ones.
+     * The verdicts and the feedback are the recorded ones. A card starts at the default limits of the policy if its
+     * history starts at the current defaults, otherwise (adjusted before the history was kept) at the limits before
+     * its first recorded adjustment.
+     *
+     * @param policy The policy to replay the history with
+     * @return The cards whose limits would change
+     */
+    public LimitReplayResponse replay(LimitPolicy policy) {
+        long start = System.nanoTime();
+        int partitions = Math.max(1, parallelism);
+        ForkJoinPool pool = new ForkJoinPool(partitions);
+
+        List<LimitReplay> replays = new ArrayList<>();
+        try {
+            List<CompletableFuture<LimitReplay>> futures = new ArrayList<>();
+            for (int i = 0; i < partitions; i++) {
+                int partition = i;
+                futures.add(CompletableFuture.supplyAsync(() -> replayPartition(policy, partition, partitions), pool));
+            }
+            futures.forEach(future -> replays.add(future.join()));
+        } finally {
+            pool.shutdown();
+        }
+
+        long cards = 0;
+        long adjustments = 0;
+        long changedCards = 0;
+        List<ChangedLimits> samples = new ArrayList<>();
+        for (LimitReplay replay : replays) {
+            cards += replay.cards;
+            adjustments += replay.adjustments;
+            changedCards += replay.changedCards;
+            samples.addAll(replay.samples);
+        }
+        samples.sort(Comparator.comparing(ChangedLimits::number));
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("Replay of {} limit adjustments took {} ms", adjustments, elapsedMillis);
+        return new LimitReplayResponse(policy, cards, adjustments, changedCards,
+                samples.subList(0, Math.min(maxSamples, samples.size())), elapsedMillis);
+    }
+
+    /**
+     * Helper method to replay the cards of one partition. The adjustments are read ordered by card, so only one card
+     * is held in memory at a time.
+     */
+    private LimitReplay replayPartition(LimitPolicy policy, int partition, int partitions) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.setFetchSize(FETCH_SIZE);
+        LimitReplay replay = new LimitReplay(policy, maxSamples);
+
+        transactionTemplate.executeWithoutResult(status -> jdbcTemplate.query(
+                "select card_key, amount, result, feedback, allowed_limit_before, manual_limit_before, " +
+                        "allowed_limit, manual_limit from limit_adjustment where mod(card_key, ?) = ? " +
+                        "order by card_key, id",
+                rs -> {
+                    replay.add(rs.getLong(1), rs.getLong(2), TransactionResult.valueOf(rs.getString(3)),
+                            TransactionResult.valueOf(rs.getString(4)), rs.getInt(5), rs.getInt(6), rs.getInt(7),
+                            rs.getInt(8));
+                }, partitions, partition));
+        replay.finish();
+        return replay;
+    }
+
+    private static long toKey(String cardNumber) {
+        long cardKey = CardValidator.toValidKey(cardNumber);
+        if (cardKey == CardValidator.INVALID) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid card number");
+        }
+        return cardKey;
+    }
+}
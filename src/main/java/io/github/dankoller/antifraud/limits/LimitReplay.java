@@ -0,0 +1,77 @@
+package io.github.dankoller.antifraud.limits;
+
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import io.github.dankoller.antifraud.response.LimitReplayResponse.ChangedLimits;
+import io.github.dankoller.antifraud.store.CardState;
+import io.github.dankoller.antifraud.util.CardValidator;
+import io.github.dankoller.antifraud.util.LimitPolicy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays the limit adjustments of the cards of one partition with a {@link LimitPolicy}. The adjustments come
+ * ordered by card and id, a card is compared with its recorded limits as soon as the next one starts.
+ */
+final class LimitReplay {
+
+    private final LimitPolicy policy;
+    private final int maxSamples;
+
+    long cards;
+    long adjustments;
+    long changedCards;
+    // The cards come in ascending order, so these are the lowest card numbers of the partition
+    final List<ChangedLimits> samples = new ArrayList<>();
+
+    private long cardKey = -1;
+    private long state;
+    private int recordedAllowedLimit;
+    private int recordedManualLimit;
+
+    LimitReplay(LimitPolicy policy, int maxSamples) {
+        this.policy = policy;
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * Applies the next adjustment.
+     */
+    void add(long cardKey, long amount, TransactionResult result, TransactionResult feedback, int allowedLimitBefore,
+             int manualLimitBefore, int allowedLimit, int manualLimit) {
+        if (cardKey != this.cardKey) {
+            finish();
+            this.cardKey = cardKey;
+            cards++;
+
+            boolean fromDefaults = allowedLimitBefore == LimitPolicy.CURRENT.allowedLimit()
+                    && manualLimitBefore == LimitPolicy.CURRENT.manualLimit();
+            state = fromDefaults
+                    ? CardState.pack(policy.allowedLimit(), policy.manualLimit(), false)
+                    : CardState.pack(allowedLimitBefore, manualLimitBefore, false);
+        }
+
+        adjustments++;
+        state = policy.adjustLimits(state, result, feedback, amount);
+        recordedAllowedLimit = allowedLimit;
+        recordedManualLimit = manualLimit;
+    }
+
+    /**
+     * Compares the replayed limits of the current card with the recorded ones.
+     */
+    void finish() {
+        if (cardKey < 0) return;
+
+        int allowedLimit = CardState.allowedLimit(state);
+        int manualLimit = CardState.manualLimit(state);
+        if (allowedLimit != recordedAllowedLimit || manualLimit != recordedManualLimit) {
+            changedCards++;
+            if (samples.size() < maxSamples) {
+                samples.add(new ChangedLimits(CardValidator.fromKey(cardKey), recordedAllowedLimit,
+                        recordedManualLimit, allowedLimit, manualLimit));
+            }
+        }
+        cardKey = -1;
+    }
+}
@@ -0,0 +1,255 @@
+package io.github.dankoller.antifraud.partition;
+
+import io.github.dankoller.antifraud.archive.TransactionArchive;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.DatabaseMetaData;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Splits the transaction table into one partition per month, so the transactions past the retention period are
+ * removed by dropping whole partitions instead of deleting rows, and queries with a date range (the history of a
+ * card in a range) only read the partitions of that range. Every day the partitions of the next months are created
+ * and the expired ones are archived (see {@link TransactionArchive}) and dropped.
+ * <p>
+ * On MySQL the table is range-partitioned by date once by an administrator, see {@link #convert(LocalDateTime)}:
+ * converting rewrites the whole table, so it never happens implicitly on startup. The primary key becomes (id, date),
+ * as MySQL requires the partition column in every unique key, and a partition for dates past the created months
+ * catches the rest. Until the table is converted, and on other databases like H2 in the tests, an expired month is
+ * removed with a range delete on the date index, with the same result.
+ */
+@Slf4j
+@Component
+@SuppressWarnings("unused")
+public class TransactionPartitions {
+
+    private static final String FUTURE_PARTITION = "pfuture";
+    private static final DateTimeFormatter PARTITION_NAME = DateTimeFormatter.ofPattern("'p'yyyyMM");
+    private static final DateTimeFormatter PARTITION_BOUND = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private TransactionArchive transactionArchive;
+
+    @Value("${antifraud.partitions.enabled:false}")
+    private boolean enabled;
+
+    @Value("${antifraud.partitions.months-ahead:3}")
+    private int monthsAhead;
+
+    @Value("${antifraud.archive.retention-days:365}")
+    private int retentionDays;
+
+    private boolean mySql;
+
+    /**
+     * Determines the database and runs the maintenance once. A failure is logged and doesn't prevent the start.
+     *
+     * @throws MetaDataAccessException if the database can't be determined
+     */
+    @PostConstruct
+    public void initialize() throws MetaDataAccessException {
+        if (!enabled) return;
+
+        String product = JdbcUtils.extractDatabaseMetaData(dataSource, DatabaseMetaData::getDatabaseProductName);
+        mySql = product.toLowerCase().contains("mysql") || product.toLowerCase().contains("mariadb");
+        if (!mySql) {
+            log.info("{} has no partitions, expired transactions are removed with range deletes", product);
+        } else if (!isPartitioned()) {
+            log.warn("The transaction table isn't partitioned yet, expired transactions are removed with range " +
+                    "deletes until it is converted with POST /actuator/partitions");
+        }
+
+        maintain();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isMySql() {
+        return mySql;
+    }
+
+    public boolean isPartitioned() {
+        return mySql && !findPartitions(new JdbcTemplate(dataSource)).isEmpty();
+    }
+
+    /**
+     * Returns the partitions of the table.
+     *
+     * @return The partition names in the order of their ranges, empty if the table isn't partitioned
+     */
+    public List<String> getPartitions() {
+        return mySql ? findPartitions(new JdbcTemplate(dataSource)) : List.of();
+    }
+
+    /**
+     * Partitions the table by month, from the month of the oldest transaction to the configured number of months
+     * after the current one, and then runs the maintenance. This copies the whole table once and blocks writes to it
+     * meanwhile, so run it when the load is low. Every step is logged with its duration.
+     *
+     * @param now The current time
+     * @throws IllegalStateException if partitions are disabled, the database isn't MySQL or the table is already
+     *                               partitioned
+     * @throws IOException           if expired transactions can't be archived afterwards
+     */
+    public synchronized void convert(LocalDateTime now) throws IOException {
+        if (!enabled) throw new IllegalStateException("Partitions are disabled");
+        if (!mySql) throw new IllegalStateException("Only MySQL supports partitions");
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        if (!findPartitions(jdbcTemplate).isEmpty()) {
+            throw new IllegalStateException("The transaction table is already partitioned");
+        }
+
+        YearMonth current = YearMonth.from(now);
+        partitionTable(jdbcTemplate, current, current.plusMonths(monthsAhead));
+        maintain(now);
+    }
+
+    @Scheduled(fixedDelayString = "${antifraud.partitions.maintenance-interval-ms:86400000}",
+            initialDelayString = "${antifraud.partitions.maintenance-interval-ms:86400000}")
+    public void maintain() {
+        try {
+            maintain(LocalDateTime.now());
+        } catch (IOException | RuntimeException e) {
+            // Try again on the next run
+            log.warn("Failed to maintain the transaction partitions, retrying later", e);
+        }
+    }
+
+    /**
+     * Creates the partitions up to the configured number of months after the current one and archives and drops the
+     * months that ended more than the retention period ago.
+     *
+     * @param now The current time
+     * @throws IOException if expired transactions can't be archived, nothing is dropped then
+     */
+    public synchronized void maintain(LocalDateTime now) throws IOException {
+        if (!enabled) return;
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        YearMonth current = YearMonth.from(now);
+        YearMonth last = current.plusMonths(monthsAhead);
+        // Only whole months expire, the transactions of the current one are kept until it is over
+        LocalDateTime expiredBefore = YearMonth.from(now.minusDays(retentionDays)).atDay(1).atStartOfDay();
+
+        List<String> partitions = mySql ? findPartitions(jdbcTemplate) : List.of();
+        if (!partitions.isEmpty()) {
+            createPartitions(jdbcTemplate, partitions, current, last);
+
+            List<String> expired = findPartitions(jdbcTemplate).stream()
+                    .filter(TransactionPartitions::isMonth)
+                    .filter(name -> !upperBound(name).isAfter(expiredBefore))
+                    .collect(Collectors.toList());
+            if (expired.isEmpty()) return;
+
+            // Dropping a partition commits implicitly, the template only provides the connection
+            String drop = "alter table transaction drop partition " + String.join(", ", expired);
+            long archived = transactionArchive.archive(expiredBefore, () ->
+                    transactionTemplate.executeWithoutResult(status -> jdbcTemplate.execute(drop)));
+            log.info("Dropped the transaction partitions {} ({} transactions archived)", expired, archived);
+        } else {
+            Timestamp oldest = jdbcTemplate.queryForObject("select min(date) from transaction", Timestamp.class);
+            if (oldest == null || !oldest.toLocalDateTime().isBefore(expiredBefore)) return;
+
+            long archived = transactionArchive.archive(expiredBefore, () ->
+                    transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(
+                            "delete from transaction where date < ?", Timestamp.valueOf(expiredBefore))));
+            log.info("Removed the transactions dated before {} ({} archived)", expiredBefore, archived);
+        }
+    }
+
+    private static List<String> findPartitions(JdbcTemplate jdbcTemplate) {
+        return jdbcTemplate.queryForList("select partition_name from information_schema.partitions " +
+                "where table_schema = database() and table_name = 'transaction' and partition_name is not null " +
+                "order by partition_ordinal_position", String.class);
+    }
+
+    /**
+     * Helper method to partition the table by month, from the month of the oldest transaction to the last month.
+     */
+    private static void partitionTable(JdbcTemplate jdbcTemplate, YearMonth current, YearMonth last) {
+        Timestamp oldest = jdbcTemplate.queryForObject("select min(date) from transaction", Timestamp.class);
+        Long rows = jdbcTemplate.queryForObject("select count(*) from transaction", Long.class);
+        YearMonth first = oldest == null ? current : YearMonth.from(oldest.toLocalDateTime());
+        log.info("Partitioning the transaction table ({} rows) by month from {} to {}", rows, first, last);
+
+        long start = System.nanoTime();
+        jdbcTemplate.execute("alter table transaction modify date datetime(6) not null, " +
+                "drop primary key, add primary key (id, date)");
+        log.info("Changed the primary key of the transaction table to (id, date) in {} ms",
+                (System.nanoTime() - start) / 1_000_000);
+
+        start = System.nanoTime();
+        jdbcTemplate.execute("alter table transaction partition by range columns(date) (" +
+                monthPartitions(first, last) + ")");
+        log.info("Partitioned the transaction table by month from {} to {} in {} ms", first, last,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Helper method to split the months up to the last one off the partition of the future dates. The split is cheap
+     * as long as that partition is (nearly) empty.
+     */
+    private static void createPartitions(JdbcTemplate jdbcTemplate, List<String> partitions, YearMonth current,
+                                         YearMonth last) {
+        YearMonth newest = partitions.stream()
+                .filter(TransactionPartitions::isMonth)
+                .map(name -> YearMonth.parse(name, PARTITION_NAME))
+                .max(YearMonth::compareTo)
+                .orElse(current.minusMonths(1));
+        if (!newest.isBefore(last)) return;
+
+        jdbcTemplate.execute("alter table transaction reorganize partition " + FUTURE_PARTITION + " into (" +
+                monthPartitions(newest.plusMonths(1), last) + ")");
+        log.info("Created the transaction partitions up to {}", last);
+    }
+
+    /**
+     * Helper method to build the definitions of one partition per month and the partition of the future dates.
+     */
+    private static String monthPartitions(YearMonth first, YearMonth last) {
+        List<String> definitions = new ArrayList<>();
+        for (YearMonth month = first; !month.isAfter(last); month = month.plusMonths(1)) {
+            definitions.add("partition " + month.format(PARTITION_NAME) + " values less than ('" +
+                    month.plusMonths(1).atDay(1).atStartOfDay().format(PARTITION_BOUND) + "')");
+        }
+        definitions.add("partition " + FUTURE_PARTITION + " values less than (maxvalue)");
+        return String.join(", ", definitions);
+    }
+
+    // Partitions created by hand are left alone
+    private static boolean isMonth(String partition) {
+        return partition.matches("p\\d{6}");
+    }
+
+    private static LocalDateTime upperBound(String partition) {
+        return YearMonth.parse(partition, PARTITION_NAME).plusMonths(1).atDay(1).atStartOfDay();
+    }
+}
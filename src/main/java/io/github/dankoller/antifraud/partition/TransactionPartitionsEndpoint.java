@@ -0,0 +1,54 @@
+package io.github.dankoller.antifraud.partition;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Map;
+
+/**
+ * Actuator endpoint for the monthly partitions of the transaction table: GET /actuator/partitions shows them, POST
+ * /actuator/partitions converts the table once (see {@link TransactionPartitions#convert(LocalDateTime)}). Only
+ * administrators may access it.
+ */
+@Component
+@Endpoint(id = "partitions")
+@SuppressWarnings("unused")
+public class TransactionPartitionsEndpoint {
+
+    private final TransactionPartitions transactionPartitions;
+
+    public TransactionPartitionsEndpoint(TransactionPartitions transactionPartitions) {
+        this.transactionPartitions = transactionPartitions;
+    }
+
+    @ReadOperation
+    public Map<String, Object> status() {
+        return Map.of(
+                "enabled", transactionPartitions.isEnabled(),
+                "partitioned", transactionPartitions.isPartitioned(),
+                "partitions", transactionPartitions.getPartitions()
+        );
+    }
+
+    /**
+     * Partitions the transaction table. The request returns once the table is converted.
+     *
+     * @return The partitions, or 409 if the table can't be converted
+     * @throws IOException if expired transactions can't be archived after the conversion
+     */
+    @WriteOperation
+    public WebEndpointResponse<Map<String, Object>> convert() throws IOException {
+        try {
+            transactionPartitions.convert(LocalDateTime.now());
+        } catch (IllegalStateException e) {
+            return new WebEndpointResponse<>(Map.of("error", e.getMessage()), HttpStatus.CONFLICT.value());
+        }
+        return new WebEndpointResponse<>(status());
+    }
+}
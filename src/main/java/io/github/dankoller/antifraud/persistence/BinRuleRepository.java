@@ -0,0 +1,13 @@
+package io.github.dankoller.antifraud.persistence;
+
+import io.github.dankoller.antifraud.entity.BinRule;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+// Repository for BIN rule entities
+@Repository
+public interface BinRuleRepository extends JpaRepository<BinRule, Long> {
+    Optional<BinRule> findByBin(String bin);
+}
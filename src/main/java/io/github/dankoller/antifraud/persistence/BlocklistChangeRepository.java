@@ -0,0 +1,17 @@
+package io.github.dankoller.antifraud.persistence;
+
+import io.github.dankoller.antifraud.entity.BlocklistChange;
+import io.github.dankoller.antifraud.entity.BlocklistType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+// Repository for blocklist changes
+@Repository
+public interface BlocklistChangeRepository extends JpaRepository<BlocklistChange, Long> {
+    List<BlocklistChange> findTop10000ByBlocklistAndIdGreaterThanOrderByIdAsc(BlocklistType blocklist, Long since);
+
+    Optional<BlocklistChange> findTopByBlocklistOrderByIdDesc(BlocklistType blocklist);
+}
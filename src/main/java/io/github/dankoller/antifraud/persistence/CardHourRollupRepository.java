@@ -0,0 +1,34 @@
+package io.github.dankoller.antifraud.persistence;
+
+import io.github.dankoller.antifraud.entity.CardHourRollup;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+// Repository for the hourly correlation rollups of the cards
+@Repository
+public interface CardHourRollupRepository extends JpaRepository<CardHourRollup, CardHourRollup.Key> {
+    List<CardHourRollup> findAllByCardKeyAndBucketBetween(Long cardKey, Long firstBucket, Long lastBucket);
+
+    // One statement whether the row exists or not (MySQL syntax, also understood by H2 in MySQL mode)
+    @Modifying
+    @Transactional
+    @Query(value = "insert into card_hour_rollup (card_key, bucket, region_mask, sketch) " +
+            "values (:cardKey, :bucket, :regionMask, :sketch) " +
+            "on duplicate key update region_mask = values(region_mask), sketch = values(sketch)", nativeQuery = true)
+    void upsert(@Param("cardKey") long cardKey, @Param("bucket") long bucket, @Param("regionMask") int regionMask,
+                @Param("sketch") byte[] sketch);
+
+    @Query("select max(r.bucket) from CardHourRollup r")
+    Long findMaxBucket();
+
+    @Modifying
+    @Transactional
+    @Query("delete from CardHourRollup r where r.bucket < :bucket")
+    int deleteAllByBucketBefore(@Param("bucket") long bucket);
+}
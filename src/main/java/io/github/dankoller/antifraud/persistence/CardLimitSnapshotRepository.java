@@ -0,0 +1,21 @@
+package io.github.dankoller.antifraud.persistence;
+
+import io.github.dankoller.antifraud.entity.CardLimitSnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+// Repository for the snapshots of the limit history
+@Repository
+public interface CardLimitSnapshotRepository extends JpaRepository<CardLimitSnapshot, Long> {
+    Optional<CardLimitSnapshot> findByCardKey(Long cardKey);
+
+    List<CardLimitSnapshot> findAllByCardKeyIn(Collection<Long> cardKeys);
+
+    @Query("select max(s.lastAdjustmentId) from CardLimitSnapshot s")
+    Long findMaxLastAdjustmentId();
+}
@@ -0,0 +1,10 @@
+package io.github.dankoller.antifraud.persistence;
+
+import io.github.dankoller.antifraud.entity.CardProfile;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+// Repository for persisted card spending profiles
+@Repository
+public interface CardProfileRepository extends JpaRepository<CardProfile, Long> {
+}
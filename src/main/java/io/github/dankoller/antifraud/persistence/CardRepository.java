@@ -4,6 +4,7 @@ import io.github.dankoller.antifraud.entity.Card;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -15,4 +16,6 @@ public interface CardRepository extends JpaRepository<Card, Long> {
     List<Card> findAllByIsLockedTrue();
 
     boolean existsByNumberAndIsLockedTrue(String number);
+
+    List<Card> findAllByNumberIn(Collection<String> numbers);
 }
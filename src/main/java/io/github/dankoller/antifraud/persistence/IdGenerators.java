@@ -0,0 +1,82 @@
+package io.github.dankoller.antifraud.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pooled id generators of the entities that are inserted in bulk (cards, suspicious IPs, blocklist changes). Their ids
+ * are reserved in blocks of {@link #ALLOCATION_SIZE} from one row per entity in the {@link #TABLE} table, so a batch
+ * insert costs one round trip to the generator per block instead of one per row. A row holds the last id reserved so
+ * far, with the pooled-lo optimizer (see {@code application.properties}) the next block starts right after it.
+ * <p>
+ * Rows can be inserted with ids from elsewhere: by versions before the pooled generators (hibernate_sequence), or by
+ * the workload generator while the application is stopped. Every start therefore moves each generator up to the
+ * highest id of its table before the first insert.
+ */
+@Slf4j
+@Component
+@DependsOn("entityManagerFactory")
+@SuppressWarnings("unused")
+public class IdGenerators {
+
+    public static final String TABLE = "id_generator";
+    public static final String NAME_COLUMN = "name";
+    public static final String VALUE_COLUMN = "next_val";
+    public static final int ALLOCATION_SIZE = 1000;
+
+    public static final String CARD = "card";
+    public static final String IP_ADDRESS = "ipaddress";
+    public static final String BLOCKLIST_CHANGE = "blocklist_change";
+
+    // The generators are named after the tables of their entities
+    private static final List<String> GENERATORS = List.of(CARD, IP_ADDRESS, BLOCKLIST_CHANGE);
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Moves every generator up to the highest id of its table.
+     */
+    @PostConstruct
+    public void align() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+        for (String generator : GENERATORS) {
+            transactionTemplate.executeWithoutResult(status -> align(jdbcTemplate, generator));
+        }
+    }
+
+    private static void align(JdbcTemplate jdbcTemplate, String generator) {
+        Long maxId = jdbcTemplate.queryForObject("select max(id) from " + generator, Long.class);
+        long lastUsed = maxId == null ? 0 : maxId;
+
+        List<Map<String, Object>> rows = jdbcTemplate.queryForList(
+                "select " + VALUE_COLUMN + " from " + TABLE + " where " + NAME_COLUMN + " = ?", generator);
+        if (rows.isEmpty()) {
+            jdbcTemplate.update("insert into " + TABLE + " (" + NAME_COLUMN + ", " + VALUE_COLUMN + ") values (?, ?)",
+                    generator, lastUsed);
+            return;
+        }
+
+        long stored = ((Number) rows.get(0).get(VALUE_COLUMN)).longValue();
+        if (stored < lastUsed) {
+            jdbcTemplate.update("update " + TABLE + " set " + VALUE_COLUMN + " = ? where " + NAME_COLUMN + " = ?",
+                    lastUsed, generator);
+            log.info("Moved the id generator of {} from {} to {}", generator, stored, lastUsed);
+        }
+    }
+}
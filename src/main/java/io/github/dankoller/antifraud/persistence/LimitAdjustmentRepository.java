@@ -0,0 +1,18 @@
+package io.github.dankoller.antifraud.persistence;
+
+import io.github.dankoller.antifraud.entity.LimitAdjustment;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+// Repository for the append-only limit history of the cards
+@Repository
+public interface LimitAdjustmentRepository extends JpaRepository<LimitAdjustment, Long> {
+    List<LimitAdjustment> findAllByCardKeyOrderByIdAsc(Long cardKey);
+
+    List<LimitAdjustment> findAllByCardKeyAndIdGreaterThanOrderByIdAsc(Long cardKey, Long id);
+
+    List<LimitAdjustment> findTop1000ByIdGreaterThanAndCreatedAtBeforeOrderByIdAsc(Long id, LocalDateTime createdAt);
+}
@@ -4,10 +4,16 @@ import io.github.dankoller.antifraud.entity.IPAddress;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 // Repository for suspicious IP entities
 @Repository
 public interface SuspiciousIPRepository extends JpaRepository<IPAddress, Long> {
     Optional<IPAddress> findByIp(String ip);
+
+    List<IPAddress> findAllByIpIn(Collection<String> ips);
+
+    List<IPAddress> findAllByExpiresAtIsNotNull();
 }
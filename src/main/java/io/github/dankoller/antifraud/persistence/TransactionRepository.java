@@ -1,16 +1,37 @@
 package io.github.dankoller.antifraud.persistence;
 
 import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 // Repository for transaction entities
 @Repository
 public interface TransactionRepository extends JpaRepository<Transaction, Long> {
-    List<Transaction> findAllByDateBetweenAndNumber(LocalDateTime start, LocalDateTime end, String number);
-
     List<Transaction> findAllByNumber(String number);
+
+    List<Transaction> findAllByNumberAndDateGreaterThanEqualAndDateLessThan(String number, LocalDateTime from,
+                                                                            LocalDateTime to);
+
+    List<Transaction> findTop1000ByIdGreaterThanAndIdLessThanEqualOrderByIdAsc(Long after, Long upTo);
+
+    @Query("select max(t.id) from Transaction t")
+    Long findMaxId();
+
+    List<Transaction> findAllByDateBeforeAndIdGreaterThanOrderByIdAsc(LocalDateTime date, Long id, Pageable pageable);
+
+    long countByIdIn(Collection<Long> ids);
+
+    @Query("select max(t.date) from Transaction t")
+    LocalDateTime findMaxDate();
+
+    List<Transaction> findAllByDateGreaterThanEqual(LocalDateTime date);
+
+    List<Transaction> findAllByResultAndFeedbackIsNull(TransactionResult result);
 }
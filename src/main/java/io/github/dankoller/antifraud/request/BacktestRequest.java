@@ -0,0 +1,35 @@
+package io.github.dankoller.antifraud.request;
+
+import io.github.dankoller.antifraud.util.LimitPolicy;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Candidate policy of a backtest. Values that are left out are taken from the current policy.
+ */
+@Getter
+@Setter
+public class BacktestRequest {
+
+    private Integer allowedLimit;
+    private Integer manualLimit;
+    private Integer correlationManualCount;
+    private Integer correlationProhibitedCount;
+    private Double feedbackWeight;
+
+    // Optional date range of the replayed transactions, from inclusive and to exclusive
+    private LocalDateTime from;
+    private LocalDateTime to;
+
+    public LimitPolicy toPolicy(LimitPolicy current) {
+        return new LimitPolicy(
+                allowedLimit == null ? current.allowedLimit() : allowedLimit,
+                manualLimit == null ? current.manualLimit() : manualLimit,
+                correlationManualCount == null ? current.correlationManualCount() : correlationManualCount,
+                correlationProhibitedCount == null ? current.correlationProhibitedCount() : correlationProhibitedCount,
+                feedbackWeight == null ? current.feedbackWeight() : feedbackWeight
+        );
+    }
+}
@@ -0,0 +1,15 @@
+package io.github.dankoller.antifraud.request;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Feedback on one transaction of a bulk feedback request.
+ */
+@Getter
+@Setter
+public class FeedbackRequest {
+
+    private Long transactionId;
+    private String feedback;
+}
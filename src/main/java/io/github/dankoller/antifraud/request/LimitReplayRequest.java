@@ -0,0 +1,27 @@
+package io.github.dankoller.antifraud.request;
+
+import io.github.dankoller.antifraud.util.LimitPolicy;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Limit formula to replay the limit history with. Values that are left out are taken from the current policy.
+ */
+@Getter
+@Setter
+public class LimitReplayRequest {
+
+    private Integer allowedLimit;
+    private Integer manualLimit;
+    private Double feedbackWeight;
+
+    public LimitPolicy toPolicy(LimitPolicy current) {
+        return new LimitPolicy(
+                allowedLimit == null ? current.allowedLimit() : allowedLimit,
+                manualLimit == null ? current.manualLimit() : manualLimit,
+                current.correlationManualCount(),
+                current.correlationProhibitedCount(),
+                feedbackWeight == null ? current.feedbackWeight() : feedbackWeight
+        );
+    }
+}
@@ -0,0 +1,39 @@
+package io.github.dankoller.antifraud.response;
+
+import io.github.dankoller.antifraud.util.LimitPolicy;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+@AllArgsConstructor
+@Getter
+public class BacktestResponse {
+
+    private final LimitPolicy currentPolicy;
+    private final LimitPolicy candidatePolicy;
+    private final long transactions;
+    private final long withFeedback;
+    // Transactions whose replay with the current policy gives the recorded verdict
+    private final long replayMatchesRecorded;
+    private final VerdictSummary current;
+    private final VerdictSummary candidate;
+    // Number of transactions per changed verdict, e.g. "ALLOWED -> MANUAL_PROCESSING"
+    private final Map<String, Long> changes;
+    private final List<ChangedVerdict> samples;
+    private final long elapsedMillis;
+
+    /**
+     * Verdicts of one policy. False positives are transactions with feedback that were scored stricter than the
+     * feedback, false negatives more lenient.
+     */
+    public record VerdictSummary(long allowed, long manualProcessing, long prohibited, long falsePositives,
+                                 long falseNegatives) {
+    }
+
+    public record ChangedVerdict(long transactionId, String number, LocalDateTime date, long amount, String recorded,
+                                 String current, String candidate, String feedback) {
+    }
+}
@@ -0,0 +1,18 @@
+package io.github.dankoller.antifraud.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@AllArgsConstructor
+@Getter
+public class BlocklistDeltaResponse {
+
+    // Version to pass as since on the next request
+    private final long version;
+    private final List<String> added;
+    private final List<String> removed;
+    // False if the delta was cut off and the next request will return more changes
+    private final boolean complete;
+}
@@ -0,0 +1,22 @@
+package io.github.dankoller.antifraud.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@AllArgsConstructor
+@Getter
+public class BulkFeedbackResponse {
+
+    private final long updated;
+    private final long rejected;
+    // One status per item, in the order of the request
+    private final List<FeedbackStatus> items;
+
+    /**
+     * Status of one item, with the HTTP status and message the single feedback endpoint would have returned.
+     */
+    public record FeedbackStatus(Long transactionId, int status, String message) {
+    }
+}
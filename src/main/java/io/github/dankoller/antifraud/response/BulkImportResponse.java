@@ -0,0 +1,13 @@
+package io.github.dankoller.antifraud.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@AllArgsConstructor
+@Getter
+public class BulkImportResponse {
+
+    private final long inserted;
+    private final long duplicate;
+    private final long invalid;
+}
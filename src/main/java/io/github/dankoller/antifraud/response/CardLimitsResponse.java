@@ -0,0 +1,16 @@
+package io.github.dankoller.antifraud.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@AllArgsConstructor
+@Getter
+public class CardLimitsResponse {
+
+    private final String number;
+    private final int allowedLimit;
+    private final int manualLimit;
+    private final long adjustments;
+    // Adjustments read after the snapshot of the card
+    private final long adjustmentsSinceSnapshot;
+}
@@ -0,0 +1,19 @@
+package io.github.dankoller.antifraud.response;
+
+import io.github.dankoller.antifraud.aggregate.SlidingTopK.HeavyHitter;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@AllArgsConstructor
+@Getter
+public class HeavyHitterResponse {
+
+    private final String key;
+    private final long count;
+    private final long error;
+
+    // Counts are upper bounds, the true count is at least count - error
+    public static HeavyHitterResponse createHeavyHitterResponse(HeavyHitter heavyHitter) {
+        return new HeavyHitterResponse(heavyHitter.key(), heavyHitter.count(), heavyHitter.error());
+    }
+}
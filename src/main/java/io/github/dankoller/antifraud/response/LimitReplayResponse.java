@@ -0,0 +1,24 @@
+package io.github.dankoller.antifraud.response;
+
+import io.github.dankoller.antifraud.util.LimitPolicy;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@AllArgsConstructor
+@Getter
+public class LimitReplayResponse {
+
+    private final LimitPolicy policy;
+    private final long cards;
+    private final long adjustments;
+    // Cards whose replayed limits differ from the recorded ones
+    private final long changedCards;
+    private final List<ChangedLimits> samples;
+    private final long elapsedMillis;
+
+    public record ChangedLimits(String number, int allowedLimit, int manualLimit, int replayedAllowedLimit,
+                                int replayedManualLimit) {
+    }
+}
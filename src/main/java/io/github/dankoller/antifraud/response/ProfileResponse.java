@@ -0,0 +1,30 @@
+package io.github.dankoller.antifraud.response;
+
+import io.github.dankoller.antifraud.aggregate.SpendingProfile;
+import io.github.dankoller.antifraud.entity.Region;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@AllArgsConstructor
+@Getter
+public class ProfileResponse {
+
+    private final String number;
+    private final long count;
+    private final double mean;
+    private final double stdDev;
+    private final List<Region> regions;
+
+    // IP addresses are only kept as hashes in the profile and are therefore not part of the response
+    public static ProfileResponse createProfileResponse(String number, SpendingProfile profile) {
+        return new ProfileResponse(
+                number,
+                profile.getCount(),
+                profile.getMean(),
+                profile.getStdDev(),
+                profile.getTypicalRegions()
+        );
+    }
+}
@@ -0,0 +1,40 @@
+package io.github.dankoller.antifraud.review;
+
+import io.github.dankoller.antifraud.entity.Region;
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+
+import java.time.LocalDateTime;
+import java.util.Comparator;
+
+/**
+ * A MANUAL_PROCESSING transaction waiting for feedback, with the reviewer that claimed it (if any). Items are
+ * immutable, a claim or release replaces the item in the {@link ReviewQueue}.
+ *
+ * @param claimedBy    The reviewer that claimed the item, or null
+ * @param claimedUntil The end of the claim, after which other reviewers can claim the item
+ */
+public record ReviewItem(Long transactionId, Long amount, String number, Region region, LocalDateTime date,
+                         String claimedBy, LocalDateTime claimedUntil) {
+
+    // The largest amounts first, then the oldest transactions
+    static final Comparator<ReviewItem> PRIORITY = Comparator.comparing(ReviewItem::amount, Comparator.reverseOrder())
+            .thenComparing(ReviewItem::date)
+            .thenComparing(ReviewItem::transactionId);
+
+    static ReviewItem of(Transaction transaction) {
+        return new ReviewItem(transaction.getId(), transaction.getAmount(), transaction.getNumber(),
+                transaction.getRegion(), transaction.getDate(), null, null);
+    }
+
+    ReviewItem claim(String reviewer, LocalDateTime until) {
+        return new ReviewItem(transactionId, amount, number, region, date, reviewer, until);
+    }
+
+    ReviewItem release() {
+        return new ReviewItem(transactionId, amount, number, region, date, null, null);
+    }
+
+    boolean isClaimed(LocalDateTime now) {
+        return claimedBy != null && claimedUntil.isAfter(now);
+    }
+}
@@ -0,0 +1,234 @@
+package io.github.dankoller.antifraud.review;
+
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import io.github.dankoller.antifraud.persistence.TransactionRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-memory queue of the MANUAL_PROCESSING transactions that have no feedback yet, ordered by {@link
+ * ReviewItem#PRIORITY}. Scored transactions are added, feedback removes them, so reviewers don't have to poll the
+ * transaction history. Every change is pushed to the subscribed reviewers as Server-Sent Event: added, claimed,
+ * released or removed, with the item as data.
+ * <p>
+ * A reviewer claims an item for {@code antifraud.review.claim-seconds}, so the others skip it when they take the next
+ * one. Claims are advisory, feedback is accepted from every support user. Expired claims are released by a periodic
+ * sweep. The queue is loaded from the transaction table on startup and holds a single instance, like the in-memory
+ * stores. Events are sent by one thread, so a slow subscriber doesn't hold up scoring.
+ */
+@Slf4j
+@Component
+@SuppressWarnings("unused")
+public class ReviewQueue {
+
+    private final TreeSet<ReviewItem> queue = new TreeSet<>(ReviewItem.PRIORITY);
+    private final Map<Long, ReviewItem> items = new HashMap<>();
+    private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+    private final ExecutorService publisher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "review-events");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Value("${antifraud.review.claim-seconds:900}")
+    private long claimSeconds;
+
+    @Value("${antifraud.review.stream-timeout-ms:1800000}")
+    private long streamTimeoutMillis;
+
+    /**
+     * Loads the transactions that wait for a review.
+     */
+    @PostConstruct
+    public synchronized void load() {
+        List<Transaction> pending =
+                transactionRepository.findAllByResultAndFeedbackIsNull(TransactionResult.MANUAL_PROCESSING);
+        for (Transaction transaction : pending) put(ReviewItem.of(transaction));
+        log.info("Loaded {} transactions to review", pending.size());
+    }
+
+    @PreDestroy
+    public void close() {
+        publisher.shutdown();
+        emitters.forEach(SseEmitter::complete);
+        emitters.clear();
+    }
+
+    /**
+     * Adds a scored transaction if it needs a review.
+     *
+     * @param transaction The saved transaction
+     */
+    public synchronized void add(Transaction transaction) {
+        if (!transaction.getResult().equals(TransactionResult.MANUAL_PROCESSING.name())
+                || !transaction.getFeedback().isBlank()) return;
+
+        publish("added", put(ReviewItem.of(transaction)));
+    }
+
+    /**
+     * Removes the items of transactions that received feedback.
+     *
+     * @param transactionIds The ids of the transactions
+     */
+    public synchronized void removeAll(Collection<Long> transactionIds) {
+        for (Long transactionId : transactionIds) {
+            ReviewItem item = items.remove(transactionId);
+            if (item == null) continue;
+            queue.remove(item);
+            publish("removed", item);
+        }
+    }
+
+    /**
+     * Returns the items with the highest priority.
+     *
+     * @param limit The maximum number of items
+     * @return The items, highest priority first
+     */
+    public synchronized List<ReviewItem> getItems(int limit) {
+        return queue.stream().limit(limit).toList();
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Claims the item with the highest priority that isn't claimed by another reviewer.
+     *
+     * @param reviewer The name of the reviewer
+     * @return The claimed item
+     */
+    public synchronized ReviewItem claimNext(String reviewer) {
+        LocalDateTime now = LocalDateTime.now();
+        ReviewItem next = queue.stream()
+                .filter(item -> !item.isClaimed(now) || item.claimedBy().equals(reviewer))
+                .findFirst()
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No transaction to review"));
+
+        ReviewItem claimed = put(next.claim(reviewer, now.plusSeconds(claimSeconds)));
+        publish("claimed", claimed);
+        return claimed;
+    }
+
+    /**
+     * Claims an item, or extends the claim of the same reviewer.
+     *
+     * @param transactionId The id of the transaction
+     * @param reviewer      The name of the reviewer
+     * @return The claimed item
+     */
+    public synchronized ReviewItem claim(long transactionId, String reviewer) {
+        LocalDateTime now = LocalDateTime.now();
+        ReviewItem item = getItem(transactionId);
+        if (item.isClaimed(now) && !item.claimedBy().equals(reviewer)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Transaction claimed by another reviewer");
+        }
+
+        ReviewItem claimed = put(item.claim(reviewer, now.plusSeconds(claimSeconds)));
+        publish("claimed", claimed);
+        return claimed;
+    }
+
+    /**
+     * Releases the claim of a reviewer on an item.
+     *
+     * @param transactionId The id of the transaction
+     * @param reviewer      The name of the reviewer
+     * @return The released item
+     */
+    public synchronized ReviewItem release(long transactionId, String reviewer) {
+        ReviewItem item = getItem(transactionId);
+        if (!item.isClaimed(LocalDateTime.now()) || !item.claimedBy().equals(reviewer)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Transaction not claimed by this reviewer");
+        }
+
+        ReviewItem released = put(item.release());
+        publish("released", released);
+        return released;
+    }
+
+    /**
+     * Releases the claims that expired, so the subscribers see the items as open again.
+     */
+    @Scheduled(fixedDelayString = "${antifraud.review.sweep-interval-ms:10000}")
+    public synchronized void releaseExpired() {
+        LocalDateTime now = LocalDateTime.now();
+        for (ReviewItem item : List.copyOf(items.values())) {
+            if (item.claimedBy() != null && !item.isClaimed(now)) publish("released", put(item.release()));
+        }
+    }
+
+    /**
+     * Subscribes to the changes of the queue. The stream ends after {@code antifraud.review.stream-timeout-ms}, the
+     * client reconnects and reloads the queue.
+     *
+     * @return The emitter of the events
+     */
+    public SseEmitter subscribe() {
+        SseEmitter emitter = new SseEmitter(streamTimeoutMillis);
+        emitter.onCompletion(() -> emitters.remove(emitter));
+        emitter.onTimeout(() -> emitters.remove(emitter));
+        emitter.onError(e -> emitters.remove(emitter));
+        emitters.add(emitter);
+        return emitter;
+    }
+
+    private ReviewItem getItem(long transactionId) {
+        ReviewItem item = items.get(transactionId);
+        if (item == null) throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Transaction not in review queue");
+        return item;
+    }
+
+    /**
+     * Helper method to add or replace an item, the caller holds the lock.
+     */
+    private ReviewItem put(ReviewItem item) {
+        ReviewItem previous = items.put(item.transactionId(), item);
+        if (previous != null) queue.remove(previous);
+        queue.add(item);
+        return item;
+    }
+
+    /**
+     * Helper method to send an event to all subscribers on the publisher thread. The caller holds the lock, so the
+     * events are queued in the order of the changes. Subscribers that can't be written to anymore are dropped.
+     */
+    private void publish(String name, ReviewItem item) {
+        if (emitters.isEmpty()) return;
+
+        publisher.execute(() -> {
+            for (SseEmitter emitter : emitters) {
+                try {
+                    emitter.send(SseEmitter.event().name(name).id(String.valueOf(item.transactionId())).data(item));
+                } catch (IOException | IllegalStateException e) {
+                    emitters.remove(emitter);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,90 @@
+package io.github.dankoller.antifraud.service;
+
+import io.github.dankoller.antifraud.entity.BinRule;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import io.github.dankoller.antifraud.persistence.BinRuleRepository;
+import io.github.dankoller.antifraud.store.BinRuleStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.List;
+
+@Service
+@SuppressWarnings("unused")
+public class BinRuleService {
+
+    @Autowired
+    private BinRuleRepository binRuleRepository;
+
+    @Autowired
+    private BinRuleStore binRuleStore;
+
+    /**
+     * Save a rule that prohibits or sends to manual processing all transactions of cards in an issuer range.
+     *
+     * @param bin    The BIN (6 to 8 digits) of the issuer range
+     * @param result PROHIBITED or MANUAL_PROCESSING
+     * @return Saved BIN rule
+     */
+    public BinRule saveBinRule(String bin, String result) {
+        if (isNonValidBin(bin)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid BIN");
+        }
+        if (!TransactionResult.PROHIBITED.name().equals(result)
+                && !TransactionResult.MANUAL_PROCESSING.name().equals(result)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid result");
+        }
+
+        if (binRuleRepository.findByBin(bin).isPresent()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "BIN rule already exists");
+        }
+
+        BinRule rule = new BinRule(bin, TransactionResult.valueOf(result));
+        binRuleRepository.save(rule);
+        binRuleStore.put(bin, rule.getResult());
+
+        return rule;
+    }
+
+    /**
+     * Returns a list of all BIN rules currently stored.
+     *
+     * @return List of BIN rules
+     */
+    public List<BinRule> getBinRules() {
+        return binRuleRepository.findAll();
+    }
+
+    /**
+     * Remove the rule of a BIN.
+     *
+     * @param bin The BIN of the rule to be removed
+     * @return A String containing the success status and the removed BIN
+     */
+    public String deleteBinRule(String bin) {
+        if (isNonValidBin(bin)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid BIN");
+        }
+
+        BinRule rule = binRuleRepository.findByBin(bin)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "BIN rule not found"));
+
+        binRuleRepository.delete(rule);
+        binRuleStore.remove(bin);
+
+        return "BIN rule " + bin + " successfully removed!";
+    }
+
+    /**
+     * Helper method that checks if a BIN consists of 6 to 8 digits.
+     *
+     * @param bin The BIN to be checked
+     * @return True if the BIN is invalid, false otherwise
+     */
+    private static boolean isNonValidBin(String bin) {
+        return bin == null || bin.length() < BinRule.MIN_LENGTH || bin.length() > BinRule.MAX_LENGTH
+                || !bin.chars().allMatch(c -> c >= '0' && c <= '9');
+    }
+}
@@ -0,0 +1,174 @@
+package io.github.dankoller.antifraud.service;
+
+import io.github.dankoller.antifraud.entity.BlocklistChange;
+import io.github.dankoller.antifraud.entity.BlocklistType;
+import io.github.dankoller.antifraud.entity.Card;
+import io.github.dankoller.antifraud.entity.IPAddress;
+import io.github.dankoller.antifraud.persistence.BlocklistChangeRepository;
+import io.github.dankoller.antifraud.persistence.CardRepository;
+import io.github.dankoller.antifraud.persistence.SuspiciousIPRepository;
+import io.github.dankoller.antifraud.response.BlocklistDeltaResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Versions the stolen card and suspicious IP blocklists. Every change is appended to a change log whose id is the new
+ * version, so clients can poll with an ETag (answered from memory) or fetch only the changes since their version.
+ * <p>
+ * Changes are recorded under a lock and committed before it is released, so a client never sees a version while a
+ * change with a lower version is still uncommitted.
+ */
+@Slf4j
+@Service
+@DependsOn("idGenerators")
+@SuppressWarnings("unused")
+public class BlocklistService {
+
+    // Maximum number of changes returned by one delta request
+    private static final int MAX_DELTA = 10_000;
+
+    @Autowired
+    private BlocklistChangeRepository blocklistChangeRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private SuspiciousIPRepository suspiciousIPRepository;
+
+    private final Map<BlocklistType, Long> versions = new EnumMap<>(BlocklistType.class);
+
+    /**
+     * Loads the current versions. On the first start the existing entries are written to the change log, so a delta
+     * since version 0 contains the whole blocklist.
+     */
+    @PostConstruct
+    public synchronized void init() {
+        if (blocklistChangeRepository.count() == 0) {
+            recordAdded(BlocklistType.CARD, cardRepository.findAllByIsLockedTrue().stream()
+                    .map(Card::getNumber)
+                    .collect(Collectors.toList()));
+            recordAdded(BlocklistType.IP, suspiciousIPRepository.findAll().stream()
+                    .map(IPAddress::getIp)
+                    .collect(Collectors.toList()));
+        }
+
+        for (BlocklistType type : BlocklistType.values()) {
+            versions.put(type, blocklistChangeRepository.findTopByBlocklistOrderByIdDesc(type)
+                    .map(BlocklistChange::getId)
+                    .orElse(0L));
+        }
+    }
+
+    /**
+     * Returns the current version of a blocklist without touching the database.
+     *
+     * @param type The blocklist
+     * @return The id of the latest change, 0 if there is none
+     */
+    public synchronized long getVersion(BlocklistType type) {
+        return versions.getOrDefault(type, 0L);
+    }
+
+    /**
+     * Returns the ETag of a blocklist, which changes with every version.
+     *
+     * @param type The blocklist
+     * @return The quoted ETag
+     */
+    public String getETag(BlocklistType type) {
+        return "\"" + type.name().toLowerCase() + "-" + getVersion(type) + "\"";
+    }
+
+    /**
+     * Records entries added to a blocklist.
+     *
+     * @param type    The blocklist
+     * @param entries The added card numbers or IP addresses
+     */
+    public void recordAdded(BlocklistType type, Collection<String> entries) {
+        record(type, entries, false);
+    }
+
+    /**
+     * Records an entry removed from a blocklist.
+     *
+     * @param type  The blocklist
+     * @param entry The removed card number or IP address
+     */
+    public void recordRemoved(BlocklistType type, String entry) {
+        record(type, List.of(entry), true);
+    }
+
+    /**
+     * Records entries removed from a blocklist.
+     *
+     * @param type    The blocklist
+     * @param entries The removed card numbers or IP addresses
+     */
+    public void recordRemoved(BlocklistType type, Collection<String> entries) {
+        record(type, entries, true);
+    }
+
+    /**
+     * Helper method to append changes to the log and advance the version.
+     */
+    private synchronized void record(BlocklistType type, Collection<String> entries, boolean removed) {
+        if (entries.isEmpty()) return;
+
+        List<BlocklistChange> changes = entries.stream()
+                .map(entry -> new BlocklistChange(type, entry, removed))
+                .collect(Collectors.toList());
+        List<BlocklistChange> saved = blocklistChangeRepository.saveAll(changes);
+
+        long version = saved.stream().mapToLong(BlocklistChange::getId).max().orElse(0);
+        versions.merge(type, version, Math::max);
+    }
+
+    /**
+     * Returns the changes of a blocklist since a version. An entry that changed several times is only reported with
+     * its latest state.
+     *
+     * @param type  The blocklist
+     * @param since The version the client already has
+     * @return The added and removed entries and the new version
+     */
+    public BlocklistDeltaResponse getDelta(BlocklistType type, long since) {
+        if (since < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid version");
+        }
+
+        // Every change up to the current version is committed, so reading it first never skips a change
+        long current = getVersion(type);
+        List<BlocklistChange> changes =
+                blocklistChangeRepository.findTop10000ByBlocklistAndIdGreaterThanOrderByIdAsc(type, since);
+
+        Map<String, Boolean> latest = new LinkedHashMap<>();
+        for (BlocklistChange change : changes) {
+            latest.remove(change.getEntry());
+            latest.put(change.getEntry(), change.isRemoved());
+        }
+
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        latest.forEach((entry, isRemoved) -> (isRemoved ? removed : added).add(entry));
+
+        boolean complete = changes.size() < MAX_DELTA;
+        long last = changes.isEmpty() ? since : changes.get(changes.size() - 1).getId();
+        long version = complete ? Math.max(last, current) : last;
+        return new BlocklistDeltaResponse(version, added, removed, complete);
+    }
+}
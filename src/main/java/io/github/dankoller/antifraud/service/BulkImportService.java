@@ -0,0 +1,183 @@
+package io.github.dankoller.antifraud.service;
+
+import io.github.dankoller.antifraud.entity.BlocklistType;
+import io.github.dankoller.antifraud.entity.IPAddress;
+import io.github.dankoller.antifraud.persistence.IdGenerators;
+import io.github.dankoller.antifraud.persistence.SuspiciousIPRepository;
+import io.github.dankoller.antifraud.response.BulkImportResponse;
+import io.github.dankoller.antifraud.store.CardStateStore;
+import io.github.dankoller.antifraud.store.CardStateSynchronizer;
+import io.github.dankoller.antifraud.store.SuspiciousIPStore;
+import io.github.dankoller.antifraud.util.BulkRecordReader;
+import io.github.dankoller.antifraud.util.CardValidator;
+import io.github.dankoller.antifraud.util.IPAddressValidator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Imports large feeds of stolen cards and suspicious IP addresses. Uploads are parsed line by line and processed in
+ * chunks of a fixed size, so the memory used doesn't depend on the size of the upload.
+ */
+@Slf4j
+@Service
+@SuppressWarnings("unused")
+public class BulkImportService {
+
+    @Autowired
+    private CardStateStore cardStateStore;
+
+    @Autowired
+    private SuspiciousIPRepository suspiciousIPRepository;
+
+    @Autowired
+    private SuspiciousIPStore suspiciousIPStore;
+
+    @Autowired
+    private CardStateSynchronizer cardStateSynchronizer;
+
+    @Autowired
+    private BlocklistService blocklistService;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${antifraud.bulk.chunk-size:1000}")
+    private int chunkSize;
+
+    /**
+     * Flags all cards of an upload as stolen. The cards are locked in the card state store and written to the card
+     * table by the {@link CardStateSynchronizer} in batches, once per chunk.
+     *
+     * @param in     The upload
+     * @param format The format of the upload
+     * @return The number of inserted, duplicate and invalid cards
+     * @throws IOException if the upload can't be read
+     */
+    public BulkImportResponse importStolenCards(InputStream in, BulkRecordReader.Format format) throws IOException {
+        long inserted = 0;
+        long total = 0;
+        long invalid = 0;
+        String[] cardNumbers = new String[chunkSize];
+        long[] keys = new long[chunkSize];
+        int count = 0;
+
+        try (BulkRecordReader reader = new BulkRecordReader(in, format, "number")) {
+            String cardNumber;
+            while ((cardNumber = reader.next()) != null) {
+                cardNumbers[count++] = cardNumber;
+                if (count == cardNumbers.length) {
+                    int valid = CardValidator.toValidKeys(cardNumbers, count, keys);
+                    inserted += lockChunk(keys, valid);
+                    total += valid;
+                    invalid += count - valid;
+                    count = 0;
+                }
+            }
+            int valid = CardValidator.toValidKeys(cardNumbers, count, keys);
+            inserted += lockChunk(keys, valid);
+            total += valid;
+            invalid += count - valid;
+        }
+
+        log.info("Imported {} stolen cards ({} duplicates, {} invalid)", inserted, total - inserted, invalid);
+        return new BulkImportResponse(inserted, total - inserted, invalid);
+    }
+
+    /**
+     * Helper method to lock the cards of a chunk and record the newly locked ones in the blocklist change log. The
+     * card table is synchronized first, so the listing of a blocklist version always contains its cards.
+     *
+     * @return The number of newly locked cards
+     */
+    private int lockChunk(long[] keys, int count) {
+        int locked = cardStateStore.lockAll(keys, count);
+        if (locked == 0) return 0;
+        cardStateSynchronizer.synchronize();
+
+        List<String> cardNumbers = new ArrayList<>(locked);
+        for (int i = 0; i < locked; i++) cardNumbers.add(CardValidator.fromKey(keys[i]));
+        blocklistService.recordAdded(BlocklistType.CARD, cardNumbers);
+
+        return locked;
+    }
+
+    /**
+     * Saves all IP addresses of an upload as suspicious. Every chunk costs one query for the existing addresses and
+     * one batched insert, each in its own transaction. The ids are reserved in blocks (see {@link IdGenerators}), so
+     * a block of ids costs one more round trip, not every row.
+     *
+     * @param in     The upload
+     * @param format The format of the upload
+     * @return The number of inserted, duplicate and invalid IP addresses
+     * @throws IOException if the upload can't be read
+     */
+    public BulkImportResponse importSuspiciousIPs(InputStream in, BulkRecordReader.Format format) throws IOException {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        long inserted = 0;
+        long total = 0;
+        long invalid = 0;
+        Set<String> chunk = new LinkedHashSet<>();
+
+        try (BulkRecordReader reader = new BulkRecordReader(in, format, "ip")) {
+            String network;
+            while ((network = reader.next()) != null) {
+                String ip = IPAddressValidator.canonicalizeNetwork(network);
+                if (ip == null) {
+                    invalid++;
+                    continue;
+                }
+
+                total++;
+                chunk.add(ip);
+                if (chunk.size() == chunkSize) {
+                    inserted += saveChunk(transactionTemplate, chunk);
+                    chunk.clear();
+                }
+            }
+            inserted += saveChunk(transactionTemplate, chunk);
+        }
+
+        log.info("Imported {} suspicious IPs ({} duplicates, {} invalid)", inserted, total - inserted, invalid);
+        return new BulkImportResponse(inserted, total - inserted, invalid);
+    }
+
+    /**
+     * Helper method to insert the IP addresses of a chunk that aren't stored yet.
+     *
+     * @return The number of inserted IP addresses
+     */
+    private int saveChunk(TransactionTemplate transactionTemplate, Set<String> chunk) {
+        if (chunk.isEmpty()) return 0;
+
+        List<String> saved = transactionTemplate.execute(status -> {
+            Set<String> existing = suspiciousIPRepository.findAllByIpIn(chunk).stream()
+                    .map(IPAddress::getIp)
+                    .collect(Collectors.toSet());
+
+            List<IPAddress> toSave = new ArrayList<>(chunk.size());
+            for (String ip : chunk) {
+                if (!existing.contains(ip)) toSave.add(new IPAddress(ip));
+            }
+            suspiciousIPRepository.saveAll(toSave);
+            return toSave.stream().map(IPAddress::getIp).collect(Collectors.toList());
+        });
+        if (saved == null) return 0;
+
+        // Recorded after the commit, so the new version never refers to uncommitted rows
+        saved.forEach(suspiciousIPStore::add);
+        blocklistService.recordAdded(BlocklistType.IP, saved);
+        return saved.size();
+    }
+}
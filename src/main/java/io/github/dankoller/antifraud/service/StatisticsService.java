@@ -0,0 +1,90 @@
+package io.github.dankoller.antifraud.service;
+
+import io.github.dankoller.antifraud.aggregate.HeavyHitterTracker;
+import io.github.dankoller.antifraud.aggregate.SpendingProfile;
+import io.github.dankoller.antifraud.aggregate.SpendingProfileStore;
+import io.github.dankoller.antifraud.response.HeavyHitterResponse;
+import io.github.dankoller.antifraud.response.ProfileResponse;
+import io.github.dankoller.antifraud.util.CardValidator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+@Service
+@SuppressWarnings("unused")
+public class StatisticsService {
+
+    private static final int MAX_LIMIT = 100;
+
+    @Autowired
+    private HeavyHitterTracker heavyHitterTracker;
+
+    @Autowired
+    private SpendingProfileStore spendingProfileStore;
+
+    /**
+     * Returns the IP addresses with the most PROHIBITED or MANUAL_PROCESSING verdicts in the given window.
+     *
+     * @param windowMinutes The length of the window in minutes
+     * @param limit         The maximum number of IP addresses to be returned
+     * @return List of IP addresses with their counts, most frequent first
+     */
+    public List<HeavyHitterResponse> getTopIps(long windowMinutes, int limit) {
+        validate(windowMinutes, limit);
+        return heavyHitterTracker.getTopIps(windowMinutes * 60, limit).stream()
+                .map(HeavyHitterResponse::createHeavyHitterResponse)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the cards with the most PROHIBITED or MANUAL_PROCESSING verdicts in the given window.
+     *
+     * @param windowMinutes The length of the window in minutes
+     * @param limit         The maximum number of cards to be returned
+     * @return List of card numbers with their counts, most frequent first
+     */
+    public List<HeavyHitterResponse> getTopCards(long windowMinutes, int limit) {
+        validate(windowMinutes, limit);
+        return heavyHitterTracker.getTopCards(windowMinutes * 60, limit).stream()
+                .map(HeavyHitterResponse::createHeavyHitterResponse)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the spending profile of a card.
+     *
+     * @param cardNumber The card number to look up
+     * @return ProfileResponse with the statistics of the card
+     */
+    public ProfileResponse getProfile(String cardNumber) {
+        long cardKey = CardValidator.toValidKey(cardNumber);
+        if (cardKey == CardValidator.INVALID) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid card number");
+        }
+
+        SpendingProfile profile = spendingProfileStore.get(cardKey);
+        if (profile == null) throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Profile not found");
+
+        return ProfileResponse.createProfileResponse(cardNumber, profile);
+    }
+
+    /**
+     * Helper method to reject windows longer than the tracked time span and unreasonable limits.
+     *
+     * @param windowMinutes The requested window in minutes
+     * @param limit         The requested number of entries
+     */
+    private void validate(long windowMinutes, int limit) {
+        if (windowMinutes <= 0 || windowMinutes * 60 > heavyHitterTracker.getMaxWindowSeconds()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid window");
+        }
+
+        if (limit <= 0 || limit > MAX_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid limit");
+        }
+    }
+}
@@ -1,34 +1,87 @@
 package io.github.dankoller.antifraud.service;
 
-import io.github.dankoller.antifraud.entity.Card;
+import io.github.dankoller.antifraud.aggregate.HeavyHitterTracker;
+import io.github.dankoller.antifraud.archive.TransactionArchive;
+import io.github.dankoller.antifraud.entity.LimitAdjustment;
 import io.github.dankoller.antifraud.entity.transaction.Transaction;
 import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
-import io.github.dankoller.antifraud.persistence.CardRepository;
+import io.github.dankoller.antifraud.jfr.FraudEvents;
+import io.github.dankoller.antifraud.jfr.LimitChangeEvent;
+import io.github.dankoller.antifraud.jfr.RepositoryCallEvent;
+import io.github.dankoller.antifraud.jfr.ScoringEvent;
+import io.github.dankoller.antifraud.limits.LimitHistoryService;
 import io.github.dankoller.antifraud.persistence.TransactionRepository;
+import io.github.dankoller.antifraud.request.FeedbackRequest;
+import io.github.dankoller.antifraud.response.BulkFeedbackResponse;
+import io.github.dankoller.antifraud.response.BulkFeedbackResponse.FeedbackStatus;
+import io.github.dankoller.antifraud.review.ReviewQueue;
+import io.github.dankoller.antifraud.store.CardLocks;
+import io.github.dankoller.antifraud.store.CardState;
+import io.github.dankoller.antifraud.store.CardStateStore;
+import io.github.dankoller.antifraud.timing.RequestTimings;
 import io.github.dankoller.antifraud.util.CardValidator;
 import io.github.dankoller.antifraud.util.IPAddressValidator;
+import io.github.dankoller.antifraud.util.LimitPolicy;
 import io.github.dankoller.antifraud.util.TransactionValidator;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
+@Slf4j
 @Service
 @SuppressWarnings("unused")
 public class TransactionService {
 
+    // Bounds of a half-open date range, within the range of MySQL's DATETIME
+    private static final LocalDateTime EARLIEST = LocalDateTime.of(1000, 1, 1, 0, 0);
+    private static final LocalDateTime LATEST = LocalDateTime.of(9999, 12, 31, 0, 0);
+
+    @Autowired
+    private CardStateStore cardStateStore;
+
     @Autowired
-    private CardRepository cardRepository;
+    private CardLocks cardLocks;
 
     @Autowired
     private TransactionRepository transactionRepository;
 
+    @Autowired
+    private TransactionArchive transactionArchive;
+
     @Autowired
     private TransactionValidator transactionValidator;
 
+    @Autowired
+    private HeavyHitterTracker heavyHitterTracker;
+
+    @Autowired
+    private LimitHistoryService limitHistoryService;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private ReviewQueue reviewQueue;
+
+    @Value("${antifraud.feedback.chunk-size:1000}")
+    private int bulkChunkSize;
+
     /**
      * Processes a transaction by validating card number and ip address.
      *
@@ -36,23 +89,46 @@ public class TransactionService {
      * @return Map with the result and information of the transaction
      */
     public Map<String, String> processTransaction(Transaction transaction) {
+        long start = RequestTimings.start();
         Long amount = transaction.getAmount();
-        // Check if ip address is valid
-        String ip = IPAddressValidator.isNonValidIp(transaction.getIp()) ? null : transaction.getIp();
-        // Check if card number is valid
-        String cardNumber = CardValidator.isNonValid(transaction.getNumber()) ? null : transaction.getNumber();
+        // Check if ip address is valid and use its canonical notation, so every notation counts as the same address
+        String ip = IPAddressValidator.canonicalize(transaction.getIp());
+        // Check if card number is valid, the key is used for all lookups of the card from here on
+        long cardKey = CardValidator.toValidKey(transaction.getNumber());
 
         // Transferring negative amounts isn't allowed
-        if (amount == null || ip == null || cardNumber == null || amount <= 0 || ip.isEmpty() || cardNumber.isEmpty()) {
+        if (amount == null || ip == null || cardKey == CardValidator.INVALID || amount <= 0 || ip.isEmpty()) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid transaction");
         }
 
+        transaction.setIp(ip);
+        start = RequestTimings.lap("validation", start);
+
+        ScoringEvent event = new ScoringEvent();
+        event.begin();
+
         // Check if the card already exists in the database
-        saveCardIfNotExists(cardNumber);
+        saveCardIfNotExists(cardKey);
+        start = RequestTimings.lap("card-upsert", start);
 
-        // Verify transaction and save it in the database
-        transactionValidator.verifyTransaction(transaction);
-        transactionRepository.save(transaction);
+        // Verify transaction and save it in the database (the heuristics are timed by the validator)
+        transactionValidator.verifyTransaction(transaction, cardKey);
+        start = RequestTimings.start();
+        saveTransaction(transaction, cardKey);
+        start = RequestTimings.lap("persistence", start);
+        heavyHitterTracker.record(transaction);
+        start = RequestTimings.lap("heavy-hitters", start);
+        reviewQueue.add(transaction);
+        RequestTimings.lap("review-queue", start);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.cardKeyHash = FraudEvents.cardKeyHash(cardKey);
+            event.amount = amount;
+            event.result = transaction.getResult();
+            event.reasons = transaction.getInfo();
+            event.commit();
+        }
 
         return Map.of(
                 "result", transaction.getResult(),
@@ -61,13 +137,33 @@ public class TransactionService {
     }
 
     /**
-     * Helper method to save a card in the database if it doesn't exist.
+     * Helper method to save a card in the card state store if it doesn't exist. The card table is updated
+     * asynchronously.
+     *
+     * @param cardKey The key of the card number to be checked and saved
+     */
+    private void saveCardIfNotExists(long cardKey) {
+        cardStateStore.getOrCreate(cardKey);
+    }
+
+    /**
+     * Helper method to save a scored transaction, recorded as JFR event.
      *
-     * @param cardNumber The card number to be checked and saved
+     * @param transaction The transaction to be saved
+     * @param cardKey     The key of its card number
      */
-    private void saveCardIfNotExists(String cardNumber) {
-        if (cardRepository.findByNumber(cardNumber).isEmpty()) {
-            cardRepository.save(new Card(cardNumber, false));
+    private void saveTransaction(Transaction transaction, long cardKey) {
+        RepositoryCallEvent event = new RepositoryCallEvent();
+        event.begin();
+
+        transactionRepository.save(transaction);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = "TransactionRepository.save";
+            event.cardKeyHash = FraudEvents.cardKeyHash(cardKey);
+            event.rows = 1;
+            event.commit();
         }
     }
 
@@ -82,6 +178,137 @@ public class TransactionService {
         Transaction transaction = transactionRepository.findById(transactionId)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Transaction not found"));
 
+        checkFeedback(transaction, feedback);
+        changeLimit(transaction, feedback);
+
+        transaction.setFeedback(TransactionResult.valueOf(feedback));
+        transactionRepository.save(transaction);
+        reviewQueue.removeAll(List.of(transactionId));
+
+        return transaction;
+    }
+
+    /**
+     * Provide feedback for many transactions at once, e.g. after a review. The items are processed in chunks, each in
+     * one database transaction: the transactions of a chunk are loaded with one query and validated before anything
+     * is written, the adjustments of a card are applied in the order of the items, and the feedback and the limit
+     * history are written in batches. The limits of a card go live once per chunk, after the commit. The cards of a
+     * chunk stay locked from reading their limits until the new limits are live, so a single feedback on one of them
+     * waits instead of being overwritten.
+     *
+     * @param items The transaction ids and the feedback
+     * @return The status of every item, in the order of the request
+     */
+    public BulkFeedbackResponse updateTransactions(List<FeedbackRequest> items) {
+        // Duplicates are rejected for the whole request before the first chunk is written
+        List<FeedbackStatus> statuses = new ArrayList<>(Collections.nCopies(items.size(), null));
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i < items.size(); i++) {
+            FeedbackRequest item = items.get(i);
+            if (item.getTransactionId() == null) {
+                statuses.set(i, rejected(item, HttpStatus.NOT_FOUND, "Transaction not found"));
+            } else if (!seen.add(item.getTransactionId())) {
+                statuses.set(i, rejected(item, HttpStatus.CONFLICT, "Duplicate transaction"));
+            }
+        }
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        for (int from = 0; from < items.size(); from += bulkChunkSize) {
+            int to = Math.min(items.size(), from + bulkChunkSize);
+            int first = from;
+            try (CardLocks.Batch lockedCards = cardLocks.batch()) {
+                Map<Long, Long> limits;
+                try {
+                    limits = transactionTemplate.execute(status ->
+                            updateChunk(items.subList(first, to), statuses.subList(first, to), lockedCards));
+                } catch (RuntimeException e) {
+                    // Rolled back, the items that weren't rejected before (or not reached) are not saved
+                    log.warn("Failed to save the feedback of {} transactions", to - from, e);
+                    for (int i = from; i < to; i++) {
+                        FeedbackStatus status = statuses.get(i);
+                        if (status == null || status.status() == HttpStatus.OK.value()) {
+                            statuses.set(i, rejected(items.get(i), HttpStatus.INTERNAL_SERVER_ERROR,
+                                    "Feedback not saved"));
+                        }
+                    }
+                    continue;
+                }
+
+                limits.forEach((cardKey, state) ->
+                        cardStateStore.setLimits(cardKey, CardState.allowedLimit(state), CardState.manualLimit(state)));
+            }
+            reviewQueue.removeAll(statuses.subList(first, to).stream()
+                    .filter(status -> status.status() == HttpStatus.OK.value())
+                    .map(FeedbackStatus::transactionId)
+                    .toList());
+        }
+
+        long updated = statuses.stream().filter(status -> status.status() == HttpStatus.OK.value()).count();
+        return new BulkFeedbackResponse(updated, statuses.size() - updated, statuses);
+    }
+
+    /**
+     * Helper method to validate and apply the feedback of one chunk. The loaded transactions are managed, their
+     * feedback is written at commit in batched updates.
+     *
+     * @param items       The items of the chunk
+     * @param statuses    The statuses of the items, filled in for the valid ones
+     * @param lockedCards Receives the locks of the cards, held by the caller until the new limits are live
+     * @return The new state of every adjusted card
+     */
+    private Map<Long, Long> updateChunk(List<FeedbackRequest> items, List<FeedbackStatus> statuses,
+                                        CardLocks.Batch lockedCards) {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            if (statuses.get(i) == null) ids.add(items.get(i).getTransactionId());
+        }
+        Map<Long, Transaction> transactions = transactionRepository.findAllById(ids).stream()
+                .collect(Collectors.toMap(Transaction::getId, Function.identity()));
+        lockedCards.lockAll(transactions.values().stream()
+                .map(transaction -> CardValidator.toKey(transaction.getNumber()))
+                .toList());
+
+        Map<Long, Long> states = new HashMap<>();
+        List<LimitAdjustment> adjustments = new ArrayList<>();
+
+        for (int i = 0; i < items.size(); i++) {
+            if (statuses.get(i) != null) continue;
+            FeedbackRequest item = items.get(i);
+            Transaction transaction = transactions.get(item.getTransactionId());
+
+            try {
+                if (transaction == null) {
+                    throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Transaction not found");
+                }
+                checkFeedback(transaction, item.getFeedback());
+            } catch (ResponseStatusException e) {
+                statuses.set(i, rejected(item, e.getStatus(), e.getReason()));
+                continue;
+            }
+
+            long cardKey = CardValidator.toKey(transaction.getNumber());
+            long state = states.computeIfAbsent(cardKey, cardStateStore::getOrCreate);
+
+            TransactionResult feedback = TransactionResult.valueOf(item.getFeedback());
+            long adjusted = adjustLimits(cardKey, state, transaction, item.getFeedback());
+            adjustments.add(LimitHistoryService.adjustment(cardKey, transaction, feedback, state, adjusted));
+            states.put(cardKey, adjusted);
+
+            transaction.setFeedback(feedback);
+            statuses.set(i, new FeedbackStatus(item.getTransactionId(), HttpStatus.OK.value(), "OK"));
+        }
+
+        limitHistoryService.recordAll(adjustments);
+        return states;
+    }
+
+    /**
+     * Helper method to reject feedback that is invalid, comes too late or matches the result.
+     *
+     * @param transaction The transaction
+     * @param feedback    The feedback to be provided
+     */
+    private static void checkFeedback(Transaction transaction, String feedback) {
         if (TransactionValidator.isFeedbackWrongFormat(feedback)) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid feedback");
         } else if (!transaction.getFeedback().isBlank()) {
@@ -89,13 +316,10 @@ public class TransactionService {
         } else if (transaction.getResult().equals(feedback)) {
             throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "Transaction not processable");
         }
+    }
 
-        changeLimit(transaction, feedback);
-
-        transaction.setFeedback(TransactionResult.valueOf(feedback));
-        transactionRepository.save(transaction);
-
-        return transaction;
+    private static FeedbackStatus rejected(FeedbackRequest item, HttpStatus status, String message) {
+        return new FeedbackStatus(item.getTransactionId(), status.value(), message);
     }
 
     /**
@@ -105,49 +329,92 @@ public class TransactionService {
      * @param feedback    The feedback to be provided
      */
     private void changeLimit(Transaction transaction, String feedback) {
-        String trResult = transaction.getResult();
-        Card card = cardRepository.findByNumber(transaction.getNumber())
-                .orElseThrow(AssertionError::new);
-
-        // Formula for increasing the limit: new_limit = 0.8 * current_limit + 0.2 * value_from_transaction
-        int increasedAllowed = (int) Math.ceil(0.8 * card.getAllowedLimit() + 0.2 * transaction.getAmount());
-        int decreasedAllowed = (int) Math.ceil(0.8 * card.getAllowedLimit() - 0.2 * transaction.getAmount());
-        int increasedManual = (int) Math.ceil(0.8 * card.getManualLimit() + 0.2 * transaction.getAmount());
-        int decreasedManual = (int) Math.ceil(0.8 * card.getManualLimit() - 0.2 * transaction.getAmount());
-
-        // Set the new limit based on the feedback
-        if (feedback.equals("MANUAL_PROCESSING") && trResult.equals("ALLOWED")) {
-            card.setAllowedLimit(decreasedAllowed);
-        } else if (feedback.equals("PROHIBITED") && trResult.equals("ALLOWED")) {
-            card.setAllowedLimit(decreasedAllowed);
-            card.setManualLimit(decreasedManual);
-        } else if (feedback.equals("ALLOWED") && trResult.equals("MANUAL_PROCESSING")) {
-            card.setAllowedLimit(increasedAllowed);
-        } else if (feedback.equals("PROHIBITED") && trResult.equals("MANUAL_PROCESSING")) {
-            card.setManualLimit(decreasedManual);
-        } else if (feedback.equals("ALLOWED") && trResult.equals("PROHIBITED")) {
-            card.setAllowedLimit(increasedAllowed);
-            card.setManualLimit(increasedManual);
-        } else if (feedback.equals("MANUAL_PROCESSING") && trResult.equals("PROHIBITED")) {
-            card.setManualLimit(increasedManual);
+        long cardKey = CardValidator.toKey(transaction.getNumber());
+
+        // Held until the new limits are live, so a bulk feedback on the same card can't overwrite them
+        cardLocks.lock(cardKey);
+        try {
+            long state = cardStateStore.getOrCreate(cardKey);
+            long adjusted = adjustLimits(cardKey, state, transaction, feedback);
+
+            // Append the adjustment to the limit history first, so no limit goes live without its record
+            limitHistoryService.record(cardKey, transaction, TransactionResult.valueOf(feedback), state, adjusted);
+
+            // Save the new limit in the card state store, the card table follows asynchronously
+            cardStateStore.setLimits(cardKey, CardState.allowedLimit(adjusted), CardState.manualLimit(adjusted));
+        } finally {
+            cardLocks.unlock(cardKey);
         }
+    }
 
-        // Save the new limit in the database
-        cardRepository.save(card);
+    /**
+     * Helper method to compute the limits of a card after a feedback, recorded as JFR event.
+     *
+     * @param cardKey     The key of the card number
+     * @param state       The state of the card before, see {@link CardState}
+     * @param transaction The transaction that received the feedback
+     * @param feedback    The feedback
+     * @return The state with the new limits
+     */
+    private static long adjustLimits(long cardKey, long state, Transaction transaction, String feedback) {
+        String trResult = transaction.getResult();
+
+        // Move the limits towards the amount of the transaction, see LimitPolicy for the formula
+        long adjusted = LimitPolicy.CURRENT.adjustLimits(state, TransactionResult.valueOf(trResult),
+                TransactionResult.valueOf(feedback), transaction.getAmount());
+
+        LimitChangeEvent event = new LimitChangeEvent();
+        if (event.shouldCommit()) {
+            event.cardKeyHash = FraudEvents.cardKeyHash(cardKey);
+            event.result = trResult;
+            event.feedback = feedback;
+            event.allowedLimitBefore = CardState.allowedLimit(state);
+            event.allowedLimitAfter = CardState.allowedLimit(adjusted);
+            event.manualLimitBefore = CardState.manualLimit(state);
+            event.manualLimitAfter = CardState.manualLimit(adjusted);
+            event.commit();
+        }
+        return adjusted;
     }
 
     /**
-     * Return transaction history for a given card number
+     * Return transaction history for a given card number, the archived transactions first. With a date range, only
+     * the partitions of that range are read.
      *
      * @param cardNumber The card number to be checked
+     * @param from       First date (inclusive), null for the start of the history
+     * @param to         Last date (exclusive), null for the end of the history
      * @return List of transaction history for the given card number
      */
-    public List<Transaction> getTransactionHistory(String cardNumber) {
+    public List<Transaction> getTransactionHistory(String cardNumber, LocalDateTime from, LocalDateTime to) {
         if (CardValidator.isNonValid(cardNumber)) throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        if (from != null && to != null && !from.isBefore(to)) throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
 
-        List<Transaction> transactions = transactionRepository.findAllByNumber(cardNumber);
+        List<Transaction> transactions = transactionArchive.read(() -> {
+            List<Transaction> history = transactionArchive.findAllByCardKey(CardValidator.toKey(cardNumber), from, to);
+            if (from == null && to == null) {
+                history.addAll(transactionRepository.findAllByNumber(cardNumber));
+            } else {
+                history.addAll(transactionRepository.findAllByNumberAndDateGreaterThanEqualAndDateLessThan(cardNumber,
+                        from == null ? EARLIEST : from, to == null ? LATEST : to));
+            }
+            return history;
+        });
         if (transactions.isEmpty()) throw new ResponseStatusException(HttpStatus.NOT_FOUND);
 
         return transactions;
     }
+
+    /**
+     * Return all transactions, the archived ones first
+     *
+     * @return List of all transactions
+     */
+    public List<Transaction> getAllTransactions() {
+        return transactionArchive.read(() -> {
+            List<Transaction> transactions = transactionArchive.findAll();
+            transactions.addAll(transactionRepository.findAll());
+            return transactions;
+        });
+    }
 }
@@ -1,9 +1,15 @@
 package io.github.dankoller.antifraud.service;
 
+import io.github.dankoller.antifraud.entity.BlocklistType;
 import io.github.dankoller.antifraud.entity.Card;
 import io.github.dankoller.antifraud.entity.IPAddress;
+import io.github.dankoller.antifraud.expiry.SuspiciousIPExpiry;
 import io.github.dankoller.antifraud.persistence.CardRepository;
 import io.github.dankoller.antifraud.persistence.SuspiciousIPRepository;
+import io.github.dankoller.antifraud.store.CardStateStore;
+import io.github.dankoller.antifraud.store.CardStateSynchronizer;
+import io.github.dankoller.antifraud.store.OffHeapLongLongMap;
+import io.github.dankoller.antifraud.store.SuspiciousIPStore;
 import io.github.dankoller.antifraud.util.CardValidator;
 import io.github.dankoller.antifraud.util.IPAddressValidator;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,33 +17,71 @@ import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
 @Service
 @SuppressWarnings("unused")
 public class ValidationService {
 
+    // Longer TTLs overflow the expiry date, and the DATETIME column ends with the year 9999
+    private static final long MAX_TTL_SECONDS = Duration.ofDays(3650).toSeconds();
+
     @Autowired
     private SuspiciousIPRepository suspiciousIPRepository;
 
     @Autowired
     private CardRepository cardRepository;
 
+    @Autowired
+    private CardStateStore cardStateStore;
+
+    @Autowired
+    private CardStateSynchronizer cardStateSynchronizer;
+
+    @Autowired
+    private BlocklistService blocklistService;
+
+    @Autowired
+    private SuspiciousIPExpiry suspiciousIPExpiry;
+
+    @Autowired
+    private SuspiciousIPStore suspiciousIPStore;
+
     /**
      * Save suspicious IP addresses to prevented further transactions.
      *
-     * @param ip IP address to be saved
+     * @param network IP address or network in CIDR notation to be saved
+     * @param ttl     Optional number of seconds after which the IP address is removed again, at most ten years
      * @return Saved IP address
      */
-    public IPAddress saveSuspiciousIP(String ip) {
-        if (IPAddressValidator.isNonValidIp(ip)) {
+    public IPAddress saveSuspiciousIP(String network, String ttl) {
+        String ip = IPAddressValidator.canonicalizeNetwork(network);
+        if (ip == null) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid IP address");
         }
 
+        LocalDateTime expiresAt = null;
+        if (ttl != null) {
+            try {
+                long seconds = Long.parseLong(ttl);
+                if (seconds <= 0 || seconds > MAX_TTL_SECONDS) throw new NumberFormatException();
+                expiresAt = LocalDateTime.now().plusSeconds(seconds);
+            } catch (NumberFormatException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid TTL");
+            }
+        }
+
         if (suspiciousIPRepository.findByIp(ip).isPresent()) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "Card number is flagged as stolen");
         }
 
-        IPAddress ipAddress = new IPAddress(ip);
+        IPAddress ipAddress = new IPAddress(ip, expiresAt);
         suspiciousIPRepository.save(ipAddress);
+        suspiciousIPStore.add(ip);
+        suspiciousIPExpiry.schedule(ip, expiresAt);
+        blocklistService.recordAdded(BlocklistType.IP, List.of(ip));
 
         return ipAddress;
     }
@@ -54,11 +98,12 @@ public class ValidationService {
     /**
      * Remove a suspicious IP address from the database.
      *
-     * @param ip IP address to be removed
+     * @param network IP address or network in CIDR notation to be removed
      * @return A String containing the success status and the removed IP address
      */
-    public String deleteSuspiciousIP(String ip) {
-        if (IPAddressValidator.isNonValidIp(ip)) {
+    public String deleteSuspiciousIP(String network) {
+        String ip = IPAddressValidator.canonicalizeNetwork(network);
+        if (ip == null) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid IP address");
         }
 
@@ -66,6 +111,9 @@ public class ValidationService {
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "IP address not found"));
 
         suspiciousIPRepository.delete(ipAddress);
+        suspiciousIPStore.remove(ip);
+        suspiciousIPExpiry.cancel(ip);
+        blocklistService.recordRemoved(BlocklistType.IP, ip);
 
         return "IP " + ip + " successfully removed!";
     }
@@ -77,27 +125,22 @@ public class ValidationService {
      * @return Saved card entity
      */
     public Card saveStolenCard(String cardNumber) {
-        if (CardValidator.isNonValid(cardNumber)) {
+        long cardKey = CardValidator.toValidKey(cardNumber);
+        if (cardKey == CardValidator.INVALID) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid card number");
         }
 
-        Card card;
-
-        // Check if the card already exists in the database
-        if (cardRepository.findByNumber(cardNumber).isPresent()) {
-            if (cardRepository.existsByNumberAndIsLockedTrue(cardNumber)) {
-                throw new ResponseStatusException(HttpStatus.CONFLICT, "Card number is flagged as stolen");
-            } else {
-                // Lock the existing card to prevent fraud attempts
-                card = cardRepository.findByNumber(cardNumber).get();
-                card.setLocked(true);
-            }
-        } else {
-            // Create a new card entity and lock it right away
-            card = new Card(cardNumber, true);
+        // Lock the card in the store first, so scoring sees it right away
+        if (!cardStateStore.lock(cardKey)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Card number is flagged as stolen");
         }
 
-        cardRepository.save(card);
+        // The synchronizer is the only writer of the card table, so a card that was scored but not synchronized yet
+        // can't get a second row. It runs right away here, since the response contains the id of the card.
+        cardStateSynchronizer.synchronize();
+        Card card = cardRepository.findByNumber(cardNumber).orElseThrow(() ->
+                new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Card table not synchronized"));
+        blocklistService.recordAdded(BlocklistType.CARD, List.of(cardNumber));
 
         return card;
     }
@@ -109,14 +152,19 @@ public class ValidationService {
      * @return A String containing the success status and the removed card number
      */
     public String deleteStolenCard(String cardNumber) {
-        if (CardValidator.isNonValid(cardNumber)) {
+        long cardKey = CardValidator.toValidKey(cardNumber);
+        if (cardKey == CardValidator.INVALID) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid card number");
         }
+        long state = cardStateStore.get(cardKey);
+        if (state == OffHeapLongLongMap.MISSING) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Card number not found");
+        }
 
-        Card card = cardRepository.findByNumber(cardNumber)
-                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Card number not found"));
-
-        if (card.isLocked()) cardRepository.delete(card);
+        if (cardStateStore.unlock(cardKey)) {
+            cardStateSynchronizer.synchronize();
+            blocklistService.recordRemoved(BlocklistType.CARD, cardNumber);
+        }
 
         return "Card " + cardNumber + " successfully removed!";
     }
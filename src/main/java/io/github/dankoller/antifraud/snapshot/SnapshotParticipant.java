@@ -0,0 +1,52 @@
+package io.github.dankoller.antifraud.snapshot;
+
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An in-memory structure that is saved in the state snapshot, so it doesn't have to be rebuilt from the database
+ * after a restart. Every participant owns one named section of the snapshot file.
+ */
+public interface SnapshotParticipant {
+
+    /**
+     * The unique name of the participant's section in the snapshot file. When the format of a section changes, its name
+     * gets a new version suffix (e.g. {@code velocity-v2}), so a section of an older format is never read.
+     *
+     * @return The section name
+     */
+    String getSnapshotSection();
+
+    /**
+     * Writes the current state of the participant.
+     *
+     * @param out The stream of the participant's section
+     * @throws IOException if the section can't be written
+     */
+    void writeSnapshot(DataOutputStream out) throws IOException;
+
+    /**
+     * Restores the state written by {@link #writeSnapshot(DataOutputStream)}. The buffer is a memory-mapped view of
+     * the section and stays valid after the call, so participants may keep it and read from it lazily.
+     *
+     * @param section The section of the snapshot file
+     */
+    void restoreSnapshot(ByteBuffer section);
+
+    /**
+     * Builds the state from the database instead, when there is no snapshot or it has no section of the participant.
+     */
+    default void restoreFromDatabase() {
+    }
+
+    /**
+     * Applies a transaction that was stored after the snapshot was written, to bring the state up to date.
+     *
+     * @param transaction A transaction newer than the snapshot
+     */
+    default void replay(Transaction transaction) {
+    }
+}
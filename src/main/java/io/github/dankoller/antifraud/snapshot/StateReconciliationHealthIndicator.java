@@ -0,0 +1,28 @@
+package io.github.dankoller.antifraud.snapshot;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports the application as out of service until the restored state snapshot is reconciled with the transactions
+ * stored after it. It is part of the readiness group, so no traffic is routed to an instance with stale state.
+ */
+@Component("stateReconciliation")
+@SuppressWarnings("unused")
+public class StateReconciliationHealthIndicator implements HealthIndicator {
+
+    @Autowired
+    private StateSnapshotService stateSnapshotService;
+
+    @Override
+    public Health health() {
+        Health.Builder builder = stateSnapshotService.isReconciled() ? Health.up() : Health.outOfService();
+        return builder
+                .withDetail("highWaterMark", stateSnapshotService.getHighWaterMark())
+                .withDetail("replayed", stateSnapshotService.getReplayed())
+                .withDetail("failures", stateSnapshotService.getFailures())
+                .build();
+    }
+}
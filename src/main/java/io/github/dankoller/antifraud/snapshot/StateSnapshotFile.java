@@ -0,0 +1,152 @@
+package io.github.dankoller.antifraud.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state snapshot file. It records the id of the newest transaction included in the state (the high-water mark)
+ * followed by one section per {@link SnapshotParticipant}. Reading maps every section into memory on its own and hands
+ * the participant a view of it, nothing is copied until the participant reads it. A section is limited to 2 GB, the
+ * file is not.
+ * <p>
+ * Format: magic(8) version(4) highWaterMark(8) createdAt(8) { nameLength(2) name length(8) bytes }* nameLength(2)=0
+ */
+public final class StateSnapshotFile {
+
+    private static final long MAGIC = 0x414E_5449_5354_4154L; // "ANTISTAT"
+    private static final int VERSION = 1;
+
+    private final long highWaterMark;
+    private final long createdAt;
+    private final Map<String, ByteBuffer> sections;
+
+    private StateSnapshotFile(long highWaterMark, long createdAt, Map<String, ByteBuffer> sections) {
+        this.highWaterMark = highWaterMark;
+        this.createdAt = createdAt;
+        this.sections = sections;
+    }
+
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Returns a view of a section.
+     *
+     * @param name The section name of a participant
+     * @return The section, or null if the snapshot doesn't contain it
+     */
+    public ByteBuffer getSection(String name) {
+        ByteBuffer section = sections.get(name);
+        return section == null ? null : section.duplicate();
+    }
+
+    /**
+     * Maps a snapshot file into memory. The mapping stays valid after the file is replaced by a newer snapshot.
+     *
+     * @param file The snapshot file
+     * @return The snapshot
+     * @throws IOException if the file can't be read or has an unknown format
+     */
+    public static StateSnapshotFile read(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = readAt(in, 0, 28);
+            if (header.getLong() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Unknown state snapshot format: " + file);
+            }
+            long highWaterMark = header.getLong();
+            long createdAt = header.getLong();
+
+            Map<String, ByteBuffer> sections = new LinkedHashMap<>();
+            long position = 28;
+            int nameLength;
+            while ((nameLength = Short.toUnsignedInt(readAt(in, position, 2).getShort())) != 0) {
+                ByteBuffer entry = readAt(in, position, 2 + nameLength + 8);
+                String name = SnapshotIO.readString(entry);
+                long length = entry.getLong();
+                position += entry.capacity();
+                if (length < 0 || length > in.size() - position) {
+                    throw new IOException("Corrupt state snapshot: " + file);
+                }
+
+                sections.put(name, in.map(FileChannel.MapMode.READ_ONLY, position, length).asReadOnlyBuffer());
+                position += length;
+            }
+            return new StateSnapshotFile(highWaterMark, createdAt, sections);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt state snapshot: " + file, e);
+        }
+    }
+
+    /**
+     * Helper method to read a part of the file into a heap buffer.
+     */
+    private static ByteBuffer readAt(FileChannel in, long position, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of state snapshot");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Writes a new snapshot of all participants. The file is written to a temporary file first and moved into place
+     * atomically, so a crash leaves either the old or the new snapshot.
+     *
+     * @param file          The snapshot file
+     * @param highWaterMark The id of the newest transaction included in the state
+     * @param participants  The participants to be written
+     * @throws IOException if the file can't be written
+     */
+    public static void write(Path file, long highWaterMark, List<SnapshotParticipant> participants)
+            throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        // The stream is only flushed, closing the channel closes it as well
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(highWaterMark);
+            out.writeLong(System.currentTimeMillis());
+
+            for (SnapshotParticipant participant : participants) {
+                SnapshotIO.writeString(out, participant.getSnapshotSection());
+                out.writeLong(0);
+                out.flush();
+
+                // Patch the length once the section is written
+                long lengthPosition = channel.position() - 8;
+                participant.writeSnapshot(out);
+                out.flush();
+                long length = channel.position() - lengthPosition - 8;
+                channel.write(ByteBuffer.allocate(8).putLong(0, length), lengthPosition);
+            }
+
+            out.writeShort(0);
+            out.flush();
+            channel.force(true);
+        }
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
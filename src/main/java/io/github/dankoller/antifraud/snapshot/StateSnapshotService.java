@@ -0,0 +1,191 @@
+package io.github.dankoller.antifraud.snapshot;
+
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.persistence.TransactionRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Saves the in-memory scoring state (velocity windows, distinct-count sketches, spending profiles) to a
+ * memory-mapped snapshot file, so a restart doesn't have to rebuild it from the transaction history.
+ * <p>
+ * On startup every participant restores its section, then the transactions stored after the snapshot's high-water
+ * mark are replayed in the background. Until that reconciliation is done the application reports itself as not ready
+ * (see {@link StateReconciliationHealthIndicator}). A failed replay is retried with an exponential backoff from the
+ * last replayed transaction. Without a configured directory no snapshot is written and the participants start from the
+ * database.
+ */
+@Slf4j
+@Component
+@SuppressWarnings("unused")
+public class StateSnapshotService {
+
+    private static final String SNAPSHOT_FILE = "state.snapshot";
+    private static final long MAX_RETRY_DELAY_MS = 60_000;
+
+    @Autowired
+    private List<SnapshotParticipant> participants;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Value("${antifraud.state.directory:}")
+    private String directory;
+
+    @Value("${antifraud.state.reconcile-retry-ms:1000}")
+    private long retryDelayMillis;
+
+    private volatile boolean reconciled;
+    private volatile long highWaterMark;
+    private volatile long replayed;
+    private volatile int failures;
+
+    /**
+     * Restores every participant from the snapshot, or from the database if there is none.
+     *
+     * @throws IOException if the snapshot directory can't be created
+     */
+    @PostConstruct
+    public void restore() throws IOException {
+        StateSnapshotFile snapshot = null;
+
+        if (!directory.isBlank()) {
+            Path file = Files.createDirectories(Path.of(directory)).resolve(SNAPSHOT_FILE);
+            if (Files.exists(file)) {
+                try {
+                    snapshot = StateSnapshotFile.read(file);
+                } catch (IOException e) {
+                    log.warn("Ignoring unreadable state snapshot, rebuilding the state from the database", e);
+                }
+            }
+        }
+
+        for (SnapshotParticipant participant : participants) {
+            ByteBuffer section = snapshot == null ? null : snapshot.getSection(participant.getSnapshotSection());
+            if (section != null) {
+                participant.restoreSnapshot(section);
+            } else {
+                participant.restoreFromDatabase();
+            }
+        }
+
+        if (snapshot == null) {
+            reconciled = true;
+        } else {
+            highWaterMark = snapshot.getHighWaterMark();
+            log.info("Restored state snapshot up to transaction {}", highWaterMark);
+        }
+    }
+
+    /**
+     * Starts replaying the transactions that are newer than the restored snapshot, once the application is running.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startReconciliation() {
+        if (reconciled) return;
+
+        Thread thread = new Thread(this::reconcile, "state-reconciliation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Helper method to replay all transactions between the high-water mark and the newest transaction at the time the
+     * reconciliation started. Newer transactions were already scored (and recorded) by the running application.
+     * The high-water mark follows every replayed transaction, so a retry continues where the failed attempt stopped.
+     */
+    private void reconcile() {
+        Long upTo = null;
+        long delay = retryDelayMillis;
+
+        while (true) {
+            try {
+                if (upTo == null) {
+                    Long newest = transactionRepository.findMaxId();
+                    upTo = newest == null ? highWaterMark : newest;
+                }
+                replayUpTo(upTo);
+                reconciled = true;
+                log.info("Reconciled state with {} transactions stored after the snapshot", replayed);
+                return;
+            } catch (RuntimeException e) {
+                failures++;
+                log.error("State reconciliation failed after transaction {}, retrying in {} ms",
+                        highWaterMark, delay, e);
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY_MS);
+        }
+    }
+
+    private void replayUpTo(long upTo) {
+        while (highWaterMark < upTo) {
+            List<Transaction> page =
+                    transactionRepository.findTop1000ByIdGreaterThanAndIdLessThanEqualOrderByIdAsc(highWaterMark, upTo);
+            if (page.isEmpty()) break;
+
+            for (Transaction transaction : page) {
+                for (SnapshotParticipant participant : participants) participant.replay(transaction);
+                highWaterMark = transaction.getId();
+                replayed++;
+            }
+        }
+        highWaterMark = upTo;
+    }
+
+    /**
+     * Writes a new snapshot. The high-water mark is read before the state is serialized, so a transaction that is
+     * scored concurrently may be replayed once more after a restart but is never lost.
+     */
+    @Scheduled(fixedDelayString = "${antifraud.state.snapshot-interval-ms:300000}",
+            initialDelayString = "${antifraud.state.snapshot-interval-ms:300000}")
+    @PreDestroy
+    public synchronized void snapshot() {
+        // A snapshot of a partially reconciled state would lose the transactions that weren't replayed yet
+        if (directory.isBlank() || !reconciled) return;
+
+        try {
+            Long newest = transactionRepository.findMaxId();
+            long mark = newest == null ? 0 : newest;
+            StateSnapshotFile.write(Path.of(directory).resolve(SNAPSHOT_FILE), mark, participants);
+            highWaterMark = mark;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to write the state snapshot", e);
+        }
+    }
+
+    public boolean isReconciled() {
+        return reconciled;
+    }
+
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public long getReplayed() {
+        return replayed;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+}
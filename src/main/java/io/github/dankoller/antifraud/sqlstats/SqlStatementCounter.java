@@ -0,0 +1,61 @@
+package io.github.dankoller.antifraud.sqlstats;
+
+/**
+ * Counts the SQL statements the current thread executes and the time they take, e.g. during one HTTP request.
+ * Counting is bound to the thread and only active between {@link #begin()} and {@link #end()}, so statements of
+ * scheduled jobs and other requests are never attributed to the wrong request.
+ */
+public final class SqlStatementCounter {
+
+    // Request attribute holding the counter of an HTTP request, e.g. for statement budgets in tests
+    public static final String REQUEST_ATTRIBUTE = SqlStatementCounter.class.getName();
+
+    private static final ThreadLocal<SqlStatementCounter> CURRENT = new ThreadLocal<>();
+
+    private int statements;
+    private long nanos;
+
+    private SqlStatementCounter() {
+    }
+
+    /**
+     * Starts counting for the current thread.
+     *
+     * @return The new counter
+     */
+    public static SqlStatementCounter begin() {
+        SqlStatementCounter counter = new SqlStatementCounter();
+        CURRENT.set(counter);
+        return counter;
+    }
+
+    /**
+     * Stops counting for the current thread.
+     */
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Adds an executed statement to the counter of the current thread, if any.
+     *
+     * @param nanos The execution time of the statement
+     */
+    static void record(long nanos) {
+        SqlStatementCounter counter = CURRENT.get();
+        if (counter == null) return;
+
+        counter.statements++;
+        counter.nanos += nanos;
+    }
+
+    // Number of statements executed, a batch counts as one
+    public int getStatements() {
+        return statements;
+    }
+
+    // Time spent executing the statements in nanoseconds
+    public long getNanos() {
+        return nanos;
+    }
+}
@@ -0,0 +1,66 @@
+package io.github.dankoller.antifraud.sqlstats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SQL statement counts and database time per endpoint, summed up over all requests since the start or the last reset.
+ */
+public class SqlStatistics {
+
+    private final Map<String, EndpointStatistics> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * Adds the statements of a finished request.
+     *
+     * @param endpoint The endpoint, e.g. "POST /api/antifraud/transaction"
+     * @param counter  The counter of the request
+     */
+    public void record(String endpoint, SqlStatementCounter counter) {
+        endpoints.computeIfAbsent(endpoint, key -> new EndpointStatistics()).add(counter);
+    }
+
+    /**
+     * Returns the statistics of all endpoints, sorted by endpoint.
+     *
+     * @return Requests, statements (total, per request and maximum of one request) and database time per endpoint
+     */
+    public Map<String, Map<String, Object>> toMap() {
+        Map<String, Map<String, Object>> map = new TreeMap<>();
+        endpoints.forEach((endpoint, statistics) -> map.put(endpoint, statistics.toMap()));
+        return map;
+    }
+
+    public void reset() {
+        endpoints.clear();
+    }
+
+    private static class EndpointStatistics {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder statements = new LongAdder();
+        private final AtomicLong maxStatements = new AtomicLong();
+        private final LongAdder nanos = new LongAdder();
+
+        void add(SqlStatementCounter counter) {
+            requests.increment();
+            statements.add(counter.getStatements());
+            maxStatements.accumulateAndGet(counter.getStatements(), Math::max);
+            nanos.add(counter.getNanos());
+        }
+
+        Map<String, Object> toMap() {
+            long requestCount = Math.max(1, requests.sum());
+            return Map.of(
+                    "requests", requests.sum(),
+                    "statements", statements.sum(),
+                    "statementsPerRequest", (double) statements.sum() / requestCount,
+                    "maxStatements", maxStatements.get(),
+                    "dbTimeMs", nanos.sum() / 1e6
+            );
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package io.github.dankoller.antifraud.sqlstats;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+import java.io.IOException;
+
+/**
+ * Opt-in counting of SQL statements per HTTP request, to catch N+1 queries before they reach production. The data
+ * source is wrapped by {@link CountingDataSource}, and a filter in front of all others (including Spring Security,
+ * so the user lookup counts too) counts the statements of each request. The counts are summed up per endpoint for
+ * /actuator/sqlstats and attached to the request for statement budgets in tests.
+ */
+@Configuration
+@ConditionalOnProperty(name = "antifraud.sql-stats.enabled", havingValue = "true")
+@SuppressWarnings("unused")
+public class SqlStatisticsConfiguration {
+
+    @Bean
+    public static BeanPostProcessor countingDataSourcePostProcessor() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                return bean instanceof DataSource dataSource ? CountingDataSource.wrap(dataSource) : bean;
+            }
+        };
+    }
+
+    @Bean
+    public SqlStatistics sqlStatistics() {
+        return new SqlStatistics();
+    }
+
+    @Bean
+    public SqlStatisticsEndpoint sqlStatisticsEndpoint(SqlStatistics sqlStatistics) {
+        return new SqlStatisticsEndpoint(sqlStatistics);
+    }
+
+    @Bean
+    public FilterRegistrationBean<OncePerRequestFilter> sqlStatisticsFilter(SqlStatistics sqlStatistics) {
+        FilterRegistrationBean<OncePerRequestFilter> registration = new FilterRegistrationBean<>(
+                new OncePerRequestFilter() {
+                    @Override
+                    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                                    FilterChain chain) throws ServletException, IOException {
+                        SqlStatementCounter counter = SqlStatementCounter.begin();
+                        request.setAttribute(SqlStatementCounter.REQUEST_ATTRIBUTE, counter);
+                        try {
+                            chain.doFilter(request, response);
+                        } finally {
+                            SqlStatementCounter.end();
+                            // Handler pattern like /api/antifraud/stolencard/{cardNumber}, not the path, so card
+                            // numbers don't end up in the statistics
+                            Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+                            sqlStatistics.record(request.getMethod() + " " + (pattern == null ? "unmatched" : pattern),
+                                    counter);
+                        }
+                    }
+                });
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
+    }
+}
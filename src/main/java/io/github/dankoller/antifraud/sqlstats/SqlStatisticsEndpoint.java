@@ -0,0 +1,31 @@
+package io.github.dankoller.antifraud.sqlstats;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+import java.util.Map;
+
+/**
+ * Debug view of the SQL statements per endpoint: GET /actuator/sqlstats shows them, DELETE /actuator/sqlstats resets
+ * them. Only administrators may access it.
+ */
+@Endpoint(id = "sqlstats")
+public class SqlStatisticsEndpoint {
+
+    private final SqlStatistics statistics;
+
+    public SqlStatisticsEndpoint(SqlStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    @ReadOperation
+    public Map<String, Map<String, Object>> statistics() {
+        return statistics.toMap();
+    }
+
+    @DeleteOperation
+    public void reset() {
+        statistics.reset();
+    }
+}
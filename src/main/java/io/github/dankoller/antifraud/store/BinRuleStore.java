@@ -0,0 +1,82 @@
+package io.github.dankoller.antifraud.store;
+
+import io.github.dankoller.antifraud.entity.BinRule;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import io.github.dankoller.antifraud.feed.DigitTrie;
+import io.github.dankoller.antifraud.persistence.BinRuleRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory index of the BIN rule table, so scoring matches a card number against all issuer ranges with one walk
+ * over its first digits and without allocating. The rules are few and change rarely: every change builds a new
+ * {@link DigitTrie} and replaces the current one in one volatile write.
+ */
+@Slf4j
+@Component
+@SuppressWarnings("unused")
+public class BinRuleStore {
+
+    private static final TransactionResult[] RESULTS = TransactionResult.values();
+
+    private final Map<String, TransactionResult> rules = new HashMap<>();
+
+    private volatile DigitTrie trie = DigitTrie.empty();
+
+    @Autowired
+    private BinRuleRepository binRuleRepository;
+
+    /**
+     * Loads all BIN rules.
+     */
+    @PostConstruct
+    public synchronized void load() {
+        for (BinRule rule : binRuleRepository.findAll()) {
+            rules.put(rule.getBin(), rule.getResult());
+        }
+        rebuild();
+        log.info("Loaded {} BIN rules", rules.size());
+    }
+
+    /**
+     * Returns the result of the most specific rule whose BIN is a prefix of the card number.
+     *
+     * @param cardNumber The card number
+     * @return The result of the rule, or null if no rule matches
+     */
+    public TransactionResult match(String cardNumber) {
+        int match = trie.longestMatch(cardNumber);
+        return match == DigitTrie.NONE ? null : RESULTS[match];
+    }
+
+    /**
+     * Adds a rule or replaces the rule of the same BIN.
+     *
+     * @param bin    The BIN, only digits
+     * @param result The result for card numbers of the range
+     */
+    public synchronized void put(String bin, TransactionResult result) {
+        rules.put(bin, result);
+        rebuild();
+    }
+
+    /**
+     * Removes the rule of a BIN.
+     *
+     * @param bin The BIN
+     */
+    public synchronized void remove(String bin) {
+        if (rules.remove(bin) != null) rebuild();
+    }
+
+    private void rebuild() {
+        DigitTrie.Builder builder = new DigitTrie.Builder();
+        rules.forEach((bin, result) -> builder.add(bin, result.ordinal()));
+        trie = builder.build();
+    }
+}
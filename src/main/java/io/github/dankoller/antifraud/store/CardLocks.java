@@ -0,0 +1,86 @@
+package io.github.dankoller.antifraud.store;
+
+import io.github.dankoller.antifraud.aggregate.Hashing;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks that serialize the feedback on a card, from reading its limits until the new limits are live. The
+ * adjustment is recorded in the limit history between the read and the write, so two feedbacks on the same card must
+ * not interleave: the second would be computed from stale limits and overwrite the first. The lock of the
+ * {@link CardStateStore} only covers a single write.
+ * <p>
+ * Cards are mapped to a fixed number of stripes, so the locks take no memory per card. Two cards may share a stripe,
+ * which only costs some contention.
+ */
+@Component
+public class CardLocks {
+
+    private static final int STRIPES = 1024;
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    public CardLocks() {
+        for (int i = 0; i < STRIPES; i++) locks[i] = new ReentrantLock();
+    }
+
+    public void lock(long key) {
+        locks[stripe(key)].lock();
+    }
+
+    public void unlock(long key) {
+        locks[stripe(key)].unlock();
+    }
+
+    /**
+     * Returns an empty set of locks for the cards of one batch.
+     *
+     * @return The batch, to be closed when the new limits are live
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    private static int stripe(long key) {
+        return (int) (Hashing.mix64(key) & (STRIPES - 1));
+    }
+
+    /**
+     * The locks held for the cards of one batch, released together by {@link #close()}.
+     */
+    public final class Batch implements AutoCloseable {
+
+        private final boolean[] held = new boolean[STRIPES];
+
+        private Batch() {
+        }
+
+        /**
+         * Locks the cards of the batch, once per batch. The stripes are locked in ascending order, so two batches
+         * can't deadlock, and a stripe shared by several cards is locked once.
+         *
+         * @param keys The card keys
+         */
+        public void lockAll(Collection<Long> keys) {
+            boolean[] wanted = new boolean[STRIPES];
+            for (long key : keys) wanted[stripe(key)] = true;
+
+            for (int i = 0; i < STRIPES; i++) {
+                if (!wanted[i] || held[i]) continue;
+                locks[i].lock();
+                held[i] = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            for (int i = STRIPES - 1; i >= 0; i--) {
+                if (!held[i]) continue;
+                locks[i].unlock();
+                held[i] = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.github.dankoller.antifraud.store;
+
+/**
+ * Packs the scoring-relevant state of a card into a single long:
+ * <pre>
+ * bit 63      always set, so a packed state is never {@link OffHeapLongLongMap#MISSING}
+ * bit 62      locked (stolen card)
+ * bits 31-61  allowed limit, 31-bit two's complement
+ * bits 0-30   manual limit, 31-bit two's complement
+ * </pre>
+ * Limits are clamped to [{@link #MIN_LIMIT}, {@link #MAX_LIMIT}], which is far beyond any realistic card limit.
+ */
+public final class CardState {
+
+    public static final int MAX_LIMIT = (1 << 30) - 1;
+    public static final int MIN_LIMIT = -(1 << 30);
+
+    private static final long PRESENT = 1L << 63;
+    private static final long LOCKED = 1L << 62;
+    private static final long LIMIT_MASK = (1L << 31) - 1;
+
+    private CardState() {
+    }
+
+    public static long pack(int allowedLimit, int manualLimit, boolean locked) {
+        return PRESENT
+                | (locked ? LOCKED : 0)
+                | (clamp(allowedLimit) & LIMIT_MASK) << 31
+                | (clamp(manualLimit) & LIMIT_MASK);
+    }
+
+    public static int allowedLimit(long state) {
+        // Shift the 31-bit field to the top and back to restore the sign
+        return (int) ((state << 2) >> 33);
+    }
+
+    public static int manualLimit(long state) {
+        return (int) ((state << 33) >> 33);
+    }
+
+    public static boolean isLocked(long state) {
+        return (state & LOCKED) != 0;
+    }
+
+    public static long withLocked(long state, boolean locked) {
+        return locked ? state | LOCKED : state & ~LOCKED;
+    }
+
+    public static long withLimits(long state, int allowedLimit, int manualLimit) {
+        return pack(allowedLimit, manualLimit, isLocked(state));
+    }
+
+    private static long clamp(int limit) {
+        return Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, limit));
+    }
+}
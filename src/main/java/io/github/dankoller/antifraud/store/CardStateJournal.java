@@ -0,0 +1,295 @@
+package io.github.dankoller.antifraud.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Durable storage of the card state map: a snapshot file with every entry plus a write-ahead log with the changes
+ * since that snapshot. Every change is appended to the log before it is acknowledged, a new snapshot truncates the
+ * log. Both files are plain fixed-size binary records:
+ * <pre>
+ * snapshot: magic(8) version(4) count(8) { key(8) value(8) }* crc32(8)
+ * log:      { op(1) key(8) value(8) crc32(4) }*
+ * </pre>
+ * A torn record at the end of the log (crash during a write) is detected by its checksum and cut off.
+ * <p>
+ * A snapshot is taken in two steps: {@link #rotateLog()} moves the log aside and starts a new one, then
+ * {@link #writeSnapshot(OffHeapLongLongMap)} writes a copy of the map taken at the rotation and deletes the old log.
+ * A crash in between leaves the old snapshot and both logs, which are replayed in order. Replaying the old log over
+ * the new snapshot is harmless, every record holds the absolute state of a card.
+ * Not thread-safe, the store serializes all calls except {@link #writeSnapshot(OffHeapLongLongMap)}, which only
+ * touches the snapshot and the old log and may run while changes are appended.
+ */
+public class CardStateJournal implements AutoCloseable {
+
+    public static final byte PUT = 1;
+    public static final byte REMOVE = 2;
+
+    private static final long SNAPSHOT_MAGIC = 0x4346_5354_4154_4531L; // "CFSTATE1"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_ENTRY_BYTES = 16;
+    private static final int LOG_RECORD_BYTES = 21;
+    private static final int IO_BUFFER_BYTES = 1 << 20;
+    // A multiple of the entry size, a single mapping is limited to 2 GB
+    private static final long MAP_WINDOW_BYTES = SNAPSHOT_ENTRY_BYTES * (1L << 22);
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final Path previousLogFile;
+    private final ByteBuffer record = ByteBuffer.allocate(LOG_RECORD_BYTES);
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel log;
+
+    public CardStateJournal(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.snapshotFile = directory.resolve("cards.snapshot");
+        this.logFile = directory.resolve("cards.wal");
+        this.previousLogFile = directory.resolve("cards.wal.previous");
+    }
+
+    /**
+     * Loads the snapshot and replays the logs into the given map, then opens the log for appending.
+     *
+     * @param map The (empty) map to be filled
+     * @return True if a snapshot or log existed, false if the journal is new
+     * @throws IOException if the files can't be read or the snapshot is corrupt
+     */
+    public boolean recover(OffHeapLongLongMap map) throws IOException {
+        boolean existed = false;
+
+        if (Files.exists(snapshotFile)) {
+            readSnapshot(map);
+            existed = true;
+        }
+
+        // Left behind by a snapshot that didn't complete, its changes come before the ones of the log
+        if (Files.exists(previousLogFile)) {
+            try (FileChannel previous = FileChannel.open(previousLogFile, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                previous.truncate(replayLog(previous, map));
+            }
+            existed = true;
+        }
+
+        if (Files.exists(logFile)) {
+            existed |= Files.size(logFile) > 0;
+        }
+
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validBytes = replayLog(log, map);
+        log.truncate(validBytes);
+        log.position(validBytes);
+
+        return existed;
+    }
+
+    /**
+     * Appends a change to the log. The data reaches the operating system right away, {@link #force()} makes it
+     * durable on disk.
+     *
+     * @param op    {@link #PUT} or {@link #REMOVE}
+     * @param key   The card key
+     * @param value The new packed state, ignored for removals
+     * @throws IOException if the log can't be written
+     */
+    public void append(byte op, long key, long value) throws IOException {
+        record.clear();
+        record.put(op).putLong(key).putLong(value);
+        crc.reset();
+        crc.update(record.array(), 0, LOG_RECORD_BYTES - 4);
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        while (record.hasRemaining()) {
+            log.write(record);
+        }
+    }
+
+    public void force() throws IOException {
+        if (log != null) log.force(false);
+    }
+
+    /**
+     * Writes all entries of the map to a new snapshot and starts an empty log, both steps at once.
+     *
+     * @param map The map to be written
+     * @throws IOException if the snapshot can't be written
+     */
+    public void snapshot(OffHeapLongLongMap map) throws IOException {
+        rotateLog();
+        writeSnapshot(map);
+    }
+
+    /**
+     * Moves the log aside and starts a new one, the first step of a snapshot. Must be called at the moment the map is
+     * copied for {@link #writeSnapshot(OffHeapLongLongMap)}, so the new log holds exactly the later changes.
+     *
+     * @throws IOException if the log can't be moved
+     */
+    public void rotateLog() throws IOException {
+        log.force(true);
+
+        if (Files.exists(previousLogFile)) {
+            // The last snapshot failed, so the old log is still needed: add the log to it instead of replacing it
+            try (FileChannel previous = FileChannel.open(previousLogFile, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                long size = log.size();
+                for (long position = 0; position < size; ) {
+                    position += log.transferTo(position, size - position, previous);
+                }
+                previous.force(true);
+            }
+            log.truncate(0);
+            log.position(0);
+        } else {
+            log.close();
+            Files.move(logFile, previousLogFile, StandardCopyOption.ATOMIC_MOVE);
+            log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+        log.force(true);
+    }
+
+    /**
+     * Writes all entries of the map to a new snapshot and deletes the log moved aside by {@link #rotateLog()}. The
+     * snapshot is written to a temporary file first and moved into place atomically, so a crash leaves either the old
+     * or the new snapshot.
+     *
+     * @param map The map as of the last rotation of the log, not modified while it is written
+     * @throws IOException if the snapshot can't be written
+     */
+    public void writeSnapshot(OffHeapLongLongMap map) throws IOException {
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_BYTES);
+            CRC32 checksum = new CRC32();
+
+            buffer.putLong(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(map.size());
+
+            IOException[] failure = new IOException[1];
+            map.forEach((key, value) -> {
+                if (failure[0] != null) return;
+                try {
+                    if (buffer.remaining() < SNAPSHOT_ENTRY_BYTES) flush(out, buffer, checksum);
+                    buffer.putLong(key).putLong(value);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+
+            flush(out, buffer, checksum);
+            buffer.putLong(checksum.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        }
+
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(previousLogFile);
+    }
+
+    /**
+     * Helper method to write the buffer to the channel and add the written bytes to the checksum.
+     */
+    private static void flush(FileChannel out, ByteBuffer buffer, CRC32 checksum) throws IOException {
+        buffer.flip();
+        checksum.update(buffer.array(), 0, buffer.limit());
+        while (buffer.hasRemaining()) out.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Helper method to load the snapshot into the map. The entries are memory-mapped in windows of 64 MB instead of
+     * copied through a heap buffer, so they are read straight from the page cache and the file may exceed 2 GB.
+     */
+    private void readSnapshot(OffHeapLongLongMap map) throws IOException {
+        try (FileChannel in = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < 28) throw new IOException("Unexpected end of card state snapshot");
+
+            CRC32 checksum = new CRC32();
+            MappedByteBuffer header = in.map(FileChannel.MapMode.READ_ONLY, 0, 20);
+            checksum.update(header.duplicate());
+            if (header.getLong() != SNAPSHOT_MAGIC || header.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unknown card state snapshot format: " + snapshotFile);
+            }
+            long count = header.getLong();
+            if (count < 0 || count > (size - 28) / SNAPSHOT_ENTRY_BYTES
+                    || 20 + count * SNAPSHOT_ENTRY_BYTES + 8 != size) {
+                throw new IOException("Corrupt card state snapshot: " + snapshotFile);
+            }
+
+            long end = size - 8;
+            for (long position = 20; position < end; position += MAP_WINDOW_BYTES) {
+                MappedByteBuffer window =
+                        in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_BYTES, end - position));
+                checksum.update(window.duplicate());
+                while (window.hasRemaining()) {
+                    map.put(window.getLong(), window.getLong());
+                }
+            }
+
+            if (in.map(FileChannel.MapMode.READ_ONLY, end, 8).getLong() != checksum.getValue()) {
+                throw new IOException("Corrupt card state snapshot: " + snapshotFile);
+            }
+        }
+    }
+
+    /**
+     * Helper method to replay a log into the map.
+     *
+     * @return The number of bytes of the log that contained valid records
+     */
+    private long replayLog(FileChannel channel, OffHeapLongLongMap map) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LOG_RECORD_BYTES * 4096);
+        long valid = 0;
+        channel.position(0);
+
+        while (channel.read(buffer) > 0 || buffer.position() > 0) {
+            buffer.flip();
+            if (buffer.remaining() < LOG_RECORD_BYTES) break;
+
+            while (buffer.remaining() >= LOG_RECORD_BYTES) {
+                int start = buffer.position();
+                crc.reset();
+                crc.update(buffer.array(), start, LOG_RECORD_BYTES - 4);
+
+                byte op = buffer.get();
+                long key = buffer.getLong();
+                long value = buffer.getLong();
+                if (buffer.getInt() != (int) crc.getValue()) return valid;
+
+                if (op == PUT) {
+                    map.put(key, value);
+                } else if (op == REMOVE) {
+                    map.remove(key);
+                } else {
+                    return valid;
+                }
+                valid += LOG_RECORD_BYTES;
+            }
+            buffer.compact();
+        }
+
+        return valid;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (log != null) {
+            log.force(true);
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package io.github.dankoller.antifraud.store;
+
+import io.github.dankoller.antifraud.entity.Card;
+import io.github.dankoller.antifraud.util.CardValidator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Authoritative state of every known card (locked flag, allowed and manual limit), keyed by the card number as a
+ * primitive long and kept off-heap in an {@link OffHeapLongLongMap}. Lookups on the scoring path are lock-free and
+ * allocation-free. Changes are written to a {@link CardStateJournal} before they become visible, and the card table
+ * is brought up to date asynchronously by the {@link CardStateSynchronizer}. Cards are never removed, a stolen card
+ * that is deleted is unlocked and reset to the default limits instead.
+ * <p>
+ * Without a configured directory the store is memory-only and rebuilt from the card table on every start.
+ */
+@Slf4j
+@Component
+@DependsOn("entityManagerFactory")
+@SuppressWarnings("unused")
+public class CardStateStore {
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${antifraud.card-store.directory:}")
+    private String directory;
+
+    @Value("${antifraud.card-store.expected-cards:1000000}")
+    private long expectedCards;
+
+    private OffHeapLongLongMap map;
+    private CardStateJournal journal;
+
+    // Serializes the snapshots, which are written outside the lock of the store
+    private final Object snapshotLock = new Object();
+
+    // Keys changed since the last synchronization with the card table
+    private long[] dirtyKeys = new long[1024];
+    private int dirtyCount;
+
+    /**
+     * Restores the map from the journal, or from the card table if there is no journal yet.
+     *
+     * @throws IOException if the journal can't be read
+     */
+    @PostConstruct
+    public void recover() throws IOException {
+        map = new OffHeapLongLongMap(expectedCards);
+
+        boolean recovered = false;
+        if (!directory.isBlank()) {
+            journal = new CardStateJournal(Path.of(directory));
+            recovered = journal.recover(map);
+        }
+
+        if (!recovered) {
+            loadFromDatabase();
+            if (journal != null) journal.snapshot(map);
+        }
+
+        log.info("Card state store holds {} cards ({} MB off-heap)", map.size(), map.getCapacityInBytes() >> 20);
+    }
+
+    /**
+     * Helper method to fill the map from the card table, streaming the rows instead of loading entities.
+     */
+    private void loadFromDatabase() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.setFetchSize(10_000);
+        jdbcTemplate.query("select number, is_locked, allowed_limit, manual_limit from card", rs -> {
+            long key = CardValidator.toKey(rs.getString(1));
+            if (key < 0) return;
+            map.put(key, CardState.pack(rs.getInt(3), rs.getInt(4), rs.getBoolean(2)));
+        });
+    }
+
+    /**
+     * Returns the packed state of a card without allocating.
+     *
+     * @param key The card key, see {@link CardValidator#toKey(String)}
+     * @return The packed state, see {@link CardState}, or {@link OffHeapLongLongMap#MISSING}
+     */
+    public long get(long key) {
+        return map.get(key);
+    }
+
+    /**
+     * Returns the state of a card, creating an unlocked card with the default limits if it isn't known yet.
+     *
+     * @param key The card key
+     * @return The packed state of the card
+     */
+    public long getOrCreate(long key) {
+        long state = map.get(key);
+        if (state != OffHeapLongLongMap.MISSING) return state;
+
+        synchronized (this) {
+            state = map.get(key);
+            if (state != OffHeapLongLongMap.MISSING) return state;
+
+            state = CardState.pack(Card.DEFAULT_ALLOWED_LIMIT, Card.DEFAULT_MANUAL_LIMIT, false);
+            write(key, state);
+            return state;
+        }
+    }
+
+    /**
+     * Locks or unlocks a card, creating it with the default limits if it isn't known yet.
+     *
+     * @param key    The card key
+     * @param locked The new locked flag
+     * @return The new packed state of the card
+     */
+    public synchronized long setLocked(long key, boolean locked) {
+        long state = map.get(key);
+        if (state == OffHeapLongLongMap.MISSING) {
+            state = CardState.pack(Card.DEFAULT_ALLOWED_LIMIT, Card.DEFAULT_MANUAL_LIMIT, locked);
+        } else {
+            state = CardState.withLocked(state, locked);
+        }
+        write(key, state);
+        return state;
+    }
+
+    /**
+     * Locks a card, creating it with the default limits if it isn't known yet.
+     *
+     * @param key The card key
+     * @return True if the card was not locked before
+     */
+    public synchronized boolean lock(long key) {
+        long state = map.get(key);
+        if (state != OffHeapLongLongMap.MISSING && CardState.isLocked(state)) return false;
+
+        setLocked(key, true);
+        return true;
+    }
+
+    /**
+     * Unlocks a stolen card and resets it to the default limits. The card stays in the store, so scoring and feedback
+     * running at the same time still find its state.
+     *
+     * @param key The card key
+     * @return True if the card was locked before
+     */
+    public synchronized boolean unlock(long key) {
+        long state = map.get(key);
+        if (state == OffHeapLongLongMap.MISSING || !CardState.isLocked(state)) return false;
+
+        write(key, CardState.pack(Card.DEFAULT_ALLOWED_LIMIT, Card.DEFAULT_MANUAL_LIMIT, false));
+        return true;
+    }
+
+    /**
+     * Locks a batch of cards under a single lock acquisition, skipping cards that are already locked. The keys of the
+     * newly locked cards are moved to the front of the array.
+     *
+     * @param keys  The card keys
+     * @param count The number of keys to use from the array
+     * @return The number of cards that were not locked before
+     */
+    public synchronized int lockAll(long[] keys, int count) {
+        int locked = 0;
+        for (int i = 0; i < count; i++) {
+            long state = map.get(keys[i]);
+            if (state != OffHeapLongLongMap.MISSING && CardState.isLocked(state)) continue;
+
+            setLocked(keys[i], true);
+            keys[locked++] = keys[i];
+        }
+        return locked;
+    }
+
+    /**
+     * Updates the limits of a known card.
+     *
+     * @param key          The card key
+     * @param allowedLimit The new allowed limit
+     * @param manualLimit  The new manual limit
+     * @return The new packed state of the card
+     */
+    public synchronized long setLimits(long key, int allowedLimit, int manualLimit) {
+        long state = map.get(key);
+        if (state == OffHeapLongLongMap.MISSING) throw new IllegalStateException("Unknown card " + key);
+
+        state = CardState.withLimits(state, allowedLimit, manualLimit);
+        write(key, state);
+        return state;
+    }
+
+    /**
+     * Helper method to log and apply a new state. Journal and map are updated under the same lock, so the order of
+     * the log always matches the order of the changes.
+     */
+    private void write(long key, long state) {
+        append(CardStateJournal.PUT, key, state);
+        map.put(key, state);
+        markDirty(key);
+    }
+
+    private void append(byte op, long key, long state) {
+        if (journal == null) return;
+        try {
+            journal.append(op, key, state);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write card state journal", e);
+        }
+    }
+
+    private void markDirty(long key) {
+        if (dirtyCount == dirtyKeys.length) dirtyKeys = Arrays.copyOf(dirtyKeys, dirtyCount * 2);
+        dirtyKeys[dirtyCount++] = key;
+    }
+
+    /**
+     * Hands the keys changed since the last call to the caller, each key at most once.
+     *
+     * @return Sorted array of distinct changed keys, possibly empty
+     */
+    public long[] drainDirtyKeys() {
+        long[] drained;
+        synchronized (this) {
+            drained = Arrays.copyOf(dirtyKeys, dirtyCount);
+            dirtyCount = 0;
+            if (dirtyKeys.length > 1 << 16) dirtyKeys = new long[1024];
+        }
+
+        Arrays.sort(drained);
+        int distinct = 0;
+        for (int i = 0; i < drained.length; i++) {
+            if (i == 0 || drained[i] != drained[i - 1]) drained[distinct++] = drained[i];
+        }
+        return Arrays.copyOf(drained, distinct);
+    }
+
+    /**
+     * Re-queues keys whose synchronization failed.
+     *
+     * @param keys The keys to be synchronized again
+     */
+    public synchronized void requeueDirtyKeys(long[] keys) {
+        for (long key : keys) markDirty(key);
+    }
+
+    /**
+     * Forces the journal to disk, so at most one interval of acknowledged changes can be lost in a power failure.
+     */
+    @Scheduled(fixedDelayString = "${antifraud.card-store.fsync-interval-ms:1000}")
+    public synchronized void force() throws IOException {
+        if (journal != null) journal.force();
+    }
+
+    /**
+     * Writes a new snapshot and truncates the journal. The map is copied and the log rotated under the lock, the copy
+     * is written outside of it, so writers (like new cards on the scoring path) only wait for the copy.
+     */
+    @Scheduled(fixedDelayString = "${antifraud.card-store.snapshot-interval-ms:600000}",
+            initialDelayString = "${antifraud.card-store.snapshot-interval-ms:600000}")
+    public void snapshot() throws IOException {
+        if (journal == null) return;
+
+        synchronized (snapshotLock) {
+            long start = System.nanoTime();
+            OffHeapLongLongMap copy;
+            synchronized (this) {
+                copy = map.copy();
+                journal.rotateLog();
+            }
+            long copied = System.nanoTime();
+
+            journal.writeSnapshot(copy);
+            log.info("Card state snapshot of {} cards written in {} ms ({} ms copying)", copy.size(),
+                    (System.nanoTime() - start) / 1_000_000, (copied - start) / 1_000_000);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        synchronized (snapshotLock) {
+            synchronized (this) {
+                if (journal != null) {
+                    journal.snapshot(map);
+                    journal.close();
+                }
+            }
+        }
+    }
+
+    public long size() {
+        return map.size();
+    }
+}
@@ -0,0 +1,98 @@
+package io.github.dankoller.antifraud.store;
+
+import io.github.dankoller.antifraud.entity.Card;
+import io.github.dankoller.antifraud.persistence.CardRepository;
+import io.github.dankoller.antifraud.util.CardValidator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Copies changes of the {@link CardStateStore} to the card table in the background, so the scoring path never waits
+ * for a card insert or update. Each run writes the current state of every changed card, so it doesn't matter how
+ * often or in which order a card changed in between. It is the only writer of the card table, callers that need the
+ * row right away (like flagging a stolen card) run it explicitly, so no card is inserted twice.
+ */
+@Slf4j
+@Component
+@SuppressWarnings("unused")
+public class CardStateSynchronizer {
+
+    @Autowired
+    private CardStateStore cardStateStore;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${antifraud.card-store.sync-batch-size:1000}")
+    private int batchSize;
+
+    /**
+     * Writes all cards changed since the last run to the card table in batches. Runs are serialized, so a card is
+     * never inserted twice by a scheduled and an explicit run.
+     */
+    @Scheduled(fixedDelayString = "${antifraud.card-store.sync-interval-ms:1000}")
+    public synchronized void synchronize() {
+        long[] keys = cardStateStore.drainDirtyKeys();
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+        for (int from = 0; from < keys.length; from += batchSize) {
+            long[] batch = Arrays.copyOfRange(keys, from, Math.min(keys.length, from + batchSize));
+            try {
+                transactionTemplate.executeWithoutResult(status -> synchronizeBatch(batch));
+            } catch (RuntimeException e) {
+                cardStateStore.requeueDirtyKeys(Arrays.copyOfRange(keys, from, keys.length));
+                log.warn("Failed to synchronize {} cards, retrying later", keys.length - from, e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Helper method to write one batch of cards in one transaction: one query for the existing rows, then the changes
+     * are flushed together at commit.
+     *
+     * @param keys The keys of the changed cards
+     */
+    private void synchronizeBatch(long[] keys) {
+        List<String> numbers = Arrays.stream(keys).mapToObj(CardValidator::fromKey).collect(Collectors.toList());
+        Map<String, Card> existing = cardRepository.findAllByNumberIn(numbers).stream()
+                .collect(Collectors.toMap(Card::getNumber, Function.identity(), (first, second) -> first));
+
+        List<Card> toSave = new ArrayList<>();
+        List<Card> toDelete = new ArrayList<>();
+
+        for (int i = 0; i < keys.length; i++) {
+            long state = cardStateStore.get(keys[i]);
+            Card card = existing.get(numbers.get(i));
+
+            if (state == OffHeapLongLongMap.MISSING) {
+                if (card != null) toDelete.add(card);
+                continue;
+            }
+
+            if (card == null) card = new Card(numbers.get(i), false);
+            card.setLocked(CardState.isLocked(state));
+            card.setAllowedLimit(CardState.allowedLimit(state));
+            card.setManualLimit(CardState.manualLimit(state));
+            toSave.add(card);
+        }
+
+        cardRepository.saveAll(toSave);
+        cardRepository.deleteAllInBatch(toDelete);
+    }
+}
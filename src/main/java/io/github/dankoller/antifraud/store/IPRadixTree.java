@@ -0,0 +1,180 @@
+package io.github.dankoller.antifraud.store;
+
+import io.github.dankoller.antifraud.util.IPKey;
+import io.github.dankoller.antifraud.util.IPNetwork;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Set of IP networks as a path-compressed binary radix tree over the 128-bit key space of {@link IPKey}. Every node
+ * holds a whole prefix, so a lookup visits at most one node per distinct prefix length on the path instead of one
+ * node per bit.
+ * <p>
+ * Lookups use an optimistic read of a {@link StampedLock}, like {@link OffHeapLongLongMap}. Writers only publish
+ * fully initialized nodes with a single reference write, so a lookup that races a writer sees either the old or the
+ * new subtree and the stamp validation decides whether it has to retry under the read lock.
+ */
+public class IPRadixTree {
+
+    private static final class Node {
+
+        private final IPKey prefix;
+        private final int length;
+        private final Node[] children = new Node[2];
+        private volatile boolean member;
+
+        private Node(IPKey prefix, int length, boolean member) {
+            this.prefix = prefix;
+            this.length = length;
+            this.member = member;
+        }
+    }
+
+    private final StampedLock lock = new StampedLock();
+    private final Node root = new Node(new IPKey(0, 0), 0, false);
+    private int size;
+
+    /**
+     * Checks if an address is contained in any network of the set.
+     *
+     * @param key The address
+     * @return True if a network contains the address
+     */
+    public boolean contains(IPKey key) {
+        long stamp = lock.tryOptimisticRead();
+        boolean contains = find(key);
+        if (lock.validate(stamp)) return contains;
+
+        stamp = lock.readLock();
+        try {
+            return find(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private boolean find(IPKey key) {
+        Node node = root;
+        while (node != null) {
+            if (commonPrefixLength(key, node.prefix, node.length) < node.length) return false;
+            if (node.member) return true;
+            if (node.length == 128) return false;
+            node = node.children[key.bit(node.length)];
+        }
+        return false;
+    }
+
+    /**
+     * Adds a network to the set.
+     *
+     * @param network The network
+     * @return True if the network wasn't in the set before
+     */
+    public boolean add(IPNetwork network) {
+        IPKey key = network.address();
+        int length = network.prefixLength();
+
+        long stamp = lock.writeLock();
+        try {
+            Node node = root;
+            while (true) {
+                if (node.length == length) {
+                    if (node.member) return false;
+                    node.member = true;
+                    size++;
+                    return true;
+                }
+
+                int bit = key.bit(node.length);
+                Node next = node.children[bit];
+                if (next == null) {
+                    node.children[bit] = new Node(key, length, true);
+                    size++;
+                    return true;
+                }
+
+                int common = commonPrefixLength(key, next.prefix, Math.min(length, next.length));
+                if (common == next.length) {
+                    node = next;
+                    continue;
+                }
+
+                // Split the edge: the new inner node is initialized completely before it is published
+                Node split;
+                if (common == length) {
+                    split = new Node(key, length, true);
+                } else {
+                    split = new Node(key.mask(common), common, false);
+                    split.children[key.bit(common)] = new Node(key, length, true);
+                }
+                split.children[next.prefix.bit(common)] = next;
+                node.children[bit] = split;
+                size++;
+                return true;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a network from the set. Networks contained in it stay in the set.
+     *
+     * @param network The network
+     * @return True if the network was in the set
+     */
+    public boolean remove(IPNetwork network) {
+        IPKey key = network.address();
+        int length = network.prefixLength();
+
+        long stamp = lock.writeLock();
+        try {
+            Node grandparent = null;
+            Node parent = null;
+            Node node = root;
+            while (node != null && node.length < length) {
+                grandparent = parent;
+                parent = node;
+                node = node.children[key.bit(node.length)];
+            }
+            if (node == null || node.length != length || !node.prefix.equals(key) || !node.member) return false;
+
+            node.member = false;
+            size--;
+            if (node == root) return true;
+
+            // Remove the node if it has no children, or replace it by its only child
+            Node left = node.children[0];
+            Node right = node.children[1];
+            if (left != null && right != null) return true;
+
+            parent.children[key.bit(parent.length)] = left != null ? left : right;
+
+            // The parent may now be an inner node with a single child
+            if (parent != root && !parent.member && grandparent != null) {
+                Node remaining = parent.children[0] != null ? parent.children[0] : parent.children[1];
+                if (parent.children[0] == null || parent.children[1] == null) {
+                    grandparent.children[parent.prefix.bit(grandparent.length)] = remaining;
+                }
+            }
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static int commonPrefixLength(IPKey a, IPKey b, int max) {
+        long high = a.high() ^ b.high();
+        int common = high != 0 ? Long.numberOfLeadingZeros(high) : 64 + Long.numberOfLeadingZeros(a.low() ^ b.low());
+        return Math.min(common, max);
+    }
+}
@@ -0,0 +1,311 @@
+package io.github.dankoller.antifraud.store;
+
+import io.github.dankoller.antifraud.aggregate.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Hash map from primitive long keys to primitive long values, stored outside the Java heap in direct buffers. Uses
+ * open addressing with linear probing and backward-shift deletion, so there are no tombstones and no per-entry
+ * objects. Each slot is 16 bytes (key and value), the slots are spread over fixed-size segments, so the table can
+ * grow beyond the 2 GB limit of a single buffer.
+ * <p>
+ * Writers are serialized by a {@link StampedLock}. Readers use optimistic reads and only fall back to the read lock
+ * if a write happened in between, so {@link #get(long)} neither blocks nor allocates.
+ */
+public class OffHeapLongLongMap {
+
+    /**
+     * Returned by {@link #get(long)} if the key isn't present. Callers must never store this value.
+     */
+    public static final long MISSING = 0L;
+
+    private static final int SLOT_BYTES = 16;
+    private static final int SEGMENT_SLOT_BITS = 20;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_SLOT_BITS;
+    private static final double MAX_LOAD_FACTOR = 0.75;
+
+    private final StampedLock lock = new StampedLock();
+    private volatile Table table;
+    private long size;
+
+    public OffHeapLongLongMap(long expectedSize) {
+        long capacity = Long.highestOneBit(Math.max(16, (long) (expectedSize / MAX_LOAD_FACTOR)) * 2 - 1);
+        this.table = new Table(capacity);
+    }
+
+    private OffHeapLongLongMap(Table table, long size) {
+        this.table = table;
+        this.size = size;
+    }
+
+    /**
+     * Looks up the value of a key without allocating.
+     *
+     * @param key The key to be looked up (any long except -1)
+     * @return The value, or {@link #MISSING} if the key isn't present
+     */
+    public long get(long key) {
+        long stamp = lock.tryOptimisticRead();
+        long value = table.find(key + 1);
+
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = table.find(key + 1);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Stores a value for a key, replacing any previous value.
+     *
+     * @param key   The key (any long except -1)
+     * @param value The value (anything except {@link #MISSING})
+     * @return The previous value, or {@link #MISSING} if the key wasn't present
+     */
+    public long put(long key, long value) {
+        if (value == MISSING) throw new IllegalArgumentException("Value must not be MISSING");
+
+        long stamp = lock.writeLock();
+        try {
+            if (size + 1 > table.capacity * MAX_LOAD_FACTOR) resize();
+            long previous = table.put(key + 1, value);
+            if (previous == MISSING) size++;
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Stores a value only if the key isn't present yet.
+     *
+     * @param key   The key (any long except -1)
+     * @param value The value (anything except {@link #MISSING})
+     * @return The existing value, or {@link #MISSING} if the given value was stored
+     */
+    public long putIfAbsent(long key, long value) {
+        long existing = get(key);
+        if (existing != MISSING) return existing;
+
+        long stamp = lock.writeLock();
+        try {
+            existing = table.find(key + 1);
+            if (existing != MISSING) return existing;
+
+            if (size + 1 > table.capacity * MAX_LOAD_FACTOR) resize();
+            table.put(key + 1, value);
+            size++;
+            return MISSING;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key The key to be removed
+     * @return The removed value, or {@link #MISSING} if the key wasn't present
+     */
+    public long remove(long key) {
+        long stamp = lock.writeLock();
+        try {
+            long previous = table.remove(key + 1);
+            if (previous != MISSING) size--;
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Passes every entry to the consumer. Holds the read lock, so writers wait until the iteration is done while
+     * readers continue.
+     *
+     * @param consumer Receives every key and value
+     */
+    public void forEach(LongLongConsumer consumer) {
+        long stamp = lock.readLock();
+        try {
+            table.forEach(consumer);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns an independent copy of the map. The segments are copied in bulk under the read lock, which is much
+     * faster than inserting every entry again. The copy takes as much off-heap memory as the map.
+     *
+     * @return The copy
+     */
+    public OffHeapLongLongMap copy() {
+        long stamp = lock.readLock();
+        try {
+            return new OffHeapLongLongMap(table.copy(), size);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Off-heap memory reserved by the table.
+     *
+     * @return Size in bytes
+     */
+    public long getCapacityInBytes() {
+        return table.capacity * SLOT_BYTES;
+    }
+
+    /**
+     * Helper method to double the capacity. Must be called with the write lock held.
+     */
+    private void resize() {
+        Table bigger = new Table(table.capacity * 2);
+        table.forEach((key, value) -> bigger.put(key + 1, value));
+        table = bigger;
+    }
+
+    @FunctionalInterface
+    public interface LongLongConsumer {
+        void accept(long key, long value);
+    }
+
+    /**
+     * The actual slot array. Keys are stored incremented by one, so the zeroed memory of a fresh buffer marks
+     * empty slots.
+     */
+    private static final class Table {
+
+        private final long capacity;
+        private final long mask;
+        private final ByteBuffer[] segments;
+
+        private Table(long capacity) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+
+            int segmentCount = (int) Math.max(1, capacity >>> SEGMENT_SLOT_BITS);
+            int segmentSlots = (int) Math.min(capacity, SEGMENT_SLOTS);
+            this.segments = new ByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = ByteBuffer.allocateDirect(segmentSlots * SLOT_BYTES).order(ByteOrder.nativeOrder());
+            }
+        }
+
+        private Table copy() {
+            Table copy = new Table(capacity);
+            for (int i = 0; i < segments.length; i++) {
+                copy.segments[i].put(0, segments[i], 0, segments[i].capacity());
+            }
+            return copy;
+        }
+
+        private long keyAt(long slot) {
+            return segments[(int) (slot >>> SEGMENT_SLOT_BITS)].getLong(offset(slot));
+        }
+
+        private long valueAt(long slot) {
+            return segments[(int) (slot >>> SEGMENT_SLOT_BITS)].getLong(offset(slot) + 8);
+        }
+
+        private void set(long slot, long storedKey, long value) {
+            ByteBuffer segment = segments[(int) (slot >>> SEGMENT_SLOT_BITS)];
+            int offset = offset(slot);
+            segment.putLong(offset + 8, value);
+            segment.putLong(offset, storedKey);
+        }
+
+        private static int offset(long slot) {
+            return (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES;
+        }
+
+        private long home(long storedKey) {
+            return Hashing.mix64(storedKey) & mask;
+        }
+
+        private long find(long storedKey) {
+            long slot = home(storedKey);
+            // Bounded, so an optimistic read of a table that is being modified can't loop forever
+            for (long probes = 0; probes < capacity; probes++) {
+                long current = keyAt(slot);
+                if (current == storedKey) return valueAt(slot);
+                if (current == 0) return MISSING;
+                slot = (slot + 1) & mask;
+            }
+            return MISSING;
+        }
+
+        private long put(long storedKey, long value) {
+            long slot = home(storedKey);
+            while (true) {
+                long current = keyAt(slot);
+                if (current == storedKey) {
+                    long previous = valueAt(slot);
+                    set(slot, storedKey, value);
+                    return previous;
+                }
+                if (current == 0) {
+                    set(slot, storedKey, value);
+                    return MISSING;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private long remove(long storedKey) {
+            long slot = home(storedKey);
+            while (true) {
+                long current = keyAt(slot);
+                if (current == 0) return MISSING;
+                if (current == storedKey) break;
+                slot = (slot + 1) & mask;
+            }
+
+            long removed = valueAt(slot);
+
+            // Backward-shift deletion: move later entries of the probe chain into the gap
+            long gap = slot;
+            long next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                long key = keyAt(next);
+                if (key == 0) break;
+
+                long home = home(key);
+                boolean reachable = gap <= next ? (home > gap && home <= next) : (home > gap || home <= next);
+                if (!reachable) {
+                    set(gap, key, valueAt(next));
+                    gap = next;
+                }
+            }
+            set(gap, 0, 0);
+
+            return removed;
+        }
+
+        private void forEach(LongLongConsumer consumer) {
+            for (long slot = 0; slot < capacity; slot++) {
+                long key = keyAt(slot);
+                if (key != 0) consumer.accept(key - 1, valueAt(slot));
+            }
+        }
+    }
+}
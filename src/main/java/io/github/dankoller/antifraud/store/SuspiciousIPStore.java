@@ -0,0 +1,93 @@
+package io.github.dankoller.antifraud.store;
+
+import io.github.dankoller.antifraud.entity.IPAddress;
+import io.github.dankoller.antifraud.persistence.SuspiciousIPRepository;
+import io.github.dankoller.antifraud.util.IPKey;
+import io.github.dankoller.antifraud.util.IPNetwork;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the suspicious IP table, so scoring matches a transaction's IP address against all suspicious
+ * addresses and networks (IPv4 and IPv6, in CIDR notation) without a database query. The table stays authoritative:
+ * the index is loaded from it at startup and every change to the table is applied to the index as well.
+ * <p>
+ * Single addresses are kept in a hash set and only real networks in the {@link IPRadixTree}. A tree holding millions
+ * of single addresses costs one dependent memory access per branching bit, the hash set costs about one.
+ */
+@Slf4j
+@Component
+@SuppressWarnings("unused")
+public class SuspiciousIPStore {
+
+    private final Set<IPKey> addresses = ConcurrentHashMap.newKeySet();
+    private final IPRadixTree networks = new IPRadixTree();
+
+    @Autowired
+    private SuspiciousIPRepository suspiciousIPRepository;
+
+    /**
+     * Loads all suspicious IP addresses and networks.
+     */
+    @PostConstruct
+    public void load() {
+        for (IPAddress ipAddress : suspiciousIPRepository.findAll()) {
+            if (!add(ipAddress.getIp())) log.warn("Ignoring invalid suspicious IP {}", ipAddress.getIp());
+        }
+        log.info("Loaded {} suspicious IP addresses and {} networks", addresses.size(), networks.size());
+    }
+
+    /**
+     * Checks if an IP address is suspicious, either by itself or as part of a suspicious network.
+     *
+     * @param ip The IP address
+     * @return True if the address is suspicious
+     */
+    public boolean contains(String ip) {
+        IPKey key = IPKey.parse(ip);
+        return key != null && (addresses.contains(key) || networks.contains(key));
+    }
+
+    /**
+     * Adds an IP address or network.
+     *
+     * @param network The IP address or network in CIDR notation
+     * @return False if the network is invalid
+     */
+    public boolean add(String network) {
+        IPNetwork parsed = IPNetwork.parse(network);
+        if (parsed == null) return false;
+
+        if (parsed.prefixLength() == 128) {
+            addresses.add(parsed.address());
+        } else {
+            networks.add(parsed);
+        }
+        return true;
+    }
+
+    /**
+     * Removes an IP address or network. Addresses and smaller networks within it stay suspicious.
+     *
+     * @param network The IP address or network in CIDR notation
+     */
+    public void remove(String network) {
+        IPNetwork parsed = IPNetwork.parse(network);
+        if (parsed == null) return;
+
+        if (parsed.prefixLength() == 128) {
+            addresses.remove(parsed.address());
+        } else {
+            networks.remove(parsed);
+        }
+    }
+
+    public int size() {
+        return addresses.size() + networks.size();
+    }
+}
@@ -0,0 +1,140 @@
+package io.github.dankoller.antifraud.timing;
+
+import java.util.Locale;
+
+/**
+ * Records how long the steps of the current request take, e.g. for a Server-Timing header. Recording is bound to the
+ * request thread and only active between {@link #begin()} and {@link #end()}; outside of it the static methods cost a
+ * thread-local read and don't read the clock.
+ * <p>
+ * Instrumented code reads the clock once per step:
+ * <pre>{@code
+ * long start = RequestTimings.start();
+ * stepOne();
+ * start = RequestTimings.lap("step-one", start);
+ * stepTwo();
+ * RequestTimings.lap("step-two", start);
+ * }</pre>
+ */
+public final class RequestTimings {
+
+    // Returned by start() and lap() while no recording is active, so lap() skips the clock
+    private static final long INACTIVE = 0;
+
+    // Further steps of a request are dropped
+    private static final int CAPACITY = 32;
+
+    private static final ThreadLocal<RequestTimings> CURRENT = new ThreadLocal<>();
+
+    private final long startNanos = System.nanoTime();
+    private final String[] names = new String[CAPACITY];
+    private final long[] durations = new long[CAPACITY];
+    private int count;
+
+    private RequestTimings() {
+    }
+
+    /**
+     * Starts recording for the current thread.
+     *
+     * @return The new recording
+     */
+    public static RequestTimings begin() {
+        RequestTimings timings = new RequestTimings();
+        CURRENT.set(timings);
+        return timings;
+    }
+
+    /**
+     * Stops recording for the current thread.
+     */
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Returns the recording of the current thread.
+     *
+     * @return The recording, or null if none is active
+     */
+    public static RequestTimings current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Returns the start time of a step.
+     *
+     * @return The current nano time, or a marker value if no recording is active
+     */
+    public static long start() {
+        return CURRENT.get() == null ? INACTIVE : System.nanoTime();
+    }
+
+    /**
+     * Records a step that started at the given time and returns the start time of the next step.
+     *
+     * @param name  The name of the step
+     * @param start The start time returned by {@link #start()} or the previous lap
+     * @return The current nano time, or a marker value if no recording is active
+     */
+    public static long lap(String name, long start) {
+        if (start == INACTIVE) return INACTIVE;
+
+        long now = System.nanoTime();
+        RequestTimings timings = CURRENT.get();
+        if (timings != null) timings.add(name, now - start);
+        return now;
+    }
+
+    /**
+     * Records a step. Steps recorded more than once are summed up.
+     *
+     * @param name     The name of the step
+     * @param duration The duration in nanoseconds
+     */
+    public void add(String name, long duration) {
+        for (int i = 0; i < count; i++) {
+            if (names[i].equals(name)) {
+                durations[i] += duration;
+                return;
+            }
+        }
+        if (count == CAPACITY) return;
+
+        names[count] = name;
+        durations[count++] = duration;
+    }
+
+    // Nanoseconds since the recording started
+    public long elapsed() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Formats the steps and the total time so far as the value of a Server-Timing header.
+     *
+     * @return e.g. "auth;dur=0.210, persistence;dur=1.034, total;dur=1.520"
+     */
+    public String toServerTiming() {
+        return format(";dur=", ", ");
+    }
+
+    /**
+     * Formats the steps and the total time so far as key-value pairs for a log line.
+     *
+     * @return e.g. "auth=0.210 persistence=1.034 total=1.520"
+     */
+    public String toLogFields() {
+        return format("=", " ");
+    }
+
+    private String format(String assignment, String delimiter) {
+        StringBuilder builder = new StringBuilder(count * 24 + 24);
+        for (int i = 0; i <= count; i++) {
+            if (i > 0) builder.append(delimiter);
+            builder.append(i < count ? names[i] : "total").append(assignment)
+                    .append(String.format(Locale.ROOT, "%.3f", (i < count ? durations[i] : elapsed()) / 1e6));
+        }
+        return builder.toString();
+    }
+}
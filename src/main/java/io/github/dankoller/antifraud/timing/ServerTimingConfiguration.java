@@ -0,0 +1,76 @@
+package io.github.dankoller.antifraud.timing;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Opt-in timing of scoring requests. A filter in front of Spring Security starts a {@link RequestTimings} recording
+ * for POST /api/antifraud/transaction and logs it once the response is written. A second filter right behind Spring
+ * Security records the time spent on authentication. The controller adds the recording as Server-Timing header.
+ */
+@Slf4j
+@Configuration
+@ConditionalOnProperty(name = "antifraud.server-timing.enabled", havingValue = "true")
+@SuppressWarnings("unused")
+public class ServerTimingConfiguration {
+
+    private static final String SCORING_PATH = "/api/antifraud/transaction";
+
+    @Bean
+    public FilterRegistrationBean<OncePerRequestFilter> serverTimingFilter() {
+        FilterRegistrationBean<OncePerRequestFilter> registration = new FilterRegistrationBean<>(
+                new OncePerRequestFilter() {
+                    @Override
+                    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                                    FilterChain chain) throws ServletException, IOException {
+                        if (!"POST".equals(request.getMethod())) {
+                            chain.doFilter(request, response);
+                            return;
+                        }
+
+                        RequestTimings timings = RequestTimings.begin();
+                        request.setAttribute(RequestTimings.class.getName(), timings.elapsed());
+                        try {
+                            chain.doFilter(request, response);
+                        } finally {
+                            RequestTimings.end();
+                            log.info("Scoring request status={} {}", response.getStatus(), timings.toLogFields());
+                        }
+                    }
+                });
+        registration.addUrlPatterns(SCORING_PATH);
+        registration.setOrder(SecurityProperties.DEFAULT_FILTER_ORDER - 1);
+        return registration;
+    }
+
+    @Bean
+    public FilterRegistrationBean<OncePerRequestFilter> authTimingFilter() {
+        FilterRegistrationBean<OncePerRequestFilter> registration = new FilterRegistrationBean<>(
+                new OncePerRequestFilter() {
+                    @Override
+                    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                                    FilterChain chain) throws ServletException, IOException {
+                        RequestTimings timings = RequestTimings.current();
+                        if (timings != null) {
+                            long start = (long) request.getAttribute(RequestTimings.class.getName());
+                            timings.add("auth", timings.elapsed() - start);
+                        }
+                        chain.doFilter(request, response);
+                    }
+                });
+        registration.addUrlPatterns(SCORING_PATH);
+        registration.setOrder(SecurityProperties.DEFAULT_FILTER_ORDER + 1);
+        return registration;
+    }
+}
@@ -0,0 +1,103 @@
+package io.github.dankoller.antifraud.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the values of a bulk upload one line at a time, so an upload of any size is processed with constant memory.
+ * CSV uploads contain the value in the first column (an optional header line is skipped), NDJSON uploads contain one
+ * JSON object per line with the value in the given field.
+ */
+public class BulkRecordReader implements Closeable {
+
+    public enum Format {
+        CSV, NDJSON;
+
+        /**
+         * Returns the format for the content type of an upload.
+         *
+         * @param contentType The content type of the request, may be null
+         * @return NDJSON for JSON content types, CSV otherwise
+         */
+        public static Format fromContentType(String contentType) {
+            return contentType != null && contentType.toLowerCase().contains("json") ? NDJSON : CSV;
+        }
+    }
+
+    // Returned for lines that contain no usable value
+    public static final String INVALID = "";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final BufferedReader reader;
+    private final Format format;
+    private final String field;
+    private boolean firstLine = true;
+
+    public BulkRecordReader(InputStream in, Format format, String field) {
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        this.format = format;
+        this.field = field;
+    }
+
+    /**
+     * Returns the value of the next non-blank line.
+     *
+     * @return The trimmed value, {@link #INVALID} if the line couldn't be parsed, or null at the end of the upload
+     * @throws IOException if the upload can't be read
+     */
+    public String next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.strip();
+            if (line.isEmpty()) continue;
+
+            boolean header = firstLine;
+            firstLine = false;
+
+            if (format == Format.NDJSON) return parseJson(line);
+
+            String value = parseCsv(line);
+            if (header && value.equalsIgnoreCase(field)) continue;
+            return value;
+        }
+        return null;
+    }
+
+    /**
+     * Helper method to read the first column of a CSV line, removing optional quotes.
+     */
+    private static String parseCsv(String line) {
+        int comma = line.indexOf(',');
+        String value = (comma < 0 ? line : line.substring(0, comma)).strip();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1).strip();
+        }
+        return value;
+    }
+
+    /**
+     * Helper method to read the field of a JSON line.
+     */
+    private String parseJson(String line) {
+        try {
+            JsonNode value = MAPPER.readTree(line).get(field);
+            return value == null || !value.isTextual() ? INVALID : value.asText().strip();
+        } catch (JsonProcessingException e) {
+            return INVALID;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -2,6 +2,14 @@ package io.github.dankoller.antifraud.util;
 
 public class CardValidator {
 
+    // Key returned for invalid card numbers, card keys are never negative
+    public static final long INVALID = -1;
+
+    private static final int LENGTH = 16;
+
+    // Luhn value of a doubled digit, i.e. 2 * digit with the digits of the product summed
+    private static final int[] DOUBLED = {0, 2, 4, 6, 8, 1, 3, 5, 7, 9};
+
     /**
      * Checks if a card number is invalid using Luhn algorithm.
      *
@@ -9,20 +17,87 @@ public class CardValidator {
      * @return True if the card number is invalid, false otherwise
      */
     public static boolean isNonValid(String cardNumber) {
-        if (cardNumber == null) return true;
-        if (cardNumber.length() != 16) return true;
+        return toValidKey(cardNumber) == INVALID;
+    }
 
-        int sum = 0;
+    /**
+     * Validates a card number (16 digits, Luhn checksum) and converts it into a primitive long key in a single pass
+     * over its characters, so callers never have to look at the string again.
+     *
+     * @param cardNumber A card number to be validated
+     * @return The card number as a long, or {@link #INVALID} if it isn't a valid card number
+     */
+    public static long toValidKey(String cardNumber) {
+        return parse(cardNumber, true);
+    }
+
+    /**
+     * Validates a batch of card numbers, e.g. a chunk of a bulk import, and packs the keys of the valid ones to the
+     * front of the key array, in their original order.
+     *
+     * @param cardNumbers The card numbers to be validated
+     * @param count       Number of card numbers to validate from the start of the array
+     * @param keys        Array receiving the keys, at least count long
+     * @return The number of valid card numbers, i.e. keys written
+     */
+    public static int toValidKeys(String[] cardNumbers, int count, long[] keys) {
+        int valid = 0;
+        for (int i = 0; i < count; i++) {
+            long key = toValidKey(cardNumbers[i]);
+            // Always write, only advance for valid keys, so the loop has no data-dependent branch
+            keys[valid] = key;
+            valid += (int) (~key >>> 63);
+        }
+        return valid;
+    }
 
-        for (int i = cardNumber.length(); i > 0; i--) {
-            int num = Character.getNumericValue(cardNumber.charAt(i - 1));
+    /**
+     * Converts a 16-digit card number into a primitive long key, so it can be used in maps without hashing strings.
+     *
+     * @param cardNumber A card number consisting of 16 digits
+     * @return The card number as a long, or {@link #INVALID} if it isn't a 16-digit number
+     */
+    public static long toKey(String cardNumber) {
+        return parse(cardNumber, false);
+    }
+
+    /**
+     * Converts a card key back into the 16-digit card number.
+     *
+     * @param key A card key created by {@link #toKey(String)}
+     * @return The card number including leading zeros
+     */
+    public static String fromKey(long key) {
+        String digits = Long.toString(key);
+        return "0".repeat(LENGTH - digits.length()) + digits;
+    }
+
+    /**
+     * Converts a card number into its key in a single pass over its characters, computing the Luhn checksum on the
+     * way.
+     *
+     * @param cardNumber A card number
+     * @param checkLuhn  True to reject card numbers with a wrong checksum
+     * @return The card number as a long, or {@link #INVALID} if it isn't a 16-digit number (with a valid checksum)
+     */
+    private static long parse(String cardNumber, boolean checkLuhn) {
+        if (cardNumber == null || cardNumber.length() != LENGTH) return INVALID;
+
+        long key = 0;
+        int sum = 0;
+        // Negative as soon as one character is no digit, checked for two characters at a time
+        int nonDigits = 0;
 
-            if (i % 2 == 1) num *= 2;
-            if (num > 9) num -= 9;
+        for (int i = 0; i < LENGTH; i += 2) {
+            int even = cardNumber.charAt(i) - '0';
+            int odd = cardNumber.charAt(i + 1) - '0';
+            nonDigits |= even | odd | 9 - even | 9 - odd;
+            if (nonDigits < 0) return INVALID;
 
-            sum += num;
+            key = key * 100 + even * 10 + odd;
+            sum += DOUBLED[even] + odd;
         }
 
-        return sum % 10 != 0;
+        return !checkLuhn || sum % 10 == 0 ? key : INVALID;
     }
 }
@@ -1,18 +1,77 @@
 package io.github.dankoller.antifraud.util;
 
-import java.util.regex.Pattern;
-
 public class IPAddressValidator {
 
     /**
-     * Checks if a given IP address is invalid using regular expression.
+     * Checks if a given IPv4 or IPv6 address is invalid.
      *
      * @param ip IP address to be checked
      * @return True if the IP address is invalid, false otherwise
      */
     public static boolean isNonValidIp(String ip) {
-        Pattern pattern = Pattern.compile("^(([0-9]|[1-9][0-9]|1[0-9][0-9]|2[0-4][0-9]|25[0-5])(\\.(?!$)|$)){4}$");
+        return IPKey.parse(ip) == null;
+    }
+
+    /**
+     * Checks if a given IP address or network in CIDR notation is invalid.
+     *
+     * @param network IP address or network to be checked
+     * @return True if the network is invalid, false otherwise
+     */
+    public static boolean isNonValidNetwork(String network) {
+        return IPNetwork.parse(network) == null;
+    }
+
+    /**
+     * Returns the canonical notation of an IP address, so different notations of the same address are stored and
+     * compared as one.
+     *
+     * @param ip IP address to be converted
+     * @return The canonical notation, or null if the address is invalid
+     */
+    public static String canonicalize(String ip) {
+        IPKey key = IPKey.parse(ip);
+        return key == null ? null : key.toString();
+    }
+
+    /**
+     * Returns the canonical notation of an IP address or network in CIDR notation.
+     *
+     * @param network IP address or network to be converted
+     * @return The canonical notation, or null if the network is invalid
+     */
+    public static String canonicalizeNetwork(String network) {
+        IPNetwork parsed = IPNetwork.parse(network);
+        return parsed == null ? null : parsed.toString();
+    }
+
+    /**
+     * Converts a valid IPv4 address to a numeric key without allocating, e.g. for binary searches.
+     *
+     * @param ip IP address to be converted
+     * @return The address as an unsigned 32-bit value, or -1 if the address is invalid
+     */
+    public static long toKey(String ip) {
+        if (ip == null) return -1;
 
-        return !pattern.matcher(ip).matches();
+        long key = 0;
+        int octet = -1;
+        int octets = 0;
+        for (int i = 0; i <= ip.length(); i++) {
+            char c = i < ip.length() ? ip.charAt(i) : '.';
+            if (c == '.') {
+                if (octet < 0 || ++octets > 4) return -1;
+                key = key << 8 | octet;
+                octet = -1;
+            } else if (c >= '0' && c <= '9') {
+                // No leading zeros, they are ambiguous (octal in some parsers)
+                if (octet == 0) return -1;
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) return -1;
+            } else {
+                return -1;
+            }
+        }
+        return octets == 4 ? key : -1;
     }
 }
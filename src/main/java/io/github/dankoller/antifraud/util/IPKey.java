@@ -0,0 +1,173 @@
+package io.github.dankoller.antifraud.util;
+
+/**
+ * A 128-bit IP address as two longs. IPv4 addresses are stored as IPv4-mapped IPv6 addresses (::ffff:a.b.c.d), so
+ * both families share one key space and every notation of an address results in the same key.
+ *
+ * @param high The upper 64 bits
+ * @param low  The lower 64 bits
+ */
+public record IPKey(long high, long low) {
+
+    private static final long IPV4_MAPPED = 0xFFFFL << 32;
+
+    public static IPKey ofIPv4(long address) {
+        return new IPKey(0, IPV4_MAPPED | address);
+    }
+
+    /**
+     * Parses an IPv4 address or an IPv6 address in any textual form (full, compressed with '::', with an embedded
+     * IPv4 address in the last 32 bits). Zone ids and brackets are not accepted.
+     *
+     * @param text The address
+     * @return The key, or null if the text is no valid address
+     */
+    public static IPKey parse(String text) {
+        if (text == null || text.isEmpty()) return null;
+
+        if (text.indexOf(':') < 0) {
+            long ipv4 = IPAddressValidator.toKey(text);
+            return ipv4 < 0 ? null : ofIPv4(ipv4);
+        }
+
+        int[] groups = new int[8];
+        int compressed = text.indexOf("::");
+        if (compressed >= 0 && text.indexOf("::", compressed + 1) >= 0) return null;
+
+        if (compressed < 0) {
+            return parseGroups(text, groups, true) == 8 ? toKey(groups) : null;
+        }
+
+        // The groups before '::' never end the address, so they can't hold the embedded IPv4 address
+        int head = compressed == 0 ? 0 : parseGroups(text.substring(0, compressed), groups, false);
+        if (head < 0) return null;
+
+        String tailText = text.substring(compressed + 2);
+        int[] tail = new int[8];
+        int tailCount = tailText.isEmpty() ? 0 : parseGroups(tailText, tail, true);
+        if (tailCount < 0 || head + tailCount > 7) return null;
+
+        System.arraycopy(tail, 0, groups, 8 - tailCount, tailCount);
+        return toKey(groups);
+    }
+
+    /**
+     * Helper method to parse colon separated hex groups.
+     *
+     * @param ipv4Last True if the last group may be an IPv4 address, i.e. the groups end the address
+     * @return The number of 16-bit groups, or -1 if the text is invalid
+     */
+    private static int parseGroups(String text, int[] groups, boolean ipv4Last) {
+        int count = 0;
+        int start = 0;
+
+        while (true) {
+            int end = text.indexOf(':', start);
+            String group = end < 0 ? text.substring(start) : text.substring(start, end);
+
+            if (ipv4Last && end < 0 && group.indexOf('.') >= 0) {
+                long ipv4 = IPAddressValidator.toKey(group);
+                if (ipv4 < 0 || count > 6) return -1;
+                groups[count++] = (int) (ipv4 >>> 16);
+                groups[count++] = (int) (ipv4 & 0xFFFF);
+                return count;
+            }
+
+            if (group.isEmpty() || group.length() > 4 || count == 8) return -1;
+            int value = 0;
+            for (int i = 0; i < group.length(); i++) {
+                int digit = Character.digit(group.charAt(i), 16);
+                if (digit < 0) return -1;
+                value = value << 4 | digit;
+            }
+            groups[count++] = value;
+
+            if (end < 0) return count;
+            start = end + 1;
+        }
+    }
+
+    private static IPKey toKey(int[] groups) {
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 4; i++) {
+            high = high << 16 | groups[i];
+            low = low << 16 | groups[i + 4];
+        }
+        return new IPKey(high, low);
+    }
+
+    public boolean isIPv4() {
+        return high == 0 && (low >>> 32) == 0xFFFF;
+    }
+
+    /**
+     * Returns bit i of the address, counted from the most significant bit.
+     *
+     * @param i The bit index, 0 to 127
+     * @return 0 or 1
+     */
+    public int bit(int i) {
+        return (int) (i < 64 ? high >>> (63 - i) : low >>> (127 - i)) & 1;
+    }
+
+    /**
+     * Returns the address with all bits after the first prefixLength bits cleared.
+     *
+     * @param prefixLength The number of bits to keep, 0 to 128
+     * @return The masked address
+     */
+    public IPKey mask(int prefixLength) {
+        if (prefixLength >= 128) return this;
+        if (prefixLength <= 0) return new IPKey(0, 0);
+        if (prefixLength <= 64) return new IPKey(high & (-1L << (64 - prefixLength)), 0);
+        return new IPKey(high, low & (-1L << (128 - prefixLength)));
+    }
+
+    /**
+     * Returns the canonical text of the address: dotted IPv4 for IPv4 addresses, otherwise the RFC 5952 form
+     * (lower case, no leading zeros, the longest run of zero groups compressed to '::').
+     *
+     * @return The canonical text
+     */
+    @Override
+    public String toString() {
+        if (isIPv4()) {
+            return ((low >>> 24) & 0xFF) + "." + ((low >>> 16) & 0xFF) + "." + ((low >>> 8) & 0xFF) + "." + (low & 0xFF);
+        }
+
+        int[] groups = new int[8];
+        for (int i = 0; i < 4; i++) {
+            groups[i] = (int) (high >>> (48 - 16 * i)) & 0xFFFF;
+            groups[i + 4] = (int) (low >>> (48 - 16 * i)) & 0xFFFF;
+        }
+
+        // Find the longest run of at least two zero groups, the first one wins on a tie
+        int bestStart = -1;
+        int bestLength = 1;
+        for (int i = 0; i < 8; ) {
+            if (groups[i] != 0) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < 8 && groups[i] == 0) i++;
+            if (i - start > bestLength) {
+                bestStart = start;
+                bestLength = i - start;
+            }
+        }
+
+        StringBuilder text = new StringBuilder(39);
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                text.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (text.length() > 0 && text.charAt(text.length() - 1) != ':') text.append(':');
+            text.append(Integer.toHexString(groups[i]));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.dankoller.antifraud.util;
+
+/**
+ * An IP address prefix in CIDR notation, e.g. 10.0.0.0/8 or 2001:db8::/32. The prefix length is counted in the
+ * 128-bit key space of {@link IPKey}, so an IPv4 /8 is stored as a /104.
+ *
+ * @param address      The address with all bits after the prefix cleared
+ * @param prefixLength The number of significant bits, 0 to 128
+ */
+public record IPNetwork(IPKey address, int prefixLength) {
+
+    private static final int IPV4_OFFSET = 96;
+
+    /**
+     * Parses an address or a network in CIDR notation. A single address is a network of full length.
+     *
+     * @param text The address or network
+     * @return The network, or null if the text is invalid
+     */
+    public static IPNetwork parse(String text) {
+        if (text == null) return null;
+
+        int slash = text.indexOf('/');
+        IPKey address = IPKey.parse(slash < 0 ? text : text.substring(0, slash));
+        if (address == null) return null;
+
+        // Prefix lengths of dotted IPv4 networks count from the start of the IPv4 part
+        int offset = text.indexOf(':') < 0 ? IPV4_OFFSET : 0;
+        int length = 128;
+        if (slash >= 0) {
+            String lengthText = text.substring(slash + 1);
+            if (lengthText.isEmpty() || lengthText.length() > 3 || !lengthText.chars().allMatch(Character::isDigit)) {
+                return null;
+            }
+            length = offset + Integer.parseInt(lengthText);
+            if (length > 128) return null;
+        }
+
+        return new IPNetwork(address.mask(length), length);
+    }
+
+    public boolean contains(IPKey key) {
+        return key.mask(prefixLength).equals(address);
+    }
+
+    /**
+     * Returns the canonical text of the network, without a prefix length for single addresses.
+     *
+     * @return The canonical text
+     */
+    @Override
+    public String toString() {
+        if (prefixLength == 128) return address.toString();
+
+        boolean ipv4 = address.isIPv4() && prefixLength >= IPV4_OFFSET;
+        return address + "/" + (ipv4 ? prefixLength - IPV4_OFFSET : prefixLength);
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.dankoller.antifraud.util;
+
+import io.github.dankoller.antifraud.entity.Card;
+import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
+import io.github.dankoller.antifraud.store.CardState;
+
+/**
+ * The tunable part of the scoring: the limits of a new card, the number of other regions or IP addresses in the last
+ * hour that make a transaction correlated, and how much feedback moves the limits of a card. The live scoring uses
+ * {@link #CURRENT}, a backtest replays the history with another policy to compare the verdicts before it goes live.
+ *
+ * @param allowedLimit               Limit of a new card up to which transactions are allowed
+ * @param manualLimit                Limit of a new card up to which transactions need manual processing
+ * @param correlationManualCount     Other regions or IP addresses in the last hour that need manual processing
+ * @param correlationProhibitedCount Other regions or IP addresses in the last hour that prohibit the transaction
+ * @param feedbackWeight             Weight of the transaction amount when feedback adjusts a limit
+ */
+public record LimitPolicy(int allowedLimit, int manualLimit, int correlationManualCount,
+                          int correlationProhibitedCount, double feedbackWeight) {
+
+    public static final LimitPolicy CURRENT = new LimitPolicy(Card.DEFAULT_ALLOWED_LIMIT, Card.DEFAULT_MANUAL_LIMIT,
+            2, 3, 0.2);
+
+    /**
+     * Returns the verdict for the number of other regions (or IP addresses) the card was used from in the last hour.
+     *
+     * @param count Number of distinct other regions or IP addresses
+     * @return PROHIBITED, MANUAL_PROCESSING, or null if the transaction is not correlated
+     */
+    public TransactionResult correlationResult(long count) {
+        if (count >= correlationProhibitedCount) return TransactionResult.PROHIBITED;
+        if (count >= correlationManualCount) return TransactionResult.MANUAL_PROCESSING;
+        return null;
+    }
+
+    /**
+     * Adjusts the limits of a card after a feedback that differs from the verdict. Limits move towards the amount of
+     * the transaction: new_limit = (1 - weight) * current_limit +/- weight * amount.
+     *
+     * @param state    State of the card, see {@link CardState}
+     * @param result   Verdict of the transaction
+     * @param feedback Feedback on the transaction
+     * @param amount   Amount of the transaction
+     * @return The state with the new limits
+     */
+    public long adjustLimits(long state, TransactionResult result, TransactionResult feedback, long amount) {
+        int allowedLimit = CardState.allowedLimit(state);
+        int manualLimit = CardState.manualLimit(state);
+
+        if (feedback == TransactionResult.MANUAL_PROCESSING && result == TransactionResult.ALLOWED) {
+            allowedLimit = decrease(allowedLimit, amount);
+        } else if (feedback == TransactionResult.PROHIBITED && result == TransactionResult.ALLOWED) {
+            allowedLimit = decrease(allowedLimit, amount);
+            manualLimit = decrease(manualLimit, amount);
+        } else if (feedback == TransactionResult.ALLOWED && result == TransactionResult.MANUAL_PROCESSING) {
+            allowedLimit = increase(allowedLimit, amount);
+        } else if (feedback == TransactionResult.PROHIBITED && result == TransactionResult.MANUAL_PROCESSING) {
+            manualLimit = decrease(manualLimit, amount);
+        } else if (feedback == TransactionResult.ALLOWED && result == TransactionResult.PROHIBITED) {
+            allowedLimit = increase(allowedLimit, amount);
+            manualLimit = increase(manualLimit, amount);
+        } else if (feedback == TransactionResult.MANUAL_PROCESSING && result == TransactionResult.PROHIBITED) {
+            manualLimit = increase(manualLimit, amount);
+        }
+
+        return CardState.withLimits(state, allowedLimit, manualLimit);
+    }
+
+    private int increase(int limit, long amount) {
+        return (int) Math.ceil((1 - feedbackWeight) * limit + feedbackWeight * amount);
+    }
+
+    private int decrease(int limit, long amount) {
+        return (int) Math.ceil((1 - feedbackWeight) * limit - feedbackWeight * amount);
+    }
+}
@@ -1,12 +1,27 @@
 package io.github.dankoller.antifraud.util;
 
-import io.github.dankoller.antifraud.entity.Card;
+import io.github.dankoller.antifraud.aggregate.CardVelocity;
+import io.github.dankoller.antifraud.aggregate.CorrelationRollupStore;
+import io.github.dankoller.antifraud.aggregate.CorrelationRollupStore.Correlation;
+import io.github.dankoller.antifraud.aggregate.DistinctCountTracker;
+import io.github.dankoller.antifraud.aggregate.DistinctCountTracker.DistinctCounts;
+import io.github.dankoller.antifraud.aggregate.SpendingProfile;
+import io.github.dankoller.antifraud.aggregate.SpendingProfileStore;
+import io.github.dankoller.antifraud.aggregate.VelocityTracker;
+import io.github.dankoller.antifraud.aggregate.VelocityWindow;
 import io.github.dankoller.antifraud.entity.transaction.Transaction;
+import io.github.dankoller.antifraud.feed.ThreatIntelFeedLoader;
+import io.github.dankoller.antifraud.jfr.FraudEvents;
+import io.github.dankoller.antifraud.jfr.HeuristicEvent;
+import io.github.dankoller.antifraud.jfr.RepositoryCallEvent;
 import io.github.dankoller.antifraud.entity.transaction.TransactionResult;
-import io.github.dankoller.antifraud.persistence.CardRepository;
-import io.github.dankoller.antifraud.persistence.SuspiciousIPRepository;
-import io.github.dankoller.antifraud.persistence.TransactionRepository;
+import io.github.dankoller.antifraud.store.BinRuleStore;
+import io.github.dankoller.antifraud.store.CardState;
+import io.github.dankoller.antifraud.store.CardStateStore;
+import io.github.dankoller.antifraud.store.SuspiciousIPStore;
+import io.github.dankoller.antifraud.timing.RequestTimings;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
@@ -15,18 +30,38 @@ import java.util.*;
 @SuppressWarnings("unused")
 public class TransactionValidator {
 
-    private Transaction transaction;
+    @Autowired
+    private SuspiciousIPStore suspiciousIPStore;
+
+    @Autowired
+    private CardStateStore cardStateStore;
 
     @Autowired
-    private SuspiciousIPRepository suspiciousIPRepository;
+    private BinRuleStore binRuleStore;
 
     @Autowired
-    private CardRepository cardRepository;
+    private CorrelationRollupStore correlationRollupStore;
 
     @Autowired
-    private TransactionRepository transactionRepository;
+    private VelocityTracker velocityTracker;
+
+    @Autowired
+    private DistinctCountTracker distinctCountTracker;
+
+    @Autowired
+    private SpendingProfileStore spendingProfileStore;
+
+    @Autowired
+    private ThreatIntelFeedLoader threatIntelFeedLoader;
+
+    @Value("${antifraud.profile.min-samples:10}")
+    private long profileMinSamples;
+
+    @Value("${antifraud.profile.max-z-score:3.0}")
+    private double profileMaxZScore;
 
-    private Set<String> info = new TreeSet<>();
+    @Value("${antifraud.profile.min-relative-std-dev:0.1}")
+    private double profileMinRelativeStdDev;
 
     /**
      * Checks if the feedback matches the transaction result.
@@ -44,89 +79,251 @@ public class TransactionValidator {
      * @param transaction Transaction to verify.
      */
     public void verifyTransaction(Transaction transaction) {
-        this.transaction = transaction;
-        this.info = new TreeSet<>();
+        verifyTransaction(transaction, CardValidator.toKey(transaction.getNumber()));
+    }
 
+    /**
+     * Verifies a transaction whose card number was already validated and converted into its key.
+     *
+     * @param transaction Transaction to verify.
+     * @param cardKey     Key of the card number, see {@link CardValidator#toValidKey(String)}
+     */
+    public void verifyTransaction(Transaction transaction, long cardKey) {
+        // The validator is shared by all requests, so the reasons are collected per call and passed to the heuristics
+        Set<String> info = new TreeSet<>();
         transaction.setResult(TransactionResult.ALLOWED);
 
-        // Heuristics for the transaction
-        checkIfStolenCard();
-        checkIfSuspiciousIP();
-        checkIfCorrelationExists();
-        checkIfAmountIsTooHigh();
+        // Heuristics for the transaction, each timed for the Server-Timing header and recorded as JFR event
+        long start = RequestTimings.start();
+        start = runHeuristic("stolen-card", this::checkIfStolenCard, transaction, cardKey, info, start);
+        start = runHeuristic("bin-rule", this::checkIfBinRuleMatches, transaction, cardKey, info, start);
+        start = runHeuristic("suspicious-ip", this::checkIfSuspiciousIP, transaction, cardKey, info, start);
+        start = runHeuristic("correlation", this::checkIfCorrelationExists, transaction, cardKey, info, start);
+        start = runHeuristic("long-term-correlation", this::checkIfLongTermCorrelationExists,
+                transaction, cardKey, info, start);
+        start = runHeuristic("velocity", this::checkIfVelocityIsTooHigh, transaction, cardKey, info, start);
+        start = runHeuristic("amount-anomaly", this::checkIfAmountIsAnomalous, transaction, cardKey, info, start);
+        start = runHeuristic("amount", this::checkIfAmountIsTooHigh, transaction, cardKey, info, start);
 
-        transaction.setInfo(formatInfo());
+        transaction.setInfo(formatInfo(transaction, info));
+
+        spendingProfileStore.update(
+                cardKey,
+                transaction.getAmount(),
+                transaction.getRegion(),
+                transaction.getIp()
+        );
+        RequestTimings.lap("profile-update", start);
     }
 
     /**
-     * Checks if the card number of the transaction is flagged as stolen in the database.
+     * Helper method that runs a heuristic, records it as JFR event and times it for the Server-Timing header.
+     *
+     * @param name      Name of the heuristic
+     * @param heuristic   The heuristic
+     * @param transaction Transaction to verify
+     * @param cardKey     Key of the card number
+     * @param info        Reasons found so far, the heuristic adds its own
+     * @param start       Start time for {@link RequestTimings#lap(String, long)}
+     * @return Start time of the next step
      */
-    private void checkIfStolenCard() {
-        if (cardRepository.existsByNumberAndIsLockedTrue(transaction.getNumber())) {
+    private long runHeuristic(String name, Heuristic heuristic, Transaction transaction, long cardKey,
+                              Set<String> info, long start) {
+        HeuristicEvent event = new HeuristicEvent();
+        event.begin();
+
+        heuristic.check(transaction, cardKey, info);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.heuristic = name;
+            event.cardKeyHash = FraudEvents.cardKeyHash(cardKey);
+            event.result = transaction.getResult();
+            event.reasons = String.join(", ", info);
+            event.commit();
+        }
+        return RequestTimings.lap(name, start);
+    }
+
+    /**
+     * Checks if the card number of the transaction is flagged as stolen in the card state store, or if its BIN is
+     * listed in a threat-intel feed.
+     */
+    private void checkIfStolenCard(Transaction transaction, long cardKey, Set<String> info) {
+        if (CardState.isLocked(cardStateStore.get(cardKey))
+                || threatIntelFeedLoader.getFeed().containsBin(transaction.getNumber())) {
             transaction.setResult(TransactionResult.PROHIBITED);
             info.add("card-number");
         }
     }
 
     /**
-     * Checks if the IP address of the transaction is flagged as suspicious in the database.
+     * Checks if the card number belongs to an issuer range with a BIN rule. The most specific rule decides whether
+     * the transaction is prohibited or sent to manual processing.
+     */
+    private void checkIfBinRuleMatches(Transaction transaction, long cardKey, Set<String> info) {
+        TransactionResult result = binRuleStore.match(transaction.getNumber());
+        if (result == null) return;
+
+        if (result == TransactionResult.PROHIBITED) {
+            transaction.setResult(TransactionResult.PROHIBITED);
+        } else if (!Objects.equals(transaction.getResult(), TransactionResult.PROHIBITED.name())) {
+            transaction.setResult(TransactionResult.MANUAL_PROCESSING);
+        }
+        info.add("bin");
+    }
+
+    /**
+     * Checks if the IP address of the transaction is listed in a threat-intel feed or is part of a suspicious IP
+     * address or network.
      */
-    private void checkIfSuspiciousIP() {
-        if (suspiciousIPRepository.findByIp(transaction.getIp()).isPresent()) {
+    private void checkIfSuspiciousIP(Transaction transaction, long cardKey, Set<String> info) {
+        if (threatIntelFeedLoader.getFeed().containsIp(transaction.getIp())
+                || suspiciousIPStore.contains(transaction.getIp())) {
             transaction.setResult(TransactionResult.PROHIBITED);
             info.add("ip");
         }
     }
 
     /**
-     * Checks if the transaction is correlated with another transaction based on the region and ip address.
+     * Checks if the transaction is correlated with other transactions of the card in the last hour based on the
+     * region and ip address. The distinct counts come from the hourly rollups of the card, see
+     * {@link CorrelationRollupStore}.
      */
-    private void checkIfCorrelationExists() {
-        List<Transaction> timeBeforeTransaction = transactionRepository.findAllByDateBetweenAndNumber(
-                transaction.getDate().minusHours(1),
-                transaction.getDate(),
-                transaction.getNumber()
+    private void checkIfCorrelationExists(Transaction transaction, long cardKey, Set<String> info) {
+        RepositoryCallEvent event = new RepositoryCallEvent();
+        event.begin();
+
+        Correlation correlation = correlationRollupStore.record(
+                cardKey,
+                transaction.getRegion(),
+                transaction.getIp(),
+                transaction.getDate()
         );
 
-        long regionCount = timeBeforeTransaction.stream()
-                .map(Transaction::getRegion)
-                .filter(region -> !Objects.equals(region, transaction.getRegion()))
-                .distinct().count();
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = "CorrelationRollupStore.record";
+            event.cardKeyHash = FraudEvents.cardKeyHash(cardKey);
+            event.rows = correlation.rows();
+            event.commit();
+        }
 
-        long ipCount = timeBeforeTransaction.stream()
-                .map(Transaction::getIp)
-                .filter(ip -> !Objects.equals(ip, transaction.getIp()))
-                .distinct().count();
+        TransactionResult regionResult = LimitPolicy.CURRENT.correlationResult(correlation.otherRegions());
+        TransactionResult ipResult = LimitPolicy.CURRENT.correlationResult(correlation.otherIps());
 
-        if (regionCount == 2 && !Objects.equals(transaction.getResult(), TransactionResult.PROHIBITED.name())) {
-            transaction.setResult(TransactionResult.MANUAL_PROCESSING);
-            info.add("region-correlation");
+        // Manual processing first, so its reason is still listed if the other correlation prohibits the transaction
+        for (TransactionResult result : List.of(TransactionResult.MANUAL_PROCESSING, TransactionResult.PROHIBITED)) {
+            if (regionResult == result) markCorrelated(transaction, info, result, "region-correlation");
+            if (ipResult == result) markCorrelated(transaction, info, result, "ip-correlation");
+        }
+    }
+
+    /**
+     * Helper method that applies the verdict of a correlation, manual processing never overrides a prohibition.
+     *
+     * @param transaction Transaction to verify
+     * @param info        Reasons of the transaction
+     * @param result      PROHIBITED or MANUAL_PROCESSING
+     * @param reason      Reason added to the info of the transaction
+     */
+    private void markCorrelated(Transaction transaction, Set<String> info, TransactionResult result, String reason) {
+        if (result == TransactionResult.MANUAL_PROCESSING
+                && Objects.equals(transaction.getResult(), TransactionResult.PROHIBITED.name())) {
+            return;
+        }
+        transaction.setResult(result);
+        info.add(reason);
+    }
+
+    /**
+     * Checks if the card was used from too many IP addresses in the last 24 hours or 7 days, or if the IP address was
+     * used with too many cards in the last 24 hours (card testing). The counts are HyperLogLog estimates.
+     */
+    private void checkIfLongTermCorrelationExists(Transaction transaction, long cardKey, Set<String> info) {
+        DistinctCounts counts = distinctCountTracker.record(
+                cardKey,
+                transaction.getIp(),
+                transaction.getDate()
+        );
+
+        boolean correlated = false;
+
+        if (counts.cardIpsDay() > distinctCountTracker.getMaxCardIpsDay()) {
+            info.add("ip-correlation-24h");
+            correlated = true;
         }
 
-        if (ipCount == 2 && !Objects.equals(transaction.getResult(), TransactionResult.PROHIBITED.name())) {
+        if (counts.cardIpsWeek() > distinctCountTracker.getMaxCardIpsWeek()) {
+            info.add("ip-correlation-7d");
+            correlated = true;
+        }
+
+        if (counts.ipCardsDay() > distinctCountTracker.getMaxIpCardsDay()) {
+            info.add("card-testing");
+            correlated = true;
+        }
+
+        if (correlated && !Objects.equals(transaction.getResult(), TransactionResult.PROHIBITED.name())) {
             transaction.setResult(TransactionResult.MANUAL_PROCESSING);
-            info.add("ip-correlation");
         }
+    }
 
-        if (regionCount > 2) {
-            transaction.setResult(TransactionResult.PROHIBITED);
-            info.add("region-correlation");
+    /**
+     * Checks if the card was used too often or spent too much in the last minute, hour or day. The counts come from
+     * the in-memory velocity windows and include the current transaction.
+     */
+    private void checkIfVelocityIsTooHigh(Transaction transaction, long cardKey, Set<String> info) {
+        CardVelocity velocity = velocityTracker.record(
+                cardKey,
+                transaction.getDate(),
+                transaction.getAmount()
+        );
+
+        boolean tooMany = false;
+        boolean tooMuch = false;
+
+        for (VelocityWindow window : VelocityWindow.values()) {
+            long maxCount = velocityTracker.getMaxCount(window);
+            long maxAmount = velocityTracker.getMaxAmount(window);
+
+            tooMany |= maxCount > 0 && velocity.getCount(window) > maxCount;
+            tooMuch |= maxAmount > 0 && velocity.getAmount(window) > maxAmount;
         }
 
-        if (ipCount > 2) {
-            transaction.setResult(TransactionResult.PROHIBITED);
-            info.add("ip-correlation");
+        if (tooMany) info.add("velocity-count");
+        if (tooMuch) info.add("velocity-amount");
+
+        if ((tooMany || tooMuch) && !Objects.equals(transaction.getResult(), TransactionResult.PROHIBITED.name())) {
+            transaction.setResult(TransactionResult.MANUAL_PROCESSING);
+        }
+    }
+
+    /**
+     * Checks if the amount is unusually high compared to the previous amounts of the card, using the z-score against
+     * the card's spending profile. Cards with too few transactions are skipped.
+     */
+    private void checkIfAmountIsAnomalous(Transaction transaction, long cardKey, Set<String> info) {
+        SpendingProfile profile = spendingProfileStore.get(cardKey);
+        if (profile == null || profile.getCount() < profileMinSamples) return;
+
+        double minStdDev = Math.max(1, profile.getMean() * profileMinRelativeStdDev);
+
+        if (profile.zScore(transaction.getAmount(), minStdDev) > profileMaxZScore
+                && !Objects.equals(transaction.getResult(), TransactionResult.PROHIBITED.name())) {
+            transaction.setResult(TransactionResult.MANUAL_PROCESSING);
+            info.add("amount-anomaly");
         }
     }
 
     /**
      * Checks if the amount of the transaction is too high based on the limit of the customers card.
      */
-    private void checkIfAmountIsTooHigh() {
-        Card card = cardRepository.findByNumber(transaction.getNumber()).orElseThrow(AssertionError::new);
+    private void checkIfAmountIsTooHigh(Transaction transaction, long cardKey, Set<String> info) {
+        long state = cardStateStore.getOrCreate(cardKey);
 
-        int allowedLimit = card.getAllowedLimit();
-        int manualLimit = card.getManualLimit();
+        int allowedLimit = CardState.allowedLimit(state);
+        int manualLimit = CardState.manualLimit(state);
 
         if (transaction.getAmount() > allowedLimit && transaction.getAmount() <= manualLimit
                 && !Objects.equals(transaction.getResult(), TransactionResult.PROHIBITED.name())) {
@@ -147,13 +344,24 @@ public class TransactionValidator {
     /**
      * Helper method that formats the info of the transaction.
      *
+     * @param transaction Verified transaction
+     * @param info        Reasons of the transaction
      * @return Formatted info of the transaction.
      */
-    private String formatInfo() {
+    private String formatInfo(Transaction transaction, Set<String> info) {
         if (Objects.equals(transaction.getResult(), TransactionResult.ALLOWED.name())) {
             info.add("none");
         }
 
         return String.join(", ", info);
     }
+
+    /**
+     * A heuristic that checks a transaction and, if it matches, sets the result and adds its reason to the info.
+     */
+    @FunctionalInterface
+    private interface Heuristic {
+
+        void check(Transaction transaction, long cardKey, Set<String> info);
+    }
 }
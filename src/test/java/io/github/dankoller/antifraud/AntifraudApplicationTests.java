@@ -1,40 +1,110 @@
 package io.github.dankoller.antifraud;
 
+import io.github.dankoller.antifraud.aggregate.VelocityTracker;
+import io.github.dankoller.antifraud.aggregate.VelocityWindow;
+import io.github.dankoller.antifraud.archive.TransactionArchive;
 import io.github.dankoller.antifraud.controller.AuthorizationController;
 import io.github.dankoller.antifraud.controller.TransactionController;
 import io.github.dankoller.antifraud.controller.ValidationController;
 import io.github.dankoller.antifraud.entity.Card;
+import io.github.dankoller.antifraud.entity.transaction.Transaction;
 import io.github.dankoller.antifraud.entity.user.User;
+import io.github.dankoller.antifraud.expiry.SuspiciousIPExpiry;
+import io.github.dankoller.antifraud.feed.ThreatIntelFeedLoader;
+import io.github.dankoller.antifraud.partition.TransactionPartitions;
+import io.github.dankoller.antifraud.limits.LimitHistoryService;
+import io.github.dankoller.antifraud.persistence.CardHourRollupRepository;
 import io.github.dankoller.antifraud.persistence.CardRepository;
 import io.github.dankoller.antifraud.persistence.TransactionRepository;
 import io.github.dankoller.antifraud.persistence.UserRepository;
 import io.github.dankoller.antifraud.service.UserService;
+import io.github.dankoller.antifraud.snapshot.SnapshotParticipant;
+import io.github.dankoller.antifraud.snapshot.StateReconciliationHealthIndicator;
+import io.github.dankoller.antifraud.snapshot.StateSnapshotFile;
+import io.github.dankoller.antifraud.snapshot.StateSnapshotService;
+import io.github.dankoller.antifraud.sqlstats.SqlStatementCounter;
+import io.github.dankoller.antifraud.store.CardLocks;
+import io.github.dankoller.antifraud.store.CardStateJournal;
+import io.github.dankoller.antifraud.store.IPRadixTree;
+import io.github.dankoller.antifraud.store.OffHeapLongLongMap;
+import io.github.dankoller.antifraud.util.CardValidator;
+import io.github.dankoller.antifraud.util.IPKey;
+import io.github.dankoller.antifraud.util.IPNetwork;
+import jdk.jfr.EventType;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.MethodOrderer;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.TransientDataAccessResourceException;
 import org.springframework.http.MediaType;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
-
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultMatcher;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
-@SpringBootTest
+// Keep the card state store and the scoring state in memory, so every run starts from the (fresh) database
+@SpringBootTest(properties = {"antifraud.card-store.directory=", "antifraud.state.directory=",
+        "antifraud.server-timing.enabled=true", "antifraud.sql-stats.enabled=true",
+        "antifraud.partitions.enabled=true"})
 @AutoConfigureMockMvc
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 @SuppressWarnings("unused")
 class AntifraudApplicationTests {
 
+    // Threat-intel feeds, JFR recordings and archive segments of a run, deleted after the tests
+    @TempDir
+    static Path testDirectory;
+
+    @DynamicPropertySource
+    static void testDirectories(DynamicPropertyRegistry registry) {
+        registry.add("antifraud.feed.directory", () -> testDirectory.resolve("feeds").toString());
+        registry.add("antifraud.jfr.directory", () -> testDirectory.resolve("jfr").toString());
+        registry.add("antifraud.archive.directory", () -> testDirectory.resolve("archive").toString());
+    }
+
     // Users
     private final User testAdministrator = new User("Test Administrator",
             "testadmin",
@@ -49,6 +119,9 @@ class AntifraudApplicationTests {
     // Card numbers
     private final String cardNumberValid = "4000008449430003";
     private final String cardNumberInvalid = "1234567891011121";
+    private final String velocityCardNumberValid = "4000001234560001";
+    private final String ipv6CardNumberValid = "4000006553600007";
+    private final String correlationCardNumberValid = "4000007654321006";
     private final String stolenCardNumberValid = "3151853279026036";
     private final String stolenCardNumberValidAsJson = "{" + "\"number\":\"" + stolenCardNumberValid + "\"}";
 
@@ -56,6 +129,11 @@ class AntifraudApplicationTests {
     private final String ipValid = "127.0.0.1";
     private final String suspiciousIpValid = "127.127.127.127";
     private final String suspiciousIpValidAsJson = "{" + "\"ip\":\"" + suspiciousIpValid + "\"}";
+    private final String suspiciousNetworkIpv6 = "2001:db8::/32";
+
+    // BIN rules (matches the card of the IPv6 transaction)
+    private final String binRuleBin = "40000065";
+    private final String binRuleAsJson = "{\"bin\":\"" + binRuleBin + "\",\"result\":\"PROHIBITED\"}";
 
     // Regions
     private final String regionValid = "ECA";
@@ -72,6 +150,13 @@ class AntifraudApplicationTests {
             "\",\"region\":\"" + regionValid +
             "\",\"date\":\"" + dateValid +
             "\"}";
+    private final String ipv6TransactionAsJson = "{" +
+            "\"amount\":\"" + amountValid +
+            "\",\"ip\":\"2001:DB8:0:0::5" +
+            "\",\"number\":\"" + ipv6CardNumberValid +
+            "\",\"region\":\"" + regionValid +
+            "\",\"date\":\"" + dateValid +
+            "\"}";
 
     // Feedback
     private final String feedbackAsJsonInvalid = "{" +
@@ -103,6 +188,27 @@ class AntifraudApplicationTests {
     @Autowired
     private CardRepository cardRepository;
 
+    @Autowired
+    private TransactionArchive transactionArchive;
+
+    @Autowired
+    private TransactionPartitions transactionPartitions;
+
+    @Autowired
+    private CardHourRollupRepository cardHourRollupRepository;
+
+    @Autowired
+    private LimitHistoryService limitHistoryService;
+
+    @Autowired
+    private ThreatIntelFeedLoader threatIntelFeedLoader;
+
+    @Autowired
+    private SuspiciousIPExpiry suspiciousIPExpiry;
+
+    @Autowired
+    private CardLocks cardLocks;
+
     // Test if the controllers are initialized
     @Test
     @Order(1)
@@ -769,9 +875,1260 @@ class AntifraudApplicationTests {
                 .andExpect(content().string(containsString("amount")));
     }
 
-    // Test if a user can be deleted and clean up the database
+    // Test if too many transactions of a card within a minute are sent to manual processing
     @Test
     @Order(43)
+    @WithMockUser(username = "testmerchant", roles = {"MERCHANT"})
+    void testPostTransactionVelocity() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            mvc
+                    .perform(post("/api/antifraud/transaction")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(velocityTransactionAsJson(i)))
+                    .andExpect(status().isOk())
+                    .andExpect(content().string(containsString("ALLOWED")));
+        }
+
+        // The 11th transaction within the same minute exceeds the default limit of 10
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(velocityTransactionAsJson(10)))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("MANUAL_PROCESSING")))
+                .andExpect(content().string(containsString("velocity-count")));
+    }
+
+    // Test if the support can see the cards with the most risky verdicts
+    @Test
+    @Order(44)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testGetTopCardsSupport() throws Exception {
+        mvc
+                .perform(get("/api/antifraud/top/card?window=60&limit=5"))
+                .andExpect(status().isOk())
+                // The velocity card was sent to manual processing in test #43
+                .andExpect(content().string(containsString(velocityCardNumberValid)))
+                .andExpect(content().string(containsString("count")));
+
+        mvc
+                .perform(get("/api/antifraud/top/ip?window=0"))
+                .andExpect(status().isBadRequest());
+    }
+
+    // Test if the support can see the spending profile of a card
+    @Test
+    @Order(45)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testGetProfileSupport() throws Exception {
+        mvc
+                .perform(get("/api/antifraud/profile/" + velocityCardNumberValid))
+                .andExpect(status().isOk())
+                // The velocity card made 11 transactions of 10 in test #43
+                .andExpect(content().string(containsString("\"count\" : 11")))
+                .andExpect(content().string(containsString("\"mean\" : 10.0")))
+                .andExpect(content().string(containsString(regionValid)));
+    }
+
+    // Test if the support can import stolen cards from a CSV upload
+    @Test
+    @Order(46)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testPostStolenCardBulkSupport() throws Exception {
+        String upload = "number\n4000005555000000\n4000005555000018\n4000005555000000\n" + cardNumberInvalid + "\n";
+
+        mvc
+                .perform(post("/api/antifraud/stolencard/bulk")
+                        .contentType("text/csv")
+                        .content(upload))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"inserted\" : 2")))
+                .andExpect(content().string(containsString("\"duplicate\" : 1")))
+                .andExpect(content().string(containsString("\"invalid\" : 1")));
+    }
+
+    // Test if the support can import suspicious IPs from an NDJSON upload
+    @Test
+    @Order(47)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testPostSuspiciousIpBulkSupport() throws Exception {
+        String upload = "{\"ip\":\"10.0.0.1\"}\n{\"ip\":\"10.0.0.2\"}\n{\"ip\":\"10.0.0.1\"}\n" +
+                "{\"ip\":\"999.0.0.1\"}\nnot json\n";
+
+        mvc
+                .perform(post("/api/antifraud/suspicious-ip/bulk")
+                        .contentType("application/x-ndjson")
+                        .content(upload))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"inserted\" : 2")))
+                .andExpect(content().string(containsString("\"duplicate\" : 1")))
+                .andExpect(content().string(containsString("\"invalid\" : 2")));
+
+        mvc
+                .perform(get("/api/antifraud/suspicious-ip"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("10.0.0.2")));
+    }
+
+    // Test if the support can poll the stolen cards conditionally and fetch the changes since a version
+    @Test
+    @Order(48)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testGetStolenCardsDeltaSupport() throws Exception {
+        String eTag = mvc
+                .perform(get("/api/antifraud/stolencard"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+
+        assertThat(eTag).isNotNull();
+
+        // Nothing changed since the last request
+        mvc
+                .perform(get("/api/antifraud/stolencard").header("If-None-Match", eTag))
+                .andExpect(status().isNotModified());
+
+        mvc
+                .perform(get("/api/antifraud/stolencard?since=0"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("version")))
+                // The cards imported in test #46 were added, the card deleted in test #31 was removed
+                .andExpect(content().string(containsString("4000005555000018")))
+                .andExpect(content().string(containsString("\"removed\" : [ \"" + stolenCardNumberValid + "\" ]")));
+    }
+
+    // Test if a transaction from an IP address listed in a threat-intel feed is prohibited
+    @Test
+    @Order(49)
+    @WithMockUser(username = "testmerchant", roles = {"MERCHANT"})
+    void testPostTransactionThreatIntelFeedIp() throws Exception {
+        Path feed = testDirectory.resolve("feeds/test-feed.txt");
+        Files.writeString(feed, "# test feed\n10.10.10.10\n999999\n");
+        threatIntelFeedLoader.reload();
+
+        try {
+            mvc
+                    .perform(post("/api/antifraud/transaction")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(transactionValidAsJson.replace(ipValid, "10.10.10.10")))
+                    .andExpect(status().isOk())
+                    .andExpect(content().string(containsString("PROHIBITED")))
+                    .andExpect(content().string(containsString("\"info\" : \"ip\"")));
+        } finally {
+            Files.delete(feed);
+            threatIntelFeedLoader.reload();
+        }
+    }
+
+    // Test if a suspicious IP saved with a TTL is purged once it expired
+    @Test
+    @Order(50)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testPostSuspiciousIpWithTtlSupport() throws Exception {
+        String expiringIp = "10.20.30.40";
+
+        mvc
+                .perform(post("/api/antifraud/suspicious-ip")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"ip\":\"" + expiringIp + "\",\"ttl\":60}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("expiresAt")));
+
+        mvc
+                .perform(post("/api/antifraud/suspicious-ip")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"ip\":\"10.20.30.41\",\"ttl\":\"never\"}"))
+                .andExpect(status().isBadRequest());
+
+        mvc
+                .perform(post("/api/antifraud/suspicious-ip")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"ip\":\"10.20.30.41\",\"ttl\":9223372036854775807}"))
+                .andExpect(status().isBadRequest());
+
+        // Nothing expired yet, then jump past the TTL
+        assertThat(suspiciousIPExpiry.purgeExpired(LocalDateTime.now())).isZero();
+        assertThat(suspiciousIPExpiry.purgeExpired(LocalDateTime.now().plusMinutes(2))).isEqualTo(1);
+
+        mvc
+                .perform(get("/api/antifraud/suspicious-ip"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(not(containsString(expiringIp))));
+    }
+
+    // Test if the support can save an IPv6 network in CIDR notation, which is stored in canonical notation
+    @Test
+    @Order(51)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testPostSuspiciousIpv6NetworkSupport() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/suspicious-ip")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"ip\":\"2001:DB8:0:0::/32\"}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString(suspiciousNetworkIpv6)));
+
+        mvc
+                .perform(post("/api/antifraud/suspicious-ip")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"ip\":\"2001:db8::/129\"}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    // Test if a transaction from an address in a suspicious IPv6 network is prohibited, in any notation
+    @Test
+    @Order(52)
+    @WithMockUser(username = "testmerchant", roles = {"MERCHANT"})
+    void testPostTransactionFromSuspiciousIpv6Network() throws Exception {
+        for (String ip : List.of("2001:DB8:0:0::5", "2001:db8::5", "2001:0db8:0000:0000:0000:0000:0000:0005")) {
+            mvc
+                    .perform(post("/api/antifraud/transaction")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(ipv6TransactionAsJson.replace("2001:DB8:0:0::5", ip)))
+                    .andExpect(status().isOk())
+                    .andExpect(content().string(containsString("PROHIBITED")))
+                    .andExpect(content().string(containsString("\"ip\"")));
+        }
+    }
+
+    // Test if the support can delete a suspicious network
+    @Test
+    @Order(53)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testDeleteSuspiciousIpv6NetworkSupport() throws Exception {
+        mvc
+                .perform(delete("/api/antifraud/suspicious-ip/" + suspiciousNetworkIpv6))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString(suspiciousNetworkIpv6)));
+    }
+
+    // Test if transactions from the addresses of a deleted network are allowed again
+    @Test
+    @Order(54)
+    @WithMockUser(username = "testmerchant", roles = {"MERCHANT"})
+    void testPostTransactionFromDeletedIpv6Network() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(ipv6TransactionAsJson))
+                .andExpect(status().isOk())
+                // Only the amount is above the allowed limit
+                .andExpect(content().string(containsString("MANUAL_PROCESSING")))
+                .andExpect(content().string(not(containsString("\"ip\""))));
+    }
+
+    // Test if the support can save a BIN rule for an issuer range, but no invalid or duplicate ones
+    @Test
+    @Order(55)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testPostBinRuleSupport() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/bin-rule")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(binRuleAsJson))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString(binRuleBin)));
+
+        mvc
+                .perform(post("/api/antifraud/bin-rule")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(binRuleAsJson))
+                .andExpect(status().isConflict());
+
+        mvc
+                .perform(post("/api/antifraud/bin-rule")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"bin\":\"40000\",\"result\":\"PROHIBITED\"}"))
+                .andExpect(status().isBadRequest());
+
+        mvc
+                .perform(post("/api/antifraud/bin-rule")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"bin\":\"400001\",\"result\":\"ALLOWED\"}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    // Test if a transaction of a card in the issuer range is prohibited by the BIN rule
+    @Test
+    @Order(56)
+    @WithMockUser(username = "testmerchant", roles = {"MERCHANT"})
+    void testPostTransactionWithBinRule() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(ipv6TransactionAsJson))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("PROHIBITED")))
+                .andExpect(content().string(containsString("bin")));
+    }
+
+    // Test if the support can list and delete BIN rules
+    @Test
+    @Order(57)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testDeleteBinRuleSupport() throws Exception {
+        mvc
+                .perform(get("/api/antifraud/bin-rule"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString(binRuleBin)));
+
+        mvc
+                .perform(delete("/api/antifraud/bin-rule/" + binRuleBin))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString(binRuleBin)));
+
+        mvc
+                .perform(delete("/api/antifraud/bin-rule/" + binRuleBin))
+                .andExpect(status().isNotFound());
+    }
+
+    // Test if card numbers with non-digit characters are rejected, even if their Luhn checksum would match
+    @Test
+    @Order(58)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testPostStolenCardWithNonDigitsSupport() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/stolencard")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"number\":\"40000084494300a2\"}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    // Test if the scoring response breaks the request down into its steps in the Server-Timing header
+    @Test
+    @Order(59)
+    @WithMockUser(username = "testmerchant", roles = {"MERCHANT"})
+    void testPostTransactionServerTiming() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(ipv6TransactionAsJson))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Server-Timing", containsString("auth;dur=")))
+                .andExpect(header().string("Server-Timing", containsString("velocity;dur=")))
+                .andExpect(header().string("Server-Timing", containsString("persistence;dur=")))
+                .andExpect(header().string("Server-Timing", containsString("total;dur=")));
+    }
+
+    // Test if only administrators can start a flight recording
+    @Test
+    @Order(60)
+    @WithMockUser(username = "testadmin", roles = {"ADMINISTRATOR"})
+    void testStartFlightRecordingAdmin() throws Exception {
+        mvc
+                .perform(post("/actuator/jfr")
+                        .with(user(testSupportUsername).roles("SUPPORT"))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{}"))
+                .andExpect(status().isForbidden());
+
+        mvc
+                .perform(post("/actuator/jfr")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"maxAgeSeconds\":60}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("RUNNING")));
+    }
+
+    // Test if scoring is recorded while a flight recording is running
+    @Test
+    @Order(61)
+    @WithMockUser(username = "testmerchant", roles = {"MERCHANT"})
+    void testPostTransactionDuringFlightRecording() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(ipv6TransactionAsJson))
+                .andExpect(status().isOk());
+    }
+
+    // Test if the dumped recording contains the fraud engine events, and if the recording can be stopped
+    @Test
+    @Order(62)
+    @WithMockUser(username = "testadmin", roles = {"ADMINISTRATOR"})
+    void testDumpFlightRecordingAdmin() throws Exception {
+        byte[] dump = mvc
+                .perform(get("/actuator/jfr"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+
+        Path file = Files.createTempFile("antifraud", ".jfr");
+        Files.write(file, dump);
+        List<String> eventNames = RecordingFile.readAllEvents(file).stream()
+                .map(RecordedEvent::getEventType)
+                .map(EventType::getName)
+                .distinct()
+                .toList();
+        Files.delete(file);
+
+        assertThat(eventNames).contains(
+                "io.github.dankoller.antifraud.Scoring",
+                "io.github.dankoller.antifraud.Heuristic",
+                "io.github.dankoller.antifraud.RepositoryCall");
+
+        mvc
+                .perform(delete("/actuator/jfr"))
+                .andExpect(status().isOk());
+
+        mvc
+                .perform(get("/actuator/jfr"))
+                .andExpect(status().isNotFound());
+    }
+
+    // Test if scoring a transaction stays within its SQL statement budget (rollup read, sequence, insert, rollup upsert)
+    @Test
+    @Order(63)
+    @WithMockUser(username = "testmerchant", roles = {"MERCHANT"})
+    void testPostTransactionSqlStatementBudget() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(ipv6TransactionAsJson))
+                .andExpect(status().isOk())
+                .andExpect(sqlStatementsAtMost(4));
+    }
+
+    // Test if the transaction history and the blocklists are loaded with one SQL statement each (no N+1 queries)
+    @Test
+    @Order(64)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testGetListingsSqlStatementBudget() throws Exception {
+        mvc
+                .perform(get("/api/antifraud/history/" + ipv6CardNumberValid))
+                .andExpect(status().isOk())
+                .andExpect(sqlStatementsAtMost(1));
+
+        mvc
+                .perform(get("/api/antifraud/stolencard"))
+                .andExpect(status().isOk())
+                .andExpect(sqlStatementsAtMost(1));
+
+        mvc
+                .perform(get("/api/antifraud/suspicious-ip"))
+                .andExpect(status().isOk())
+                .andExpect(sqlStatementsAtMost(1));
+    }
+
+    // Test if the administrators can see the SQL statements per endpoint
+    @Test
+    @Order(65)
+    @WithMockUser(username = "testadmin", roles = {"ADMINISTRATOR"})
+    void testGetSqlStatisticsAdmin() throws Exception {
+        mvc
+                .perform(get("/actuator/sqlstats"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("POST /api/antifraud/transaction")))
+                .andExpect(content().string(containsString("dbTimeMs")));
+    }
+
+    // Test if a backtest with the current policy replays the history with one SQL statement and changes no verdict
+    @Test
+    @Order(66)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testBacktestCurrentPolicy() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/backtest")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("replayMatchesRecorded")))
+                .andExpect(content().string(containsString("falsePositives")))
+                .andExpect(content().string(not(containsString(" -> "))))
+                .andExpect(sqlStatementsAtMost(1));
+    }
+
+    // Test if a backtest with lower limits reports the transactions that would have been prohibited
+    @Test
+    @Order(67)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testBacktestCandidatePolicy() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/backtest")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"allowedLimit\":1,\"manualLimit\":2}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("MANUAL_PROCESSING -> PROHIBITED")))
+                .andExpect(content().string(containsString(ipv6CardNumberValid)));
+
+        // Transactions before the range aren't replayed
+        mvc
+                .perform(post("/api/antifraud/backtest")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"allowedLimit\":1,\"manualLimit\":2,\"from\":\"2100-01-01T00:00:00\"}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"transactions\" : 0")));
+    }
+
+    // Test if a backtest rejects a policy whose allowed limit is above its manual limit
+    @Test
+    @Order(68)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testBacktestInvalidPolicy() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/backtest")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"allowedLimit\":2000,\"manualLimit\":100}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    // Test if archived transactions leave the table but still show up in the history and the backtest
+    @Test
+    @Order(69)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testArchiveOldTransactions() throws Exception {
+        long stored = transactionRepository.count();
+
+        // Archives the transactions of the first day, the velocity transactions of the next day stay in the table
+        assertThat(transactionArchive.archive(LocalDateTime.parse("2022-10-14T00:00:00"))).isPositive();
+        assertThat(transactionRepository.findAllByNumber(cardNumberValid)).isEmpty();
+        assertThat(transactionRepository.findAllByNumber(velocityCardNumberValid)).isNotEmpty();
+
+        mvc
+                .perform(get("/api/antifraud/history/" + cardNumberValid))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString(cardNumberValid)))
+                .andExpect(content().string(containsString(dateValid)))
+                .andExpect(content().string(containsString("\"result\" : \"")));
+
+        mvc
+                .perform(post("/api/antifraud/backtest")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"transactions\" : " + stored)));
+    }
+
+    // Test if the maintenance removes the months past the retention period and keeps the newer ones
+    @Test
+    @Order(70)
+    @WithMockUser(username = "testmerchant", roles = {"MERCHANT"})
+    void testPartitionMaintenance() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(velocityTransactionAsJson(0).replace("2022-10-14", "2023-01-15")))
+                .andExpect(status().isOk());
+
+        // With a retention of 365 days, October 2022 is the newest expired month
+        transactionPartitions.maintain(LocalDateTime.parse("2023-11-15T00:00:00"));
+
+        assertThat(transactionRepository.findAllByNumber(velocityCardNumberValid))
+                .extracting(transaction -> transaction.getDate().getYear())
+                .containsExactly(2023);
+        assertThat(transactionArchive.findAllByCardKey(Long.parseLong(velocityCardNumberValid), null, null))
+                .isNotEmpty();
+    }
+
+    // Test if the history of a card can be limited to a date range
+    @Test
+    @Order(71)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testGetHistoryInDateRange() throws Exception {
+        mvc
+                .perform(get("/api/antifraud/history/" + velocityCardNumberValid)
+                        .param("from", "2023-01-01T00:00:00"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("2023-01-15T10:00:00")))
+                .andExpect(content().string(not(containsString("2022-10-14"))));
+
+        mvc
+                .perform(get("/api/antifraud/history/" + velocityCardNumberValid)
+                        .param("from", "2023-01-01T00:00:00")
+                        .param("to", "2022-01-01T00:00:00"))
+                .andExpect(status().isBadRequest());
+    }
+
+    // Test if the correlation counts the regions and IP addresses of the trailing hour across the hourly rollups
+    @Test
+    @Order(72)
+    @WithMockUser(username = "testmerchant", roles = {"MERCHANT"})
+    void testCorrelationAcrossHourlyRollups() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(correlationTransactionAsJson("EAP", "192.168.0.1", "10:40:00")))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("ALLOWED")));
+
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(correlationTransactionAsJson("ECA", "192.168.0.2", "10:50:00")))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("ALLOWED")));
+
+        // Two other regions and IP addresses in the last hour, one of them in the rollup of the previous hour
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(correlationTransactionAsJson("HIC", "192.168.0.3", "11:10:00")))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("MANUAL_PROCESSING")))
+                .andExpect(content().string(containsString("ip-correlation, region-correlation")));
+
+        // The transaction of 10:40 is more than an hour ago and isn't counted anymore
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(correlationTransactionAsJson("LAC", "192.168.0.4", "11:45:00")))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("MANUAL_PROCESSING")))
+                .andExpect(content().string(containsString("ip-correlation, region-correlation")));
+
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(correlationTransactionAsJson("ECA", "192.168.0.2", "12:30:00")))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("ALLOWED")));
+
+        assertThat(cardHourRollupRepository.findAllByCardKeyAndBucketBetween(
+                Long.parseLong(correlationCardNumberValid), 0L, Long.MAX_VALUE)).hasSize(3);
+    }
+
+    // Test if feedback is appended to the limit history and the current limits load from the snapshot plus the rest
+    @Test
+    @Order(73)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testLimitHistory() throws Exception {
+        List<Transaction> transactions = transactionRepository.findAllByNumber(correlationCardNumberValid);
+        long transactionId = transactions.get(transactions.size() - 1).getId();
+
+        mvc
+                .perform(put("/api/antifraud/transaction/")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(feedbackAsJsonInvalid
+                                .replace("0", String.valueOf(transactionId))
+                                .replace("ALLOWED", "PROHIBITED")))
+                .andExpect(status().isOk());
+
+        // 0.8 * 200 - 0.2 * 10 and 0.8 * 1500 - 0.2 * 10
+        mvc
+                .perform(get("/api/antifraud/limits/" + correlationCardNumberValid))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"allowedLimit\" : 158")))
+                .andExpect(content().string(containsString("\"manualLimit\" : 1198")))
+                .andExpect(content().string(containsString("\"adjustmentsSinceSnapshot\" : 1")));
+
+        assertThat(limitHistoryService.snapshot(LocalDateTime.now().plusMinutes(2))).isPositive();
+
+        mvc
+                .perform(get("/api/antifraud/limits/" + correlationCardNumberValid))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"allowedLimit\" : 158")))
+                .andExpect(content().string(containsString("\"adjustments\" : 1")))
+                .andExpect(content().string(containsString("\"adjustmentsSinceSnapshot\" : 0")));
+
+        mvc
+                .perform(get("/api/antifraud/limits/" + correlationCardNumberValid + "/history"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"transactionId\" : " + transactionId)))
+                .andExpect(content().string(containsString("\"allowedLimitBefore\" : 200")))
+                .andExpect(content().string(containsString("PROHIBITED")));
+
+        mvc
+                .perform(get("/api/antifraud/limits/" + cardNumberInvalid))
+                .andExpect(status().isBadRequest());
+    }
+
+    // Test if replaying the limit history reproduces the limits with the current formula and changes them otherwise
+    @Test
+    @Order(74)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testReplayLimitHistory() throws Exception {
+        mvc
+                .perform(post("/api/antifraud/limits/replay")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"changedCards\" : 0")));
+
+        mvc
+                .perform(post("/api/antifraud/limits/replay")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"feedbackWeight\":0.5}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString(correlationCardNumberValid)))
+                .andExpect(content().string(containsString("\"replayedAllowedLimit\" : 95")));
+
+        mvc
+                .perform(post("/api/antifraud/limits/replay")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"feedbackWeight\":2}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    // Test if bulk feedback rejects invalid items one by one and applies the others in order per card
+    @Test
+    @Order(75)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testBulkFeedback() throws Exception {
+        List<Transaction> transactions = transactionRepository.findAllByNumber(correlationCardNumberValid);
+        long allowed = transactions.get(0).getId();
+        long secondAllowed = transactions.get(1).getId();
+        long manual = transactions.get(2).getId();
+        long secondManual = transactions.get(3).getId();
+        long processed = transactions.get(4).getId();
+
+        mvc
+                .perform(put("/api/antifraud/transaction/bulk")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[" +
+                                feedbackAsJson(allowed, "MANUAL_PROCESSING") + "," +
+                                feedbackAsJson(secondAllowed, "PROHIBITED") + "," +
+                                feedbackAsJson(allowed, "PROHIBITED") + "," +
+                                feedbackAsJson(processed, "ALLOWED") + "," +
+                                feedbackAsJson(manual, "MANUAL_PROCESSING") + "," +
+                                feedbackAsJson(secondManual, "INVALID") + "," +
+                                feedbackAsJson(0, "ALLOWED") + "]"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"updated\" : 2")))
+                .andExpect(content().string(containsString("\"rejected\" : 5")))
+                .andExpect(content().string(containsString("Duplicate transaction")))
+                .andExpect(content().string(containsString("Transaction already processed")))
+                .andExpect(content().string(containsString("Transaction not processable")))
+                .andExpect(content().string(containsString("Invalid feedback")))
+                .andExpect(content().string(containsString("Transaction not found")));
+
+        // 0.8 * 158 - 0.2 * 10 and then 0.8 * 125 - 0.2 * 10, 0.8 * 1198 - 0.2 * 10
+        mvc
+                .perform(get("/api/antifraud/limits/" + correlationCardNumberValid))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"allowedLimit\" : 98")))
+                .andExpect(content().string(containsString("\"manualLimit\" : 957")))
+                .andExpect(content().string(containsString("\"adjustmentsSinceSnapshot\" : 2")));
+
+        assertThat(transactionRepository.findById(secondAllowed).orElseThrow().getFeedback()).isEqualTo("PROHIBITED");
+        assertThat(transactionRepository.findById(secondManual).orElseThrow().getFeedback()).isBlank();
+    }
+
+    // Test if the review queue holds the pending manual transactions, supports claims and pushes the feedback
+    @Test
+    @Order(76)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testReviewQueue() throws Exception {
+        List<Transaction> transactions = transactionRepository.findAllByNumber(correlationCardNumberValid);
+        long allowed = transactions.get(0).getId();
+        long manual = transactions.get(3).getId();
+
+        mvc
+                .perform(get("/api/antifraud/review?limit=1000"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"transactionId\" : " + manual + ",")))
+                .andExpect(content().string(not(containsString("\"transactionId\" : " + allowed + ","))));
+
+        mvc
+                .perform(post("/api/antifraud/review/" + manual + "/claim"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"claimedBy\" : \"testsupport\"")));
+
+        mvc
+                .perform(post("/api/antifraud/review/" + manual + "/claim")
+                        .with(user("othersupport").roles("SUPPORT")))
+                .andExpect(status().isConflict());
+
+        mvc
+                .perform(delete("/api/antifraud/review/" + manual + "/claim")
+                        .with(user("othersupport").roles("SUPPORT")))
+                .andExpect(status().isConflict());
+
+        mvc
+                .perform(delete("/api/antifraud/review/" + manual + "/claim"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"claimedBy\" : null")));
+
+        MvcResult stream = mvc
+                .perform(get("/api/antifraud/review/stream"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc
+                .perform(put("/api/antifraud/transaction")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(feedbackAsJson(manual, "PROHIBITED")))
+                .andExpect(status().isOk());
+
+        // The events are sent by the publisher thread
+        for (int i = 0; i < 50 && !stream.getResponse().getContentAsString().contains("event:removed"); i++) {
+            Thread.sleep(100);
+        }
+        assertThat(stream.getResponse().getContentAsString()).contains("event:removed", "id:" + manual);
+
+        mvc
+                .perform(post("/api/antifraud/review/" + manual + "/claim"))
+                .andExpect(status().isNotFound());
+    }
+
+    // Test if a state snapshot is read back and the transactions after its high-water mark are replayed, with a retry
+    @Test
+    @Order(77)
+    void testStateSnapshotReconciliation(@TempDir Path stateDirectory) throws Exception {
+        VelocityTracker source = new VelocityTracker(10, 10000, 60, 50000, 300, 200000);
+        LocalDateTime date = LocalDateTime.parse(dateValid);
+        long cardKey = CardValidator.toValidKey(cardNumberValid);
+        source.record(cardKey, date, 10);
+        source.record(cardKey, date, 20);
+
+        List<Long> replayedIds = new ArrayList<>();
+        SnapshotParticipant recorder = new SnapshotParticipant() {
+            @Override
+            public String getSnapshotSection() {
+                return "test-replays";
+            }
+
+            @Override
+            public void writeSnapshot(DataOutputStream out) throws IOException {
+                out.writeLong(42);
+            }
+
+            @Override
+            public void restoreSnapshot(ByteBuffer section) {
+                assertThat(section.getLong()).isEqualTo(42);
+            }
+
+            @Override
+            public void replay(Transaction transaction) {
+                replayedIds.add(transaction.getId());
+            }
+        };
+
+        List<Long> ids = transactionRepository.findAll().stream().map(Transaction::getId).sorted().toList();
+        long newest = ids.get(ids.size() - 1);
+        long highWaterMark = ids.get(ids.size() - 3);
+        StateSnapshotFile.write(stateDirectory.resolve("state.snapshot"), highWaterMark, List.of(source, recorder));
+
+        StateSnapshotFile snapshot = StateSnapshotFile.read(stateDirectory.resolve("state.snapshot"));
+        assertThat(snapshot.getHighWaterMark()).isEqualTo(highWaterMark);
+        assertThat(snapshot.getSection("velocity-v3")).isNotNull();
+        assertThat(snapshot.getSection("test-replays").remaining()).isEqualTo(8);
+        assertThat(snapshot.getSection("missing")).isNull();
+
+        // The first page fails like a lost connection, the retry has to continue after the high-water mark
+        TransactionRepository flakyRepository = mock(TransactionRepository.class);
+        when(flakyRepository.findMaxId()).thenReturn(newest);
+        when(flakyRepository.findTop1000ByIdGreaterThanAndIdLessThanEqualOrderByIdAsc(anyLong(), anyLong()))
+                .thenThrow(new TransientDataAccessResourceException("Connection lost"))
+                .thenAnswer(invocation -> transactionRepository
+                        .findTop1000ByIdGreaterThanAndIdLessThanEqualOrderByIdAsc(
+                                invocation.getArgument(0), invocation.getArgument(1)));
+
+        VelocityTracker target = new VelocityTracker(10, 10000, 60, 50000, 300, 200000);
+        StateSnapshotService service = new StateSnapshotService();
+        ReflectionTestUtils.setField(service, "participants", List.of(target, recorder));
+        ReflectionTestUtils.setField(service, "transactionRepository", flakyRepository);
+        ReflectionTestUtils.setField(service, "directory", stateDirectory.toString());
+        ReflectionTestUtils.setField(service, "retryDelayMillis", 10L);
+        StateReconciliationHealthIndicator indicator = new StateReconciliationHealthIndicator();
+        ReflectionTestUtils.setField(indicator, "stateSnapshotService", service);
+
+        service.restore();
+        assertThat(service.isReconciled()).isFalse();
+        assertThat(indicator.health().getStatus()).isEqualTo(Status.OUT_OF_SERVICE);
+
+        service.startReconciliation();
+        for (int i = 0; i < 50 && !service.isReconciled(); i++) {
+            Thread.sleep(100);
+        }
+
+        Health health = indicator.health();
+        assertThat(health.getStatus()).isEqualTo(Status.UP);
+        assertThat(health.getDetails())
+                .containsEntry("highWaterMark", newest)
+                .containsEntry("replayed", 2L)
+                .containsEntry("failures", 1);
+        assertThat(replayedIds).containsExactly(ids.get(ids.size() - 2), newest);
+        // Restored from the snapshot: two transactions of 30 in total, plus the one recorded now
+        assertThat(target.record(cardKey, date, 0).getAmount(VelocityWindow.MINUTE)).isEqualTo(30);
+    }
+
+    // Test if the off-heap map keeps all entries through resizes and removals, and readers never see a wrong value
+    @Test
+    @Order(78)
+    void testOffHeapLongLongMap() throws Exception {
+        OffHeapLongLongMap map = new OffHeapLongLongMap(16);
+        long initialCapacity = map.getCapacityInBytes();
+
+        // -1 is the only key that can't be stored
+        for (long key = 0; key < 10_000; key++) {
+            assertThat(map.put(key, key * 7 + 100_000)).isEqualTo(OffHeapLongLongMap.MISSING);
+        }
+        map.put(Long.MIN_VALUE, 1);
+        map.put(Long.MAX_VALUE, 2);
+        assertThat(map.size()).isEqualTo(10_002);
+        assertThat(map.getCapacityInBytes()).isGreaterThan(initialCapacity);
+        assertThat(map.put(0, 5)).isEqualTo(100_000);
+        assertThat(map.putIfAbsent(1, 9)).isEqualTo(100_007);
+        assertThat(map.get(Long.MIN_VALUE)).isEqualTo(1);
+        assertThat(map.get(10_000)).isEqualTo(OffHeapLongLongMap.MISSING);
+        assertThatThrownBy(() -> map.put(3, OffHeapLongLongMap.MISSING)).isInstanceOf(IllegalArgumentException.class);
+
+        // Removing every other key shifts the probe chains back, the remaining keys must stay reachable
+        for (long key = 0; key < 10_000; key += 2) {
+            assertThat(map.remove(key)).isNotEqualTo(OffHeapLongLongMap.MISSING);
+        }
+        assertThat(map.remove(0)).isEqualTo(OffHeapLongLongMap.MISSING);
+        assertThat(map.size()).isEqualTo(5002);
+        for (long key = 1; key < 10_000; key += 2) {
+            assertThat(map.get(key)).isEqualTo(key * 7 + 100_000);
+            assertThat(map.get(key - 1)).isEqualTo(OffHeapLongLongMap.MISSING);
+        }
+
+        long[] sum = new long[2];
+        map.forEach((key, value) -> {
+            sum[0]++;
+            sum[1] += value;
+        });
+        assertThat(sum[0]).isEqualTo(5002);
+        assertThat(sum[1]).isEqualTo(5000 * 100_000L + 7 * 25_000_000L + 3);
+
+        // Optimistic reads of stable keys while a writer grows and shrinks the table
+        OffHeapLongLongMap shared = new OffHeapLongLongMap(16);
+        for (long key = 0; key < 1000; key++) shared.put(key, key + 1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            for (long key = 1000; key < 200_000; key++) shared.put(key, key + 1);
+            for (long key = 1000; key < 200_000; key++) shared.remove(key);
+            writing.set(false);
+        });
+        writer.start();
+
+        long wrongReads = 0;
+        do {
+            for (long key = 0; key < 1000; key++) {
+                if (shared.get(key) != key + 1) wrongReads++;
+            }
+        } while (writing.get());
+        writer.join();
+
+        assertThat(wrongReads).isZero();
+        assertThat(shared.size()).isEqualTo(1000);
+    }
+
+    // Test if the card state journal recovers its snapshot and log, and cuts off a torn or corrupt log tail
+    @Test
+    @Order(79)
+    void testCardStateJournalRecovery(@TempDir Path journalDirectory) throws Exception {
+        Path log = journalDirectory.resolve("cards.wal");
+        Path snapshot = journalDirectory.resolve("cards.snapshot");
+
+        try (CardStateJournal journal = new CardStateJournal(journalDirectory)) {
+            OffHeapLongLongMap map = new OffHeapLongLongMap(16);
+            assertThat(journal.recover(map)).isFalse();
+
+            for (long key = 0; key < 100; key++) {
+                map.put(key, key + 1);
+                journal.append(CardStateJournal.PUT, key, key + 1);
+            }
+            journal.snapshot(map);
+            assertThat(Files.size(log)).isZero();
+
+            for (long key = 100; key < 150; key++) journal.append(CardStateJournal.PUT, key, key + 1);
+            for (long key = 0; key < 10; key++) journal.append(CardStateJournal.REMOVE, key, 0);
+            journal.append(CardStateJournal.PUT, 10, 42);
+            journal.force();
+        }
+        long logBytes = Files.size(log);
+
+        // A crash in the middle of a record leaves a torn tail
+        Files.write(log, new byte[]{CardStateJournal.PUT, 1, 2, 3, 4, 5, 6, 7}, StandardOpenOption.APPEND);
+        OffHeapLongLongMap recovered = new OffHeapLongLongMap(16);
+        try (CardStateJournal journal = new CardStateJournal(journalDirectory)) {
+            assertThat(journal.recover(recovered)).isTrue();
+        }
+        assertThat(Files.size(log)).isEqualTo(logBytes);
+        assertThat(recovered.size()).isEqualTo(140);
+        assertThat(recovered.get(5)).isEqualTo(OffHeapLongLongMap.MISSING);
+        assertThat(recovered.get(10)).isEqualTo(42);
+        assertThat(recovered.get(149)).isEqualTo(150);
+
+        // A flipped bit in the last record fails its checksum, the record is dropped
+        byte[] bytes = Files.readAllBytes(log);
+        bytes[bytes.length - 6] ^= 1;
+        Files.write(log, bytes);
+        recovered = new OffHeapLongLongMap(16);
+        try (CardStateJournal journal = new CardStateJournal(journalDirectory)) {
+            journal.recover(recovered);
+        }
+        assertThat(Files.size(log)).isEqualTo(logBytes - 21);
+        assertThat(recovered.get(10)).isEqualTo(11);
+
+        // A corrupt snapshot can't be repaired from the log, recovery must fail
+        bytes = Files.readAllBytes(snapshot);
+        bytes[30] ^= 1;
+        Files.write(snapshot, bytes);
+        try (CardStateJournal journal = new CardStateJournal(journalDirectory)) {
+            assertThatThrownBy(() -> journal.recover(new OffHeapLongLongMap(16)))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageContaining("Corrupt card state snapshot");
+        }
+    }
+
+    // Test if a bulk import reserves its ids in blocks instead of one generator round trip per row
+    @Test
+    @Order(80)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testBulkImportSqlStatementBudget() throws Exception {
+        StringBuilder cards = new StringBuilder("number\n");
+        for (int i = 0, valid = 0; valid < 200; i++) {
+            String cardNumber = String.format("40000077%08d", i);
+            if (CardValidator.isNonValid(cardNumber)) continue;
+            cards.append(cardNumber).append('\n');
+            valid++;
+        }
+
+        StringBuilder ips = new StringBuilder("ip\n");
+        for (int i = 0; i < 200; i++) ips.append("10.2.0.").append(i).append('\n');
+
+        // Existing rows, id blocks and batched inserts of the cards (or IPs) and their blocklist changes
+        mvc
+                .perform(post("/api/antifraud/stolencard/bulk")
+                        .contentType("text/csv")
+                        .content(cards.toString()))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"inserted\" : 200")))
+                .andExpect(sqlStatementsAtMost(8));
+
+        mvc
+                .perform(post("/api/antifraud/suspicious-ip/bulk")
+                        .contentType("text/csv")
+                        .content(ips.toString()))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"inserted\" : 200")))
+                .andExpect(sqlStatementsAtMost(8));
+    }
+
+    // Test if a scored card that isn't synchronized to the card table yet gets a single row when it's flagged, and
+    // if deleting the flag keeps the card
+    @Test
+    @Order(81)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testPostStolenCardAfterScoring() throws Exception {
+        String cardNumber = "4000008100000004";
+
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .with(user(testMerchantUsername).roles("MERCHANT"))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(transactionValidAsJson.replace(cardNumberValid, cardNumber).replace(amountValid, "10")))
+                .andExpect(status().isOk());
+
+        mvc
+                .perform(post("/api/antifraud/stolencard")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"number\":\"" + cardNumber + "\"}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"id\"")));
+        assertThat(cardRepository.findAllByNumberIn(List.of(cardNumber))).hasSize(1);
+
+        mvc
+                .perform(post("/api/antifraud/stolencard")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"number\":\"" + cardNumber + "\"}"))
+                .andExpect(status().isConflict());
+
+        // Deleting unlocks the card instead of removing it, so its state is still there for scoring and feedback
+        mvc
+                .perform(delete("/api/antifraud/stolencard/" + cardNumber))
+                .andExpect(status().isOk());
+        assertThat(cardRepository.findByNumber(cardNumber)).hasValueSatisfying(card -> {
+            assertThat(card.isLocked()).isFalse();
+            assertThat(card.getAllowedLimit()).isEqualTo(Card.DEFAULT_ALLOWED_LIMIT);
+        });
+
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .with(user(testMerchantUsername).roles("MERCHANT"))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(transactionValidAsJson.replace(cardNumberValid, cardNumber).replace(amountValid, "10")))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("ALLOWED")));
+    }
+
+    // Test if a snapshot keeps the changes appended while it's written, also if it's interrupted after the rotation
+    @Test
+    @Order(82)
+    void testCardStateJournalRotation(@TempDir Path journalDirectory) throws Exception {
+        try (CardStateJournal journal = new CardStateJournal(journalDirectory)) {
+            OffHeapLongLongMap map = new OffHeapLongLongMap(16);
+            journal.recover(map);
+            for (long key = 0; key < 100; key++) {
+                map.put(key, key + 1);
+                journal.append(CardStateJournal.PUT, key, key + 1);
+            }
+
+            // The copy is written after the rotation, the changes in between only go to the new log
+            OffHeapLongLongMap copy = map.copy();
+            journal.rotateLog();
+            map.put(0, 42);
+            journal.append(CardStateJournal.PUT, 0, 42);
+            assertThat(copy.get(0)).isEqualTo(1);
+            journal.writeSnapshot(copy);
+            assertThat(journalDirectory.resolve("cards.wal.previous")).doesNotExist();
+
+            // A snapshot that fails after the rotation leaves the old log behind, the next rotation adds to it
+            journal.rotateLog();
+            journal.append(CardStateJournal.PUT, 1, 43);
+            journal.rotateLog();
+            journal.append(CardStateJournal.PUT, 2, 44);
+        }
+
+        OffHeapLongLongMap recovered = new OffHeapLongLongMap(16);
+        try (CardStateJournal journal = new CardStateJournal(journalDirectory)) {
+            assertThat(journal.recover(recovered)).isTrue();
+        }
+        assertThat(recovered.size()).isEqualTo(100);
+        assertThat(recovered.get(0)).isEqualTo(42);
+        assertThat(recovered.get(1)).isEqualTo(43);
+        assertThat(recovered.get(2)).isEqualTo(44);
+        assertThat(recovered.get(99)).isEqualTo(100);
+    }
+
+    // Test if a single feedback waits while another feedback holds the card, instead of being computed from its limits
+    @Test
+    @Order(83)
+    @WithMockUser(username = "testsupport", roles = {"SUPPORT"})
+    void testPutFeedbackWaitsForCardLock() throws Exception {
+        String cardNumber = "4000008100000004";
+        mvc
+                .perform(post("/api/antifraud/transaction")
+                        .with(user(testMerchantUsername).roles("MERCHANT"))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(transactionValidAsJson.replace(cardNumberValid, cardNumber).replace(amountValid, "10")))
+                .andExpect(status().isOk());
+        long transactionId = getLastTransactionId();
+        long cardKey = CardValidator.toKey(cardNumber);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<MvcResult> feedback;
+        cardLocks.lock(cardKey);
+        try {
+            feedback = executor.submit(() -> mvc
+                    .perform(put("/api/antifraud/transaction/")
+                            .with(user(testSupportUsername).roles("SUPPORT"))
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(feedbackAsJson(transactionId, "PROHIBITED")))
+                    .andReturn());
+            assertThatThrownBy(() -> feedback.get(300, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+        } finally {
+            cardLocks.unlock(cardKey);
+        }
+
+        assertThat(feedback.get(10, TimeUnit.SECONDS).getResponse().getStatus()).isEqualTo(200);
+        executor.shutdown();
+        assertThat(limitHistoryService.getHistory(cardNumber)).hasSize(1);
+    }
+
+    // Test if every notation of an address parses to the same key, and if the key prints in canonical notation
+    @Test
+    @Order(84)
+    void testIPKeyNotations() {
+        assertThat(IPKey.parse("2001:DB8:0:0:0:0:0:1"))
+                .isEqualTo(IPKey.parse("2001:db8::1"))
+                .isEqualTo(IPKey.parse("2001:0db8:0000::0001"))
+                .hasToString("2001:db8::1");
+        assertThat(IPKey.parse("::ffff:192.0.2.1"))
+                .isEqualTo(IPKey.parse("::FFFF:c000:201"))
+                .isEqualTo(IPKey.parse("192.0.2.1"))
+                .hasToString("192.0.2.1");
+        assertThat(IPKey.parse("64:ff9b::192.0.2.1"))
+                .isEqualTo(IPKey.parse("64:ff9b:0:0:0:0:c000:201"))
+                .hasToString("64:ff9b::c000:201");
+        assertThat(IPKey.parse("1:2:3:4:5:6:192.0.2.1")).hasToString("1:2:3:4:5:6:c000:201");
+        assertThat(IPKey.parse("1:0:0:2:2:0:0:3")).hasToString("1::2:2:0:0:3");
+        assertThat(IPKey.parse("1:0:0:2:0:0:0:3")).hasToString("1:0:0:2::3");
+        assertThat(IPKey.parse("1:0:2:3:4:5:6:7")).hasToString("1:0:2:3:4:5:6:7");
+        assertThat(IPKey.parse("::")).hasToString("::");
+
+        // An embedded IPv4 address is only valid as the last 32 bits
+        assertThat(IPKey.parse("1.2.3.4::")).isNull();
+        assertThat(IPKey.parse("1.2.3.4::1")).isNull();
+        assertThat(IPKey.parse("1:1.2.3.4::")).isNull();
+        assertThat(IPKey.parse("1:2:3:4:5:6:7:1.2.3.4")).isNull();
+        assertThat(IPKey.parse("::1.2.3")).isNull();
+
+        assertThat(IPKey.parse("1::2::3")).isNull();
+        assertThat(IPKey.parse("12345::")).isNull();
+        assertThat(IPKey.parse("1:2:3:4:5:6:7:8:9")).isNull();
+        assertThat(IPKey.parse("1:2:3:4:5:6:7")).isNull();
+        assertThat(IPKey.parse("1:2:3:4::5:6:7:8")).isNull();
+        assertThat(IPKey.parse("g::")).isNull();
+    }
+
+    // Test if the radix tree finds the addresses of its networks in every notation, and keeps nested networks on removal
+    @Test
+    @Order(85)
+    void testIPRadixTree() {
+        IPRadixTree tree = new IPRadixTree();
+        assertThat(tree.add(IPNetwork.parse("2001:db8::/32"))).isTrue();
+        assertThat(tree.add(IPNetwork.parse("2001:DB8:0:0::/32"))).isFalse();
+        assertThat(tree.add(IPNetwork.parse("2001:db8:1::/48"))).isTrue();
+        assertThat(tree.add(IPNetwork.parse("192.0.2.0/24"))).isTrue();
+        assertThat(tree.add(IPNetwork.parse("198.51.100.7"))).isTrue();
+        assertThat(tree.size()).isEqualTo(4);
+
+        assertThat(tree.contains(IPKey.parse("2001:db8:ffff::1"))).isTrue();
+        assertThat(tree.contains(IPKey.parse("2001:db9::1"))).isFalse();
+        assertThat(tree.contains(IPKey.parse("::ffff:192.0.2.200"))).isTrue();
+        assertThat(tree.contains(IPKey.parse("192.0.3.1"))).isFalse();
+        assertThat(tree.contains(IPKey.parse("::ffff:c633:6407"))).isTrue();
+        assertThat(tree.contains(IPKey.parse("198.51.100.8"))).isFalse();
+
+        assertThat(tree.remove(IPNetwork.parse("2001:db8::/32"))).isTrue();
+        assertThat(tree.remove(IPNetwork.parse("2001:db8::/32"))).isFalse();
+        assertThat(tree.contains(IPKey.parse("2001:db8:ffff::1"))).isFalse();
+        assertThat(tree.contains(IPKey.parse("2001:db8:1::1"))).isTrue();
+        assertThat(tree.size()).isEqualTo(3);
+    }
+
+    // Test if the correlation counts an address once, whatever notations the transactions use
+    @Test
+    @Order(86)
+    @WithMockUser(username = "testmerchant", roles = {"MERCHANT"})
+    void testCorrelationAcrossIpNotations() throws Exception {
+        String cardNumber = "4000008100000012";
+        List<String> ips = List.of("fd00::7", "FD00:0:0:0:0:0:0:7", "::ffff:192.0.2.1", "192.0.2.1");
+
+        for (int i = 0; i < ips.size(); i++) {
+            mvc
+                    .perform(post("/api/antifraud/transaction")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(correlationTransactionAsJson("ECA", ips.get(i), "13:" + i + "0:00")
+                                    .replace(correlationCardNumberValid, cardNumber)))
+                    .andExpect(status().isOk())
+                    .andExpect(content().string(containsString("ALLOWED")))
+                    .andExpect(content().string(not(containsString("correlation"))));
+        }
+    }
+
+    // Test if the batch validation keeps exactly the card numbers the single validation accepts, in their order
+    @Test
+    @Order(87)
+    void testCardValidatorBatch() {
+        String[] cardNumbers = {
+                cardNumberValid, "4000008100000004", "4000008100000005", "0000000000000000", null, "400000810000000",
+                "40000081000000040", "40000081000000a4", "4000008100000:04", "4000008100000/04", "4000008100000012"
+        };
+        List<Long> expected = new ArrayList<>();
+        for (String cardNumber : cardNumbers) {
+            long key = CardValidator.toValidKey(cardNumber);
+            if (key != CardValidator.INVALID) expected.add(key);
+        }
+        assertThat(expected).hasSize(4);
+
+        long[] keys = new long[cardNumbers.length];
+        int valid = CardValidator.toValidKeys(cardNumbers, cardNumbers.length, keys);
+        assertThat(valid).isEqualTo(expected.size());
+        for (int i = 0; i < valid; i++) assertThat(keys[i]).isEqualTo(expected.get(i));
+
+        // Without the checksum, only the format is checked, and the key converts back into the card number
+        assertThat(CardValidator.toKey("4000008100000005")).isEqualTo(4000008100000005L);
+        assertThat(CardValidator.toKey("40000081000000a4")).isEqualTo(CardValidator.INVALID);
+        assertThat(CardValidator.toKey(null)).isEqualTo(CardValidator.INVALID);
+        assertThat(CardValidator.fromKey(CardValidator.toKey("0000000000000042"))).isEqualTo("0000000000000042");
+    }
+
+    // Test if a user can be deleted and clean up the database
+    @Test
+    @Order(900)
     @WithMockUser(username = "testadmin", roles = {"ADMINISTRATOR"})
     void testUserDeletion() throws Exception {
         mvc
@@ -796,7 +2153,7 @@ class AntifraudApplicationTests {
 
     // Test if the latest transaction in the database is deleted (for cleanup)
     @Test
-    @Order(44)
+    @Order(901)
     void testTransactionDeletion() {
         // Set the latest transaction in the database as transaction id
         Long transactionId = getLastTransactionId();
@@ -807,7 +2164,7 @@ class AntifraudApplicationTests {
 
     // Test if the card number in the database is deleted (for cleanup)
     @Test
-    @Order(45)
+    @Order(902)
     void testCardNumberDeletion() {
         Optional<Card> card = cardRepository.findByNumber(cardNumberValid);
 
@@ -817,12 +2174,46 @@ class AntifraudApplicationTests {
 
     // Test if the admin can be removed from the database (for cleanup)
     @Test
-    @Order(46)
+    @Order(903)
     void removeAdminUser() {
         userService.deleteUser(testAdministrator.getUsername());
         assertThat(userRepository.findByUsername(testAdministrator.getUsername())).isNull();
     }
 
+    /**
+     * Helper method to build a small transaction for the velocity card at a given second of the same minute
+     *
+     * @param second the second of the transaction date
+     * @return the transaction as a JSON string
+     */
+    private String velocityTransactionAsJson(int second) {
+        return transactionValidAsJson
+                .replace(cardNumberValid, velocityCardNumberValid)
+                .replace(amountValid, "10")
+                .replace(dateValid, String.format("2022-10-14T10:00:%02d", second));
+    }
+
+    /**
+     * Helper method to build a small transaction for the correlation card at a given time of the same day
+     *
+     * @param region the region of the transaction
+     * @param ip     the IP address of the transaction
+     * @param time   the time of the transaction date
+     * @return the transaction as a JSON string
+     */
+    private String correlationTransactionAsJson(String region, String ip, String time) {
+        return transactionValidAsJson
+                .replace(cardNumberValid, correlationCardNumberValid)
+                .replace(amountValid, "10")
+                .replace(ipValid, ip)
+                .replace(regionValid, region)
+                .replace(dateValid, "2024-03-01T" + time);
+    }
+
+    private static String feedbackAsJson(long transactionId, String feedback) {
+        return "{\"transactionId\":" + transactionId + ",\"feedback\":\"" + feedback + "\"}";
+    }
+
     /**
      * Helper method to get the latest transaction id in the database
      *
@@ -831,4 +2222,21 @@ class AntifraudApplicationTests {
     private long getLastTransactionId() {
         return transactionRepository.findAll().get(transactionRepository.findAll().size() - 1).getId();
     }
+
+    /**
+     * Helper method to check that a request executed at most the given number of SQL statements
+     *
+     * @param budget the maximum number of statements, including the ones of the user lookup
+     * @return the result matcher
+     */
+    private ResultMatcher sqlStatementsAtMost(int budget) {
+        return result -> {
+            SqlStatementCounter counter =
+                    (SqlStatementCounter) result.getRequest().getAttribute(SqlStatementCounter.REQUEST_ATTRIBUTE);
+            assertThat(counter).isNotNull();
+            assertThat(counter.getStatements())
+                    .as("SQL statements of %s %s", result.getRequest().getMethod(), result.getRequest().getRequestURI())
+                    .isLessThanOrEqualTo(budget);
+        };
+    }
 }